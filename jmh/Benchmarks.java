@@ -0,0 +1,398 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * The workloads of the JMH benchmarks in {@code jmh/benchmarks}: the crypto, framing and game-logic hot paths. JMH
+ * refuses benchmark classes in the default package, and a class in a named package cannot refer to one in the default
+ * package, so each benchmark looks its workload's factory method up once by name, with typed arguments, and then calls
+ * the workload through {@code Callable}, a monomorphic call the JIT inlines. This class lives in the {@code jmh}
+ * source set, so none of it ships in the main jar.
+ * <p>
+ * Run them with {@code gradle jmh}, which writes JMH's JSON results to {@code build/reports/jmh/results.json}.
+ */
+public final class Benchmarks {
+    private static final Map<Integer, RSAKey> keys = new ConcurrentHashMap<>();
+
+    private Benchmarks() {
+    }
+
+    public static Callable<Object> computeKey(int keyBits) {
+        KeyGenerator generator = new ProbablePrimeKeyGenerator(keyBits);
+        return generator::generateKey;
+    }
+
+    public static Callable<Object> rsaEncrypt(int keyBits, int size) {
+        RSABlockCipher cipher = new RSABlockCipher(key(keyBits));
+        byte[] data = randomBytes(size);
+        return () -> cipher.encrypt(data);
+    }
+
+    /**
+     * @param parallel {@code false} to always decrypt on the calling thread
+     */
+    public static Callable<Object> rsaDecrypt(int keyBits, int size, boolean parallel) {
+        RSABlockCipher cipher = new RSABlockCipher(key(keyBits));
+        if (!parallel)
+            cipher.setParallelThreshold(Integer.MAX_VALUE);
+        byte[] data = randomBytes(size);
+        byte[] encrypted = cipher.encrypt(data);
+        byte[] out = new byte[data.length];
+        return () -> cipher.decrypt(encrypted, 0, encrypted.length, out, 0);
+    }
+
+    /**
+     * @param session {@code true} to encrypt each frame with a session key
+     */
+    public static Callable<Object> frameRoundTrip(int size, boolean session) {
+        PipePlayer player = new PipePlayer();
+        if (session)
+            player.useSession();
+        byte[] data = randomBytes(size);
+        return () -> {
+            player.writeBytes(data);
+            return player.readBytes();
+        };
+    }
+
+    /**
+     * @param protocol {@code binary}, {@code text} or {@code commit}
+     */
+    public static Callable<Object> messageRoundTrip(String protocol) {
+        PipePlayer player = new PipePlayer();
+        player.setProtocolVersion(protocolVersion(protocol));
+        player.useSession();
+        return () -> {
+            player.writeMove(2);
+            return player.readMessage();
+        };
+    }
+
+    /**
+     * @param protocol {@code binary}, {@code text} or {@code commit}
+     */
+    public static Callable<Object> socketRound(String protocol) throws IOException {
+        BotClient bot = startLoopbackGame(protocolVersion(protocol), "tcp");
+        return bot::playRound;
+    }
+
+    /**
+     * @param transport {@code tcp}, {@code unix} or {@code mem}
+     */
+    public static Callable<Object> transportRound(String transport) throws IOException {
+        BotClient bot = startLoopbackGame(NetworkPlayer.PROTOCOL_BINARY, transport);
+        return bot::playRound;
+    }
+
+    public static Callable<Object> metricsCounter() {
+        return () -> {
+            Metrics.BYTES_OUT.add(16);
+            return null;
+        };
+    }
+
+    public static Callable<Object> metricsTimer() {
+        Metrics.Timer timer = Metrics.timer("benchmark_seconds", "Benchmark timer");
+        return () -> {
+            timer.recordSince(System.nanoTime());
+            return null;
+        };
+    }
+
+    public static Callable<Object> matchLogAppend() throws IOException {
+        MatchLog log = new MatchLog(Files.createTempDirectory("matchlog"));
+        long[] i = {0};
+        return () -> {
+            long n = i[0]++;
+            log.append(n, n >> 3, (int) n & 1023, (int) (n >> 10) & 1023, 1 + (int) (n % 3),
+                    1 + (int) (n / 3 % 3), (int) (n % 3), 100);
+            return null;
+        };
+    }
+
+    public static Callable<Object> getMoveFromString() {
+        String[] inputs = {"r", "Paper", "scissors", "ROCK", "p", "S"};
+        int[] i = {0};
+        return () -> Player.getMoveFromString(inputs[i[0]++ % inputs.length]);
+    }
+
+    /**
+     * Baseline for {@link #getMoveFromString()}: the regex matching it used before the lookup tables.
+     */
+    public static Callable<Object> getMoveFromStringRegex() {
+        String[] inputs = {"r", "Paper", "scissors", "ROCK", "p", "S"};
+        String[] patterns = {"r(ock)?", "p(aper)?", "s(cissors)?"};
+        int[] i = {0};
+        return () -> {
+            String msg = inputs[i[0]++ % inputs.length];
+            for (int move = 0; move < patterns.length; move++)
+                if (Pattern.compile(patterns[move]).matcher(msg.toLowerCase()).matches())
+                    return move + 1;
+            return -1;
+        };
+    }
+
+    public static Callable<Object> parseMoveBytes() {
+        byte[] buf = "rPaperscissorsROCKpS".getBytes(StandardCharsets.US_ASCII);
+        int[][] spans = {{0, 1}, {1, 5}, {6, 8}, {14, 4}, {18, 1}, {19, 1}};
+        int[] i = {0};
+        return () -> {
+            int[] span = spans[i[0]++ % spans.length];
+            return Player.parseMove(buf, span[0], span[1]);
+        };
+    }
+
+    public static Callable<Object> getWinner() {
+        Player a = new Player();
+        Player b = new Player();
+        int[] i = {0};
+        return () -> {
+            a.setMove(1 + i[0] % 3);
+            b.setMove(1 + (i[0]++ / 3) % 3);
+            return Player.getWinner(a, b);
+        };
+    }
+
+    public static Callable<Object> getOutcome() {
+        int[] i = {0};
+        return () -> {
+            int n = i[0]++;
+            return Player.getOutcome(1 + n % 3, 1 + (n / 3) % 3);
+        };
+    }
+
+    public static Callable<Object> getOutcomes(int size) {
+        byte[] first = new byte[size];
+        byte[] second = new byte[size];
+        byte[] outcomes = new byte[size];
+        Random random = new Random(1);
+        for (int j = 0; j < size; j++) {
+            first[j] = (byte) (1 + random.nextInt(3));
+            second[j] = (byte) (1 + random.nextInt(3));
+        }
+        return () -> {
+            Player.getOutcomes(first, second, outcomes, 0, size);
+            return outcomes;
+        };
+    }
+
+    public static Callable<Object> roundRobinRound(int players, int bestOf) {
+        Tournament tournament = new Tournament(bestOf, Tournament.randomStrategy(1));
+        return () -> tournament.roundRobin(players, 1, null);
+    }
+
+    private static RSAKey key(int keyBits) {
+        return keys.computeIfAbsent(keyBits, bits -> new ProbablePrimeKeyGenerator(bits).generateKey());
+    }
+
+    private static int protocolVersion(String protocol) {
+        switch (protocol) {
+            case "text":
+                return NetworkPlayer.PROTOCOL_TEXT;
+            case "commit":
+                return NetworkPlayer.PROTOCOL_COMMIT_REVEAL;
+            default:
+                return NetworkPlayer.PROTOCOL_BINARY;
+        }
+    }
+
+    /**
+     * Starts an endless match over a loopback transport between a {@code Server} playing random moves on a background
+     * thread and a bot, so each round costs what it would on a real connection.
+     *
+     * @param transport {@code tcp}, {@code unix} or {@code mem}
+     * @return The bot, ready to play rounds
+     */
+    private static BotClient startLoopbackGame(int protocolVersion, String transport) throws IOException {
+        RSAKey key = key(1024);
+        URI address;
+        switch (transport) {
+            case "tcp":
+                address = TcpTransport.uri("localhost", 0);
+                break;
+            case "unix":
+                address = URI.create("unix:" + Files.createTempDirectory("benchmark").resolve("rps.sock").toUri()
+                        .getRawPath());
+                break;
+            default:
+                address = URI.create("mem://benchmark-" + System.nanoTime());
+        }
+        Transport.Listener listener = Transport.listen(address);
+        Thread thread = new Thread(() -> {
+            try (Transport.Listener accepting = listener) {
+                Server server = new Server(accepting.accept(), key, NetworkPlayer.PROTOCOL_COMMIT_REVEAL);
+                server.setBestOf(Integer.MAX_VALUE);
+                server.playGame(new Seat() {
+                    @Override
+                    public void promptMove() {
+                    }
+
+                    @Override
+                    public int readMove() {
+                        return 1 + ThreadLocalRandom.current().nextInt(3);
+                    }
+
+                    @Override
+                    public void sendResult(int result) {
+                    }
+
+                    @Override
+                    public void end() {
+                    }
+                });
+            } catch (IOException ignored) {
+                // The benchmark is over and the bot was closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return new BotClient(listener.getAddress(), protocolVersion, BotClient.randomStrategy(), null, false);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * A {@code NetworkPlayer} whose output is read back by its own input, so framing can be measured without a
+     * socket. Frames must be read in the order they were written.
+     */
+    private static class PipePlayer extends NetworkPlayer {
+        private byte[] buffer = new byte[1024];
+        private int readPosition;
+        private int writePosition;
+        private SessionCipher receiver;
+
+        private final DataOutputStream out = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                ensureCapacity(1);
+                buffer[writePosition++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                ensureCapacity(len);
+                System.arraycopy(b, off, buffer, writePosition, len);
+                writePosition += len;
+            }
+        });
+
+        private final DataInputStream in = new DataInputStream(new InputStream() {
+            @Override
+            public int read() {
+                if (readPosition == writePosition)
+                    return -1;
+                int b = buffer[readPosition++] & 0xFF;
+                rewind();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (readPosition == writePosition)
+                    return -1;
+                int n = Math.min(len, writePosition - readPosition);
+                System.arraycopy(buffer, readPosition, b, off, n);
+                readPosition += n;
+                rewind();
+                return n;
+            }
+        });
+
+        private void ensureCapacity(int extra) {
+            if (writePosition + extra > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, writePosition + extra));
+        }
+
+        private void rewind() {
+            if (readPosition == writePosition)
+                readPosition = writePosition = 0;
+        }
+
+        /**
+         * Encrypts outgoing frames as the client and decrypts incoming ones as the server, which is what a real
+         * round trip costs.
+         */
+        void useSession() {
+            byte[] sessionKey = SessionCipher.generateKey();
+            setSessionCipher(new SessionCipher(sessionKey, true));
+            receiver = new SessionCipher(sessionKey, false);
+        }
+
+        @Override
+        public void writeBytes(byte[] data, int offset, int length) throws IOException {
+            super.writeBytes(data, offset, length);
+            swapSides();
+        }
+
+        @Override
+        public byte[] readBytes() throws IOException {
+            byte[] data = super.readBytes();
+            swapSides();
+            return data;
+        }
+
+        @Override
+        public int readMessage() throws IOException {
+            int opcode = super.readMessage();
+            if (getSessionCipher() != null)
+                swapSides();
+            return opcode;
+        }
+
+        /**
+         * Switches to the other side's cipher, so a frame written as one side is read back as the peer would.
+         */
+        private void swapSides() {
+            SessionCipher current = getSessionCipher();
+            if (current != null) {
+                setSessionCipher(receiver);
+                receiver = current;
+            }
+        }
+
+        @Override
+        public BigInteger getModulus() {
+            return null;
+        }
+
+        @Override
+        public BigInteger getPublicKey() {
+            return null;
+        }
+
+        @Override
+        public DataInputStream getDataInputStream() {
+            return in;
+        }
+
+        @Override
+        public DataOutputStream getDataOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void playGame() {
+        }
+    }
+}
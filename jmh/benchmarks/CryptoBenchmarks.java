@@ -0,0 +1,58 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RSA key generation, encryption and decryption by key and message size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class CryptoBenchmarks {
+    @Param({"1024", "2048"})
+    public int keyBits;
+    @Param({"16", "1024", "16384"})
+    public int size;
+
+    private Callable<Object> encrypt;
+    private Callable<Object> decrypt;
+    private Callable<Object> decryptSequential;
+
+    @Setup
+    public void setUp() throws Exception {
+        encrypt = Workloads.create("rsaEncrypt", keyBits, size);
+        decrypt = Workloads.create("rsaDecrypt", keyBits, size, true);
+        decryptSequential = Workloads.create("rsaDecrypt", keyBits, size, false);
+    }
+
+    @Benchmark
+    public Object rsaEncrypt() throws Exception {
+        return encrypt.call();
+    }
+
+    @Benchmark
+    public Object rsaDecrypt() throws Exception {
+        return decrypt.call();
+    }
+
+    @Benchmark
+    public Object rsaDecryptSequential() throws Exception {
+        return decryptSequential.call();
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code NetworkPlayer} framing round trips over an in-memory pipe, in plaintext and with the session cipher.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class FramingBenchmarks {
+    @Param({"16", "1024", "16384"})
+    public int size;
+
+    private Callable<Object> frame;
+    private Callable<Object> session;
+
+    @Setup
+    public void setUp() throws Exception {
+        frame = Workloads.create("frameRoundTrip", size, false);
+        session = Workloads.create("frameRoundTrip", size, true);
+    }
+
+    @Benchmark
+    public Object frameRoundTrip() throws Exception {
+        return frame.call();
+    }
+
+    @Benchmark
+    public Object sessionRoundTrip() throws Exception {
+        return session.call();
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Move parsing and round resolution in {@code Player}, with the regex matching it replaced as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class GameLogicBenchmarks {
+    @Param({"1024"})
+    public int size;
+
+    private Callable<Object> getMoveFromString;
+    private Callable<Object> getMoveFromStringRegex;
+    private Callable<Object> parseMoveBytes;
+    private Callable<Object> getWinner;
+    private Callable<Object> getOutcome;
+    private Callable<Object> getOutcomes;
+
+    @Setup
+    public void setUp() throws Exception {
+        getMoveFromString = Workloads.create("getMoveFromString");
+        getMoveFromStringRegex = Workloads.create("getMoveFromStringRegex");
+        parseMoveBytes = Workloads.create("parseMoveBytes");
+        getWinner = Workloads.create("getWinner");
+        getOutcome = Workloads.create("getOutcome");
+        getOutcomes = Workloads.create("getOutcomes", size);
+    }
+
+    @Benchmark
+    public Object getMoveFromString() throws Exception {
+        return getMoveFromString.call();
+    }
+
+    @Benchmark
+    public Object getMoveFromStringRegex() throws Exception {
+        return getMoveFromStringRegex.call();
+    }
+
+    @Benchmark
+    public Object parseMoveBytes() throws Exception {
+        return parseMoveBytes.call();
+    }
+
+    @Benchmark
+    public Object getWinner() throws Exception {
+        return getWinner.call();
+    }
+
+    @Benchmark
+    public Object getOutcome() throws Exception {
+        return getOutcome.call();
+    }
+
+    @Benchmark
+    public Object getOutcomes() throws Exception {
+        return getOutcomes.call();
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording metrics and appending to the match log, both of which happen on every round.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class MetricsBenchmarks {
+    private Callable<Object> counter;
+    private Callable<Object> timer;
+    private Callable<Object> matchLog;
+
+    @Setup
+    public void setUp() throws Exception {
+        counter = Workloads.create("metricsCounter");
+        timer = Workloads.create("metricsTimer");
+        matchLog = Workloads.create("matchLogAppend");
+    }
+
+    @Benchmark
+    public Object metricsCounter() throws Exception {
+        return counter.call();
+    }
+
+    @Benchmark
+    public Object metricsTimer() throws Exception {
+        return timer.call();
+    }
+
+    @Benchmark
+    public Object matchLogAppend() throws Exception {
+        return matchLog.call();
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One game message over an in-memory pipe, and one round of a real game over loopback TCP, for each protocol.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ProtocolBenchmarks {
+    @Param({"binary", "text", "commit"})
+    public String protocol;
+
+    private Callable<Object> message;
+    private Callable<Object> socketRound;
+
+    @Setup
+    public void setUp() throws Exception {
+        message = Workloads.create("messageRoundTrip", protocol);
+        socketRound = Workloads.create("socketRound", protocol);
+    }
+
+    @Benchmark
+    public Object messageRoundTrip() throws Exception {
+        return message.call();
+    }
+
+    @Benchmark
+    public Object socketRound() throws Exception {
+        return socketRound.call();
+    }
+}
@@ -0,0 +1,36 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+/**
+ * Looks up the workloads defined by the default-package {@code Benchmarks} class, which code in a named package can
+ * only reach by reflection. Each workload is a static factory method of the same name, found by the types of its
+ * arguments. Only setup goes through here; each operation is a plain {@code Callable} call.
+ */
+final class Workloads {
+    private Workloads() {
+    }
+
+    /**
+     * @param name Name of the workload
+     * @param args Arguments of its factory method: {@code Integer}s for {@code int} parameters, {@code Boolean}s for
+     *             {@code boolean} ones, and {@code String}s
+     * @return The workload
+     */
+    @SuppressWarnings("unchecked")
+    static Callable<Object> create(String name, Object... args) throws Exception {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++)
+            types[i] = args[i] instanceof Integer ? int.class
+                    : args[i] instanceof Boolean ? boolean.class
+                    : args[i].getClass();
+        Method create = Class.forName("Benchmarks").getMethod(name, types);
+        try {
+            return (Callable<Object>) create.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@code Client} that plays by itself, choosing moves with a {@link Strategy} instead of reading them from the
+ * console, so it works without a terminal and many can run at once against a server.
+ */
+public class BotClient extends Client {
+    /**
+     * Chooses a bot's moves. Each bot needs its own instance.
+     */
+    public interface Strategy {
+        /**
+         * @return 1, 2, or 3
+         */
+        int nextMove();
+
+        /**
+         * Called after every round.
+         *
+         * @param move         Move this bot played
+         * @param opponentMove Move the opponent played, or 0 if the protocol does not reveal it
+         * @param result       {@code NetworkPlayer.WIN}, {@code LOSE}, or {@code TIE}
+         */
+        default void onResult(int move, int opponentMove, int result) {
+        }
+    }
+
+    private final Strategy strategy;
+    private final Histogram roundLatency;
+    private int wins;
+    private int losses;
+    private int ties;
+    private int move;
+    private long sentNanos;
+
+    /**
+     * Connects to a server and completes the handshake without printing anything.
+     *
+     * @param hostname        hostname of server
+     * @param portNumber      port number server is hosting the game on
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY} or {@code PROTOCOL_TEXT}
+     * @param strategy        How the bot chooses moves
+     * @param roundLatency    Receives the time from sending each move to getting its result in nanoseconds, or
+     *                        {@code null}
+     * @throws IOException
+     */
+    public BotClient(String hostname, int portNumber, int protocolVersion, Strategy strategy, Histogram roundLatency)
+            throws IOException {
+        this(hostname, portNumber, protocolVersion, strategy, roundLatency, false);
+    }
+
+    /**
+     * Connects to a server and completes the handshake without printing anything, optionally asking for keep-alive so
+     * the bot can play several games over one connection with {@link #requestRematch()}.
+     *
+     * @param hostname        hostname of server
+     * @param portNumber      port number server is hosting the game on
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY} or {@code PROTOCOL_TEXT}
+     * @param strategy        How the bot chooses moves
+     * @param roundLatency    Receives the time from sending each move to getting its result in nanoseconds, or
+     *                        {@code null}
+     * @param keepAlive       {@code true} to ask for keep-alive
+     * @throws IOException
+     */
+    public BotClient(String hostname, int portNumber, int protocolVersion, Strategy strategy, Histogram roundLatency,
+                     boolean keepAlive) throws IOException {
+        super(hostname, portNumber, protocolVersion, true, keepAlive);
+        this.strategy = strategy;
+        this.roundLatency = roundLatency;
+    }
+
+    /**
+     * Connects to a server at a URI, such as {@code unix:/path/to/socket} or {@code mem://name}, as in
+     * {@link #BotClient(String, int, int, Strategy, Histogram, boolean)}.
+     *
+     * @param server          Address of the server, as described in {@link Transport}
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY} or {@code PROTOCOL_TEXT}
+     * @param strategy        How the bot chooses moves
+     * @param roundLatency    Receives the time from sending each move to getting its result in nanoseconds, or
+     *                        {@code null}
+     * @param keepAlive       {@code true} to ask for keep-alive
+     * @throws IOException
+     */
+    public BotClient(URI server, int protocolVersion, Strategy strategy, Histogram roundLatency, boolean keepAlive)
+            throws IOException {
+        super(Transport.connect(server), protocolVersion, true, keepAlive);
+        this.strategy = strategy;
+        this.roundLatency = roundLatency;
+    }
+
+    /**
+     * @return A strategy that plays uniformly random moves
+     */
+    public static Strategy randomStrategy() {
+        return () -> 1 + ThreadLocalRandom.current().nextInt(3);
+    }
+
+    /**
+     * @param move 1, 2, or 3
+     * @return A strategy that always plays the same move
+     */
+    public static Strategy fixedStrategy(int move) {
+        if (move < 1 || move > 3)
+            throw new IllegalArgumentException("Invalid move: " + move);
+        return () -> move;
+    }
+
+    /**
+     * Returns a strategy that counts the opponent's moves and plays to beat them: it picks one of their past moves at
+     * random, so their most frequent move is the likeliest pick, and plays the move that beats it. Picking at random
+     * keeps two of these bots from tying forever by copying each other. With the commit-reveal protocol the server
+     * reveals each of its moves; otherwise the opponent's move is worked out from this bot's move and the result.
+     *
+     * @return The strategy
+     */
+    public static Strategy frequencyStrategy() {
+        return new Strategy() {
+            private final int[] counts = {0, 1, 1, 1};
+
+            @Override
+            public int nextMove() {
+                int pick = ThreadLocalRandom.current().nextInt(counts[1] + counts[2] + counts[3]);
+                int move = 1;
+                while (pick >= counts[move])
+                    pick -= counts[move++];
+                return beating(move);
+            }
+
+            @Override
+            public void onResult(int move, int opponentMove, int result) {
+                if (opponentMove != 0)
+                    counts[opponentMove]++;
+                else if (result == TIE)
+                    counts[move]++;
+                else if (result == LOSE)
+                    counts[beating(move)]++;
+                else
+                    counts[beating(beating(move))]++; // The move that ours beats
+            }
+        };
+    }
+
+    /**
+     * @return The move that beats the given one: paper beats rock, scissors beat paper, rock beats scissors
+     */
+    private static int beating(int move) {
+        return move % 3 + 1;
+    }
+
+    /**
+     * Plays until the server ends the game.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void playGame() throws IOException {
+        while (playRound() != END)
+            ;
+    }
+
+    /**
+     * Reads messages, answering prompts and commitments with a move, until the result of a round or the end of the
+     * game.
+     *
+     * @return {@code WIN}, {@code LOSE}, {@code TIE}, or {@code END}
+     * @throws IOException
+     */
+    public int playRound() throws IOException {
+        while (true) {
+            int opcode = readMessage();
+            switch (opcode) {
+                case COMMIT:
+                    acceptCommitment();
+                    sendMove();
+                    break;
+                case PROMPT_MOVE:
+                    sendMove();
+                    break;
+                case REVEAL:
+                    checkReveal();
+                    break;
+                case WIN:
+                case LOSE:
+                case TIE:
+                    int opponentMove = checkResult(opcode);
+                    if (roundLatency != null)
+                        roundLatency.record(System.nanoTime() - sentNanos);
+                    if (opcode == WIN)
+                        wins++;
+                    else if (opcode == LOSE)
+                        losses++;
+                    else
+                        ties++;
+                    strategy.onResult(move, opponentMove, opcode);
+                    return opcode;
+                case END:
+                    return END;
+            }
+        }
+    }
+
+    private void sendMove() throws IOException {
+        move = strategy.nextMove();
+        sentNanos = System.nanoTime();
+        writeMove(move);
+    }
+
+    /**
+     * @return Rounds won so far
+     */
+    public int getWins() {
+        return wins;
+    }
+
+    /**
+     * @return Rounds lost so far
+     */
+    public int getLosses() {
+        return losses;
+    }
+
+    /**
+     * @return Rounds tied so far
+     */
+    public int getTies() {
+        return ties;
+    }
+}
@@ -1,12 +1,12 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Console;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.net.Socket;
+import java.net.URI;
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This class is the client side of the game. It connects to the server, then processes messages from the server, as
@@ -15,11 +15,19 @@ import java.util.regex.Pattern;
  * @author grrdozier
  */
 public class Client extends NetworkPlayer {
-    private Socket socket;
+    static final String[] MOVE_NAMES = {"nothing", "rock", "paper", "scissors"};
+
+    private final Transport transport;
     private DataOutputStream out_data;
     private DataInputStream in_data;
     private BigInteger publicKey;
     private BigInteger modulus;
+    private RSABlockCipher cipher;
+    private Commitment commitment;
+    private final byte[] serverCommitment = new byte[Commitment.HASH_LENGTH];
+    private boolean committed;
+    private int move;
+    private int revealedMove;
 
     /**
      * Creates a new {@code Client} instance with a given hostname and port number.
@@ -29,11 +37,147 @@ public class Client extends NetworkPlayer {
      * @throws IOException
      */
     public Client(String hostname, int portNumber) throws IOException {
-        socket = new Socket(hostname, portNumber);
-        socket.setSoTimeout(20000);
-        out_data = new DataOutputStream(socket.getOutputStream());
-        in_data = new DataInputStream(socket.getInputStream());
-        System.out.println("Connected!");
+        this(hostname, portNumber, PROTOCOL_COMMIT_REVEAL);
+    }
+
+    /**
+     * Creates a new {@code Client} instance with a given hostname and port number that asks the server for the given
+     * protocol version.
+     *
+     * @param hostname        hostname of server
+     * @param portNumber      port number server is hosting the game on
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY}, or {@code PROTOCOL_TEXT} for the
+     *                        legacy text messages
+     * @throws IOException
+     */
+    public Client(String hostname, int portNumber, int protocolVersion) throws IOException {
+        this(hostname, portNumber, protocolVersion, false);
+    }
+
+    /**
+     * Creates a new {@code Client} instance, optionally without printing its progress to the console.
+     *
+     * @param hostname        hostname of server
+     * @param portNumber      port number server is hosting the game on
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY}, or {@code PROTOCOL_TEXT} for the
+     *                        legacy text messages
+     * @param quiet           {@code true} to print nothing
+     * @throws IOException
+     */
+    protected Client(String hostname, int portNumber, int protocolVersion, boolean quiet) throws IOException {
+        this(hostname, portNumber, protocolVersion, quiet, false);
+    }
+
+    /**
+     * Creates a new {@code Client} instance, optionally asking the server to keep the connection open for rematches.
+     *
+     * @param hostname        hostname of server
+     * @param portNumber      port number server is hosting the game on
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY}, or {@code PROTOCOL_TEXT} for the
+     *                        legacy text messages
+     * @param quiet           {@code true} to print nothing
+     * @param keepAlive       {@code true} to ask for keep-alive; ignored with the text protocol. Whether the server
+     *                        agreed is available from {@link #isKeepAlive()}.
+     * @throws IOException
+     */
+    protected Client(String hostname, int portNumber, int protocolVersion, boolean quiet, boolean keepAlive)
+            throws IOException {
+        this(new TcpTransport(hostname, portNumber), protocolVersion, quiet, keepAlive);
+    }
+
+    /**
+     * Creates a new {@code Client} instance connected to the server at a URI, such as {@code tcp://host:port},
+     * {@code unix:/path/to/socket} or {@code mem://name}.
+     *
+     * @param server Address of the server, as described in {@link Transport}
+     * @throws IOException
+     */
+    public Client(URI server) throws IOException {
+        this(server, PROTOCOL_COMMIT_REVEAL);
+    }
+
+    /**
+     * Creates a new {@code Client} instance connected to the server at a URI that asks the server for the given
+     * protocol version.
+     *
+     * @param server          Address of the server, as described in {@link Transport}
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY}, or {@code PROTOCOL_TEXT} for the
+     *                        legacy text messages
+     * @throws IOException
+     */
+    public Client(URI server, int protocolVersion) throws IOException {
+        this(Transport.connect(server), protocolVersion, false, false);
+    }
+
+    /**
+     * Creates a new {@code Client} instance over a connected transport.
+     *
+     * @param transport       Transport connected to the server
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY}, or {@code PROTOCOL_TEXT} for the
+     *                        legacy text messages
+     * @param quiet           {@code true} to print nothing
+     * @param keepAlive       {@code true} to ask for keep-alive; ignored with the text protocol
+     * @throws IOException
+     */
+    protected Client(Transport transport, int protocolVersion, boolean quiet, boolean keepAlive) throws IOException {
+        this.transport = transport;
+        transport.setReadTimeout((int) getIdleTimeout());
+        out_data = new DataOutputStream(new BufferedOutputStream(transport.getOutputStream(), STREAM_BUFFER_SIZE));
+        in_data = new DataInputStream(new BufferedInputStream(transport.getInputStream(), STREAM_BUFFER_SIZE));
+        if (!quiet)
+            System.out.println("Connected!");
+        handshake(protocolVersion, keepAlive && protocolVersion != PROTOCOL_TEXT);
+        if (!quiet)
+            System.out.println("Session key sent to server...");
+    }
+
+    /**
+     * Asks the server for a protocol version and reads the version it picked, reads the server's RSA key, then sends
+     * it a random session key wrapped with that RSA key. All messages after this are encrypted with the session key.
+     *
+     * @param protocolVersion Protocol version to ask for
+     * @param keepAlive       {@code true} to ask for keep-alive
+     * @throws IOException
+     */
+    private void handshake(int protocolVersion, boolean keepAlive) throws IOException {
+        // Every binary protocol can carry several messages per frame, so that is always asked for
+        boolean batchFrames = protocolVersion != PROTOCOL_TEXT;
+        writeHello(protocolVersion, (keepAlive ? FLAG_KEEP_ALIVE : 0) | (batchFrames ? FLAG_BATCH_FRAMES : 0));
+        int version = readHello();
+        if (!isSupportedProtocol(version))
+            throw new IOException("Server picked unsupported protocol version " + version);
+        setProtocolVersion(version);
+        while (getPublicKey() == null || getModulus() == null) {
+            int opcode = readMessage();
+            if (opcode == KEY)
+                publicKey = getMessageNumber();
+            else if (opcode == MOD)
+                modulus = getMessageNumber();
+        }
+        // The session key goes out as one OAEP block, after the block width so the server can check it
+        cipher = new RSABlockCipher(getPublicKey(), getModulus());
+        SessionCipher session = new SessionCipher(SessionCipher.generateKey(), true);
+        long start = System.nanoTime();
+        byte[] wrapped = cipher.wrap(session.getKey());
+        Metrics.RSA_ENCRYPT.recordSince(start);
+        getDataOutputStream().writeInt(cipher.getBlockWidth());
+        super.writeBytes(wrapped, 0, wrapped.length);
+        setSessionCipher(session);
+        setKeepAlive(keepAlive && (getHelloFlags() & FLAG_KEEP_ALIVE) != 0);
+        setBatchFrames(batchFrames && version != PROTOCOL_TEXT && (getHelloFlags() & FLAG_BATCH_FRAMES) != 0);
+    }
+
+    /**
+     * Asks the server for another match over this connection after END. The next match starts when the server has
+     * paired this client again, with a PROMPT_MOVE or COMMIT as usual.
+     *
+     * @throws IOException
+     * @throws IllegalStateException if the server did not agree to keep-alive
+     */
+    public void requestRematch() throws IOException {
+        if (!isKeepAlive())
+            throw new IllegalStateException("Rematches need keep-alive");
+        writeMessage(REMATCH);
     }
 
     /**
@@ -53,49 +197,90 @@ public class Client extends NetworkPlayer {
     }
 
     /**
-     * @return A {@code String} from the socket connection, after checking to see if the message is the public key.
+     * If an encryption key exists but no session key has been negotiated yet, encrypt the data in RSA blocks, then
+     * pass it to the super method. The block width is sent first so the server can check it against its key.
+     *
+     * @param data   Buffer holding the data
+     * @param offset Start of the data
+     * @param length Number of bytes
      * @throws IOException
      */
     @Override
-    public String read() throws IOException {
-        String read = super.read();
-        Matcher keyMatcher = Pattern.compile("KEY: (?<key>\\d+)").matcher(read);
-        Matcher modMatcher = Pattern.compile("MOD: (?<mod>\\d+)").matcher(read);
-        if (keyMatcher.find())
-            publicKey = new BigInteger(keyMatcher.group("key"));
-        if (modMatcher.find())
-            modulus = new BigInteger(modMatcher.group("mod"));
-        return read;
+    public void writeBytes(byte[] data, int offset, int length) throws IOException {
+        if (getSessionCipher() == null && getPublicKey() != null && getModulus() != null) {
+            if (cipher == null)
+                cipher = new RSABlockCipher(getPublicKey(), getModulus());
+            getDataOutputStream().writeInt(cipher.getBlockWidth());
+            long start = System.nanoTime();
+            byte[] encrypted = cipher.encrypt(Arrays.copyOfRange(data, offset, offset + length));
+            Metrics.RSA_ENCRYPT.recordSince(start);
+            super.writeBytes(encrypted, 0, encrypted.length);
+        }
+        else super.writeBytes(data, offset, length);
     }
 
     /**
-     * If an encryption key exists, encrypt the data, then pass it to the super method.
+     * Queues a MOVE message, remembering the move so the result of the round can be checked.
      *
-     * @param data Byte array of data
+     * @param move 1, 2, or 3
      * @throws IOException
      */
     @Override
-    public void writeBytes(byte[] data) throws IOException {
-        if (getPublicKey() != null && getModulus() != null) {
-            // Encrypt data
-            int splitFactor = 1;
-            BigInteger[] encrypted = new BigInteger[data.length];
-            for (int i = 0; i < data.length; i++) {
-                BigInteger encryptedByte = BigInteger.valueOf(data[i]).modPow(getPublicKey(), getModulus());
-                splitFactor = Math.max(splitFactor, encryptedByte.toByteArray().length);
-                encrypted[i] = encryptedByte;
-            }
-            // Split data into byte-sized pieces (pun intended)
-            byte[] encryptedBytes = new byte[data.length * splitFactor];
-            for (int i = 0; i < encryptedBytes.length; i += splitFactor) {
-                // Copy data to array of length splitFactor
-                byte[] byteArray = Arrays.copyOf(encrypted[i / splitFactor].toByteArray(), splitFactor);
-                System.arraycopy(byteArray, 0, encryptedBytes, i, splitFactor);
-            }
-            getDataOutputStream().writeInt(splitFactor);
-            super.writeBytes(encryptedBytes);
-        }
-        else super.writeBytes(data);
+    public void writeMove(int move) throws IOException {
+        super.writeMove(move);
+        this.move = move;
+    }
+
+    /**
+     * Keeps the hash from the COMMIT message just read, to check the server's REVEAL against later.
+     */
+    protected void acceptCommitment() {
+        System.arraycopy(getMessageCommitment(), 0, serverCommitment, 0, Commitment.HASH_LENGTH);
+        committed = true;
+        revealedMove = 0;
+    }
+
+    /**
+     * Checks the REVEAL message just read against the last commitment.
+     *
+     * @return The server's move
+     * @throws IOException if there was no commitment to reveal, or the server revealed a different move than it
+     *                     committed to
+     */
+    protected int checkReveal() throws IOException {
+        if (!committed || move == 0)
+            throw new IOException("Server revealed a move before committing to one and asking for ours");
+        committed = false;
+        if (commitment == null)
+            commitment = new Commitment();
+        if (getMessageMove() < 1 || getMessageMove() > 3
+                || !commitment.verify(serverCommitment, getMessageMove(), getMessageNonce(), 0))
+            throw new IOException("Server revealed a move it did not commit to");
+        revealedMove = getMessageMove();
+        return revealedMove;
+    }
+
+    /**
+     * Checks the result of a round. With the commit-reveal protocol the server must have revealed its move first, and
+     * the result must be the one the two moves give; the server committed to its move before seeing this client's, so
+     * this client needs no commitment of its own.
+     *
+     * @param result {@code WIN}, {@code LOSE}, or {@code TIE}
+     * @return The server's move, or 0 if the protocol does not reveal it
+     * @throws IOException if the server did not reveal its move or reported the wrong result
+     */
+    protected int checkResult(int result) throws IOException {
+        int revealed = revealedMove;
+        int played = move;
+        revealedMove = 0;
+        move = 0;
+        if (getProtocolVersion() != PROTOCOL_COMMIT_REVEAL)
+            return 0;
+        if (revealed == 0)
+            throw new IOException("Server sent a result without revealing its move");
+        if (Player.getResult(played, revealed) != result)
+            throw new IOException("Server reported a result the moves do not give");
+        return revealed;
     }
 
     /**
@@ -114,62 +299,103 @@ public class Client extends NetworkPlayer {
         return out_data;
     }
 
+    @Override
+    protected void setSocketTimeout(int millis) throws IOException {
+        transport.setReadTimeout(millis);
+    }
+
+    @Override
+    protected void abortConnection() throws IOException {
+        transport.close();
+    }
+
     /**
-     * Closes socket connection with server
+     * Closes connection with server
      * @throws IOException
      */
     @Override
     public void close() throws IOException {
-        socket.close();
+        stopHeartbeats();
+        releaseFrame();
+        transport.close();
     }
 
     /**
-     * Plays rock-paper-scissors game with the server. Continually scans for server messages and terminates the
-     * loop when the game is over.
+     * Plays rock-paper-scissors games with the server. Continually scans for server messages and terminates the
+     * loop when the game is over. With keep-alive the user is then offered a rematch over the same connection.
      *
      * @throws IOException
      */
     @Override
     public void playGame() throws IOException {
-        boolean keepConnection = true;
         Console c = System.console();
+        playMatch(c);
+        while (isKeepAlive() && c.readLine("Play again? (y/n) ").trim().toLowerCase().startsWith("y")) {
+            requestRematch();
+            System.out.println("Waiting for opponent...");
+            playMatch(c);
+        }
+        c.readLine("Press ENTER to end"); // Probably the laziest way I could've done this, I know
+    }
+
+    /**
+     * Plays one match, until the server sends END.
+     */
+    private void playMatch(Console c) throws IOException {
+        boolean keepConnection = true;
         while (keepConnection) {
-            String serverResponse = read();
-            switch (serverResponse) {
-                case "PROMPT_MOVE":
-                    // Send move to server
+            switch (readMessage()) {
+                case COMMIT:
+                    acceptCommitment();
+                    sendMove(c);
+                    break;
+                case PROMPT_MOVE:
+                    sendMove(c);
+                    break;
+                case REVEAL:
                     System.out.println();
-                    boolean validMoveWasEntered = false;
-                    while (!validMoveWasEntered) {
-                        try {
-                            String move = c.readLine("Enter your move: ");
-                            int moveInt = Player.getMoveFromString(move);
-                            write("MOVE: " + moveInt);
-                            validMoveWasEntered = true;
-                        } catch (IllegalArgumentException e) {
-                            // just try again
-                            System.out.println("Invalid input.");
-                        }
-                    }
-                    System.out.println("Waiting for opponent...");
+                    System.out.println("Opponent played " + MOVE_NAMES[checkReveal()] + ".");
                     break;
-                case "WIN":
+                case WIN:
+                    checkResult(WIN);
                     System.out.println();
                     System.out.println("You win!");
                     break;
-                case "LOSE":
+                case LOSE:
+                    checkResult(LOSE);
                     System.out.println();
                     System.out.println("You lose!");
                     break;
-                case "TIE":
+                case TIE:
+                    checkResult(TIE);
                     System.out.println();
                     System.out.println("Tie. Try again");
                     break;
-                case "END":
+                case END:
                     keepConnection = false;
                     break;
             }
         }
-        c.readLine("Press ENTER to end"); // Probably the laziest way I could've done this, I know
+    }
+
+    /**
+     * Asks the user for a move until they enter a valid one, then sends it to the server.
+     */
+    private void sendMove(Console c) throws IOException {
+        // Send move to server
+        System.out.println();
+        boolean validMoveWasEntered = false;
+        while (!validMoveWasEntered) {
+            try {
+                String move = c.readLine("Enter your move: ");
+                int moveInt = Player.getMoveFromString(move);
+                writeMove(moveInt);
+                validMoveWasEntered = true;
+            } catch (IllegalArgumentException e) {
+                // just try again
+                System.out.println("Invalid input.");
+            }
+        }
+        System.out.println("Waiting for opponent...");
     }
 }
@@ -0,0 +1,86 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Hash commitments to moves. The committing side sends {@code SHA-256(move || nonce)} before it sees the other side's
+ * move, and reveals the move and the random nonce afterwards, so the other side can check the move was not changed.
+ */
+public class Commitment {
+    /**
+     * Length of a commitment in bytes.
+     */
+    public static final int HASH_LENGTH = 32;
+    /**
+     * Length of the random nonce in bytes.
+     */
+    public static final int NONCE_LENGTH = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final MessageDigest digest;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private final byte[] hash = new byte[HASH_LENGTH];
+    private int move;
+
+    public Commitment() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Commits to a move with a fresh nonce.
+     *
+     * @param move 1, 2, or 3
+     * @return The commitment, valid until the next call
+     */
+    public byte[] commit(int move) {
+        this.move = move;
+        random.nextBytes(nonce);
+        hash(move, nonce, 0, hash);
+        return hash;
+    }
+
+    /**
+     * @return Move from the last {@link #commit(int)}
+     */
+    public int getMove() {
+        return move;
+    }
+
+    /**
+     * @return Nonce from the last {@link #commit(int)}
+     */
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+    /**
+     * Checks a revealed move against a commitment.
+     *
+     * @param commitment The commitment received earlier
+     * @param move       Revealed move
+     * @param nonce      Buffer holding the revealed nonce
+     * @param offset     Start of the nonce
+     * @return {@code true} if the commitment was made to this move and nonce
+     */
+    public boolean verify(byte[] commitment, int move, byte[] nonce, int offset) {
+        byte[] expected = new byte[HASH_LENGTH];
+        hash(move, nonce, offset, expected);
+        return MessageDigest.isEqual(commitment, expected);
+    }
+
+    private void hash(int move, byte[] nonce, int offset, byte[] out) {
+        digest.update((byte) move);
+        digest.update(nonce, offset, NONCE_LENGTH);
+        try {
+            digest.digest(out, 0, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
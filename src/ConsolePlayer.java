@@ -0,0 +1,150 @@
+import java.io.Console;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+
+/**
+ * The person at the local console, playing through a {@link GameSession}. It subscribes to the session's events,
+ * which are printed on the session's loop thread as they arrive, and publishes the moves typed in. The console is only
+ * read on a thread of its own, so a person taking their time never holds up the loop.
+ */
+public class ConsolePlayer implements Flow.Subscriber<GameSession.Event>, Flow.Publisher<Integer> {
+    private final Console c;
+    private final ExecutorService console = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "console");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final CountDownLatch done = new CountDownLatch(1);
+    private GameSession session;
+    private Flow.Subscription events;
+    private volatile Throwable error;
+
+    public ConsolePlayer() {
+        this(System.console());
+    }
+
+    /**
+     * @param c Console to read moves from
+     */
+    public ConsolePlayer(Console c) {
+        this.c = c;
+    }
+
+    /**
+     * Plays through a session until it ends, asking after each match whether to play again if the server agreed to
+     * keep-alive.
+     *
+     * @param session A session that nothing has subscribed to yet
+     * @throws IOException          if the session failed
+     * @throws InterruptedException
+     */
+    public void play(GameSession session) throws IOException, InterruptedException {
+        this.session = session;
+        session.subscribe(this);
+        subscribe(session);
+        try {
+            done.await();
+        } finally {
+            console.shutdownNow();
+        }
+        Throwable failure = error;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw new IOException(failure.getMessage(), failure);
+    }
+
+    /**
+     * Publishes one move per request, each read from the console on the console thread.
+     *
+     * @param subscriber The session
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Integer> subscriber) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                for (long i = 0; i < n; i++)
+                    console.execute(() -> subscriber.onNext(readMove()));
+            }
+
+            @Override
+            public void cancel() {
+                // Nothing to stop; the session ignores moves once it is closed
+            }
+        });
+    }
+
+    /**
+     * Asks the user for a move until they enter a valid one.
+     */
+    private int readMove() {
+        System.out.println();
+        while (true) {
+            try {
+                int move = Player.getMoveFromString(c.readLine("Enter your move: "));
+                System.out.println("Waiting for opponent...");
+                return move;
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid input.");
+            }
+        }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        events = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(GameSession.Event event) {
+        switch (event.getOpcode()) {
+            case NetworkPlayer.REVEAL:
+                System.out.println();
+                System.out.println("Opponent played " + Client.MOVE_NAMES[event.getMove()] + ".");
+                break;
+            case NetworkPlayer.WIN:
+                System.out.println();
+                System.out.println("You win!");
+                break;
+            case NetworkPlayer.LOSE:
+                System.out.println();
+                System.out.println("You lose!");
+                break;
+            case NetworkPlayer.TIE:
+                System.out.println();
+                System.out.println("Tie. Try again");
+                break;
+            case NetworkPlayer.END:
+                // Without keep-alive the server closes the connection after END
+                if (session.isKeepAlive())
+                    console.execute(this::askForRematch);
+                break;
+        }
+        events.request(1);
+    }
+
+    private void askForRematch() {
+        if (c.readLine("Play again? (y/n) ").trim().toLowerCase().startsWith("y")) {
+            session.requestRematch();
+            System.out.println("Waiting for opponent...");
+        } else {
+            session.close();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        done.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+        done.countDown();
+    }
+}
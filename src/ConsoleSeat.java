@@ -0,0 +1,66 @@
+import java.io.Console;
+
+/**
+ * A {@code Seat} for the person hosting the game at the local console.
+ */
+public class ConsoleSeat implements Seat {
+    private final Console c;
+
+    public ConsoleSeat() {
+        this(System.console());
+    }
+
+    /**
+     * @param c Console to read moves from
+     */
+    public ConsoleSeat(Console c) {
+        this.c = c;
+    }
+
+    @Override
+    public void promptMove() {
+        // The prompt is printed by readMove()
+    }
+
+    /**
+     * Prompts the user for their move until they enter a valid one.
+     *
+     * @return The move entered
+     */
+    @Override
+    public int readMove() {
+        System.out.println();
+        while (true) {
+            try {
+                String move = c.readLine("Enter your move: ");
+                int moveInt = Player.getMoveFromString(move);
+                System.out.println("Waiting for opponent...");
+                return moveInt;
+            } catch (IllegalArgumentException e) {
+                // just try again
+                System.out.println("Invalid input.");
+            }
+        }
+    }
+
+    @Override
+    public void sendResult(int result) {
+        System.out.println();
+        switch (result) {
+            case NetworkPlayer.WIN:
+                System.out.println("You win!");
+                break;
+            case NetworkPlayer.LOSE:
+                System.out.println("You lose!");
+                break;
+            case NetworkPlayer.TIE:
+                System.out.println("Tie. Try again");
+                break;
+        }
+    }
+
+    @Override
+    public void end() {
+        // Nothing to do
+    }
+}
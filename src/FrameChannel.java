@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * The framing shared by both ends of a non-blocking connection, {@code MatchServer}'s and {@code GameSession}'s. Frames
+ * are parsed where they lie in one read buffer and encrypted straight into one write buffer, so steady play allocates
+ * nothing per frame. Both buffers start at {@link #BUFFER_SIZE} bytes. A frame too big for the read buffer is reserved
+ * in {@link MemoryBudget#FRAMES} before the buffer grows, and either buffer goes back to its usual size once what it
+ * grew for is done; the reservation is held until the grown read buffer is dropped. Not thread-safe: a connection is
+ * only touched by its own event loop.
+ * <p>
+ * Reading goes {@link #read()}, then {@link #beginParse()}, then {@link #hasFrame(int, int)} and
+ * {@link #consumeFrame()} for each frame, then {@link #endParse()}. Writing goes {@link #send(byte[], int, int)} or
+ * {@link #queueFrame(byte[], int, int)} for each message or frame, then {@link #flush()}.
+ */
+public class FrameChannel {
+    /**
+     * Usual size of each buffer.
+     */
+    public static final int BUFFER_SIZE = 1024;
+
+    private final SocketChannel channel;
+    private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    private int reserved;
+    private boolean awaitingReserved;
+    private int frameStart;
+    private int frameOffset;
+    private int frameLength;
+    private int frameEnd;
+    private byte[] pending = new byte[4 * NetworkPlayer.MAX_MESSAGE_LENGTH];
+    private int pendingLength;
+    private SessionCipher session;
+    private boolean batchFrames;
+
+    /**
+     * @param channel Connected, non-blocking channel
+     */
+    public FrameChannel(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param session Session key that frames are encrypted with from now on
+     */
+    public void setSession(SessionCipher session) {
+        this.session = session;
+    }
+
+    /**
+     * @param batchFrames {@code true} if the peer agreed to frames holding several messages
+     */
+    public void setBatchFrames(boolean batchFrames) {
+        this.batchFrames = batchFrames;
+    }
+
+    /**
+     * Reads what the socket has into the read buffer.
+     *
+     * @return Bytes read, or -1 at the end of the stream
+     * @throws IOException
+     */
+    public int read() throws IOException {
+        int read = channel.read(in);
+        if (read > 0)
+            Metrics.BYTES_IN.add(read);
+        return read;
+    }
+
+    /**
+     * Starts parsing the bytes read so far.
+     */
+    public void beginParse() {
+        in.flip();
+    }
+
+    /**
+     * Looks for a whole frame at the start of the unparsed bytes. The header is checked as soon as it is in, before
+     * the rest of the frame is waited for, and a frame too big for the read buffer is reserved before it grows.
+     *
+     * @param blockWidth Block width an RSA-encrypted frame starts with, before its length, or 0 for a frame that is
+     *                   just a length and a payload
+     * @param maxLength  Largest payload to accept
+     * @return {@code true} if the whole frame is in; its payload is then at {@link #getFrameOffset()} in
+     * {@link #getBuffer()}
+     * @throws FrameException if the block width is not {@code blockWidth}, the length is negative or above
+     *                        {@code maxLength}, or the memory budget is spent
+     */
+    public boolean hasFrame(int blockWidth, int maxLength) throws FrameException {
+        int header = blockWidth > 0 ? 8 : 4;
+        if (in.remaining() < header)
+            return false;
+        int start = in.position();
+        if (blockWidth > 0 && in.getInt(start) != blockWidth) {
+            Metrics.FRAMES_REJECTED.increment();
+            throw new FrameException("Unexpected block width: " + in.getInt(start));
+        }
+        int length = in.getInt(start + header - 4);
+        if (length < 0 || length > maxLength) {
+            Metrics.FRAMES_REJECTED.increment();
+            throw new FrameException("Frame length " + length + " outside of [0, " + maxLength + "]");
+        }
+        if (in.remaining() < header + length) {
+            if (in.capacity() < header + length) {
+                if (!MemoryBudget.FRAMES.tryReserve(header + length)) {
+                    Metrics.FRAMES_REJECTED.increment();
+                    throw new FrameException("No frame memory left for a " + length + " byte frame");
+                }
+                release(); // The buffer grown for an earlier frame is dropped here
+                reserved = header + length;
+                awaitingReserved = true;
+                ByteBuffer bigger = ByteBuffer.allocate(header + length);
+                bigger.put(in).flip();
+                in = bigger;
+            }
+            return false;
+        }
+        frameStart = start;
+        frameOffset = start + header;
+        frameLength = length;
+        frameEnd = frameOffset + length;
+        return true;
+    }
+
+    /**
+     * Moves past the frame found by {@link #hasFrame(int, int)}. Its payload stays where it is until
+     * {@link #endParse()}, so it can be handled in place.
+     */
+    public void consumeFrame() {
+        awaitingReserved = false;
+        in.position(frameEnd);
+        Metrics.FRAMES_IN.increment();
+    }
+
+    /**
+     * @return Array holding the read buffer
+     */
+    public byte[] getBuffer() {
+        return in.array();
+    }
+
+    /**
+     * @return Where the payload of the frame found by {@link #hasFrame(int, int)} starts in {@link #getBuffer()}
+     */
+    public int getFrameOffset() {
+        return frameOffset;
+    }
+
+    /**
+     * @return Length of the payload of the frame found by {@link #hasFrame(int, int)}
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * @return Length of the frame found by {@link #hasFrame(int, int)}, header included
+     */
+    public int getFrameSize() {
+        return frameEnd - frameStart;
+    }
+
+    /**
+     * Keeps the unparsed bytes for the next read. A read buffer that grew for a large frame goes back to its usual
+     * size once that frame is handled, and only then is its reservation given back.
+     *
+     * @return {@code true} if part of a frame is still waiting for the rest
+     */
+    public boolean endParse() {
+        in.compact();
+        if (!awaitingReserved && in.capacity() > BUFFER_SIZE && in.position() <= BUFFER_SIZE) {
+            ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+            in.flip();
+            smaller.put(in);
+            in = smaller;
+            release();
+        }
+        return in.position() > 0;
+    }
+
+    /**
+     * Queues a message. With multi-message frames and a session key it is added to the frame being built; otherwise it
+     * becomes a frame of its own. Nothing is written until {@link #flush()}.
+     *
+     * @param data   Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @throws IOException
+     */
+    public void send(byte[] data, int offset, int length) throws IOException {
+        if (!batchFrames || session == null) {
+            queueFrame(data, offset, length);
+            return;
+        }
+        if (pending.length - pendingLength < length)
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+        System.arraycopy(data, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    /**
+     * Appends a frame to the write buffer, encrypting it straight into the buffer with the session key once there is
+     * one.
+     *
+     * @param data   Buffer holding the payload
+     * @param offset Start of the payload
+     * @param length Length of the payload
+     * @throws IOException
+     */
+    public void queueFrame(byte[] data, int offset, int length) throws IOException {
+        ensureWritable(4 + length + (session != null ? SessionCipher.OVERHEAD : 0));
+        int start = out.position();
+        if (session != null) {
+            int encrypted = session.encrypt(data, offset, length, out.array(), start + 4);
+            out.putInt(start, encrypted).position(start + 4 + encrypted);
+        } else {
+            out.putInt(length).put(data, offset, length);
+        }
+        Metrics.FRAMES_OUT.increment();
+    }
+
+    /**
+     * Appends an RSA-encrypted frame, which starts with its block width, to the write buffer.
+     *
+     * @param blockWidth Width of each RSA block
+     * @param data       Buffer holding the encrypted payload
+     * @param offset     Start of the payload
+     * @param length     Length of the payload
+     */
+    public void queueBlockFrame(int blockWidth, byte[] data, int offset, int length) {
+        ensureWritable(8 + length);
+        out.putInt(blockWidth).putInt(length).put(data, offset, length);
+        Metrics.FRAMES_OUT.increment();
+    }
+
+    private void ensureWritable(int length) {
+        if (out.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+            out.flip();
+            out = bigger.put(out);
+        }
+    }
+
+    /**
+     * Closes the frame being built, then writes as much of the write buffer as the socket takes. A buffer that grew
+     * for a burst of frames goes back to its usual size once it has been written out.
+     *
+     * @return {@code true} if everything has been written
+     * @throws IOException
+     */
+    public boolean flush() throws IOException {
+        if (pendingLength > 0) {
+            queueFrame(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+        if (out.position() > 0) {
+            out.flip();
+            Metrics.BYTES_OUT.add(channel.write(out));
+            Metrics.FLUSHES.increment();
+            out.compact();
+            if (out.position() == 0 && out.capacity() > BUFFER_SIZE)
+                out = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        return out.position() == 0;
+    }
+
+    /**
+     * @return {@code true} if frames are waiting to be written
+     */
+    public boolean hasUnwritten() {
+        return out.position() > 0;
+    }
+
+    /**
+     * Gives back the memory reserved for the read buffer, which will now never be read into. Closing the channel is up
+     * to the owner.
+     */
+    public void close() {
+        awaitingReserved = false;
+        release();
+    }
+
+    private void release() {
+        if (reserved > 0) {
+            MemoryBudget.FRAMES.release(reserved);
+            reserved = 0;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+
+/**
+ * Iterates over the messages in one decrypted frame, without copying or allocating. A frame normally holds one
+ * message; once {@code NetworkPlayer.FLAG_BATCH_FRAMES} is agreed, a frame in the binary protocols holds any number of
+ * them back to back, each as long as its opcode says (see {@link NetworkPlayer#messageLength(int, byte[], int, int)}).
+ * <pre>
+ * decoder.reset(protocol, frame, 0, length);
+ * while (decoder.hasNext()) {
+ *     int opcode = decoder.next();
+ *     // The message is decoder.getLength() bytes at decoder.getOffset()
+ * }
+ * </pre>
+ */
+public class FrameDecoder {
+    private int protocol;
+    private byte[] buf;
+    private int position;
+    private int end;
+    private int offset;
+    private int length;
+
+    /**
+     * Starts iterating over a new frame.
+     *
+     * @param protocol Protocol version
+     * @param buf      Buffer holding the frame
+     * @param off      Start of the frame
+     * @param len      Length of the frame
+     */
+    public void reset(int protocol, byte[] buf, int off, int len) {
+        this.protocol = protocol;
+        this.buf = buf;
+        position = off;
+        end = off + len;
+    }
+
+    /**
+     * @return {@code true} if the frame has another message
+     */
+    public boolean hasNext() {
+        return position < end;
+    }
+
+    /**
+     * Moves to the next message.
+     *
+     * @return Its opcode
+     * @throws FrameException if the frame ends in the middle of the message
+     * @throws IOException if the message is not recognised
+     */
+    public int next() throws IOException {
+        int remaining = end - position;
+        int messageLength = NetworkPlayer.messageLength(protocol, buf, position, remaining);
+        if (messageLength > remaining)
+            throw new FrameException("Frame ends in the middle of a " + messageLength + " byte message");
+        int opcode = NetworkPlayer.decodeOpcode(protocol, buf, position, messageLength);
+        if (opcode < 0)
+            throw new IOException("Unrecognized message of " + messageLength + " bytes");
+        offset = position;
+        length = messageLength;
+        position += messageLength;
+        return opcode;
+    }
+
+    /**
+     * @return Buffer holding the frame
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return Start of the current message
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Length of the current message
+     */
+    public int getLength() {
+        return length;
+    }
+}
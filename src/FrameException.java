@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+/**
+ * Thrown when a peer sends a frame that cannot be accepted: its declared length or block width is out of bounds, there
+ * is no memory left in the budget for it, or the connection ended or stalled before the whole frame arrived.
+ */
+public class FrameException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public FrameException(String message) {
+        super(message);
+    }
+
+    public FrameException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
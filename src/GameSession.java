@@ -0,0 +1,674 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Flow;
+
+/**
+ * Client side of one connection to a game server, driven by a {@link SessionLoop} instead of a thread of its own. It
+ * speaks the same protocol as {@code Client}, but as a {@code Flow.Processor}: it publishes the game's events to one
+ * subscriber and subscribes to a publisher of moves.
+ * <p>
+ * Both directions are demand-driven. Events are only delivered as the subscriber requests them; while it is behind,
+ * they are held in a queue of at most {@link #MAX_QUEUED_EVENTS} (plus whatever one frame holds), after which the
+ * session stops reading from the socket and TCP flow control holds the server back. A move is requested from the
+ * move publisher each time the server asks for one, and only then, so a move that was not asked for is an error.
+ * <p>
+ * The events are PROMPT_MOVE, which is also published for the commit-reveal protocol's COMMIT once the commitment has
+ * been kept, REVEAL with the server's checked move, WIN, LOSE, TIE and END. With commit-reveal, a result that does not
+ * follow a REVEAL, or that the two moves do not give, fails the session. HEARTBEATs are answered and not published.
+ * When the server closes the connection after END the subscriber gets {@code onComplete}; any failure, including a
+ * server that goes quiet for the idle timeout, closes the session and signals {@code onError}. Cancelling the event
+ * subscription closes the session.
+ */
+public class GameSession implements Flow.Processor<Integer, GameSession.Event> {
+    /**
+     * Most events held for a subscriber that is behind before reading from the socket stops.
+     */
+    public static final int MAX_QUEUED_EVENTS = 16;
+
+    private final SessionLoop loop;
+    private final SocketChannel channel;
+    private final int requestedVersion;
+    private final boolean requestedKeepAlive;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Event> events = new ArrayDeque<>();
+    private final FrameChannel frames;
+    private final byte[] message = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final byte[] serverCommitment = new byte[Commitment.HASH_LENGTH];
+    private final byte[] serverNonce = new byte[Commitment.NONCE_LENGTH];
+    private Commitment commitment;
+    private boolean committed;
+    private int sentMove;
+    private int revealedMove;
+    private byte[] inbound = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+    private SelectionKey selectionKey;
+    private int protocol;
+    private BigInteger publicKey;
+    private BigInteger modulus;
+    private SessionCipher session;
+    private volatile boolean keepAlive;
+    private volatile long handshakeNanos = -1;
+    private long lastReadNanos = startNanos;
+    private long lastWriteNanos = startNanos;
+    private boolean readPaused;
+    private boolean matchOver;
+
+    private Flow.Subscriber<? super Event> subscriber;
+    private long demand;
+    private boolean draining;
+    private boolean completed;
+    private Throwable error;
+    private boolean terminated;
+
+    private Flow.Subscription moves;
+    private boolean moveWanted;
+    private boolean moveRequested;
+    private boolean closeAfterFlush;
+    private boolean closed;
+
+    GameSession(SessionLoop loop, SocketChannel channel, int protocolVersion, boolean keepAlive) {
+        this.loop = loop;
+        this.channel = channel;
+        this.frames = new FrameChannel(channel);
+        this.requestedVersion = protocolVersion;
+        this.requestedKeepAlive = keepAlive;
+    }
+
+    /**
+     * Something the server told the client. Events without a move are shared, so they can be compared with
+     * {@code ==} and cost no allocation.
+     */
+    public static final class Event {
+        private static final Event[] SHARED = new Event[NetworkPlayer.END + 1];
+
+        static {
+            for (int opcode = NetworkPlayer.PROMPT_MOVE; opcode <= NetworkPlayer.END; opcode++)
+                if (opcode != NetworkPlayer.MOVE)
+                    SHARED[opcode] = new Event(opcode, 0);
+        }
+
+        /**
+         * The server wants a move.
+         */
+        public static final Event PROMPT_MOVE = SHARED[NetworkPlayer.PROMPT_MOVE];
+        public static final Event WIN = SHARED[NetworkPlayer.WIN];
+        public static final Event LOSE = SHARED[NetworkPlayer.LOSE];
+        public static final Event TIE = SHARED[NetworkPlayer.TIE];
+        /**
+         * The match is over.
+         */
+        public static final Event END = SHARED[NetworkPlayer.END];
+
+        private final int opcode;
+        private final int move;
+
+        private Event(int opcode, int move) {
+            this.opcode = opcode;
+            this.move = move;
+        }
+
+        /**
+         * @return {@code PROMPT_MOVE}, {@code REVEAL}, {@code WIN}, {@code LOSE}, {@code TIE} or {@code END}
+         */
+        public int getOpcode() {
+            return opcode;
+        }
+
+        /**
+         * @return The server's move for a REVEAL, 0 otherwise
+         */
+        public int getMove() {
+            return move;
+        }
+
+        /**
+         * @return {@code true} for WIN, LOSE and TIE
+         */
+        public boolean isResult() {
+            return opcode == NetworkPlayer.WIN || opcode == NetworkPlayer.LOSE || opcode == NetworkPlayer.TIE;
+        }
+
+        @Override
+        public String toString() {
+            switch (opcode) {
+                case NetworkPlayer.PROMPT_MOVE:
+                    return "PROMPT_MOVE";
+                case NetworkPlayer.REVEAL:
+                    return "REVEAL: " + move;
+                case NetworkPlayer.WIN:
+                    return "WIN";
+                case NetworkPlayer.LOSE:
+                    return "LOSE";
+                case NetworkPlayer.TIE:
+                    return "TIE";
+                default:
+                    return "END";
+            }
+        }
+    }
+
+    /**
+     * @return The loop this session runs on
+     */
+    public SessionLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * @return The protocol version the server picked, or 0 until its HELLO has been read
+     */
+    public int getProtocolVersion() {
+        return protocol;
+    }
+
+    /**
+     * @return {@code true} once the server's HELLO has been read, if it agreed to keep-alive
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return Time from opening the session to sending the session key in nanoseconds, or -1 until then
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * Subscribes to the game's events. A session publishes to one subscriber only; any later one gets
+     * {@code onError}.
+     *
+     * @param subscriber Receives the events, always on the loop thread
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Event> subscriber) {
+        loop.execute(this, () -> {
+            if (this.subscriber != null) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("A session has one subscriber"));
+                return;
+            }
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    loop.execute(GameSession.this, () -> requestEvents(n));
+                }
+
+                @Override
+                public void cancel() {
+                    loop.execute(GameSession.this, () -> {
+                        terminated = true;
+                        closeChannel();
+                    });
+                }
+            });
+            drain();
+        });
+    }
+
+    /**
+     * Subscribes this session to a publisher of moves. Called by the publisher; a session takes moves from one
+     * publisher only, and cancels any later one.
+     *
+     * @param subscription Subscription to the moves
+     */
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        loop.execute(this, () -> {
+            if (moves != null || closed) {
+                subscription.cancel();
+                return;
+            }
+            moves = subscription;
+            requestMove();
+        });
+    }
+
+    /**
+     * Sends a move. Must only be called after the session has requested one.
+     *
+     * @param move 1, 2, or 3
+     */
+    @Override
+    public void onNext(Integer move) {
+        loop.execute(this, () -> {
+            if (closed)
+                return;
+            try {
+                if (!moveRequested)
+                    throw new IllegalStateException("Move " + move + " was not requested");
+                if (move == null || move < 1 || move > 3)
+                    throw new IllegalArgumentException("Invalid move: " + move);
+                moveRequested = false;
+                moveWanted = false;
+                sentMove = move;
+                send(NetworkPlayer.MOVE, move);
+                flush();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * The move publisher failed, which fails the session.
+     */
+    @Override
+    public void onError(Throwable throwable) {
+        loop.execute(this, () -> {
+            moves = null;
+            fail(throwable);
+        });
+    }
+
+    /**
+     * The move publisher has no more moves, so the session is closed once what it already sent has been written.
+     */
+    @Override
+    public void onComplete() {
+        loop.execute(this, () -> {
+            moves = null;
+            if (closed)
+                return;
+            closeAfterFlush = true;
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * Asks the server for another match over this connection after END. The next match starts when the server has
+     * paired this client again, with a PROMPT_MOVE event as usual.
+     *
+     * @throws IllegalStateException if the server did not agree to keep-alive
+     */
+    public void requestRematch() {
+        if (!keepAlive)
+            throw new IllegalStateException("Rematches need keep-alive");
+        loop.execute(this, () -> {
+            if (closed)
+                return;
+            try {
+                if (!matchOver)
+                    throw new IllegalStateException("Rematch asked for before END");
+                matchOver = false;
+                send(NetworkPlayer.REMATCH, 0);
+                flush();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * Closes the connection. The subscriber gets {@code onComplete} once it has taken the events already read.
+     */
+    public void close() {
+        loop.execute(this, this::finish);
+    }
+
+    /**
+     * Registers with the loop's selector and, once connected, sends HELLO.
+     */
+    void open(Selector selector) throws IOException {
+        if (channel.isConnectionPending()) {
+            selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            return;
+        }
+        selectionKey = channel.register(selector, SelectionKey.OP_READ, this);
+        sendHello();
+    }
+
+    private void sendHello() throws IOException {
+        // Every binary protocol can carry several messages per frame, so that is always asked for
+        int flags = (requestedKeepAlive ? NetworkPlayer.FLAG_KEEP_ALIVE : 0)
+                | (requestedVersion != NetworkPlayer.PROTOCOL_TEXT ? NetworkPlayer.FLAG_BATCH_FRAMES : 0);
+        frames.queueFrame(message, 0, NetworkPlayer.encodeHello(message, 0, requestedVersion, flags));
+        flush();
+    }
+
+    void handle(SelectionKey selected) throws IOException {
+        if (selected.isConnectable()) {
+            channel.finishConnect();
+            selectionKey.interestOps(SelectionKey.OP_READ);
+            sendHello();
+            return;
+        }
+        if (selected.isReadable())
+            read();
+        if (!closed && selected.isValid() && selected.isWritable())
+            flush();
+    }
+
+    private void read() throws IOException {
+        if (frames.read() < 0) {
+            finish();
+            return;
+        }
+        lastReadNanos = System.nanoTime();
+        parseFrames();
+        if (!closed)
+            flush();
+    }
+
+    /**
+     * Handles the complete frames in the read buffer, stopping early if the subscriber has fallen too far behind.
+     */
+    private void parseFrames() throws IOException {
+        frames.beginParse();
+        while (!closed && events.size() < MAX_QUEUED_EVENTS && parseFrame())
+            ;
+        frames.endParse();
+        updateInterest();
+    }
+
+    /**
+     * Handles one complete frame from the read buffer if there is one.
+     *
+     * @return {@code true} if a frame was consumed
+     */
+    private boolean parseFrame() throws IOException {
+        // The session key goes out with a block width, but every frame from the server is [int length][payload]
+        if (!frames.hasFrame(0, NetworkPlayer.DEFAULT_MAX_FRAME_LENGTH))
+            return false;
+        frames.consumeFrame();
+        onFrame(frames.getBuffer(), frames.getFrameOffset(), frames.getFrameLength());
+        return true;
+    }
+
+    private void onFrame(byte[] data, int offset, int length) throws IOException {
+        if (protocol == 0) {
+            int version = NetworkPlayer.decodeHello(data, offset, length);
+            if (!NetworkPlayer.isSupportedProtocol(version))
+                throw new IOException("Server picked unsupported protocol version " + version);
+            protocol = version;
+            int flags = NetworkPlayer.decodeHelloFlags(data, offset, length);
+            keepAlive = requestedKeepAlive && (flags & NetworkPlayer.FLAG_KEEP_ALIVE) != 0;
+            frames.setBatchFrames(version != NetworkPlayer.PROTOCOL_TEXT
+                    && (flags & NetworkPlayer.FLAG_BATCH_FRAMES) != 0);
+            return;
+        }
+        if (session == null) {
+            int opcode = NetworkPlayer.decodeOpcode(protocol, data, offset, length);
+            if (opcode == NetworkPlayer.KEY)
+                publicKey = NetworkPlayer.decodeNumber(protocol, data, offset, length);
+            else if (opcode == NetworkPlayer.MOD)
+                modulus = NetworkPlayer.decodeNumber(protocol, data, offset, length);
+            if (publicKey != null && modulus != null)
+                sendSessionKey();
+            return;
+        }
+        if (length <= SessionCipher.OVERHEAD)
+            throw new FrameException("Unexpected frame length: " + length);
+        if (inbound.length < length - SessionCipher.OVERHEAD)
+            inbound = new byte[length - SessionCipher.OVERHEAD];
+        int plainLength = session.decrypt(data, offset, length, inbound, 0);
+        decoder.reset(protocol, inbound, 0, plainLength);
+        while (!closed && decoder.hasNext()) {
+            int opcode = decoder.next();
+            onMessage(opcode, inbound, decoder.getOffset(), decoder.getLength());
+        }
+    }
+
+    /**
+     * Wraps a random session key with the server's RSA key and sends it as {@code [int blockWidth][int length][OAEP
+     * block]}. Everything after this is encrypted with the session key.
+     */
+    private void sendSessionKey() throws IOException {
+        RSABlockCipher cipher = new RSABlockCipher(publicKey, modulus);
+        session = new SessionCipher(SessionCipher.generateKey(), true);
+        long start = System.nanoTime();
+        byte[] wrapped = cipher.wrap(session.getKey());
+        Metrics.RSA_ENCRYPT.recordSince(start);
+        frames.queueBlockFrame(cipher.getBlockWidth(), wrapped, 0, wrapped.length);
+        lastWriteNanos = System.nanoTime();
+        frames.setSession(session);
+        handshakeNanos = lastWriteNanos - startNanos;
+    }
+
+    private void onMessage(int opcode, byte[] data, int offset, int length) throws IOException {
+        switch (opcode) {
+            case NetworkPlayer.HEARTBEAT:
+                return;
+            case NetworkPlayer.COMMIT:
+                System.arraycopy(data, offset + 1, serverCommitment, 0, Commitment.HASH_LENGTH);
+                committed = true;
+                revealedMove = 0;
+                promptMove(); // A commitment asks for a move just like PROMPT_MOVE
+                return;
+            case NetworkPlayer.PROMPT_MOVE:
+                promptMove();
+                return;
+            case NetworkPlayer.REVEAL:
+                if (!committed || sentMove == 0)
+                    throw new IOException("Server revealed a move before committing to one and asking for ours");
+                committed = false;
+                int move = NetworkPlayer.decodeMove(protocol, data, offset, length);
+                System.arraycopy(data, offset + 2, serverNonce, 0, Commitment.NONCE_LENGTH);
+                if (commitment == null)
+                    commitment = new Commitment();
+                if (move < 1 || move > 3 || !commitment.verify(serverCommitment, move, serverNonce, 0))
+                    throw new IOException("Server revealed a move it did not commit to");
+                revealedMove = move;
+                publish(new Event(NetworkPlayer.REVEAL, move));
+                return;
+            case NetworkPlayer.WIN:
+            case NetworkPlayer.LOSE:
+            case NetworkPlayer.TIE:
+                checkResult(opcode);
+                publish(Event.SHARED[opcode]);
+                return;
+            case NetworkPlayer.END:
+                matchOver = true;
+                publish(Event.END);
+                return;
+            default:
+                throw new IOException("Unexpected message with opcode " + opcode);
+        }
+    }
+
+    private void promptMove() {
+        publish(Event.PROMPT_MOVE);
+        moveWanted = true;
+        requestMove();
+    }
+
+    /**
+     * With the commit-reveal protocol, checks that the server revealed its move before the result and that the result
+     * is the one the two moves give. The server committed to its move before seeing ours, so ours needs no
+     * commitment.
+     */
+    private void checkResult(int result) throws IOException {
+        int revealed = revealedMove;
+        int played = sentMove;
+        revealedMove = 0;
+        sentMove = 0;
+        if (protocol != NetworkPlayer.PROTOCOL_COMMIT_REVEAL)
+            return;
+        if (revealed == 0)
+            throw new IOException("Server sent a result without revealing its move");
+        if (Player.getResult(played, revealed) != result)
+            throw new IOException("Server reported a result the moves do not give");
+    }
+
+    /**
+     * Asks the move publisher for a move if the server wants one and it has not been asked yet.
+     */
+    private void requestMove() {
+        if (moveWanted && !moveRequested && moves != null) {
+            moveRequested = true;
+            moves.request(1);
+        }
+    }
+
+    private void publish(Event event) {
+        events.add(event);
+        drain();
+    }
+
+    private void requestEvents(long n) {
+        if (terminated)
+            return;
+        if (n <= 0) {
+            fail(new IllegalArgumentException("Requested " + n + " events"));
+            return;
+        }
+        demand += n;
+        if (demand < 0)
+            demand = Long.MAX_VALUE;
+        drain();
+    }
+
+    /**
+     * Delivers queued events while there is demand, then the terminal signal once the queue is empty. Once the
+     * subscriber has caught up, the frames left in the read buffer are handled and reading resumes. Reentrant calls
+     * from inside {@code onNext} return at once and leave the work to the outer call.
+     */
+    private void drain() {
+        if (draining || subscriber == null || terminated)
+            return;
+        draining = true;
+        try {
+            while (true) {
+                while (demand > 0 && !events.isEmpty() && !terminated) {
+                    if (demand != Long.MAX_VALUE)
+                        demand--;
+                    subscriber.onNext(events.poll());
+                }
+                if (terminated)
+                    return;
+                if (error != null) {
+                    terminated = true;
+                    subscriber.onError(error);
+                    return;
+                }
+                if (completed && events.isEmpty()) {
+                    terminated = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                if (!readPaused || closed || events.size() >= MAX_QUEUED_EVENTS / 2)
+                    return;
+                try {
+                    parseFrames();
+                    flush();
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+        } finally {
+            draining = false;
+        }
+    }
+
+    /**
+     * Stops reading while the subscriber is too far behind, and starts again once it has caught up.
+     */
+    private void updateInterest() {
+        boolean pause = events.size() >= MAX_QUEUED_EVENTS;
+        if (pause && !readPaused)
+            Metrics.READ_PAUSES.increment();
+        readPaused = pause;
+        setInterest();
+    }
+
+    private void setInterest() {
+        if (selectionKey == null || !selectionKey.isValid()
+                || (selectionKey.interestOps() & SelectionKey.OP_CONNECT) != 0)
+            return;
+        selectionKey.interestOps((readPaused ? 0 : SelectionKey.OP_READ)
+                | (frames.hasUnwritten() ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Sends a heartbeat if the session has keep-alive and nothing has been sent for a quarter of the idle timeout,
+     * and fails the session if it has been reading and nothing has arrived for the whole of it.
+     */
+    void checkIdle(long now, long idleTimeoutNanos) throws IOException {
+        if (closed)
+            return;
+        if (readPaused)
+            lastReadNanos = now; // Not reading is this side's doing, not the server's
+        else if (now - lastReadNanos > idleTimeoutNanos)
+            throw new SocketTimeoutException("Read timed out");
+        if (keepAlive && session != null && !frames.hasUnwritten() && now - lastWriteNanos > idleTimeoutNanos / 4) {
+            send(NetworkPlayer.HEARTBEAT, 0);
+            flush();
+        }
+    }
+
+    /**
+     * Queues a message, as {@link FrameChannel#send(byte[], int, int)}. Nothing is written until {@link #flush()}.
+     */
+    private void send(int opcode, int move) throws IOException {
+        int length = NetworkPlayer.encodeMessage(protocol, message, 0, opcode, move);
+        lastWriteNanos = System.nanoTime();
+        frames.send(message, 0, length);
+    }
+
+    /**
+     * Writes as much of what has been queued as the socket takes.
+     */
+    private void flush() throws IOException {
+        if (frames.flush() && closeAfterFlush)
+            finish();
+        else
+            setInterest();
+    }
+
+    /**
+     * Closes the session because of an error, which is signalled to the subscriber ahead of any queued events.
+     */
+    void fail(Throwable e) {
+        if (error == null && !terminated)
+            error = e;
+        closeChannel();
+        events.clear();
+        drain();
+    }
+
+    /**
+     * Closes the session normally; the subscriber gets {@code onComplete} once it has taken the queued events.
+     */
+    private void finish() {
+        closeChannel();
+        completed = true;
+        drain();
+    }
+
+    private void closeChannel() {
+        if (closed)
+            return;
+        closed = true;
+        frames.close();
+        if (selectionKey != null)
+            selectionKey.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (moves != null) {
+            moves.cancel();
+            moves = null;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative {@code long} values, such as latencies in nanoseconds. Like an HDR histogram,
+ * values are counted in buckets whose width grows with the value, so any value is reported within about 6% using
+ * under a thousand counters. Recording is a few arithmetic operations, one atomic increment, a striped add and a
+ * usually read-only max update. Threads recording similar values would all increment the same bucket, so, like a
+ * {@code LongAdder}, the buckets start as one array and are striped into more copies, one per thread hash, the first
+ * time an increment is contended. Reads add the stripes up.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int MAX_STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    private volatile AtomicLongArray[] stripes = {new AtomicLongArray(BUCKETS)};
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Counts one value.
+     *
+     * @param value Value to record; negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        int index = indexOf(value);
+        AtomicLongArray[] striped = stripes;
+        AtomicLongArray counts = striped[stripeOf(striped.length)];
+        long n = counts.get(index);
+        if (!counts.compareAndSet(index, n, n + 1))
+            recordContended(striped, index);
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Doubles the stripes, unless another thread already did or there is one per processor, and counts the value in
+     * the calling thread's stripe.
+     */
+    private void recordContended(AtomicLongArray[] striped, int index) {
+        if (striped.length < MAX_STRIPES) {
+            synchronized (this) {
+                if (stripes == striped) {
+                    AtomicLongArray[] grown = Arrays.copyOf(striped, striped.length * 2);
+                    for (int i = striped.length; i < grown.length; i++)
+                        grown[i] = new AtomicLongArray(BUCKETS);
+                    stripes = grown;
+                }
+            }
+            striped = stripes;
+        }
+        striped[stripeOf(striped.length)].incrementAndGet(index);
+    }
+
+    private static int stripeOf(int stripeCount) {
+        long id = Thread.currentThread().getId();
+        return (int) (id * 0x9E3779B97F4A7C15L >>> 32) & (stripeCount - 1);
+    }
+
+    /**
+     * @return How many of each bucket were recorded, summed over the stripes
+     */
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (AtomicLongArray counts : stripes) {
+            for (int i = 0; i < BUCKETS; i++)
+                snapshot[i] += counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return Number of values recorded
+     */
+    public long getCount() {
+        long n = 0;
+        for (long count : snapshot())
+            n += count;
+        return n;
+    }
+
+    /**
+     * @return Sum of the values recorded
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return Mean of the values recorded, or 0 if there are none
+     */
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @return Largest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The upper bound of the bucket holding the value at that percentile, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = snapshot();
+        for (long count : snapshot)
+            total += count;
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one.
+     *
+     * @param other Histogram to add
+     */
+    public void add(Histogram other) {
+        long[] snapshot = other.snapshot();
+        AtomicLongArray counts = stripes[0];
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot[i] != 0)
+                counts.addAndGet(i, snapshot[i]);
+        }
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    /**
+     * Returns the values recorded since a snapshot, taken by {@link #add(Histogram) adding} this histogram to an empty
+     * one. Unlike {@link #reset()}, this leaves the histogram alone for anyone else reading it. The largest value of
+     * the difference is not kept, so it is reported as the upper bound of its bucket, within this histogram's maximum.
+     *
+     * @param snapshot Earlier copy of this histogram
+     * @return A new histogram of the difference
+     */
+    public Histogram since(Histogram snapshot) {
+        long[] now = snapshot();
+        long[] before = snapshot.snapshot();
+        Histogram difference = new Histogram();
+        AtomicLongArray counts = difference.stripes[0];
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = now[i] - before[i];
+            if (n > 0) {
+                counts.set(i, n);
+                highest = i;
+            }
+        }
+        difference.sum.add(sum.sum() - snapshot.sum.sum());
+        if (highest >= 0)
+            difference.max.accumulate(Math.min(upperBoundOf(highest), max.get()));
+        return difference;
+    }
+
+    /**
+     * Forgets every value recorded so far. Values recorded concurrently may or may not be kept.
+     */
+    public void reset() {
+        for (AtomicLongArray counts : stripes) {
+            for (int i = 0; i < BUCKETS; i++)
+                counts.set(i, 0);
+        }
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Summarises the histogram with a scale, e.g. 1e-6 to print nanoseconds as milliseconds.
+     *
+     * @param scale Factor applied to every value
+     * @param unit  Unit name to print after each value
+     * @return e.g. "n=100 mean=1.2ms p50=1.1ms p99=3.0ms p99.9=3.2ms max=3.2ms"
+     */
+    public String summary(double scale, String unit) {
+        return String.format(Locale.ROOT, "n=%d mean=%.3f%s p50=%.3f%s p99=%.3f%s p99.9=%.3f%s max=%.3f%s",
+                getCount(), getMean() * scale, unit, getValueAtPercentile(50) * scale, unit,
+                getValueAtPercentile(99) * scale, unit, getValueAtPercentile(99.9) * scale, unit,
+                getMax() * scale, unit);
+    }
+
+    /**
+     * Values below {@code 2 * SUB_BUCKETS} each get their own bucket. Above that, each power of two is split into
+     * {@code SUB_BUCKETS} equal buckets.
+     */
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index - (long) shift * SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
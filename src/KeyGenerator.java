@@ -0,0 +1,10 @@
+/**
+ * Strategy for producing the RSA key used by the {@code Server}. Implementations decide how the primes are found and
+ * how large the key is.
+ */
+public interface KeyGenerator {
+    /**
+     * @return A freshly generated RSA key
+     */
+    RSAKey generateKey();
+}
@@ -0,0 +1,151 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the server's current RSA key without ever generating one on the caller's thread, except the very first
+ * time a server starts with an empty key store. Keys are loaded from an {@code RSAKeyStore} at startup, rotated once
+ * they have been in use for the rotation interval, and replaced from a pool of spare keys that background threads
+ * keep topped up. Every change is saved back to the key store.
+ * <p>
+ * {@link #generateKey()} returns the current key, so a {@code KeyManager} can be passed anywhere a
+ * {@code KeyGenerator} is expected.
+ */
+public class KeyManager implements KeyGenerator, Closeable {
+    private final KeyGenerator generator;
+    private final RSAKeyStore store;
+    private final long rotationMillis;
+    private final int spareCount;
+    private final ExecutorService pool;
+    private final Queue<RSAKey> spares = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile RSAKeyStore.Entry current;
+    private boolean loadedFromStore;
+
+    /**
+     * Loads the key store, generating a first key if it has none, and starts filling the spare pool.
+     *
+     * @param generator      Generator for new keys
+     * @param store          Key store to load from and save to, or {@code null} to keep keys in memory only
+     * @param rotationMillis How long a key stays current, or 0 to never rotate
+     * @param spareCount     Number of spare keys to keep ready
+     * @param threads        Number of background generator threads
+     * @throws IOException if the key store exists but cannot be read
+     */
+    public KeyManager(KeyGenerator generator, RSAKeyStore store, long rotationMillis, int spareCount, int threads)
+            throws IOException {
+        this.generator = generator;
+        this.store = store;
+        this.rotationMillis = rotationMillis;
+        this.spareCount = spareCount;
+        this.pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "key-generator");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        List<RSAKeyStore.Entry> entries = store == null ? new ArrayList<>() : store.load();
+        for (RSAKeyStore.Entry entry : entries) {
+            if (current == null)
+                current = entry;
+            else
+                spares.add(entry.getKey());
+        }
+        loadedFromStore = current != null;
+        if (current == null) {
+            current = new RSAKeyStore.Entry(generator.generateKey(), System.currentTimeMillis());
+            save();
+        } else if (current.getActivatedMillis() == 0) {
+            current = new RSAKeyStore.Entry(current.getKey(), System.currentTimeMillis());
+        }
+        refill();
+    }
+
+    /**
+     * @return {@code true} if the current key came from the key store rather than being generated at startup
+     */
+    public boolean isLoadedFromStore() {
+        return loadedFromStore;
+    }
+
+    /**
+     * @return The current key, rotating to a spare first if the current one is older than the rotation interval
+     */
+    @Override
+    public RSAKey generateKey() {
+        RSAKeyStore.Entry entry = current;
+        if (rotationMillis > 0 && System.currentTimeMillis() - entry.getActivatedMillis() >= rotationMillis)
+            rotate(entry);
+        return current.getKey();
+    }
+
+    /**
+     * @return Number of spare keys ready to use
+     */
+    public int getSpareCount() {
+        return spares.size();
+    }
+
+    /**
+     * Replaces the current key with a spare if one is ready. If none is, the current key stays in use until the pool
+     * catches up.
+     */
+    private synchronized void rotate(RSAKeyStore.Entry expired) {
+        if (current != expired)
+            return; // Another thread already rotated
+        RSAKey next = spares.poll();
+        if (next != null) {
+            current = new RSAKeyStore.Entry(next, System.currentTimeMillis());
+            save();
+        }
+        refill();
+    }
+
+    /**
+     * Starts enough background generations to bring the pool back up to size.
+     */
+    private void refill() {
+        while (spares.size() + pending.get() < spareCount) {
+            pending.incrementAndGet();
+            pool.execute(() -> {
+                try {
+                    RSAKey key = generator.generateKey();
+                    if (pool.isShutdown())
+                        return; // Closed meanwhile: leave the key store alone
+                    spares.add(key);
+                    save();
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private synchronized void save() {
+        if (store == null)
+            return;
+        List<RSAKeyStore.Entry> entries = new ArrayList<>();
+        entries.add(current);
+        for (RSAKey spare : spares)
+            entries.add(new RSAKeyStore.Entry(spare, 0));
+        try {
+            store.save(entries);
+        } catch (IOException e) {
+            System.out.println("Could not save key store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the background generator threads. A key still being generated is thrown away rather than saved.
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Load generator that plays many games against a {@code MatchServer} or {@code ThreadedMatchServer} with
+ * {@link BotClient}s. A number of bots are connected at any one time, new games are started at up to a target rate,
+ * and throughput and latency histograms for the handshake, each round and the whole game are printed as it runs,
+ * followed by the frames and flushes per round. With {@code --rematch} each bot keeps its connection and plays its
+ * next game as a rematch, so only the first game pays for the handshake. With {@code --reactive} every bot is a
+ * {@link GameSession} on a single {@link SessionLoop} thread instead of a thread of its own.
+ * <p>
+ * Usage: {@code java LoadGenerator (host port | address) [--connections n] [--games n] [--rate games/s]
+ * [--strategy random|rock|paper|scissors|frequency] [--text] [--rematch] [--reactive]}, where {@code address} is a URI
+ * such as {@code unix:/path/to/socket} as described in {@link Transport}
+ */
+public class LoadGenerator {
+    private final URI server;
+    private final int protocolVersion;
+    private final Supplier<BotClient.Strategy> strategies;
+    private final boolean rematch;
+    private final Histogram handshakeLatency = new Histogram();
+    private final Histogram roundLatency = new Histogram();
+    private final Histogram gameLatency = new Histogram();
+    private final AtomicInteger gamesLeft = new AtomicInteger();
+    private final AtomicInteger gamesPlayed = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong nextStartNanos = new AtomicLong();
+    private final long startIntervalNanos;
+    private boolean reactive;
+    private ScheduledExecutorService pacer;
+
+    /**
+     * @param hostname        Server hostname
+     * @param port            Server port
+     * @param protocolVersion Protocol the bots ask for
+     * @param strategies      Creates each bot's strategy
+     * @param rate            Games started per second, or 0 for as fast as possible
+     * @param rematch         {@code true} to play each bot's later games as rematches over its first connection
+     */
+    public LoadGenerator(String hostname, int port, int protocolVersion, Supplier<BotClient.Strategy> strategies,
+                         double rate, boolean rematch) {
+        this(TcpTransport.uri(hostname, port), protocolVersion, strategies, rate, rematch);
+    }
+
+    /**
+     * @param server          Server address, as described in {@link Transport}
+     * @param protocolVersion Protocol the bots ask for
+     * @param strategies      Creates each bot's strategy
+     * @param rate            Games started per second, or 0 for as fast as possible
+     * @param rematch         {@code true} to play each bot's later games as rematches over its first connection
+     */
+    public LoadGenerator(URI server, int protocolVersion, Supplier<BotClient.Strategy> strategies, double rate,
+                         boolean rematch) {
+        this.server = server;
+        this.protocolVersion = protocolVersion;
+        this.strategies = strategies;
+        this.rematch = rematch;
+        this.startIntervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+    }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args See the class comment
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        boolean address = args[0].matches("[a-z]+:.+");
+        URI server = address ? URI.create(args[0]) : TcpTransport.uri(args[0], Integer.parseInt(args[1]));
+        int connections = 100;
+        int games = -1;
+        double rate = 0;
+        String strategy = "random";
+        int protocolVersion = NetworkPlayer.PROTOCOL_BINARY;
+        boolean rematch = false;
+        boolean reactive = false;
+        for (int i = address ? 1 : 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--connections":
+                    connections = Integer.parseInt(args[++i]);
+                    break;
+                case "--games":
+                    games = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--strategy":
+                    strategy = args[++i];
+                    break;
+                case "--text":
+                    protocolVersion = NetworkPlayer.PROTOCOL_TEXT;
+                    break;
+                case "--rematch":
+                    rematch = true;
+                    break;
+                case "--reactive":
+                    reactive = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        LoadGenerator generator = new LoadGenerator(server, protocolVersion, strategySupplier(strategy), rate, rematch);
+        generator.setReactive(reactive);
+        generator.run(connections, games < 0 ? connections * 10 : games);
+    }
+
+    private static Supplier<BotClient.Strategy> strategySupplier(String name) {
+        switch (name) {
+            case "random":
+                return BotClient::randomStrategy;
+            case "frequency":
+                return BotClient::frequencyStrategy;
+            default:
+                int move = Player.getMoveFromString(name);
+                return () -> BotClient.fixedStrategy(move);
+        }
+    }
+
+    /**
+     * @param reactive {@code true} to run every bot as a {@link GameSession} on one {@link SessionLoop} thread,
+     *                 {@code false} for a thread and a blocking {@link BotClient} per bot
+     */
+    public void setReactive(boolean reactive) {
+        this.reactive = reactive;
+    }
+
+    /**
+     * Plays games until the given number have finished, printing progress every second and a summary at the end.
+     *
+     * @param connections Number of bots connected at once; at least 2, as every game needs two
+     * @param games       Number of games to play, where each bot's side of a match counts as one game; rounded up to
+     *                    an even number so no bot is left without an opponent
+     * @throws InterruptedException
+     * @throws IOException if the session loop cannot be started
+     */
+    public void run(int connections, int games) throws InterruptedException, IOException {
+        if (connections < 2)
+            throw new IllegalArgumentException("Need at least two connections");
+        gamesLeft.set(games + games % 2);
+        nextStartNanos.set(System.nanoTime());
+        CountDownLatch done = new CountDownLatch(connections);
+        SessionLoop loop = null;
+        ExecutorService workers = null;
+        if (reactive) {
+            loop = new SessionLoop();
+            loop.start();
+            if (startIntervalNanos > 0)
+                pacer = Executors.newSingleThreadScheduledExecutor();
+            for (int i = 0; i < connections; i++)
+                startReactiveBot(loop, done);
+        } else {
+            workers = Executors.newFixedThreadPool(connections);
+            for (int i = 0; i < connections; i++) {
+                workers.execute(() -> {
+                    work();
+                    done.countDown();
+                });
+            }
+            workers.shutdown();
+        }
+        long start = System.nanoTime();
+        long framesIn = Metrics.FRAMES_IN.get();
+        long framesOut = Metrics.FRAMES_OUT.get();
+        long flushes = Metrics.FLUSHES.get();
+        int lastPlayed = 0;
+        while (!done.await(1, TimeUnit.SECONDS)) {
+            int played = gamesPlayed.get();
+            System.out.println(played + " games, " + (played - lastPlayed) + " games/s, " + failures.get()
+                    + " failures");
+            lastPlayed = played;
+        }
+        if (loop != null)
+            loop.close();
+        if (pacer != null)
+            pacer.shutdown();
+        if (workers != null)
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d games in %.1f s: %.1f games/s, %d failures%n", gamesPlayed.get(), seconds,
+                gamesPlayed.get() / seconds, failures.get());
+        System.out.println("Handshake: " + handshakeLatency.summary(1e-6, "ms"));
+        System.out.println("Round:     " + roundLatency.summary(1e-6, "ms"));
+        System.out.println("Game:      " + gameLatency.summary(1e-6, "ms"));
+        // Counted by this process's bots, plus the server's side if it runs in the same JVM
+        double rounds = Math.max(1, roundLatency.getCount());
+        System.out.printf("Per round: %.2f frames received, %.2f frames sent, %.2f flushes%n",
+                (Metrics.FRAMES_IN.get() - framesIn) / rounds, (Metrics.FRAMES_OUT.get() - framesOut) / rounds,
+                (Metrics.FLUSHES.get() - flushes) / rounds);
+    }
+
+    /**
+     * Plays games one after another on the calling thread until there are none left.
+     */
+    private void work() {
+        BotClient bot = null;
+        while (gamesLeft.getAndDecrement() > 0) {
+            if (startIntervalNanos > 0) {
+                long wait = nextStartNanos.getAndAdd(startIntervalNanos) - System.nanoTime();
+                if (wait > 0)
+                    sleepNanos(wait);
+            }
+            long start = System.nanoTime();
+            try {
+                if (bot == null) {
+                    bot = new BotClient(server, protocolVersion, strategies.get(), roundLatency, rematch);
+                    handshakeLatency.record(System.nanoTime() - start);
+                } else {
+                    bot.requestRematch();
+                }
+                bot.playGame();
+                gameLatency.record(System.nanoTime() - start);
+                gamesPlayed.incrementAndGet();
+                if (!bot.isKeepAlive()) {
+                    closeQuietly(bot);
+                    bot = null;
+                }
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                closeQuietly(bot);
+                bot = null;
+            }
+        }
+        closeQuietly(bot);
+    }
+
+    /**
+     * Takes a game and starts a new session to play it on, or counts the bot as done if there are none left.
+     */
+    private void startReactiveBot(SessionLoop loop, CountDownLatch done) {
+        if (gamesLeft.getAndDecrement() <= 0) {
+            done.countDown();
+            return;
+        }
+        paced(() -> {
+            try {
+                new ReactiveBot(loop, done).start(loop.connect(server, protocolVersion, rematch));
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                startReactiveBot(loop, done);
+            }
+        });
+    }
+
+    /**
+     * Runs a task that starts a game, after waiting for its turn if there is a target rate.
+     */
+    private void paced(Runnable start) {
+        if (startIntervalNanos > 0) {
+            long wait = nextStartNanos.getAndAdd(startIntervalNanos) - System.nanoTime();
+            if (wait > 0) {
+                pacer.schedule(start, wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+        start.run();
+    }
+
+    /**
+     * A bot that plays over a {@link GameSession}: it subscribes to the session's events one at a time and publishes
+     * a move from its strategy each time the session asks for one. All of its callbacks run on the loop thread.
+     */
+    private class ReactiveBot implements Flow.Subscriber<GameSession.Event>, Flow.Publisher<Integer> {
+        private final SessionLoop loop;
+        private final CountDownLatch done;
+        private final BotClient.Strategy strategy = strategies.get();
+        private GameSession session;
+        private Flow.Subscription events;
+        private Flow.Subscriber<? super Integer> moveSubscriber;
+        private long movesWanted;
+        private boolean playing;
+        private boolean handshakeRecorded;
+        private int move;
+        private int opponentMove;
+        private long sentNanos;
+        private volatile long gameStartNanos;
+
+        ReactiveBot(SessionLoop loop, CountDownLatch done) {
+            this.loop = loop;
+            this.done = done;
+        }
+
+        void start(GameSession session) {
+            this.session = session;
+            playing = true;
+            gameStartNanos = System.nanoTime();
+            session.subscribe(this);
+            subscribe(session);
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super Integer> subscriber) {
+            moveSubscriber = subscriber;
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    movesWanted += n;
+                    while (movesWanted > 0 && moveSubscriber != null) {
+                        movesWanted--;
+                        move = strategy.nextMove();
+                        sentNanos = System.nanoTime();
+                        moveSubscriber.onNext(move);
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    moveSubscriber = null;
+                }
+            });
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            events = subscription;
+            events.request(1);
+        }
+
+        @Override
+        public void onNext(GameSession.Event event) {
+            long now = System.nanoTime();
+            if (event == GameSession.Event.PROMPT_MOVE && !handshakeRecorded) {
+                handshakeRecorded = true;
+                handshakeLatency.record(session.getHandshakeNanos());
+            } else if (event.getOpcode() == NetworkPlayer.REVEAL) {
+                opponentMove = event.getMove();
+            } else if (event.isResult()) {
+                roundLatency.record(now - sentNanos);
+                strategy.onResult(move, opponentMove, event.getOpcode());
+                opponentMove = 0;
+            } else if (event == GameSession.Event.END) {
+                gameLatency.record(now - gameStartNanos);
+                gamesPlayed.incrementAndGet();
+                playing = false;
+                if (session.isKeepAlive() && gamesLeft.getAndDecrement() > 0) {
+                    paced(() -> {
+                        gameStartNanos = System.nanoTime();
+                        loop.execute(() -> playing = true);
+                        session.requestRematch();
+                    });
+                } else {
+                    session.close();
+                }
+            }
+            events.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (playing)
+                failures.incrementAndGet();
+            startReactiveBot(loop, done);
+        }
+
+        @Override
+        public void onComplete() {
+            if (playing)
+                failures.incrementAndGet();
+            startReactiveBot(loop, done);
+        }
+    }
+
+    private static void closeQuietly(BotClient bot) {
+        if (bot == null)
+            return;
+        try {
+            bot.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
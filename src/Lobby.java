@@ -0,0 +1,299 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Matchmaking lobby that pairs waiting players into matches. Players wait in lock-free queues, one per rating bucket,
+ * and a player who joins is paired straight away with someone waiting in the same bucket or, failing that, in the
+ * nearest bucket within the allowed rating gap. Buckets are kept sorted and dropped once empty, so looking further
+ * afield only visits buckets someone is waiting in, however wide the gap. Nothing here takes a lock, so pairing stays
+ * fast with thousands of players waiting and joining from many threads at once.
+ *
+ * @param <T> Type of the players, e.g. a connection
+ */
+public class Lobby<T> {
+    /**
+     * Called once for every pair of players, on the thread of whichever player completed the pair.
+     *
+     * @param <T> Type of the players
+     */
+    public interface Pairing<T> {
+        void pair(T first, T second);
+    }
+
+    /**
+     * Ticket state: waiting for a partner.
+     */
+    private static final int WAITING = 0;
+    /**
+     * Ticket state: claimed by the thread joining with it, which may still give the claim back.
+     */
+    private static final int CLAIMED = 1;
+    /**
+     * Ticket state: paired or left, for good. Taken tickets are cleaned out of the queues lazily.
+     */
+    private static final int TAKEN = 2;
+
+    private final ConcurrentNavigableMap<Integer, Bucket<T>> buckets = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<T, Ticket<T>> tickets = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Histogram pairingLatency = new Histogram();
+    private final Pairing<T> pairing;
+    private final int bucketWidth;
+    private final long maxBucketDistance;
+
+    /**
+     * A player's place in the lobby. Whoever moves a ticket out of {@link #WAITING} first owns it, and tickets that
+     * are not waiting are skipped.
+     */
+    private static class Ticket<T> {
+        final T player;
+        final long id;
+        final int bucket;
+        final long joinedNanos;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        volatile Bucket<T> queuedIn;
+
+        Ticket(T player, long id, int bucket) {
+            this.player = player;
+            this.id = id;
+            this.bucket = bucket;
+            this.joinedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The tickets queued in one rating bucket, with a count of them that goes to -1 when the bucket is dropped. A
+     * dropped bucket takes no more tickets, so it is only ever dropped empty, and a ticket queued in it is never lost.
+     */
+    private static class Bucket<T> {
+        final Queue<Ticket<T>> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * @return {@code false} if the bucket was dropped and the ticket must go in a new one
+         */
+        boolean offer(Ticket<T> ticket) {
+            int n;
+            do {
+                n = size.get();
+                if (n < 0)
+                    return false;
+            } while (!size.compareAndSet(n, n + 1));
+            queue.offer(ticket);
+            return true;
+        }
+
+        /**
+         * Takes a ticket out of the queue, if no other thread already did.
+         */
+        void remove(Ticket<T> ticket) {
+            if (queue.remove(ticket))
+                size.decrementAndGet();
+        }
+
+        /**
+         * @return {@code true} if the bucket was empty and is now dropped
+         */
+        boolean drop() {
+            return size.compareAndSet(0, -1);
+        }
+    }
+
+    /**
+     * Creates a lobby that pairs anyone with anyone.
+     *
+     * @param pairing Called for each pair
+     */
+    public Lobby(Pairing<T> pairing) {
+        this(pairing, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Creates a lobby that only pairs players whose ratings are close.
+     *
+     * @param pairing     Called for each pair
+     * @param bucketWidth Ratings are grouped into buckets this wide
+     * @param maxGap      Largest rating difference, rounded up to whole buckets, between two paired players
+     */
+    public Lobby(Pairing<T> pairing, int bucketWidth, int maxGap) {
+        if (bucketWidth < 1 || maxGap < 0)
+            throw new IllegalArgumentException("Invalid rating buckets");
+        this.pairing = pairing;
+        this.bucketWidth = bucketWidth;
+        this.maxBucketDistance = ((long) maxGap + bucketWidth - 1) / bucketWidth;
+    }
+
+    /**
+     * Adds an unrated player.
+     *
+     * @param player Player to add
+     */
+    public void join(T player) {
+        join(player, 0);
+    }
+
+    /**
+     * Adds a player, pairing them immediately if a suitable opponent is waiting.
+     *
+     * @param player Player to add; must not already be in the lobby
+     * @param rating Player's rating
+     */
+    public void join(T player, int rating) {
+        Ticket<T> ticket = new Ticket<>(player, nextId.getAndIncrement(), Math.floorDiv(rating, bucketWidth));
+        if (tickets.putIfAbsent(player, ticket) != null)
+            throw new IllegalStateException("Player already in the lobby");
+        while (ticket.state.get() == WAITING) {
+            Ticket<T> partner = findPartner(ticket);
+            if (partner == null) {
+                if (ticket.queuedIn != null)
+                    return; // Wait for someone else to pair with us
+                // Queue up, then look once more in case someone queued at the same time without seeing us
+                enqueue(ticket);
+                continue;
+            }
+            if (claimBoth(ticket, partner)) {
+                finish(partner, ticket);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a player who is still waiting, e.g. because they disconnected. This may be called while the player's
+     * own {@link #join(Object, int)} is still running on another thread: if that call has briefly claimed the
+     * player's ticket to try a partner, this waits the few instructions until it is paired or gives the claim back.
+     *
+     * @param player Player to remove
+     * @return {@code true} if the player was waiting, {@code false} if they were already paired or never joined
+     */
+    public boolean leave(T player) {
+        Ticket<T> ticket = tickets.get(player);
+        if (ticket == null)
+            return false;
+        while (!ticket.state.compareAndSet(WAITING, TAKEN)) {
+            if (ticket.state.get() == TAKEN)
+                return false;
+            Thread.onSpinWait();
+        }
+        tickets.remove(player);
+        Bucket<T> bucket = ticket.queuedIn;
+        if (bucket != null)
+            bucket.remove(ticket);
+        return true;
+    }
+
+    /**
+     * @return Number of players waiting for an opponent
+     */
+    public int getWaitingCount() {
+        return tickets.size();
+    }
+
+    /**
+     * @return Time from the second player's {@code join} call to their pairing, in nanoseconds
+     */
+    public Histogram getPairingLatency() {
+        return pairingLatency;
+    }
+
+    /**
+     * @return Number of rating buckets kept, including empty ones no one has looked in since they emptied
+     */
+    int getBucketCount() {
+        return buckets.size();
+    }
+
+    /**
+     * Queues a ticket in its bucket, making a new bucket if there is none or it was just dropped.
+     */
+    private void enqueue(Ticket<T> ticket) {
+        while (true) {
+            Bucket<T> bucket = buckets.computeIfAbsent(ticket.bucket, b -> new Bucket<>());
+            if (bucket.offer(ticket)) {
+                ticket.queuedIn = bucket;
+                return;
+            }
+            buckets.remove(ticket.bucket, bucket);
+        }
+    }
+
+    /**
+     * Looks for a waiting ticket other than {@code ticket}, in its own bucket first and then in ever more distant
+     * buckets, walking outwards on both sides through the buckets that exist and taking the lower one of two equally
+     * distant buckets first.
+     */
+    private Ticket<T> findPartner(Ticket<T> ticket) {
+        long center = ticket.bucket;
+        Ticket<T> partner = firstWaiting(ticket.bucket, ticket);
+        Integer lower = buckets.lowerKey(ticket.bucket);
+        Integer higher = buckets.higherKey(ticket.bucket);
+        while (partner == null) {
+            long lowerDistance = lower == null ? Long.MAX_VALUE : center - lower;
+            long higherDistance = higher == null ? Long.MAX_VALUE : higher - center;
+            if (Math.min(lowerDistance, higherDistance) > maxBucketDistance)
+                return null;
+            if (lowerDistance <= higherDistance) {
+                partner = firstWaiting(lower, ticket);
+                lower = buckets.lowerKey(lower);
+            } else {
+                partner = firstWaiting(higher, ticket);
+                higher = buckets.higherKey(higher);
+            }
+        }
+        return partner;
+    }
+
+    /**
+     * Returns the first waiting ticket other than {@code self} in a bucket, cleaning out taken tickets on the way and
+     * dropping the bucket if that leaves it empty.
+     */
+    private Ticket<T> firstWaiting(int key, Ticket<T> self) {
+        Bucket<T> bucket = buckets.get(key);
+        if (bucket == null)
+            return null;
+        for (Ticket<T> candidate : bucket.queue) {
+            int state = candidate.state.get();
+            if (state == TAKEN)
+                bucket.remove(candidate);
+            else if (candidate != self && state == WAITING)
+                return candidate;
+        }
+        if (bucket.drop())
+            buckets.remove(key, bucket);
+        return null;
+    }
+
+    /**
+     * Claims the joining player's own ticket, then takes the partner's. Only the owner of a ticket ever claims it and
+     * gives the claim back, and it keeps looking for a partner afterwards, so a waiting player skipped while their
+     * ticket was briefly claimed is always seen again by the thread that claimed it. Someone else's ticket is only
+     * ever taken for good.
+     *
+     * @return {@code true} if both were taken
+     */
+    private boolean claimBoth(Ticket<T> own, Ticket<T> partner) {
+        if (!own.state.compareAndSet(WAITING, CLAIMED))
+            return false;
+        if (partner.state.compareAndSet(WAITING, TAKEN)) {
+            own.state.set(TAKEN);
+            return true;
+        }
+        own.state.set(WAITING);
+        return false;
+    }
+
+    private void finish(Ticket<T> waited, Ticket<T> joined) {
+        // Both tickets are now taken, so they are cleaned out of the queues the next time a scan passes them
+        tickets.remove(waited.player);
+        tickets.remove(joined.player);
+        Ticket<T> later = waited.joinedNanos > joined.joinedNanos ? waited : joined;
+        pairingLatency.record(System.nanoTime() - later.joinedNanos);
+        pairing.pair(waited.player, joined.player);
+    }
+}
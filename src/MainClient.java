@@ -1,6 +1,7 @@
 import java.io.Console;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.net.URI;
 
 /**
  * Client Main class.
@@ -8,17 +9,28 @@ import java.net.SocketTimeoutException;
  */
 public class MainClient {
     /**
-     * Runs the Client program.
+     * Runs the Client program. The game runs on a {@code SessionLoop}, with the console read on a thread of its own.
      *
-     * @param args none
+     * @param args {@code --text} to use the legacy text protocol, otherwise none
      */
     public static void main(String[] args){
         try {
             Console c = System.console();
             String hostname = c.readLine("Hostname: ");
-            int port = Integer.parseInt(c.readLine("Port: "));
-            Client client = new Client(hostname, port);
-            client.playGame();
+            // A URI such as unix:/path/to/socket picks another transport and needs no port
+            URI server = hostname.matches("[a-z]+:.+") ? URI.create(hostname)
+                    : TcpTransport.uri(hostname, Integer.parseInt(c.readLine("Port: ")));
+            boolean text = args.length > 0 && args[0].equals("--text");
+            // Keep-alive lets the user play rematches without reconnecting; the text protocol ignores it
+            try (SessionLoop loop = new SessionLoop()) {
+                loop.start();
+                GameSession session = loop.connect(server,
+                        text ? NetworkPlayer.PROTOCOL_TEXT : NetworkPlayer.PROTOCOL_COMMIT_REVEAL, true);
+                new ConsolePlayer(c).play(session);
+            } catch (InterruptedException e) {
+                return;
+            }
+            c.readLine("Press ENTER to end");
         } catch (SocketTimeoutException e) {
             System.out.println("Connection timed out.");
         } catch (IOException e) {
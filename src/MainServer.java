@@ -1,21 +1,121 @@
+import javax.management.JMException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.file.Paths;
 
 /**
  * Server Main class.
  * @author grrdozier
  */
 public class MainServer {
+    /**
+     * Key store used unless {@code --keystore} says otherwise.
+     */
+    public static final String DEFAULT_KEY_STORE = "server.keys";
+    /**
+     * Rotation interval used unless {@code --rotate} says otherwise.
+     */
+    public static final long DEFAULT_ROTATION_MINUTES = 24 * 60;
+
     /**
      * Runs server program.
      *
-     * @param args Just the port number
+     * @param args The port number to listen on every interface, or an address such as {@code unix:/path/to/socket}
+     *             as described in {@link Transport}, optionally followed by {@code --matches [threads]} or
+     *             {@code --threaded} to referee many matches between remote clients instead of playing one game from
+     *             the console, and by {@code --keystore <file>} and {@code --rotate <minutes>} to configure key
+     *             storage and rotation, and by {@code --best-of <n>} to play every match over n rounds, and by
+     *             {@code --metrics <port>} to serve metrics over JMX and as Prometheus text on
+     *             {@code http://localhost:<port>/metrics}, and by {@code --log <dir>} to record every round refereed
+     *             with {@code --matches} or {@code --threaded} in a match log, and by {@code --idle-timeout <seconds>}
+     *             to drop clients that have sent nothing, not even a heartbeat, for that long, and by
+     *             {@code --rate-limit <frames>} to let each client send that many frames a second, and
+     *             {@link RateLimiter#BYTES_PER_FRAME} times as many bytes, or 0 for no limit, up to
+     *             {@link RateLimiter#MAX_FRAMES_PER_SECOND}, and by
+     *             {@code --frame-memory <MB>} to bound the memory held by large frames still arriving across every
+     *             connection. {@code --matches} only listens on TCP. Without a mode, a TCP game runs on a
+     *             {@code MatchServer} reactor with the console read on a thread of its own, and a game at any other
+     *             address is played with a blocking {@code Server}.
      */
     public static void main(String[] args) {
         try {
-            int port = Integer.parseInt(args[0]);
-            System.out.println("Hosting rock-paper-scissors game on port " + port);
-            Server server = new Server(port);
+            URI address = parseAddress(args[0]);
+            String mode = null;
+            int threads = Runtime.getRuntime().availableProcessors();
+            String keyStore = DEFAULT_KEY_STORE;
+            long rotationMinutes = DEFAULT_ROTATION_MINUTES;
+            int bestOf = 1;
+            int metricsPort = -1;
+            String logDir = null;
+            long idleTimeoutMillis = NetworkPlayer.DEFAULT_IDLE_TIMEOUT_MILLIS;
+            int framesPerSecond = RateLimiter.DEFAULT_FRAMES_PER_SECOND;
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--matches":
+                        mode = args[i];
+                        if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+                            threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threaded":
+                        mode = args[i];
+                        break;
+                    case "--keystore":
+                        keyStore = args[++i];
+                        break;
+                    case "--rotate":
+                        rotationMinutes = Long.parseLong(args[++i]);
+                        break;
+                    case "--metrics":
+                        metricsPort = Integer.parseInt(args[++i]);
+                        break;
+                    case "--idle-timeout":
+                        idleTimeoutMillis = Long.parseLong(args[++i]) * 1000;
+                        break;
+                    case "--rate-limit":
+                        framesPerSecond = Integer.parseInt(args[++i]);
+                        if (framesPerSecond < 0 || framesPerSecond > RateLimiter.MAX_FRAMES_PER_SECOND)
+                            throw new IllegalArgumentException("Rate limit outside of [0, "
+                                    + RateLimiter.MAX_FRAMES_PER_SECOND + "]: " + framesPerSecond);
+                        break;
+                    case "--frame-memory":
+                        MemoryBudget.FRAMES.setLimit(Long.parseLong(args[++i]) << 20);
+                        break;
+                    case "--log":
+                        logDir = args[++i];
+                        break;
+                    case "--best-of":
+                        bestOf = Integer.parseInt(args[++i]);
+                        Match.checkBestOf(bestOf);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (metricsPort >= 0)
+                exposeMetrics(metricsPort);
+            KeyManager keys = loadKeys(keyStore, rotationMinutes);
+            MatchLog log = mode != null && logDir != null ? openLog(logDir) : null;
+            if ("--matches".equals(mode)) {
+                hostMatches(tcpPort(address), threads, keys, bestOf, log, idleTimeoutMillis, framesPerSecond);
+                return;
+            }
+            if ("--threaded".equals(mode)) {
+                hostThreadedMatches(address, keys, bestOf, log, idleTimeoutMillis, framesPerSecond);
+                return;
+            }
+            System.out.println("Hosting rock-paper-scissors game at " + address);
+            if ("tcp".equals(address.getScheme())) {
+                hostGame(address.getPort(), keys, bestOf, idleTimeoutMillis, framesPerSecond);
+                return;
+            }
+            Server server = new Server(address, keys);
+            server.setBestOf(bestOf);
+            server.setIdleTimeout(idleTimeoutMillis);
+            server.setMaxFrameLength(NetworkPlayer.MAX_CLIENT_FRAME_LENGTH);
+            if (framesPerSecond > 0)
+                server.setRateLimiter(new RateLimiter(framesPerSecond, RateLimiter.bytesPerSecond(framesPerSecond)));
             server.playGame();
         } catch (SocketTimeoutException e) {
             System.out.println("Connection timed out.");
@@ -24,4 +124,186 @@ public class MainServer {
             e.printStackTrace();
         }
     }
+
+    /**
+     * @param address A port number or a URI
+     * @return The URI, with a port number meaning TCP on every interface
+     */
+    private static URI parseAddress(String address) {
+        if (address.contains(":"))
+            return URI.create(address);
+        return TcpTransport.uri("0.0.0.0", Integer.parseInt(address));
+    }
+
+    private static int tcpPort(URI address) {
+        if (!"tcp".equals(address.getScheme()))
+            throw new IllegalArgumentException("--matches only listens on TCP, not " + address);
+        return address.getPort();
+    }
+
+    /**
+     * Registers the metrics MBean and starts the Prometheus endpoint.
+     *
+     * @param port Port for the endpoint
+     * @throws IOException if the endpoint cannot be started
+     */
+    private static void exposeMetrics(int port) throws IOException {
+        try {
+            Metrics.registerMBean();
+        } catch (JMException e) {
+            System.out.println("Could not register metrics MBean: " + e.getMessage());
+        }
+        Metrics.startHttpServer(port);
+        System.out.println("Serving metrics on http://localhost:" + port + "/metrics");
+    }
+
+    /**
+     * Opens a match log that is sealed when the JVM shuts down, so the last segment is indexed.
+     *
+     * @param dir Log directory
+     * @return The log
+     * @throws IOException
+     */
+    private static MatchLog openLog(String dir) throws IOException {
+        MatchLog log = new MatchLog(Paths.get(dir));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.out.println("Could not close match log: " + e.getMessage());
+            }
+        }));
+        System.out.println("Logging matches to " + dir);
+        return log;
+    }
+
+    /**
+     * Loads the server's keys from the key store, only generating one if the store is empty.
+     *
+     * @param keyStore        Path of the key store file
+     * @param rotationMinutes How long each key is used for
+     * @return The key manager
+     * @throws IOException if the key store cannot be read
+     */
+    private static KeyManager loadKeys(String keyStore, long rotationMinutes) throws IOException {
+        System.out.print("Loading Encryption Key...");
+        KeyManager keys = new KeyManager(new ProbablePrimeKeyGenerator(), new RSAKeyStore(Paths.get(keyStore)),
+                rotationMinutes * 60 * 1000, 1, 1);
+        System.out.print((keys.isLoadedFromStore() ? "Done." : "Generated.") + System.lineSeparator());
+        return keys;
+    }
+
+    /**
+     * @return Milliseconds since the JVM started, which is the time-to-first-accept when called right before the
+     * server starts accepting
+     */
+    static long getUptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    /**
+     * Records the time-to-first-accept in {@link Metrics#TIME_TO_FIRST_ACCEPT} and prints it. Called right before a
+     * server starts accepting.
+     */
+    static void reportTimeToFirstAccept() {
+        long uptime = getUptimeMillis();
+        Metrics.TIME_TO_FIRST_ACCEPT.set(uptime);
+        System.out.println("Time to first accept: " + uptime + " ms");
+    }
+
+    /**
+     * Plays one game from the console against the first client to connect, on a {@code MatchServer} with one reactor
+     * and the console as its host, until that client leaves.
+     *
+     * @param port              Port number
+     * @param keys              Server keys
+     * @param bestOf            Rounds per match
+     * @param idleTimeoutMillis Idle timeout for the client
+     * @param framesPerSecond   Rate limit for the client, or 0
+     * @throws IOException
+     */
+    private static void hostGame(int port, KeyManager keys, int bestOf, long idleTimeoutMillis, int framesPerSecond)
+            throws IOException {
+        MatchServer server = new MatchServer(port, 1, keys);
+        server.setBestOf(bestOf);
+        server.setIdleTimeout(idleTimeoutMillis);
+        server.setRateLimit(framesPerSecond, RateLimiter.bytesPerSecond(framesPerSecond));
+        server.setHost(new ConsoleSeat());
+        server.start();
+        reportTimeToFirstAccept();
+        try {
+            server.awaitFirstClient();
+        } catch (InterruptedException e) {
+            return;
+        } finally {
+            server.close();
+        }
+        System.console().readLine("Press ENTER to end"); // Probably the laziest way I could've done this, I know
+    }
+
+    /**
+     * Runs a {@code MatchServer} until the process is killed.
+     *
+     * @param port              Port number
+     * @param threads           Number of reactor threads
+     * @param keys              Server keys
+     * @param bestOf            Rounds per match
+     * @param log               Match log, or {@code null}
+     * @param idleTimeoutMillis Idle timeout for clients
+     * @param framesPerSecond   Rate limit for each client, or 0
+     * @throws IOException
+     */
+    private static void hostMatches(int port, int threads, KeyManager keys, int bestOf, MatchLog log,
+                                    long idleTimeoutMillis, int framesPerSecond) throws IOException {
+        MatchServer server = new MatchServer(port, threads, keys);
+        server.setBestOf(bestOf);
+        server.setMatchLog(log);
+        server.setIdleTimeout(idleTimeoutMillis);
+        server.setRateLimit(framesPerSecond, RateLimiter.bytesPerSecond(framesPerSecond));
+        server.start();
+        System.out.println("Hosting matches on port " + server.getLocalPort() + " with " + threads + " threads");
+        reportTimeToFirstAccept();
+        try {
+            server.join();
+        } catch (InterruptedException e) {
+            server.close();
+        }
+    }
+
+    /**
+     * Runs a {@code ThreadedMatchServer} until the process is killed, printing the number of matches and the memory
+     * they use every few seconds.
+     *
+     * @param address           Address to listen at
+     * @param keys              Server keys
+     * @param bestOf            Rounds per match
+     * @param log               Match log, or {@code null}
+     * @param idleTimeoutMillis Idle timeout for clients
+     * @param framesPerSecond   Rate limit for each client, or 0
+     * @throws IOException
+     */
+    private static void hostThreadedMatches(URI address, KeyManager keys, int bestOf, MatchLog log,
+                                            long idleTimeoutMillis, int framesPerSecond) throws IOException {
+        ThreadedMatchServer server = new ThreadedMatchServer(address, keys);
+        server.setBestOf(bestOf);
+        server.setMatchLog(log);
+        server.setIdleTimeout(idleTimeoutMillis);
+        server.setRateLimit(framesPerSecond, RateLimiter.bytesPerSecond(framesPerSecond));
+        System.out.println("Hosting matches at " + server.getAddress() + " using "
+                + (server.usesVirtualThreads() ? "virtual" : "platform") + " threads");
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(10000);
+                    System.out.println(server.getActiveConnections() + " connections, " + server.getActiveMatches()
+                            + " matches playing, ~" + server.getMemoryPerMatch() / 1024 + " KB heap per match");
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        reporter.setDaemon(true);
+        reporter.start();
+        reportTimeToFirstAccept();
+        server.serve();
+    }
 }
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the moves in a single match between two sides and resolves each round with
+ * {@link Player#getWinner(Player, Player)}. The match is a best-of-N series: it is over once one side has won a
+ * majority of N rounds, with ties replayed. The default of N = 1 ends the match after the first round that is not a
+ * tie. Sides are numbered 0 and 1, and all methods are thread-safe. Resolved rounds can be recorded in a
+ * {@link MatchLog}.
+ */
+public class Match {
+    /**
+     * Returned by {@link #submitMove(int, int)} while the other side has not moved yet.
+     */
+    public static final int PENDING = -2;
+    /**
+     * Returned by {@link #submitMove(int, int)} when the round is a tie.
+     */
+    public static final int TIE = -1;
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    private final Player[] players = {new Player(), new Player()};
+    private final int[] wins = new int[2];
+    private final int winsNeeded;
+    private boolean over;
+    private MatchLog log;
+    private long id;
+    private int firstPlayer;
+    private int secondPlayer;
+    private long roundStartNanos;
+
+    /**
+     * Creates a match that is decided by a single round.
+     */
+    public Match() {
+        this(1);
+    }
+
+    /**
+     * Creates a best-of-N match.
+     *
+     * @param bestOf N, which must be odd so there is always a majority
+     */
+    public Match(int bestOf) {
+        checkBestOf(bestOf);
+        winsNeeded = bestOf / 2 + 1;
+    }
+
+    /**
+     * @param bestOf N for a best-of-N match
+     * @throws IllegalArgumentException if N is not a positive odd number
+     */
+    static void checkBestOf(int bestOf) {
+        if (bestOf < 1 || bestOf % 2 == 0)
+            throw new IllegalArgumentException("Best-of must be a positive odd number: " + bestOf);
+    }
+
+    /**
+     * Records every round resolved from now on in a log. Matches are numbered from 1 in the order they start logging.
+     *
+     * @param log          The log
+     * @param firstPlayer  Id of the player on side 0
+     * @param secondPlayer Id of the player on side 1
+     */
+    public synchronized void setLog(MatchLog log, int firstPlayer, int secondPlayer) {
+        this.log = log;
+        this.id = nextId.getAndIncrement();
+        this.firstPlayer = firstPlayer;
+        this.secondPlayer = secondPlayer;
+        roundStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Records a move for one side, and resolves the round once both sides have moved.
+     *
+     * @param side 0 or 1
+     * @param move 1, 2, or 3
+     * @return {@link #PENDING} if the other side has not moved, {@link #TIE}, or the side that won the round
+     * @throws IllegalArgumentException if the move is not valid
+     * @throws IllegalStateException    if the match is over or the side has already moved this round
+     */
+    public synchronized int submitMove(int side, int move) {
+        if (over)
+            throw new IllegalStateException("Match is over");
+        if (move < 1 || move > 3)
+            throw new IllegalArgumentException("Invalid move: " + move);
+        if (players[side].getMove() != 0)
+            throw new IllegalStateException("Side " + side + " already moved this round");
+        players[side].setMove(move);
+        if (players[1 - side].getMove() == 0)
+            return PENDING;
+        long start = System.nanoTime();
+        Player winner = Player.getWinner(players[0], players[1]);
+        Metrics.ROUNDS.increment();
+        if (log != null)
+            record(winner == null ? Tournament.TIE : winner == players[0] ? Tournament.FIRST : Tournament.SECOND);
+        players[0].setMove(0);
+        players[1].setMove(0);
+        int result = winner == null ? TIE : winner == players[0] ? 0 : 1;
+        if (result != TIE && ++wins[result] == winsNeeded)
+            over = true;
+        Metrics.ROUND_RESOLUTION.recordSince(start);
+        return result;
+    }
+
+    private void record(int outcome) {
+        long now = System.nanoTime();
+        try {
+            log.append(System.currentTimeMillis(), id, firstPlayer, secondPlayer, players[0].getMove(),
+                    players[1].getMove(), outcome, (int) Math.min((now - roundStartNanos) / 1000, Integer.MAX_VALUE));
+        } catch (IOException e) {
+            // A broken log must not stop the game, so this match stops logging
+            System.out.println("Could not log round: " + e.getMessage());
+            log = null;
+        }
+        roundStartNanos = now;
+    }
+
+    /**
+     * @param side 0 or 1
+     * @return Number of rounds the side has won so far
+     */
+    public synchronized int getWins(int side) {
+        return wins[side];
+    }
+
+    /**
+     * Ends the match early, e.g. because one side disconnected.
+     *
+     * @return {@code true} if the match was still in progress
+     */
+    public synchronized boolean forfeit() {
+        boolean wasInProgress = !over;
+        over = true;
+        return wasInProgress;
+    }
+
+    /**
+     * @return {@code true} once a side has won the majority of rounds or the match was forfeited
+     */
+    public synchronized boolean isOver() {
+        return over;
+    }
+
+    /**
+     * Plays a whole match between two seats, blocking the calling thread until a round is won.
+     *
+     * @param first  Side 0
+     * @param second Side 1
+     * @throws SeatException if either seat fails or sends an invalid move
+     */
+    public static void play(Seat first, Seat second) throws IOException {
+        play(first, second, 1);
+    }
+
+    /**
+     * Plays a whole best-of-N match between two seats, blocking the calling thread until it is over. Each seat is told
+     * the result of every round.
+     *
+     * @param first  Side 0
+     * @param second Side 1
+     * @param bestOf N, which must be odd
+     * @throws SeatException if either seat fails or sends an invalid move
+     */
+    public static void play(Seat first, Seat second, int bestOf) throws IOException {
+        play(first, second, new Match(bestOf));
+    }
+
+    /**
+     * Plays a match that has not started yet between two seats, as {@link #play(Seat, Seat, int)}.
+     *
+     * @param first  Side 0
+     * @param second Side 1
+     * @param match  The match, e.g. with a log set
+     * @throws SeatException if either seat fails or sends an invalid move
+     */
+    public static void play(Seat first, Seat second, Match match) throws IOException {
+        Seat[] seats = {first, second};
+        // The seat being talked to, which is to blame if anything goes wrong
+        int side = 0;
+        try {
+            int result;
+            do {
+                side = 0;
+                first.promptMove();
+                side = 1;
+                second.promptMove();
+                side = 0;
+                match.submitMove(0, first.readMove());
+                side = 1;
+                result = match.submitMove(1, second.readMove());
+                if (result == TIE) {
+                    side = 0;
+                    first.sendResult(NetworkPlayer.TIE);
+                    side = 1;
+                    second.sendResult(NetworkPlayer.TIE);
+                } else {
+                    side = result;
+                    seats[result].sendResult(NetworkPlayer.WIN);
+                    side = 1 - result;
+                    seats[1 - result].sendResult(NetworkPlayer.LOSE);
+                }
+            } while (!match.isOver());
+            side = 0;
+            first.end();
+            side = 1;
+            second.end();
+        } catch (IOException | IllegalArgumentException e) {
+            throw new SeatException(side, e);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Append-only binary log of every round played. Rounds are fixed-size records written into memory-mapped segment
+ * files of a fixed capacity, so appending is a handful of stores into the mapping and never a system call. A
+ * background thread commits the records appended since the last commit every few milliseconds with one
+ * {@code force}, then bumps the committed count in the segment header, so readers and crash recovery only ever see
+ * whole, durable records. Full segments are sealed and summarised into a per-player index that
+ * {@link MatchLogReader} answers queries from, also on the background thread, so an append that fills a segment only
+ * maps the next one.
+ * <p>
+ * Segment layout: a header of magic, version, capacity and committed record count (4 bytes each), then
+ * {@link #RECORD_SIZE}-byte records: time (ms), match id, first player, second player, round duration (us), first
+ * move, second move, outcome ({@code Tournament.TIE}, {@code FIRST} or {@code SECOND}) and a pad byte.
+ */
+public class MatchLog implements Closeable {
+    public static final int RECORD_SIZE = 32;
+    public static final int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 10;
+
+    static final int MAGIC = 0x5250534C; // "RPSL"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int COUNT_OFFSET = 12;
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+
+    private final Path dir;
+    private final int segmentRecords;
+    private final ScheduledExecutorService background;
+    private long sequence;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int written;
+    private int committed;
+    private boolean closed;
+
+    /**
+     * Opens a log with the default segment size and commit interval.
+     *
+     * @param dir Directory holding the segments; created if missing
+     * @throws IOException
+     */
+    public MatchLog(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_RECORDS, DEFAULT_COMMIT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens a log, starting a new segment after any that are already in the directory.
+     *
+     * @param dir                  Directory holding the segments; created if missing
+     * @param segmentRecords       Number of records per segment
+     * @param commitIntervalMillis Time between group commits
+     * @throws IOException
+     */
+    public MatchLog(Path dir, int segmentRecords, long commitIntervalMillis) throws IOException {
+        if (segmentRecords < 1)
+            throw new IllegalArgumentException("Segments must hold at least one record");
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        Files.createDirectories(dir);
+        long last = -1;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                long segment = segmentNumber(file, SEGMENT_SUFFIX);
+                last = Math.max(last, segment);
+            }
+        }
+        background = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "match-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        openSegment(last + 1);
+        background.scheduleWithFixedDelay(() -> {
+            try {
+                commit();
+            } catch (IOException e) {
+                System.out.println("Could not commit match log: " + e.getMessage());
+            }
+        }, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The segment number of a segment or index file, or -1 if it is neither
+     */
+    static long segmentNumber(Path file, String suffix) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(suffix))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static Path segmentFile(Path dir, long sequence, String suffix) {
+        return dir.resolve(String.format("%010d%s", sequence, suffix));
+    }
+
+    /**
+     * Appends one round. The record is durable after the next group commit or {@link #flush()}.
+     *
+     * @param timeMillis     When the round was resolved
+     * @param matchId        Match the round belongs to
+     * @param firstPlayer    Player on side 0
+     * @param secondPlayer   Player on side 1
+     * @param firstMove      Side 0's move, 1 to 3
+     * @param secondMove     Side 1's move, 1 to 3
+     * @param outcome        {@code Tournament.TIE}, {@code FIRST} or {@code SECOND}
+     * @param durationMicros Time from the start of the round to its result
+     * @throws IOException if the log is closed or a new segment cannot be created
+     */
+    public synchronized void append(long timeMillis, long matchId, int firstPlayer, int secondPlayer, int firstMove,
+                                    int secondMove, int outcome, int durationMicros) throws IOException {
+        if (closed)
+            throw new IOException("Match log is closed");
+        if (written == segmentRecords) {
+            seal();
+            openSegment(sequence + 1);
+        }
+        int position = HEADER_SIZE + written * RECORD_SIZE;
+        buffer.putLong(position, timeMillis);
+        buffer.putLong(position + 8, matchId);
+        buffer.putInt(position + 16, firstPlayer);
+        buffer.putInt(position + 20, secondPlayer);
+        buffer.putInt(position + 24, durationMicros);
+        buffer.put(position + 28, (byte) firstMove);
+        buffer.put(position + 29, (byte) secondMove);
+        buffer.put(position + 30, (byte) outcome);
+        written++;
+    }
+
+    /**
+     * Commits every round appended so far without waiting for the next group commit. The commit runs on the
+     * background thread, after any segment sealed before it, so those rounds are durable too.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        Future<Void> done;
+        synchronized (this) {
+            if (closed)
+                return; // Closing committed everything
+            done = background.submit(() -> {
+                commit();
+                return null;
+            });
+        }
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while committing the match log");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Forces the records appended since the last commit to disk, then publishes them by updating the header. The
+     * slow {@code force} runs without the lock, so appends carry on meanwhile.
+     */
+    private void commit() throws IOException {
+        MappedByteBuffer segment;
+        int from;
+        int to;
+        synchronized (this) {
+            if (closed || written == committed)
+                return;
+            segment = buffer;
+            from = committed;
+            to = written;
+        }
+        segment.force(HEADER_SIZE + from * RECORD_SIZE, (to - from) * RECORD_SIZE);
+        synchronized (this) {
+            if (segment != buffer || to <= committed)
+                return; // Sealed or committed further in the meantime
+            segment.putInt(COUNT_OFFSET, to);
+            committed = to;
+        }
+        segment.force(0, HEADER_SIZE);
+    }
+
+    private void openSegment(long sequence) throws IOException {
+        this.sequence = sequence;
+        channel = FileChannel.open(segmentFile(dir, sequence, SEGMENT_SUFFIX), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) segmentRecords * RECORD_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, segmentRecords);
+        buffer.putInt(COUNT_OFFSET, 0);
+        buffer.force(0, HEADER_SIZE);
+        written = 0;
+        committed = 0;
+    }
+
+    /**
+     * Hands the full current segment to the background thread, which commits the whole of it, closes it and builds
+     * its index. Flushing a full segment takes a while, and appends come from match threads holding their match's
+     * lock, so they go on into the next segment meanwhile. Until the seal is done, readers scan the segment up to its
+     * last group commit.
+     */
+    private void seal() {
+        MappedByteBuffer segment = buffer;
+        FileChannel sealed = channel;
+        int count = written;
+        Path index = segmentFile(dir, sequence, INDEX_SUFFIX);
+        background.execute(() -> {
+            try {
+                segment.force();
+                segment.putInt(COUNT_OFFSET, count);
+                segment.force(0, HEADER_SIZE);
+                sealed.close();
+                MatchLogReader.writeIndex(index, count, MatchLogReader.summarise(segment, count));
+            } catch (IOException e) {
+                System.out.println("Could not seal match log segment: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Commits and indexes the current segment and stops the background thread.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            seal();
+            closed = true;
+        }
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Answers per-player queries over a {@link MatchLog} directory. Sealed segments have an index file holding each
+ * player's totals for the segment, sorted by player, so a query binary-searches one small file per segment instead of
+ * reading its records. Only segments without an index yet, such as the one being written, are scanned, and only up to
+ * their committed record count.
+ * <p>
+ * Index layout: magic, version, record count and entry count (4 bytes each), then per player its id (4 bytes), and
+ * its wins, losses, ties and the number of times it played each move (8 bytes each). An index of an older version is
+ * ignored and its segment scanned instead.
+ * <p>
+ * Usage: {@code java MatchLogReader dir player}
+ */
+public class MatchLogReader {
+    private static final int INDEX_MAGIC = 0x52505349; // "RPSI"
+    private static final int INDEX_VERSION = 2;
+    private static final int INDEX_HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 4 + 6 * 8;
+
+    private final Path dir;
+
+    /**
+     * A player's results, counted from their side of each round.
+     */
+    public static class PlayerStats {
+        private final long[] counts = new long[6];
+
+        void add(int result, int move) {
+            counts[result]++;
+            counts[2 + move]++;
+        }
+
+        public long getWins() {
+            return counts[0];
+        }
+
+        public long getLosses() {
+            return counts[1];
+        }
+
+        public long getTies() {
+            return counts[2];
+        }
+
+        /**
+         * @param move 1, 2, or 3
+         * @return Number of rounds in which the player chose the move
+         */
+        public long getMoveCount(int move) {
+            return counts[2 + move];
+        }
+
+        public long getRounds() {
+            return counts[0] + counts[1] + counts[2];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rounds: %d won, %d lost, %d tied; %d rock, %d paper, %d scissors", getRounds(),
+                    getWins(), getLosses(), getTies(), getMoveCount(1), getMoveCount(2), getMoveCount(3));
+        }
+    }
+
+    /**
+     * Receives the rounds of a log in the order they were appended.
+     */
+    public interface RoundVisitor {
+        /**
+         * @param timeMillis     When the round was resolved
+         * @param matchId        Match the round belongs to
+         * @param firstPlayer    Player on side 0
+         * @param secondPlayer   Player on side 1
+         * @param firstMove      Side 0's move, 1 to 3
+         * @param secondMove     Side 1's move, 1 to 3
+         * @param outcome        {@code Tournament.TIE}, {@code FIRST} or {@code SECOND}
+         * @param durationMicros Time from the start of the round to its result
+         */
+        void visit(long timeMillis, long matchId, int firstPlayer, int secondPlayer, int firstMove, int secondMove,
+                   int outcome, int durationMicros);
+    }
+
+    /**
+     * @param dir Directory of a match log
+     */
+    public MatchLogReader(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Prints a player's statistics.
+     *
+     * @param args Log directory and player id
+     */
+    public static void main(String[] args) throws IOException {
+        MatchLogReader reader = new MatchLogReader(Paths.get(args[0]));
+        System.out.println(reader.getStats(Integer.parseInt(args[1])));
+    }
+
+    /**
+     * Totals a player's committed rounds across every segment.
+     *
+     * @param player Player id
+     * @return The player's statistics, all zero if they never played
+     * @throws IOException if a segment or index cannot be read or is corrupt
+     */
+    public PlayerStats getStats(int player) throws IOException {
+        PlayerStats stats = new PlayerStats();
+        for (long sequence : segments()) {
+            Path segment = MatchLog.segmentFile(dir, sequence, MatchLog.SEGMENT_SUFFIX);
+            Path index = MatchLog.segmentFile(dir, sequence, MatchLog.INDEX_SUFFIX);
+            if (!lookUp(index, player, stats))
+                scan(segment, player, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return Number of committed rounds in the log
+     * @throws IOException
+     */
+    public long getRoundCount() throws IOException {
+        long rounds = 0;
+        for (long sequence : segments()) {
+            try (FileChannel channel = FileChannel.open(MatchLog.segmentFile(dir, sequence, MatchLog.SEGMENT_SUFFIX),
+                    StandardOpenOption.READ)) {
+                rounds += committedCount(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), sequence);
+            }
+        }
+        return rounds;
+    }
+
+    /**
+     * Visits every committed round, segment by segment.
+     *
+     * @param visitor Receives each round
+     * @throws IOException if a segment cannot be read or is corrupt
+     */
+    public void forEachRound(RoundVisitor visitor) throws IOException {
+        for (long sequence : segments()) {
+            Path segment = MatchLog.segmentFile(dir, sequence, MatchLog.SEGMENT_SUFFIX);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int count = committedCount(buffer, sequence);
+                for (int i = 0; i < count; i++) {
+                    int position = MatchLog.HEADER_SIZE + i * MatchLog.RECORD_SIZE;
+                    visitor.visit(buffer.getLong(position), buffer.getLong(position + 8), buffer.getInt(position + 16),
+                            buffer.getInt(position + 20), buffer.get(position + 28), buffer.get(position + 29),
+                            buffer.get(position + 30), buffer.getInt(position + 24));
+                }
+            }
+        }
+    }
+
+    private TreeSet<Long> segments() throws IOException {
+        TreeSet<Long> segments = new TreeSet<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                long sequence = MatchLog.segmentNumber(file, MatchLog.SEGMENT_SUFFIX);
+                if (sequence >= 0)
+                    segments.add(sequence);
+            }
+        }
+        return segments;
+    }
+
+    private int committedCount(ByteBuffer segment, long sequence) throws IOException {
+        if (segment.capacity() < MatchLog.HEADER_SIZE || segment.getInt(0) != MatchLog.MAGIC
+                || segment.getInt(4) != MatchLog.VERSION)
+            throw new IOException("Match log segment " + sequence + " is corrupt");
+        int count = segment.getInt(MatchLog.COUNT_OFFSET);
+        if (count < 0 || MatchLog.HEADER_SIZE + (long) count * MatchLog.RECORD_SIZE > segment.capacity())
+            throw new IOException("Match log segment " + sequence + " is corrupt");
+        return count;
+    }
+
+    /**
+     * Adds a player's totals from an index file.
+     *
+     * @return {@code false} if there is no index, or it is of an older version
+     */
+    private boolean lookUp(Path index, int player, PlayerStats stats) throws IOException {
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < INDEX_HEADER_SIZE || buffer.getInt(0) != INDEX_MAGIC
+                    || buffer.getInt(4) > INDEX_VERSION)
+                throw new IOException(index + " is corrupt");
+            if (buffer.getInt(4) < INDEX_VERSION)
+                return false;
+            int entries = buffer.getInt(12);
+            if (entries < 0 || INDEX_HEADER_SIZE + (long) entries * INDEX_ENTRY_SIZE > buffer.capacity())
+                throw new IOException(index + " is corrupt");
+            int low = 0;
+            int high = entries - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int position = INDEX_HEADER_SIZE + middle * INDEX_ENTRY_SIZE;
+                int id = buffer.getInt(position);
+                if (id < player) {
+                    low = middle + 1;
+                } else if (id > player) {
+                    high = middle - 1;
+                } else {
+                    for (int i = 0; i < stats.counts.length; i++)
+                        stats.counts[i] += buffer.getLong(position + 4 + i * 8);
+                    break;
+                }
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private void scan(Path segment, int player, PlayerStats stats) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = committedCount(buffer, MatchLog.segmentNumber(segment, MatchLog.SEGMENT_SUFFIX));
+            for (int i = 0; i < count; i++) {
+                int position = MatchLog.HEADER_SIZE + i * MatchLog.RECORD_SIZE;
+                if (buffer.getInt(position + 16) == player)
+                    stats.add(result(buffer.get(position + 30), Tournament.FIRST), buffer.get(position + 28));
+                if (buffer.getInt(position + 20) == player)
+                    stats.add(result(buffer.get(position + 30), Tournament.SECOND), buffer.get(position + 29));
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(segment + " is corrupt", e);
+        }
+    }
+
+    /**
+     * @return 0 for a win, 1 for a loss, 2 for a tie, from the point of view of the given side
+     */
+    private static int result(int outcome, int side) {
+        return outcome == Tournament.TIE ? 2 : outcome == side ? 0 : 1;
+    }
+
+    /**
+     * Totals every player's rounds in a segment.
+     *
+     * @param segment Mapping of the segment
+     * @param count   Number of records in it
+     * @return Each player's statistics, by player id
+     */
+    static Map<Integer, PlayerStats> summarise(ByteBuffer segment, int count) {
+        Map<Integer, PlayerStats> players = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            int position = MatchLog.HEADER_SIZE + i * MatchLog.RECORD_SIZE;
+            int outcome = segment.get(position + 30);
+            players.computeIfAbsent(segment.getInt(position + 16), id -> new PlayerStats())
+                    .add(result(outcome, Tournament.FIRST), segment.get(position + 28));
+            players.computeIfAbsent(segment.getInt(position + 20), id -> new PlayerStats())
+                    .add(result(outcome, Tournament.SECOND), segment.get(position + 29));
+        }
+        return players;
+    }
+
+    /**
+     * Writes an index file atomically, so a reader sees either no index or a complete one.
+     *
+     * @param index   Path of the index file
+     * @param count   Number of records in the segment
+     * @param players Statistics by player id, in ascending order
+     * @throws IOException
+     */
+    static void writeIndex(Path index, int count, Map<Integer, PlayerStats> players) throws IOException {
+        Path temp = Files.createTempFile(index.toAbsolutePath().getParent(), index.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream stream = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(count);
+                out.writeInt(players.size());
+                for (Map.Entry<Integer, PlayerStats> entry : players.entrySet()) {
+                    PlayerStats stats = entry.getValue();
+                    out.writeInt(entry.getKey());
+                    out.writeLong(stats.getWins());
+                    out.writeLong(stats.getLosses());
+                    out.writeLong(stats.getTies());
+                    for (int move = 1; move <= 3; move++)
+                        out.writeLong(stats.getMoveCount(move));
+                }
+            }
+            Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,904 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server that hosts many matches at once. A handful of reactor threads each run a {@code Selector}, and
+ * every connection is driven as an incremental state machine over the same length-prefixed protocol that
+ * {@code NetworkPlayer} speaks. Clients are paired into matches as soon as their handshake completes, so the server
+ * only referees, unless it has a host: then the person at the host's seat plays every client in turn, as
+ * {@code Server} does for one client, and clients may use the commit-reveal protocol. Clients with keep-alive stay
+ * connected after END and go back into the lobby, or back to the host, when they send REMATCH. Each reactor sweeps its
+ * connections a few times per idle timeout, dropping those it has not heard from and sending heartbeats to idle
+ * keep-alive ones. Everything a connection sends in response to one event, such as a result and the next
+ * PROMPT_MOVE, is queued in the connection's one write buffer and written with one write, as a single multi-message
+ * frame if the client agreed to them. Frames are parsed where they lie in the read buffer, so steady play allocates
+ * nothing per frame. While a client is not taking what it has been sent, nothing more is read from it, so a slow
+ * client holds up only itself and its write buffer stays small.
+ * <p>
+ * Each frame a client sends is held to a budget for its stage: a HELLO, a session key under this server's RSA key,
+ * then at most {@link NetworkPlayer#MAX_CLIENT_FRAME_LENGTH} bytes. Frames too big for a connection's read buffer are
+ * reserved in {@link MemoryBudget#FRAMES} before the buffer grows. A client that goes over its rate limit is not read
+ * from until its tokens refill, so it costs its reactor no more than the limit allows.
+ */
+public class MatchServer implements Closeable {
+    private final KeyGenerator keys;
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger nextPlayerId = new AtomicInteger(1);
+    private final Lobby<Connection> lobby = new Lobby<>(this::startMatch);
+    private volatile int bestOf = 1;
+    private volatile MatchLog matchLog;
+    private volatile long idleTimeoutMillis = NetworkPlayer.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private volatile int framesPerSecond = RateLimiter.DEFAULT_FRAMES_PER_SECOND;
+    private volatile int bytesPerSecond = RateLimiter.DEFAULT_FRAMES_PER_SECOND * RateLimiter.BYTES_PER_FRAME;
+    private volatile Host host;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new {@code MatchServer} listening on the given port. Call {@link #start()} to begin serving.
+     *
+     * @param portNumber Port number to listen on, or 0 for any free port
+     * @param threads    Number of reactor threads
+     * @param key        RSA key shared by all connections
+     * @throws IOException
+     */
+    public MatchServer(int portNumber, int threads, RSAKey key) throws IOException {
+        this(portNumber, threads, () -> key);
+    }
+
+    /**
+     * Creates a new {@code MatchServer} that asks the given {@code KeyGenerator} for the RSA key of each new
+     * connection. It is called on a reactor thread, so it should be a {@code KeyManager} or something else that
+     * returns a ready-made key.
+     *
+     * @param portNumber Port number to listen on, or 0 for any free port
+     * @param threads    Number of reactor threads
+     * @param keys       Source of the RSA key for each connection
+     * @throws IOException
+     */
+    public MatchServer(int portNumber, int threads, KeyGenerator keys) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one reactor thread");
+        this.keys = keys;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(portNumber), 1024);
+        serverChannel.configureBlocking(false);
+        reactors = new Reactor[threads];
+        for (int i = 0; i < threads; i++)
+            reactors[i] = new Reactor(i);
+        serverChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts the reactor threads.
+     */
+    public void start() {
+        for (Reactor reactor : reactors)
+            reactor.start();
+    }
+
+    /**
+     * Waits for all reactor threads to finish, i.e. until the server is closed.
+     *
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        for (Reactor reactor : reactors)
+            reactor.join();
+    }
+
+    /**
+     * @return Port the server is listening on
+     */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return Number of currently open client connections
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Stops accepting connections and closes every open connection.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Reactor reactor : reactors)
+            reactor.selector.wakeup();
+        Host current = host;
+        if (current != null)
+            current.console.shutdownNow();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Reactor reactor = reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+            Connection connection = new Connection(channel, reactor);
+            connection.execute(connection::open);
+        }
+    }
+
+    /**
+     * Sets how many rounds each new match is played over.
+     *
+     * @param bestOf N for best-of-N matches, which must be odd
+     */
+    public void setBestOf(int bestOf) {
+        Match.checkBestOf(bestOf);
+        this.bestOf = bestOf;
+    }
+
+    /**
+     * @param idleTimeoutMillis Time without any frame from a client after which it is dropped
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 8 || idleTimeoutMillis > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Idle timeout out of range: " + idleTimeoutMillis);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the rate limit of new connections.
+     *
+     * @param framesPerSecond Frames a second each client may send, or 0 for no limit
+     * @param bytesPerSecond  Bytes a second each client may send
+     */
+    public void setRateLimit(int framesPerSecond, int bytesPerSecond) {
+        if (framesPerSecond < 0 || framesPerSecond > 0 && bytesPerSecond < 1)
+            throw new IllegalArgumentException("Rate limits out of range: " + framesPerSecond + ", " + bytesPerSecond);
+        this.framesPerSecond = framesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Has the person at a seat play every client, one at a time in the order their handshakes complete, instead of
+     * pairing clients with each other. Clients may then use the commit-reveal protocol, which commits to the host's
+     * move before the client's is asked for. The seat is only called on a thread of its own, so it may block, e.g. on
+     * the console. Must be called before {@link #start()}.
+     *
+     * @param seat The host's seat
+     */
+    public void setHost(Seat seat) {
+        host = new Host(seat);
+    }
+
+    /**
+     * Waits until the first client the host played has disconnected, or the host's seat has failed, so that a server
+     * hosting one game knows when it is over.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitFirstClient() throws InterruptedException {
+        Host current = host;
+        if (current == null)
+            throw new IllegalStateException("No host");
+        current.firstClientGone.await();
+    }
+
+    /**
+     * Records the rounds of every new match in a log. Players are identified by connection number, counted from 1 in
+     * the order connections are accepted.
+     *
+     * @param matchLog The log, or {@code null} to stop logging
+     */
+    public void setMatchLog(MatchLog matchLog) {
+        this.matchLog = matchLog;
+    }
+
+    /**
+     * @return Number of connections waiting in the lobby for an opponent
+     */
+    public int getWaitingCount() {
+        return lobby.getWaitingCount();
+    }
+
+    /**
+     * @return Time from a connection joining the lobby to it being paired, in nanoseconds
+     */
+    public Histogram getPairingLatency() {
+        return lobby.getPairingLatency();
+    }
+
+    /**
+     * Starts a match between two connections the lobby paired, or between the host and a client, each on its own
+     * thread.
+     */
+    private void startMatch(Participant partner, Participant participant) {
+        Match match = new Match(bestOf);
+        MatchLog log = matchLog;
+        if (log != null)
+            match.setLog(log, partner.getId(), participant.getId());
+        partner.startMatch(match, 0, participant);
+        participant.startMatch(match, 1, partner);
+    }
+
+    /**
+     * Something to run on a participant's own thread.
+     */
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    /**
+     * One side of a match: a client's connection, or the host. Each is only touched on a thread of its own, a
+     * connection's reactor or the host's console thread.
+     */
+    private interface Participant {
+        /**
+         * @return Number identifying the player in the match log
+         */
+        int getId();
+
+        /**
+         * @return Side in the current match
+         */
+        int getSide();
+
+        /**
+         * Runs an action on the participant's own thread.
+         */
+        void execute(Action action);
+
+        /**
+         * Starts a match on the participant's own thread. May be called on any thread.
+         */
+        void startMatch(Match match, int side, Participant opponent);
+
+        /**
+         * Tells the participant how a round went. Called on its own thread.
+         *
+         * @param result {@link Match#TIE} or the side that won
+         * @param over   {@code true} if that was the last round
+         */
+        void sendResult(int result, boolean over) throws IOException;
+    }
+
+    /**
+     * The person at the host's seat, who plays every client in turn. The seat is only called on the host's console
+     * thread, so waiting for the host's move never holds up a reactor.
+     */
+    private class Host implements Participant {
+        private final Seat seat;
+        private final ExecutorService console = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "match-host");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final CountDownLatch firstClientGone = new CountDownLatch(1);
+        private final Queue<Connection> waiting = new ArrayDeque<>();
+        private Connection firstClient;
+        private Match match;
+        private int side;
+        private Connection opponent;
+
+        Host(Seat seat) {
+            this.seat = seat;
+        }
+
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public int getSide() {
+            return side;
+        }
+
+        @Override
+        public void execute(Action action) {
+            try {
+                console.execute(() -> {
+                    try {
+                        action.run();
+                    } catch (IOException | RuntimeException e) {
+                        fail(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The server is closed
+            }
+        }
+
+        /**
+         * Queues a client that has finished its handshake or asked for a rematch. Called on its reactor.
+         */
+        void offer(Connection connection) {
+            execute(() -> {
+                if (firstClient == null)
+                    firstClient = connection;
+                waiting.add(connection);
+                playNext();
+            });
+        }
+
+        /**
+         * Forgets a client that disconnected. Called on its reactor.
+         */
+        void leave(Connection connection) {
+            execute(() -> {
+                waiting.remove(connection);
+                if (connection == firstClient)
+                    firstClientGone.countDown();
+            });
+        }
+
+        private void playNext() {
+            Connection next = match == null ? waiting.poll() : null;
+            if (next != null)
+                MatchServer.this.startMatch(this, next);
+        }
+
+        @Override
+        public void startMatch(Match match, int side, Participant opponent) {
+            execute(() -> {
+                this.match = match;
+                this.side = side;
+                this.opponent = (Connection) opponent;
+                System.out.println("Connected!");
+                playRound();
+            });
+        }
+
+        /**
+         * Reads the host's move for the next round and submits it. With commit-reveal the client is then sent the
+         * commitment to it, which is what asks for the client's move.
+         */
+        private void playRound() throws IOException {
+            Match current = match;
+            if (current == null || current.isOver())
+                return;
+            seat.promptMove();
+            int move = seat.readMove();
+            int result;
+            try {
+                result = current.submitMove(side, move);
+            } catch (IllegalStateException e) {
+                // The client forfeited while the host was choosing, and that result is already on its way
+                return;
+            }
+            Connection other = opponent;
+            if (other.protocol == NetworkPlayer.PROTOCOL_COMMIT_REVEAL)
+                other.execute(() -> other.commit(move));
+            if (result == Match.PENDING)
+                return;
+            boolean over = current.isOver();
+            other.execute(() -> other.sendResult(result, over));
+            sendResult(result, over);
+        }
+
+        @Override
+        public void sendResult(int result, boolean over) throws IOException {
+            seat.sendResult(result == Match.TIE ? NetworkPlayer.TIE
+                    : result == side ? NetworkPlayer.WIN : NetworkPlayer.LOSE);
+            if (!over) {
+                // Queued rather than called, so a long match does not grow the stack
+                execute(this::playRound);
+                return;
+            }
+            seat.end();
+            if (opponent.keepAlive)
+                System.out.println("Waiting to see if the client wants a rematch...");
+            match = null;
+            opponent = null;
+            playNext();
+        }
+
+        /**
+         * The seat failed, so the host's match is forfeited and the server closed.
+         */
+        private void fail(Exception e) {
+            e.printStackTrace();
+            if (match != null && match.forfeit()) {
+                Connection other = opponent;
+                other.execute(() -> other.sendResult(other.side, true));
+            }
+            firstClientGone.countDown();
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * One selector thread. Everything that touches a connection runs on that connection's reactor.
+     */
+    private class Reactor extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Connection> throttled = new ArrayList<>();
+        private long lastSweepNanos = System.nanoTime();
+
+        Reactor(int id) throws IOException {
+            super("match-reactor-" + id);
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            if (Thread.currentThread() == this) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    long sweepInterval = idleTimeoutMillis / 8;
+                    selector.select(selectTimeout(sweepInterval));
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey selected = it.next();
+                        it.remove();
+                        if (!selected.isValid())
+                            continue;
+                        if (selected.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) selected.attachment();
+                        try {
+                            connection.handle(selected);
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    long now = System.nanoTime();
+                    if (!throttled.isEmpty())
+                        resumeThrottled(now);
+                    if (now - lastSweepNanos >= sweepInterval * 1_000_000L) {
+                        lastSweepNanos = now;
+                        sweep(now);
+                    }
+                } catch (IOException e) {
+                    if (running)
+                        e.printStackTrace();
+                }
+            }
+            for (SelectionKey registered : selector.keys())
+                if (registered.attachment() instanceof Connection)
+                    ((Connection) registered.attachment()).close();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * @return How long to select for: until the next sweep, or sooner if a throttled connection resumes first
+         */
+        private long selectTimeout(long sweepInterval) {
+            long timeout = sweepInterval;
+            long now = System.nanoTime();
+            for (Connection connection : throttled)
+                timeout = Math.min(timeout, Math.max(1, (connection.resumeNanos - now + 999_999) / 1_000_000));
+            return timeout;
+        }
+
+        /**
+         * Starts reading again from every throttled connection whose wait is over.
+         */
+        private void resumeThrottled(long now) {
+            List<Connection> due = new ArrayList<>();
+            for (Iterator<Connection> it = throttled.iterator(); it.hasNext(); ) {
+                Connection connection = it.next();
+                if (connection.closed || now - connection.resumeNanos >= 0) {
+                    it.remove();
+                    due.add(connection);
+                }
+            }
+            // Resuming can throttle a connection again, so only once the list is no longer being walked
+            for (Connection connection : due)
+                connection.execute(connection::resume);
+        }
+
+        private void sweep(long now) {
+            for (SelectionKey registered : selector.keys()) {
+                if (registered.attachment() instanceof Connection) {
+                    Connection connection = (Connection) registered.attachment();
+                    connection.execute(() -> connection.checkIdle(now));
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection protocol state machine. The first frame is a plain {@code [int length][HELLO]}. Before the
+     * session key arrives a frame is {@code [int blockWidth][int length][OAEP block]}; afterwards it is
+     * {@code [int length][AES-GCM messages]}.
+     */
+    private class Connection implements Participant {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private final int id = nextPlayerId.getAndIncrement();
+        private final byte[] message = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+        private final FrameDecoder decoder = new FrameDecoder();
+        private byte[] inbound = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+        private final FrameChannel frames;
+        private final RateLimiter limiter;
+        private long resumeNanos;
+        private SelectionKey selectionKey;
+        private RSAKey key;
+        private RSABlockCipher cipher;
+        private int protocol;
+        private SessionCipher session;
+        private Match match;
+        private int side;
+        private Participant opponent;
+        private Commitment commitment;
+        private boolean committed;
+        private boolean keepAlive;
+        private boolean batchFrames;
+        private long lastReadNanos = System.nanoTime();
+        private long lastWriteNanos = lastReadNanos;
+        private long partialSinceNanos;
+        private boolean closeAfterFlush;
+        private boolean closed;
+
+        Connection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+            this.frames = new FrameChannel(channel);
+            int frames = framesPerSecond;
+            limiter = frames > 0 ? new RateLimiter(frames, bytesPerSecond) : null;
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public int getSide() {
+            return side;
+        }
+
+        @Override
+        public void execute(Action action) {
+            reactor.execute(() -> {
+                try {
+                    if (!closed)
+                        action.run();
+                } catch (IOException | RuntimeException e) {
+                    close();
+                }
+            });
+        }
+
+        void open() throws IOException {
+            activeConnections.incrementAndGet();
+            Metrics.CONNECTIONS.increment();
+            selectionKey = channel.register(reactor.selector, SelectionKey.OP_READ, this);
+        }
+
+        void handle(SelectionKey selected) throws IOException {
+            if (selected.isReadable())
+                read();
+            if (!closed && selected.isValid() && selected.isWritable())
+                flush();
+        }
+
+        private void read() throws IOException {
+            if (frames.read() < 0) {
+                close();
+                return;
+            }
+            lastReadNanos = System.nanoTime();
+            parseFrames();
+        }
+
+        /**
+         * Handles every complete frame in the read buffer, unless the rate limit stops it first, then flushes what they
+         * queued.
+         */
+        private void parseFrames() throws IOException {
+            frames.beginParse();
+            while (!closed && resumeNanos == 0 && parseFrame())
+                ;
+            // Bytes held back by the rate limit are this side's doing, so they do not count against the frame timeout
+            if (!frames.endParse() || resumeNanos != 0)
+                partialSinceNanos = 0;
+            else if (partialSinceNanos == 0)
+                partialSinceNanos = System.nanoTime();
+            if (!closed)
+                flush();
+        }
+
+        /**
+         * Reads again from a connection that was throttled, starting with the frames already in its buffer.
+         */
+        void resume() throws IOException {
+            resumeNanos = 0;
+            parseFrames();
+        }
+
+        /**
+         * Stops reading until the rate limiter has tokens for the next frame.
+         */
+        private void throttle(long waitNanos) {
+            Metrics.RATE_LIMITED.increment();
+            resumeNanos = System.nanoTime() + waitNanos;
+            reactor.throttled.add(this);
+        }
+
+        /**
+         * Handles one complete frame from the read buffer if there is one. The header is checked against the budget
+         * for this stage of the connection as soon as it arrives, before the rest of the frame is waited for.
+         *
+         * @return {@code true} if a frame was consumed
+         */
+        private boolean parseFrame() throws IOException {
+            int blockWidth = protocol != 0 && session == null ? cipher.getBlockWidth() : 0;
+            int maxLength = protocol == 0 ? NetworkPlayer.MAX_HELLO_LENGTH
+                    : session == null ? cipher.getBlockWidth()
+                    : NetworkPlayer.MAX_CLIENT_FRAME_LENGTH;
+            if (!frames.hasFrame(blockWidth, maxLength))
+                return false;
+            if (limiter != null) {
+                long wait = limiter.acquire(frames.getFrameSize(), System.nanoTime());
+                if (wait > 0) {
+                    throttle(wait);
+                    return false;
+                }
+            }
+            partialSinceNanos = 0;
+            frames.consumeFrame();
+            onFrame(frames.getBuffer(), frames.getFrameOffset(), frames.getFrameLength());
+            return true;
+        }
+
+        private void onFrame(byte[] data, int offset, int length) throws IOException {
+            if (protocol == 0) {
+                // The client asks for the newest version it knows; answer with the newest version both sides know. Only
+                // a host has a move of its own to commit to.
+                int version = Math.min(NetworkPlayer.decodeHello(data, offset, length),
+                        host != null ? NetworkPlayer.PROTOCOL_COMMIT_REVEAL : NetworkPlayer.PROTOCOL_BINARY);
+                if (!NetworkPlayer.isSupportedProtocol(version))
+                    throw new IOException("Expected HELLO with a supported protocol version");
+                protocol = version;
+                int flags = NetworkPlayer.decodeHelloFlags(data, offset, length);
+                keepAlive = (flags & NetworkPlayer.FLAG_KEEP_ALIVE) != 0 && version != NetworkPlayer.PROTOCOL_TEXT;
+                batchFrames = (flags & NetworkPlayer.FLAG_BATCH_FRAMES) != 0 && version != NetworkPlayer.PROTOCOL_TEXT;
+                frames.setBatchFrames(batchFrames);
+                key = keys.generateKey();
+                cipher = new RSABlockCipher(key);
+                send(message, 0, NetworkPlayer.encodeHello(message, 0, version,
+                        (keepAlive ? NetworkPlayer.FLAG_KEEP_ALIVE : 0)
+                                | (batchFrames ? NetworkPlayer.FLAG_BATCH_FRAMES : 0)));
+                byte[] publicKey = NetworkPlayer.encodeNumber(protocol, NetworkPlayer.KEY, key.getPublicKey());
+                send(publicKey, 0, publicKey.length);
+                byte[] modulus = NetworkPlayer.encodeNumber(protocol, NetworkPlayer.MOD, key.getModulus());
+                send(modulus, 0, modulus.length);
+                return;
+            }
+            if (session == null) {
+                try {
+                    long start = System.nanoTime();
+                    byte[] sessionKey = cipher.unwrap(data, offset, length, "AES").getEncoded();
+                    Metrics.RSA_DECRYPT.recordSince(start);
+                    session = new SessionCipher(sessionKey, false);
+                    frames.setSession(session);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid session key", e);
+                }
+                join();
+                return;
+            }
+            if (length <= SessionCipher.OVERHEAD)
+                throw new FrameException("Unexpected frame length: " + length);
+            if (inbound.length < length - SessionCipher.OVERHEAD)
+                inbound = new byte[length - SessionCipher.OVERHEAD];
+            int plainLength = session.decrypt(data, offset, length, inbound, 0);
+            decoder.reset(protocol, inbound, 0, plainLength);
+            while (!closed && decoder.hasNext()) {
+                int opcode = decoder.next();
+                onMessage(opcode, inbound, decoder.getOffset(), decoder.getLength());
+            }
+        }
+
+        private void onMessage(int opcode, byte[] data, int offset, int length) throws IOException {
+            if (opcode == NetworkPlayer.HEARTBEAT)
+                return;
+            if (opcode == NetworkPlayer.REMATCH && keepAlive && match != null && match.isOver()) {
+                match = null;
+                opponent = null;
+                join();
+                return;
+            }
+            if (match == null || opcode != NetworkPlayer.MOVE)
+                throw new IOException("Unexpected message with opcode " + opcode);
+            if (protocol == NetworkPlayer.PROTOCOL_COMMIT_REVEAL && !committed)
+                throw new IOException("MOVE before COMMIT");
+            int result = match.submitMove(side, NetworkPlayer.decodeMove(protocol, data, offset, length));
+            if (result == Match.PENDING)
+                return;
+            boolean over = match.isOver();
+            sendResult(result, over);
+            Participant other = opponent;
+            other.execute(() -> other.sendResult(result, over));
+        }
+
+        /**
+         * Waits for an opponent: the host if there is one, otherwise whoever the lobby pairs this client with.
+         */
+        private void join() {
+            Host current = host;
+            if (current != null)
+                current.offer(this);
+            else
+                lobby.join(this);
+        }
+
+        @Override
+        public void startMatch(Match match, int side, Participant opponent) {
+            reactor.execute(() -> begin(match, side, opponent));
+        }
+
+        private void begin(Match match, int side, Participant opponent) {
+            this.match = match;
+            this.side = side;
+            this.opponent = opponent;
+            if (closed) {
+                // Disconnected between pairing and now, so the opponent wins by forfeit
+                if (match.forfeit())
+                    opponent.execute(() -> opponent.sendResult(opponent.getSide(), true));
+                return;
+            }
+            // With commit-reveal the host's COMMIT asks for the move instead
+            if (protocol == NetworkPlayer.PROTOCOL_COMMIT_REVEAL)
+                return;
+            try {
+                send(NetworkPlayer.PROMPT_MOVE);
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Commits to the host's move for this round, which asks a commit-reveal client for its move.
+         *
+         * @param move The host's move
+         */
+        void commit(int move) throws IOException {
+            if (commitment == null)
+                commitment = new Commitment();
+            committed = true;
+            send(message, 0, NetworkPlayer.encodeCommit(protocol, message, 0, commitment.commit(move)));
+            flush();
+        }
+
+        @Override
+        public void sendResult(int result, boolean over) throws IOException {
+            if (committed) {
+                send(message, 0, NetworkPlayer.encodeReveal(protocol, message, 0, commitment.getMove(),
+                        commitment.getNonce()));
+                committed = false;
+            }
+            if (result == Match.TIE)
+                send(NetworkPlayer.TIE);
+            else
+                send(result == side ? NetworkPlayer.WIN : NetworkPlayer.LOSE);
+            if (!over) {
+                if (protocol != NetworkPlayer.PROTOCOL_COMMIT_REVEAL)
+                    send(NetworkPlayer.PROMPT_MOVE);
+            } else {
+                send(NetworkPlayer.END);
+                closeAfterFlush = !keepAlive; // With keep-alive it stays open for a REMATCH
+            }
+            flush();
+        }
+
+        /**
+         * Drops the connection if nothing has been read from it for the idle timeout or it has been part way through
+         * a frame for longer than {@link NetworkPlayer#DEFAULT_FRAME_TIMEOUT_MILLIS} while not throttled, and otherwise
+         * sends a heartbeat if it has keep-alive, nothing has been sent for a quarter of that and nothing is waiting to
+         * be written.
+         */
+        void checkIdle(long now) throws IOException {
+            long idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+            long frameTimeoutNanos = NetworkPlayer.DEFAULT_FRAME_TIMEOUT_MILLIS * 1_000_000L;
+            if (resumeNanos == 0 && partialSinceNanos != 0 && now - partialSinceNanos > frameTimeoutNanos) {
+                Metrics.FRAMES_REJECTED.increment();
+                close();
+            } else if (now - lastReadNanos > idleTimeoutNanos)
+                close();
+            else if (keepAlive && session != null && !frames.hasUnwritten()
+                    && now - lastWriteNanos > idleTimeoutNanos / 4) {
+                send(NetworkPlayer.HEARTBEAT);
+                flush();
+            }
+        }
+
+        private void send(int opcode) throws IOException {
+            send(message, 0, NetworkPlayer.encodeMessage(protocol, message, 0, opcode, 0));
+        }
+
+        /**
+         * Queues a message, as {@link FrameChannel#send(byte[], int, int)}. Nothing is written until {@link #flush()}.
+         */
+        private void send(byte[] data, int offset, int length) throws IOException {
+            lastWriteNanos = System.nanoTime();
+            frames.send(data, offset, length);
+        }
+
+        /**
+         * Writes as much of what has been queued as the socket takes, and stops reading while the rest waits.
+         */
+        private void flush() throws IOException {
+            if (!frames.flush()) {
+                // Stop reading until the client takes what it has been sent, so it cannot make the buffer grow
+                if ((selectionKey.interestOps() & SelectionKey.OP_READ) != 0)
+                    Metrics.READ_PAUSES.increment();
+                selectionKey.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                // A throttled connection stays unread until its reactor resumes it
+                selectionKey.interestOps(resumeNanos == 0 ? SelectionKey.OP_READ : 0);
+                if (closeAfterFlush)
+                    close();
+            }
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            frames.close();
+            if (selectionKey != null) {
+                selectionKey.cancel();
+                activeConnections.decrementAndGet();
+                Metrics.CONNECTIONS.decrement();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            Host current = host;
+            if (current != null)
+                current.leave(this);
+            else
+                lobby.leave(this);
+            // The opponent wins by forfeit
+            if (match != null && match.forfeit()) {
+                Participant other = opponent;
+                other.execute(() -> other.sendResult(other.getSide(), true));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide budget for the memory held by large frames. A connection reserves a frame's length as soon as it has
+ * read the frame's header, before allocating anything for it, and releases it once it drops the buffer holding the
+ * frame, after the frame has been handled; if the budget is spent the frame is rejected straight away. However many
+ * peers announce large frames and then send them slowly, together they cannot hold more than the budget. Frames that
+ * fit in a connection's standing read buffer are not counted, since they need no memory beyond the connection itself.
+ */
+public class MemoryBudget {
+    /**
+     * Limit of {@link #FRAMES} unless {@link #setLimit(long)} says otherwise.
+     */
+    public static final long DEFAULT_FRAME_LIMIT = 64L << 20;
+    /**
+     * The budget shared by every connection in the process.
+     */
+    public static final MemoryBudget FRAMES = new MemoryBudget(DEFAULT_FRAME_LIMIT);
+
+    private final AtomicLong reserved = new AtomicLong();
+    private volatile long limit;
+
+    /**
+     * @param limit Most bytes that can be reserved at once
+     */
+    public MemoryBudget(long limit) {
+        setLimit(limit);
+    }
+
+    /**
+     * Reserves memory if the budget has room for it.
+     *
+     * @param bytes Bytes to reserve
+     * @return {@code true} if reserved, {@code false} if that would go over the limit
+     */
+    public boolean tryReserve(long bytes) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + bytes > limit)
+                return false;
+        } while (!reserved.compareAndSet(current, current + bytes));
+        Metrics.FRAME_MEMORY.add(bytes);
+        return true;
+    }
+
+    /**
+     * @param bytes Bytes reserved earlier with {@link #tryReserve(long)}
+     */
+    public void release(long bytes) {
+        reserved.addAndGet(-bytes);
+        Metrics.FRAME_MEMORY.add(-bytes);
+    }
+
+    /**
+     * @return Bytes reserved right now
+     */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * @return Most bytes that can be reserved at once
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit Most bytes that can be reserved at once; lowering it does not take back memory already reserved
+     */
+    public void setLimit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Negative memory budget");
+        this.limit = limit;
+    }
+}
@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Transport} between two threads of the same JVM, for bots and test harnesses that run next to the server.
+ * Each direction is a fixed-size ring buffer in the heap: a write copies straight from the writer's buffer into the
+ * ring and a read copies straight out of it, with no system call, socket buffer or kernel copy in between. Listeners
+ * are registered by name, as {@code mem://name}.
+ */
+public class MemoryTransport implements Transport {
+    /**
+     * Capacity of each direction's ring buffer.
+     */
+    public static final int RING_SIZE = 64 * 1024;
+
+    private static final Map<String, Listener> LISTENERS = new ConcurrentHashMap<>();
+
+    private final Ring incoming;
+    private final Ring outgoing;
+    private final InputStream in = new In();
+    private final OutputStream out = new Out();
+    private volatile int readTimeoutMillis;
+
+    private MemoryTransport(Ring incoming, Ring outgoing) {
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+    }
+
+    /**
+     * @return The listener name of a {@code mem:} URI
+     */
+    static String name(URI uri) {
+        String name = uri.getAuthority() != null ? uri.getAuthority() : uri.getSchemeSpecificPart();
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("Expected mem://name, got " + uri);
+        return name;
+    }
+
+    /**
+     * Connects to the listener registered under a name.
+     *
+     * @param name Listener name
+     * @return The client side of the new transport
+     * @throws ConnectException if there is no such listener
+     */
+    public static MemoryTransport connect(String name) throws IOException {
+        Listener listener = LISTENERS.get(name);
+        if (listener == null)
+            throw new ConnectException("Connection refused: mem://" + name);
+        Ring toServer = new Ring(RING_SIZE);
+        Ring toClient = new Ring(RING_SIZE);
+        listener.offer(new MemoryTransport(toServer, toClient));
+        return new MemoryTransport(toClient, toServer);
+    }
+
+    /**
+     * Registers a listener under a name.
+     *
+     * @param name Listener name
+     * @return The listener
+     * @throws BindException if the name is taken
+     */
+    public static Listener listen(String name) throws IOException {
+        Listener listener = new Listener(name);
+        if (LISTENERS.putIfAbsent(name, listener) != null)
+            throw new BindException("Address already in use: mem://" + name);
+        return listener;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void setReadTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Negative timeout: " + millis);
+        readTimeoutMillis = millis;
+    }
+
+    /**
+     * The other side reads what is left and then the end of the stream; its writes fail.
+     */
+    @Override
+    public void close() {
+        outgoing.closeWriter();
+        incoming.closeReader();
+    }
+
+    private class In extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return incoming.read(b, off, len, readTimeoutMillis);
+        }
+
+        @Override
+        public int available() {
+            return incoming.available();
+        }
+    }
+
+    private class Out extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            outgoing.write(b, off, len);
+        }
+    }
+
+    /**
+     * Single-producer, single-consumer byte ring. Positions only grow; the index into the buffer is the position
+     * masked by the capacity, which is a power of two.
+     */
+    private static class Ring {
+        private final byte[] buffer;
+        private final int mask;
+        private long readPosition;
+        private long writePosition;
+        private boolean readerClosed;
+        private boolean writerClosed;
+        private boolean readerWaiting;
+        private boolean writerWaiting;
+
+        Ring(int capacity) {
+            buffer = new byte[capacity];
+            mask = capacity - 1;
+        }
+
+        synchronized int available() {
+            return (int) (writePosition - readPosition);
+        }
+
+        synchronized int read(byte[] b, int off, int len, int timeoutMillis) throws IOException {
+            if (len == 0)
+                return 0;
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (writePosition == readPosition) {
+                if (readerClosed)
+                    throw new SocketException("Socket closed");
+                if (writerClosed)
+                    return -1;
+                long remaining = timeoutMillis == 0 ? 0 : deadline - System.currentTimeMillis();
+                if (timeoutMillis != 0 && remaining <= 0)
+                    throw new SocketTimeoutException("Read timed out");
+                readerWaiting = true;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SocketException("Interrupted");
+                } finally {
+                    readerWaiting = false;
+                }
+            }
+            int count = (int) Math.min(len, writePosition - readPosition);
+            int index = (int) readPosition & mask;
+            int first = Math.min(count, buffer.length - index);
+            System.arraycopy(buffer, index, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, count - first);
+            readPosition += count;
+            if (writerWaiting)
+                notifyAll();
+            return count;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (writerClosed)
+                    throw new SocketException("Socket closed");
+                if (readerClosed)
+                    throw new SocketException("Broken pipe");
+                int free = buffer.length - (int) (writePosition - readPosition);
+                if (free == 0) {
+                    writerWaiting = true;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SocketException("Interrupted");
+                    } finally {
+                        writerWaiting = false;
+                    }
+                    continue;
+                }
+                int count = Math.min(len, free);
+                int index = (int) writePosition & mask;
+                int first = Math.min(count, buffer.length - index);
+                System.arraycopy(b, off, buffer, index, first);
+                System.arraycopy(b, off + first, buffer, 0, count - first);
+                writePosition += count;
+                off += count;
+                len -= count;
+                if (readerWaiting)
+                    notifyAll();
+            }
+        }
+
+        synchronized void closeReader() {
+            readerClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeWriter() {
+            writerClosed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Accepts in-process clients under a name.
+     */
+    public static class Listener implements Transport.Listener {
+        private final String name;
+        private final ArrayDeque<MemoryTransport> pending = new ArrayDeque<>();
+        private boolean closed;
+
+        private Listener(String name) {
+            this.name = name;
+        }
+
+        private synchronized void offer(MemoryTransport transport) throws IOException {
+            if (closed)
+                throw new ConnectException("Connection refused: mem://" + name);
+            pending.add(transport);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Transport accept() throws IOException {
+            while (pending.isEmpty()) {
+                if (closed)
+                    throw new SocketException("Listener closed");
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SocketException("Interrupted");
+                }
+            }
+            return pending.poll();
+        }
+
+        @Override
+        public URI getAddress() {
+            return URI.create("mem://" + name);
+        }
+
+        /**
+         * Unregisters the name and refuses clients that have not been accepted yet.
+         */
+        @Override
+        public void close() {
+            LISTENERS.remove(name, this);
+            synchronized (this) {
+                closed = true;
+                for (MemoryTransport transport : pending)
+                    transport.close();
+                pending.clear();
+                notifyAll();
+            }
+        }
+    }
+}
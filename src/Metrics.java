@@ -0,0 +1,373 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms for the network, crypto and game paths. Recording
+ * is a striped {@code LongAdder} add or a {@link Histogram#record(long)}, so it is cheap enough for every frame. The
+ * metrics can be read over JMX with {@link #registerMBean()} and in the Prometheus text format with
+ * {@link #startHttpServer(int)}.
+ */
+public final class Metrics {
+    /**
+     * Names every metric starts with.
+     */
+    public static final String PREFIX = "rps_";
+
+    private static final Map<String, Metric> registry = new ConcurrentSkipListMap<>();
+
+    public static final Counter BYTES_IN = counter("bytes_received_total",
+            "Bytes read from peers, including frame headers");
+    public static final Counter BYTES_OUT = counter("bytes_sent_total",
+            "Bytes written to peers, including frame headers");
+    public static final Counter FRAMES_IN = counter("frames_received_total", "Frames read from peers");
+    public static final Counter FRAMES_OUT = counter("frames_sent_total", "Frames written to peers");
+    public static final Counter FLUSHES = counter("flushes_total",
+            "Writes handed to the transport, each one or more packets");
+    public static final Counter READ_PAUSES = counter("read_pauses_total",
+            "Times a connection stopped reading until its consumer caught up");
+    public static final Counter FRAMES_REJECTED = counter("frames_rejected_total",
+            "Frames refused for their length, their block width, taking too long or the frame memory budget");
+    public static final Counter RATE_LIMITED = counter("rate_limited_total",
+            "Times a connection was held back for going over its rate limit");
+    public static final Counter ROUNDS = counter("rounds_total", "Rounds resolved by Match");
+    public static final Gauge CONNECTIONS = gauge("connections_active", "Open client connections on match servers");
+    public static final Gauge FRAME_MEMORY = gauge("frame_memory_bytes",
+            "Bytes reserved in the frame memory budget for large frames being read or parsed");
+    public static final Gauge TIME_TO_FIRST_ACCEPT = gauge("time_to_first_accept_milliseconds",
+            "Time from the start of the JVM until the server was ready to accept its first client");
+    public static final Timer RSA_ENCRYPT = timer("rsa_encrypt_seconds", "Time to RSA-encrypt a frame");
+    public static final Timer RSA_DECRYPT = timer("rsa_decrypt_seconds", "Time to RSA-decrypt a frame");
+    public static final Timer KEY_GENERATION = timer("key_generation_seconds", "Time to generate an RSA key");
+    public static final Timer SESSION_ENCRYPT = timer("session_encrypt_seconds",
+            "Time to AES-GCM-encrypt a frame with a session key");
+    public static final Timer SESSION_DECRYPT = timer("session_decrypt_seconds",
+            "Time to AES-GCM-decrypt a frame with a session key");
+    public static final Timer FRAMING = timer("framing_seconds",
+            "Time to write a frame to a stream, or to flush a stream to its transport");
+    public static final Timer ROUND_RESOLUTION = timer("round_resolution_seconds",
+            "Time to resolve a round once both moves are in, including logging it");
+
+    private Metrics() {
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = PREFIX + name;
+            this.help = help;
+        }
+
+        abstract void writePrometheus(StringBuilder out);
+
+        abstract void addAttributes(List<MBeanAttributeInfo> info, Map<String, Object> values);
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        void writePrometheus(StringBuilder out) {
+            header(out, this, "counter");
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        void addAttributes(List<MBeanAttributeInfo> info, Map<String, Object> values) {
+            attribute(info, values, name, help, get());
+        }
+    }
+
+    /**
+     * A value that goes up and down.
+     */
+    public static final class Gauge extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        private Gauge(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void decrement() {
+            value.decrement();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        /**
+         * Sets the value. This is not atomic with concurrent adds, so it is meant for gauges that are only ever set.
+         *
+         * @param newValue The new value
+         */
+        public synchronized void set(long newValue) {
+            value.add(newValue - value.sum());
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        void writePrometheus(StringBuilder out) {
+            header(out, this, "gauge");
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        void addAttributes(List<MBeanAttributeInfo> info, Map<String, Object> values) {
+            attribute(info, values, name, help, get());
+        }
+    }
+
+    /**
+     * Durations recorded in nanoseconds and reported in seconds.
+     */
+    public static final class Timer extends Metric {
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final Histogram histogram = new Histogram();
+
+        private Timer(String name, String help) {
+            super(name, help);
+        }
+
+        /**
+         * @param startNanos When the timed operation started, from {@code System.nanoTime()}
+         */
+        public void recordSince(long startNanos) {
+            histogram.record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        public Histogram getHistogram() {
+            return histogram;
+        }
+
+        @Override
+        void writePrometheus(StringBuilder out) {
+            header(out, this, "summary");
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+            out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+
+        @Override
+        void addAttributes(List<MBeanAttributeInfo> info, Map<String, Object> values) {
+            attribute(info, values, name + "_count", help + ", number recorded", histogram.getCount());
+            attribute(info, values, name + "_mean", help + ", mean", histogram.getMean() / 1e9);
+            attribute(info, values, name + "_p50", help + ", median", histogram.getValueAtPercentile(50) / 1e9);
+            attribute(info, values, name + "_p99", help + ", 99th percentile",
+                    histogram.getValueAtPercentile(99) / 1e9);
+            attribute(info, values, name + "_max", help + ", maximum", histogram.getMax() / 1e9);
+        }
+
+        private static String seconds(long nanos) {
+            return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+        }
+    }
+
+    /**
+     * Registers a counter.
+     *
+     * @param name Name without {@link #PREFIX}
+     * @param help Description shown by Prometheus and JMX
+     * @return The counter
+     * @throws IllegalArgumentException if the name is taken
+     */
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    /**
+     * Registers a gauge, as {@link #counter(String, String)}.
+     */
+    public static Gauge gauge(String name, String help) {
+        return register(new Gauge(name, help));
+    }
+
+    /**
+     * Registers a timer, as {@link #counter(String, String)}. The name should end in {@code _seconds}.
+     */
+    public static Timer timer(String name, String help) {
+        return register(new Timer(name, help));
+    }
+
+    private static <M extends Metric> M register(M metric) {
+        if (registry.putIfAbsent(metric.name, metric) != null)
+            throw new IllegalArgumentException("Metric already registered: " + metric.name);
+        return metric;
+    }
+
+    private static void header(StringBuilder out, Metric metric, String type) {
+        out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+        out.append("# TYPE ").append(metric.name).append(' ').append(type).append('\n');
+    }
+
+    private static void attribute(List<MBeanAttributeInfo> info, Map<String, Object> values, String name, String help,
+                                  Object value) {
+        info.add(new MBeanAttributeInfo(name, value.getClass().getName(), help, true, false, false));
+        values.put(name, value);
+    }
+
+    /**
+     * @return Every metric in the Prometheus text exposition format
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : registry.values())
+            metric.writePrometheus(out);
+        return out.toString();
+    }
+
+    /**
+     * Registers every metric as a read-only attribute of the {@code EncryptedRockPaperScissors:type=Metrics} MBean.
+     *
+     * @throws JMException if the MBean cannot be registered, e.g. because it already is
+     */
+    public static void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                new ObjectName("EncryptedRockPaperScissors:type=Metrics"));
+    }
+
+    /**
+     * Serves {@link #toPrometheus()} at {@code /metrics} on the loopback interface.
+     *
+     * @param port Port number, or 0 for any free port
+     * @return The running server
+     * @throws IOException
+     */
+    public static HttpServer startHttpServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Exposes the registry over JMX. Attributes are read afresh every time, so new metrics show up too. JMX clients
+     * cannot compute rates the way Prometheus does, so the MBean also reports rounds per second, averaged over at least
+     * a second between reads.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        private long lastRounds;
+        private long lastNanos = System.nanoTime();
+        private double roundsPerSecond;
+
+        private synchronized Map<String, Object> snapshot(List<MBeanAttributeInfo> info) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (Metric metric : registry.values())
+                metric.addAttributes(info, values);
+            long now = System.nanoTime();
+            if (now - lastNanos >= 1_000_000_000L) {
+                long rounds = ROUNDS.get();
+                roundsPerSecond = (rounds - lastRounds) * 1e9 / (now - lastNanos);
+                lastRounds = rounds;
+                lastNanos = now;
+            }
+            attribute(info, values, PREFIX + "rounds_per_second", "Rounds resolved per second", roundsPerSecond);
+            return values;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot(new ArrayList<>()).get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = snapshot(new ArrayList<>());
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute))
+                    list.add(new Attribute(attribute, values.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> info = new ArrayList<>();
+            snapshot(info);
+            return new MBeanInfo(Metrics.class.getName(), "Encrypted rock-paper-scissors metrics",
+                    info.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -1,41 +1,683 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is the parent class to both {@code Client} and {@code Server}.
+ * <p>
+ * Game messages are exchanged with {@link #writeMessage(int)}, {@link #writeMove(int)}, {@link #writeNumber(int,
+ * BigInteger)} and {@link #readMessage()}. Each message is identified by one of the opcode constants below. In the
+ * binary protocol a message is the opcode as a single byte followed by its field: one byte for MOVE, the unsigned
+ * magnitude for KEY and MOD, the hash for COMMIT, the move and nonce for REVEAL, and nothing for the rest. In the
+ * legacy text protocol a message is the ASCII string the game has always used, e.g. "PROMPT_MOVE" or "MOVE: 2". The
+ * client picks the protocol in its HELLO frame, the first frame on every connection.
+ * <p>
+ * The commit-reveal protocol uses binary messages, but instead of PROMPT_MOVE the server sends a COMMIT to its own
+ * move, and after the client's MOVE it sends a REVEAL of that move, the result, and the COMMIT for the next round all
+ * in one flush. The server's move is fixed before it sees the client's, and a round still costs one round trip.
+ * <p>
+ * In the binary protocols the client can also ask for keep-alive with a flag in its HELLO. The connection then stays
+ * open after END, and the client can send REMATCH to be put straight into the next match over the same socket and
+ * session key. Each side sends a HEARTBEAT from a background thread whenever it has sent nothing for a quarter of the
+ * idle timeout, even while it is busy with something else, such as a user deciding whether to play again, so a
+ * connection only times out when the peer is gone. HEARTBEAT messages are consumed by {@link #readMessage()}.
+ * <p>
+ * Outgoing messages are queued and leave together, with one flush, when this side next waits for the peer: on
+ * {@link #readMessage()}, on {@link #flush()}, or at the end of a batch. In the binary protocols the client also asks
+ * for {@link #FLAG_BATCH_FRAMES} in its HELLO; once agreed, the queued messages are sent back to back in a single
+ * frame, so e.g. a TIE and the next PROMPT_MOVE cost one frame, one encryption and one packet. Each binary message's
+ * length follows from its opcode, so the frame needs no extra framing, and {@link FrameDecoder} takes it apart.
+ *
  * @author grrdozier
  */
 public abstract class NetworkPlayer {
+    /**
+     * Largest frame accepted unless {@link #setMaxFrameLength(int)} says otherwise.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 16;
+    /**
+     * Largest frame servers accept from a client once the session key is agreed: clients only send a few short
+     * messages at a time.
+     */
+    public static final int MAX_CLIENT_FRAME_LENGTH = 1024;
+    /**
+     * Time the rest of a frame may take to arrive once its first byte has, unless {@link #setFrameTimeout(long)}
+     * says otherwise.
+     */
+    public static final long DEFAULT_FRAME_TIMEOUT_MILLIS = 5000;
+    /**
+     * Longest HELLO frame: the magic, the version and the flags.
+     */
+    public static final int MAX_HELLO_LENGTH = 5;
+    /**
+     * Time without any frame from the peer after which a read fails, unless {@link #setIdleTimeout(long)} says
+     * otherwise.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 20000;
+    /**
+     * Size of the buffers wrapped around socket streams, large enough to hold any game message in one read.
+     */
+    public static final int STREAM_BUFFER_SIZE = 8192;
+
+    /**
+     * Protocol version for the legacy ASCII messages.
+     */
+    public static final int PROTOCOL_TEXT = 1;
+    /**
+     * Protocol version for binary messages.
+     */
+    public static final int PROTOCOL_BINARY = 2;
+    /**
+     * Protocol version for binary messages with commit-reveal rounds.
+     */
+    public static final int PROTOCOL_COMMIT_REVEAL = 3;
+
+    public static final int PROMPT_MOVE = 1;
+    public static final int MOVE = 2;
+    public static final int WIN = 3;
+    public static final int LOSE = 4;
+    public static final int TIE = 5;
+    public static final int END = 6;
+    public static final int KEY = 7;
+    public static final int MOD = 8;
+    public static final int COMMIT = 9;
+    public static final int REVEAL = 10;
+    public static final int HEARTBEAT = 11;
+    public static final int REMATCH = 12;
+
+    /**
+     * HELLO flag asking for, or agreeing to, keep-alive.
+     */
+    public static final int FLAG_KEEP_ALIVE = 1;
+    /**
+     * HELLO flag asking for, or agreeing to, frames holding several messages.
+     */
+    public static final int FLAG_BATCH_FRAMES = 2;
+
+    /**
+     * Longest message without a number field, in any protocol.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 1 + Commitment.HASH_LENGTH;
+
+    private static final byte[] HELLO_MAGIC = {'R', 'P', 'S'};
+    /**
+     * Size of the standing frame buffer. Longer frames are reserved in {@link MemoryBudget#FRAMES} while they arrive.
+     */
+    private static final int FRAME_BUFFER_SIZE = 256;
+    /**
+     * Legacy text for each opcode. Messages with a field are matched by prefix.
+     */
+    private static final byte[][] TEXT = {
+            null,
+            ascii("PROMPT_MOVE"),
+            ascii("MOVE: "),
+            ascii("WIN"),
+            ascii("LOSE"),
+            ascii("TIE"),
+            ascii("END"),
+            ascii("KEY: "),
+            ascii("MOD: ")
+    };
+
+    /**
+     * Sends the heartbeats of every keep-alive connection in the process. A heartbeat is skipped while another write
+     * holds the connection, and a connection whose heartbeat has not been written within the frame timeout is
+     * aborted, so a peer that stops reading holds one of these threads for that long at most.
+     */
+    private static final ScheduledExecutorService heartbeats = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), task -> {
+                Thread thread = new Thread(task, "heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+    /**
+     * Aborts connections whose heartbeat is stuck. Kept apart from {@link #heartbeats}, whose threads may all be
+     * blocked at once, and never blocks itself.
+     */
+    private static final ScheduledExecutorService heartbeatWatchdog = Executors.newSingleThreadScheduledExecutor(
+            task -> {
+                Thread thread = new Thread(task, "heartbeat-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private SessionCipher sessionCipher;
+    private int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+    private final byte[] standingBuffer = new byte[FRAME_BUFFER_SIZE];
+    private byte[] frameBuffer = standingBuffer;
+    private final AtomicInteger frameReserved = new AtomicInteger();
+    private final byte[] frameHeader = new byte[8];
+    private long frameTimeoutMillis = DEFAULT_FRAME_TIMEOUT_MILLIS;
+    private RateLimiter rateLimiter;
+    private int protocolVersion = PROTOCOL_BINARY;
+    private byte[] cipherBuffer = new byte[MAX_MESSAGE_LENGTH + SessionCipher.OVERHEAD];
+    private byte[] inbound = new byte[MAX_MESSAGE_LENGTH];
+    private final FrameDecoder decoder = new FrameDecoder();
+    private int messageMove;
+    private BigInteger messageNumber;
+    private final byte[] messageCommitment = new byte[Commitment.HASH_LENGTH];
+    private final byte[] messageNonce = new byte[Commitment.NONCE_LENGTH];
+    private boolean batching;
+    private boolean batchFrames;
+    private byte[] outbound = new byte[4 * MAX_MESSAGE_LENGTH];
+    private int outboundLength;
+    private int[] outboundEnds = new int[4];
+    private int outboundCount;
+    private int helloFlags;
+    private boolean keepAlive;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile long lastWriteNanos;
+    private ScheduledFuture<?> heartbeatTask;
+
     /**
      * First reads an {@code int} containing the length of the message to be received, then reads that many bytes from
-     * the {@code DataInputStream}.
+     * the {@code DataInputStream}. Once a session key has been negotiated, the bytes are decrypted with it.
      *
      * @return Byte array containing message
      * @throws IOException
      */
     public byte[] readBytes() throws IOException {
-        int length = getDataInputStream().readInt();
-        byte[] data = new byte[length];
-        for (int i = 0; i < length; i++)
-            data[i] = (byte) getDataInputStream().read();
-        return data;
+        int length = readFrame();
+        if (sessionCipher != null)
+            return sessionCipher.decrypt(frameBuffer, 0, length);
+        return Arrays.copyOf(frameBuffer, length);
+    }
+
+    /**
+     * Reads one length-prefixed frame into the frame buffer, as long as the maximum frame length.
+     *
+     * @return Length of the frame, which starts at index 0 of {@link #getFrameBuffer()}
+     * @throws FrameException if the frame is rejected as described in {@link #readFrame(int, int)}
+     * @throws IOException
+     */
+    protected int readFrame() throws IOException {
+        return readFrame(maxFrameLength);
+    }
+
+    /**
+     * Reads one length-prefixed frame into the frame buffer.
+     *
+     * @param maxLength Largest frame to accept
+     * @return Length of the frame, which starts at index 0 of {@link #getFrameBuffer()}
+     * @throws FrameException if the frame is rejected as described in {@link #readFrame(int, int)}
+     * @throws IOException
+     */
+    protected int readFrame(int maxLength) throws IOException {
+        return readFrame(maxLength, 0);
+    }
+
+    /**
+     * Reads one frame into the frame buffer. The length is checked before anything is allocated. A frame that fits
+     * the standing buffer is read into it; a longer one is read into an array of exactly its length, which must first
+     * be reserved in {@link MemoryBudget#FRAMES}. The reservation is held while the frame is handled, and given back
+     * when the array is dropped: when the next frame is read, or by {@link #releaseFrame()}. Waiting for a frame to
+     * start is bounded by the idle timeout, but once its first byte is in, the rest must arrive within the frame
+     * timeout, so a peer trickling bytes cannot hold this thread for long. With a rate limit, the frame is only read
+     * once its tokens are available.
+     *
+     * @param maxLength  Largest frame to accept
+     * @param blockWidth Block width an RSA-encrypted frame starts with, before its length, or 0 for a frame that is
+     *                   just a length and a payload
+     * @return Length of the frame, which starts at index 0 of {@link #getFrameBuffer()}
+     * @throws FrameException if the block width is not {@code blockWidth}, the length is negative or above
+     *                        {@code maxLength}, the memory budget is spent, the frame takes longer than the frame
+     *                        timeout, or the stream ends mid-frame
+     * @throws IOException
+     */
+    protected int readFrame(int maxLength, int blockWidth) throws IOException {
+        releaseFrame();
+        int first = getDataInputStream().read();
+        if (first < 0)
+            throw new EOFException();
+        long deadline = System.nanoTime() + frameTimeoutMillis * 1_000_000L;
+        boolean bounded = frameTimeoutMillis < idleTimeoutMillis;
+        if (bounded)
+            setSocketTimeout((int) frameTimeoutMillis);
+        try {
+            int header = blockWidth > 0 ? 8 : 4;
+            frameHeader[0] = (byte) first;
+            readWithin(frameHeader, 1, header - 1, deadline, bounded);
+            if (blockWidth > 0 && readInt(frameHeader, 0) != blockWidth) {
+                Metrics.FRAMES_REJECTED.increment();
+                throw new FrameException("Unexpected block width: " + readInt(frameHeader, 0));
+            }
+            int length = readInt(frameHeader, header - 4);
+            if (length < 0 || length > maxLength) {
+                Metrics.FRAMES_REJECTED.increment();
+                throw new FrameException("Frame length " + length + " outside of [0, " + maxLength + "]");
+            }
+            if (rateLimiter != null && awaitRate(header + length)) {
+                // The wait is this side's doing, so the peer gets the full frame timeout after it
+                deadline = System.nanoTime() + frameTimeoutMillis * 1_000_000L;
+                if (bounded)
+                    setSocketTimeout((int) frameTimeoutMillis);
+            }
+            boolean reserved = length > standingBuffer.length;
+            if (reserved && !MemoryBudget.FRAMES.tryReserve(length)) {
+                Metrics.FRAMES_REJECTED.increment();
+                throw new FrameException("No frame memory left for a " + length + " byte frame");
+            }
+            if (reserved) {
+                frameReserved.set(length);
+                frameBuffer = new byte[length];
+            }
+            try {
+                readWithin(frameBuffer, 0, length, deadline, bounded);
+            } catch (EOFException e) {
+                releaseFrame();
+                throw new FrameException("Connection closed in the middle of a " + length + " byte frame", e);
+            } catch (IOException | RuntimeException e) {
+                releaseFrame();
+                throw e;
+            }
+            Metrics.BYTES_IN.add(header + length);
+            Metrics.FRAMES_IN.increment();
+            return length;
+        } finally {
+            if (bounded)
+                setSocketTimeout((int) idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Drops the array holding the last frame read, if it was too long for the standing buffer, and gives its memory
+     * back to {@link MemoryBudget#FRAMES}. Subclasses call this when the connection is closed, which may be from
+     * another thread than the one reading, so the memory is given back exactly once.
+     */
+    protected void releaseFrame() {
+        frameBuffer = standingBuffer;
+        int released = frameReserved.getAndSet(0);
+        if (released > 0)
+            MemoryBudget.FRAMES.release(released);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8
+                | data[offset + 3] & 0xFF;
+    }
+
+    /**
+     * Reads exactly {@code length} bytes of a frame, shortening the socket timeout after each partial read so the
+     * whole frame is bounded by the deadline rather than each read.
+     */
+    private void readWithin(byte[] buffer, int offset, int length, long deadline, boolean bounded)
+            throws IOException {
+        try {
+            while (length > 0) {
+                int read = getDataInputStream().read(buffer, offset, length);
+                if (read < 0)
+                    throw new EOFException();
+                offset += read;
+                length -= read;
+                if (length == 0)
+                    return;
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    throw new SocketTimeoutException();
+                if (bounded)
+                    setSocketTimeout((int) Math.max(1, left / 1_000_000L));
+            }
+        } catch (SocketTimeoutException e) {
+            Metrics.FRAMES_REJECTED.increment();
+            throw new FrameException("Frame not complete within " + frameTimeoutMillis + " ms", e);
+        }
+    }
+
+    /**
+     * Waits until the rate limiter lets a frame through.
+     *
+     * @param length Length of the frame, header included
+     * @return {@code true} if it had to wait
+     */
+    private boolean awaitRate(int length) throws IOException {
+        long wait = rateLimiter.acquire(length, System.nanoTime());
+        if (wait == 0)
+            return false;
+        Metrics.RATE_LIMITED.increment();
+        try {
+            do {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } while ((wait = rateLimiter.acquire(length, System.nanoTime())) > 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted");
+        }
+        return true;
+    }
+
+    /**
+     * @return Buffer holding the frame last read by {@link #readFrame()}, until the next frame is read
+     */
+    protected byte[] getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    /**
+     * @return Largest frame this player will accept
+     */
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * @param maxFrameLength Largest frame this player will accept
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        if (maxFrameLength < 0)
+            throw new IllegalArgumentException("Negative maximum frame length");
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * @return Time the rest of a frame may take to arrive once its first byte has
+     */
+    public long getFrameTimeout() {
+        return frameTimeoutMillis;
+    }
+
+    /**
+     * @param frameTimeoutMillis Time the rest of a frame may take to arrive once its first byte has
+     */
+    public void setFrameTimeout(long frameTimeoutMillis) {
+        if (frameTimeoutMillis < 1 || frameTimeoutMillis > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Frame timeout out of range: " + frameTimeoutMillis);
+        this.frameTimeoutMillis = frameTimeoutMillis;
+    }
+
+    /**
+     * Limits how fast frames are read from the peer. Reading waits once the peer goes over the limit, which holds
+     * back only this connection, and the peer's own writes then block once the socket buffers fill.
+     *
+     * @param limiter The limiter, or {@code null} for no limit
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.rateLimiter = limiter;
+    }
+
+    /**
+     * @return Time without any frame from the peer after which a read fails
+     */
+    public long getIdleTimeout() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the idle timeout. With keep-alive, a heartbeat is sent whenever nothing has been sent for a quarter of it.
+     *
+     * @param idleTimeoutMillis Time without any frame from the peer after which a read fails
+     * @throws IOException if the socket timeout cannot be set
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) throws IOException {
+        if (idleTimeoutMillis < 8 || idleTimeoutMillis > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Idle timeout out of range: " + idleTimeoutMillis);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        setSocketTimeout((int) idleTimeoutMillis);
+        if (keepAlive)
+            scheduleHeartbeats();
+    }
+
+    /**
+     * @return {@code true} if keep-alive was agreed in the handshake
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Turns keep-alive on once both sides have agreed to it.
+     *
+     * @throws IOException if the socket timeout cannot be set
+     */
+    protected void setKeepAlive(boolean keepAlive) throws IOException {
+        if (keepAlive && protocolVersion == PROTOCOL_TEXT)
+            throw new IllegalArgumentException("The text protocol has no keep-alive");
+        this.keepAlive = keepAlive;
+        if (keepAlive)
+            scheduleHeartbeats();
+        else
+            stopHeartbeats();
+    }
+
+    private synchronized void scheduleHeartbeats() {
+        stopHeartbeats();
+        long interval = idleTimeoutMillis / 4;
+        byte[] heartbeat = new byte[1];
+        int length = encodeMessage(protocolVersion, heartbeat, 0, HEARTBEAT, 0);
+        heartbeatTask = heartbeats.scheduleAtFixedRate(() -> {
+            if (System.nanoTime() - lastWriteNanos < interval * 1_000_000L)
+                return;
+            // A write in progress is as good as a heartbeat, and if it is stuck, waiting behind it would be too
+            if (!writeLock.tryLock())
+                return;
+            ScheduledFuture<?> watchdog = heartbeatWatchdog.schedule(this::abortHeartbeat, frameTimeoutMillis,
+                    TimeUnit.MILLISECONDS);
+            try {
+                writeBytes(heartbeat, 0, length);
+            } catch (IOException e) {
+                stopHeartbeats(); // Closed; the next read reports it
+            } finally {
+                watchdog.cancel(false);
+                writeLock.unlock();
+            }
+        }, interval / 2, interval / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Aborts the connection because a heartbeat could not be written within the frame timeout: the peer has stopped
+     * reading, and closing the connection is the only way to free the thread blocked writing to it.
+     */
+    private void abortHeartbeat() {
+        stopHeartbeats();
+        try {
+            abortConnection();
+        } catch (IOException ignored) {
+            // The blocked write and the next read report the connection as closed
+        }
+    }
+
+    /**
+     * Stops sending heartbeats. Subclasses call this when the connection is closed.
+     */
+    protected synchronized void stopHeartbeats() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+    }
+
+    /**
+     * Closes the underlying connection at once, from any thread, which makes a read or write blocked on it fail. Does
+     * nothing unless overridden.
+     *
+     * @throws IOException
+     */
+    protected void abortConnection() throws IOException {
+    }
+
+    /**
+     * Sets the read timeout of the underlying socket. Does nothing unless overridden.
+     *
+     * @param millis Timeout in milliseconds
+     * @throws IOException
+     */
+    protected void setSocketTimeout(int millis) throws IOException {
     }
 
     /**
      * First writes an {@code int} containing the length of the message to be sent, then writes that many bytes to
-     * the {@code DataOutputStream}.
+     * the {@code DataOutputStream}. Once a session key has been negotiated, the bytes are encrypted with it first.
      *
      * @param data Byte array to be sent
      * @throws IOException
      */
     public void writeBytes(byte[] data) throws IOException {
+        writeBytes(data, 0, data.length);
+    }
+
+    /**
+     * Same as {@link #writeBytes(byte[])}, for part of an array.
+     *
+     * @param data   Buffer holding the bytes to be sent
+     * @param offset Start of the bytes
+     * @param length Number of bytes
+     * @throws IOException
+     */
+    public void writeBytes(byte[] data, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (sessionCipher != null) {
+                if (cipherBuffer.length < length + SessionCipher.OVERHEAD)
+                    cipherBuffer = new byte[length + SessionCipher.OVERHEAD];
+                length = sessionCipher.encrypt(data, offset, length, cipherBuffer, 0);
+                data = cipherBuffer;
+                offset = 0;
+            }
+            writeFrame(data, offset, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a length-prefixed frame as-is and flushes it, unless a batch is open.
+     *
+     * @param data   Buffer holding the frame
+     * @param offset Start of the frame
+     * @param length Length of the frame
+     * @throws IOException
+     */
+    protected void writeFrame(byte[] data, int offset, int length) throws IOException {
         // Send data
-        getDataOutputStream().writeInt(data.length);
-        getDataOutputStream().write(data, 0, data.length);
+        long start = System.nanoTime();
+        getDataOutputStream().writeInt(length);
+        getDataOutputStream().write(data, offset, length);
+        Metrics.BYTES_OUT.add(4 + length);
+        Metrics.FRAMES_OUT.increment();
+        lastWriteNanos = System.nanoTime();
+        Metrics.FRAMING.record(lastWriteNanos - start);
+        if (!batching)
+            flushStream();
+    }
+
+    private void flushStream() throws IOException {
+        long start = System.nanoTime();
         getDataOutputStream().flush();
+        Metrics.FLUSHES.increment();
+        Metrics.FRAMING.recordSince(start);
+    }
+
+    /**
+     * Holds back flushing until {@link #endBatch()}, so the frames written in between leave in as few packets as
+     * possible.
+     */
+    protected void beginBatch() {
+        batching = true;
+    }
+
+    /**
+     * Sends the queued messages and flushes every frame written since {@link #beginBatch()}.
+     *
+     * @throws IOException
+     */
+    protected void endBatch() throws IOException {
+        writeLock.lock();
+        try {
+            flush();
+            batching = false;
+            flushStream();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends every queued message: in one frame if {@link #FLAG_BATCH_FRAMES} was agreed, otherwise a frame each, but
+     * with a single flush either way. Called automatically before each read.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (outboundCount == 0)
+                return;
+            boolean wasBatching = batching;
+            batching = true;
+            try {
+                if (batchFrames) {
+                    writeBytes(outbound, 0, outboundLength);
+                } else {
+                    int start = 0;
+                    for (int i = 0; i < outboundCount; i++) {
+                        writeBytes(outbound, start, outboundEnds[i] - start);
+                        start = outboundEnds[i];
+                    }
+                }
+            } finally {
+                batching = wasBatching;
+                outboundLength = 0;
+                outboundCount = 0;
+            }
+            if (!batching)
+                flushStream();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Makes room in the queue for one more message.
+     *
+     * @return Where to encode it
+     */
+    private int reserve() {
+        if (outbound.length - outboundLength < MAX_MESSAGE_LENGTH)
+            outbound = Arrays.copyOf(outbound, outbound.length * 2);
+        if (outboundCount == outboundEnds.length)
+            outboundEnds = Arrays.copyOf(outboundEnds, outboundEnds.length * 2);
+        return outboundLength;
+    }
+
+    /**
+     * Adds the message just encoded at the end of the queue.
+     */
+    private void enqueue(int length) {
+        outboundLength += length;
+        outboundEnds[outboundCount++] = outboundLength;
+    }
+
+    /**
+     * @return {@code true} if {@link #FLAG_BATCH_FRAMES} was agreed in the handshake
+     */
+    public boolean isBatchFrames() {
+        return batchFrames;
+    }
+
+    /**
+     * Turns multi-message frames on once both sides have agreed to them.
+     */
+    protected void setBatchFrames(boolean batchFrames) {
+        if (batchFrames && protocolVersion == PROTOCOL_TEXT)
+            throw new IllegalArgumentException("The text protocol has no multi-message frames");
+        writeLock.lock();
+        try {
+            this.batchFrames = batchFrames;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     /**
@@ -59,6 +701,488 @@ public abstract class NetworkPlayer {
         writeBytes(data);
     }
 
+    /**
+     * Queues a message that has no field, such as PROMPT_MOVE or END, in the negotiated protocol.
+     *
+     * @param opcode Opcode of the message
+     * @throws IOException
+     */
+    public void writeMessage(int opcode) throws IOException {
+        writeLock.lock();
+        try {
+            enqueue(encodeMessage(protocolVersion, outbound, reserve(), opcode, 0));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a MOVE message in the negotiated protocol.
+     *
+     * @param move 1, 2, or 3
+     * @throws IOException
+     */
+    public void writeMove(int move) throws IOException {
+        writeLock.lock();
+        try {
+            enqueue(encodeMessage(protocolVersion, outbound, reserve(), MOVE, move));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a COMMIT message.
+     *
+     * @param commitment Hash of the move being committed to
+     * @throws IOException
+     */
+    public void writeCommit(byte[] commitment) throws IOException {
+        writeLock.lock();
+        try {
+            enqueue(encodeCommit(protocolVersion, outbound, reserve(), commitment));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a REVEAL message.
+     *
+     * @param move  Move that was committed to
+     * @param nonce Nonce it was committed with
+     * @throws IOException
+     */
+    public void writeReveal(int move, byte[] nonce) throws IOException {
+        writeLock.lock();
+        try {
+            enqueue(encodeReveal(protocolVersion, outbound, reserve(), move, nonce));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a KEY or MOD message in the negotiated protocol, after any queued messages. A number runs to the end of
+     * its frame, so it always gets a frame of its own.
+     *
+     * @param opcode KEY or MOD
+     * @param value  Non-negative number to send
+     * @throws IOException
+     */
+    public void writeNumber(int opcode, BigInteger value) throws IOException {
+        writeLock.lock();
+        try {
+            flush();
+            writeBytes(encodeNumber(protocolVersion, opcode, value));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends any queued messages, then reads the next message in the negotiated protocol. The field of a MOVE message
+     * is available from {@link #getMessageMove()}, the field of a KEY or MOD message from
+     * {@link #getMessageNumber()}, the hash of a COMMIT from {@link #getMessageCommitment()}, and the move and nonce
+     * of a REVEAL from {@link #getMessageMove()} and {@link #getMessageNonce()}.
+     *
+     * @return Opcode of the message, never HEARTBEAT
+     * @throws IOException if the message is not recognised
+     */
+    public int readMessage() throws IOException {
+        flush();
+        int opcode;
+        while ((opcode = readAnyMessage()) == HEARTBEAT)
+            ;
+        return opcode;
+    }
+
+    /**
+     * Reads the next message as {@link #readMessage()}, but only until a deadline. Heartbeats do not extend it: they
+     * show that the peer is still there, not that it will ever send anything else.
+     *
+     * @param deadlineNanos {@code System.nanoTime()} by which a message other than a heartbeat must start to arrive
+     * @return Opcode of the message, never HEARTBEAT
+     * @throws SocketTimeoutException if the deadline passes first
+     * @throws IOException            if the message is not recognised
+     */
+    public int readMessage(long deadlineNanos) throws IOException {
+        flush();
+        try {
+            while (true) {
+                long left = deadlineNanos - System.nanoTime();
+                if (left <= 0)
+                    throw new SocketTimeoutException("No message before the deadline");
+                if (!decoder.hasNext())
+                    setSocketTimeout((int) Math.max(1, Math.min(idleTimeoutMillis, left / 1_000_000L)));
+                int opcode = readAnyMessage();
+                if (opcode != HEARTBEAT)
+                    return opcode;
+            }
+        } finally {
+            setSocketTimeout((int) idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Returns the next message of the current frame, reading and decrypting a new frame once it has none left.
+     */
+    private int readAnyMessage() throws IOException {
+        if (!decoder.hasNext()) {
+            if (sessionCipher == null) {
+                byte[] data = readBytes();
+                decoder.reset(protocolVersion, data, 0, data.length);
+            } else {
+                int frameLength = readFrame();
+                if (frameLength < SessionCipher.OVERHEAD)
+                    throw new FrameException("Encrypted frame too short: " + frameLength);
+                if (inbound.length < frameLength - SessionCipher.OVERHEAD)
+                    inbound = new byte[frameLength - SessionCipher.OVERHEAD];
+                int length = sessionCipher.decrypt(frameBuffer, 0, frameLength, inbound, 0);
+                decoder.reset(protocolVersion, inbound, 0, length);
+            }
+            if (!decoder.hasNext())
+                throw new IOException("Unrecognized message of 0 bytes");
+        }
+        int opcode = decoder.next();
+        byte[] data = decoder.getBuffer();
+        int offset = decoder.getOffset();
+        int length = decoder.getLength();
+        if (opcode == MOVE || opcode == REVEAL)
+            messageMove = decodeMove(protocolVersion, data, offset, length);
+        if (opcode == COMMIT)
+            System.arraycopy(data, offset + 1, messageCommitment, 0, Commitment.HASH_LENGTH);
+        else if (opcode == REVEAL)
+            System.arraycopy(data, offset + 2, messageNonce, 0, Commitment.NONCE_LENGTH);
+        else if (opcode == KEY || opcode == MOD)
+            messageNumber = decodeNumber(protocolVersion, data, offset, length);
+        return opcode;
+    }
+
+    /**
+     * @return Move from the last MOVE message read by {@link #readMessage()}
+     */
+    public int getMessageMove() {
+        return messageMove;
+    }
+
+    /**
+     * @return Number from the last KEY or MOD message read by {@link #readMessage()}
+     */
+    public BigInteger getMessageNumber() {
+        return messageNumber;
+    }
+
+    /**
+     * @return Hash from the last COMMIT message read by {@link #readMessage()}; overwritten by the next one
+     */
+    public byte[] getMessageCommitment() {
+        return messageCommitment;
+    }
+
+    /**
+     * @return Nonce from the last REVEAL message read by {@link #readMessage()}; overwritten by the next one
+     */
+    public byte[] getMessageNonce() {
+        return messageNonce;
+    }
+
+    /**
+     * @return {@link #PROTOCOL_BINARY}, {@link #PROTOCOL_TEXT} or {@link #PROTOCOL_COMMIT_REVEAL}
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @param protocolVersion {@link #PROTOCOL_BINARY}, {@link #PROTOCOL_TEXT} or {@link #PROTOCOL_COMMIT_REVEAL}
+     */
+    protected void setProtocolVersion(int protocolVersion) {
+        if (!isSupportedProtocol(protocolVersion))
+            throw new IllegalArgumentException("Unsupported protocol version: " + protocolVersion);
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Sends an unencrypted HELLO frame carrying a protocol version and flags.
+     *
+     * @param version Protocol version
+     * @param flags   {@link #FLAG_KEEP_ALIVE} or 0
+     * @throws IOException
+     */
+    protected void writeHello(int version, int flags) throws IOException {
+        byte[] hello = new byte[HELLO_MAGIC.length + 2];
+        writeFrame(hello, 0, encodeHello(hello, 0, version, flags));
+    }
+
+    /**
+     * Reads an unencrypted HELLO frame. Its flags are available from {@link #getHelloFlags()}.
+     *
+     * @return The protocol version it carries
+     * @throws IOException if the frame is not a HELLO
+     */
+    protected int readHello() throws IOException {
+        int length = readFrame(Math.min(maxFrameLength, MAX_HELLO_LENGTH));
+        int version = decodeHello(frameBuffer, 0, length);
+        if (version < 0)
+            throw new IOException("Expected HELLO from peer");
+        helloFlags = decodeHelloFlags(frameBuffer, 0, length);
+        return version;
+    }
+
+    /**
+     * @return Flags from the HELLO read by {@link #readHello()}
+     */
+    protected int getHelloFlags() {
+        return helloFlags;
+    }
+
+    /**
+     * @return The negotiated session cipher, or {@code null} before the handshake
+     */
+    public SessionCipher getSessionCipher() {
+        return sessionCipher;
+    }
+
+    /**
+     * Switches all further messages in both directions to the given session cipher.
+     *
+     * @param sessionCipher Session cipher
+     */
+    protected void setSessionCipher(SessionCipher sessionCipher) {
+        this.sessionCipher = sessionCipher;
+    }
+
+    /**
+     * @param version A protocol version
+     * @return {@code true} if it is one of the versions this code speaks
+     */
+    public static boolean isSupportedProtocol(int version) {
+        return version == PROTOCOL_TEXT || version == PROTOCOL_BINARY || version == PROTOCOL_COMMIT_REVEAL;
+    }
+
+    /**
+     * Writes a HELLO frame body without flags.
+     *
+     * @return Number of bytes written
+     */
+    public static int encodeHello(byte[] buf, int off, int version) {
+        return encodeHello(buf, off, version, 0);
+    }
+
+    /**
+     * Writes a HELLO frame body. The flags byte is left out when there are no flags, so peers that predate it still
+     * understand the frame.
+     *
+     * @return Number of bytes written
+     */
+    public static int encodeHello(byte[] buf, int off, int version, int flags) {
+        System.arraycopy(HELLO_MAGIC, 0, buf, off, HELLO_MAGIC.length);
+        buf[off + HELLO_MAGIC.length] = (byte) version;
+        if (flags == 0)
+            return HELLO_MAGIC.length + 1;
+        buf[off + HELLO_MAGIC.length + 1] = (byte) flags;
+        return HELLO_MAGIC.length + 2;
+    }
+
+    /**
+     * @return The protocol version in a HELLO frame body, or -1 if it is not a HELLO
+     */
+    public static int decodeHello(byte[] buf, int off, int len) {
+        if (len != HELLO_MAGIC.length + 1 && len != HELLO_MAGIC.length + 2 || !startsWith(buf, off, len, HELLO_MAGIC))
+            return -1;
+        return buf[off + HELLO_MAGIC.length] & 0xFF;
+    }
+
+    /**
+     * @return The flags in a HELLO frame body, 0 if it has none
+     */
+    public static int decodeHelloFlags(byte[] buf, int off, int len) {
+        return len == HELLO_MAGIC.length + 2 ? buf[off + HELLO_MAGIC.length + 1] & 0xFF : 0;
+    }
+
+    /**
+     * Encodes a message without a number field into a buffer. Does not allocate.
+     *
+     * @param protocol Protocol version
+     * @param buf      Buffer with room for {@link #MAX_MESSAGE_LENGTH} bytes
+     * @param off      Where to start writing
+     * @param opcode   Opcode of the message: PROMPT_MOVE to END, or HEARTBEAT or REMATCH in the binary protocols
+     * @param move     Move for a MOVE message, ignored otherwise
+     * @return Number of bytes written
+     */
+    public static int encodeMessage(int protocol, byte[] buf, int off, int opcode, int move) {
+        boolean session = opcode == HEARTBEAT || opcode == REMATCH;
+        if ((opcode < PROMPT_MOVE || opcode > END) && !session || session && protocol == PROTOCOL_TEXT)
+            throw new IllegalArgumentException("Cannot encode opcode " + opcode);
+        if (protocol != PROTOCOL_TEXT) {
+            buf[off] = (byte) opcode;
+            if (opcode != MOVE)
+                return 1;
+            buf[off + 1] = (byte) move;
+            return 2;
+        }
+        byte[] text = TEXT[opcode];
+        System.arraycopy(text, 0, buf, off, text.length);
+        if (opcode != MOVE)
+            return text.length;
+        buf[off + text.length] = (byte) ('0' + move);
+        return text.length + 1;
+    }
+
+    /**
+     * Encodes a COMMIT message. Only the binary protocols have one. Does not allocate.
+     *
+     * @param protocol   Protocol version
+     * @param buf        Buffer with room for {@link #MAX_MESSAGE_LENGTH} bytes
+     * @param off        Where to start writing
+     * @param commitment Hash of the move
+     * @return Number of bytes written
+     */
+    public static int encodeCommit(int protocol, byte[] buf, int off, byte[] commitment) {
+        if (protocol == PROTOCOL_TEXT)
+            throw new IllegalArgumentException("The text protocol has no COMMIT");
+        buf[off] = (byte) COMMIT;
+        System.arraycopy(commitment, 0, buf, off + 1, Commitment.HASH_LENGTH);
+        return 1 + Commitment.HASH_LENGTH;
+    }
+
+    /**
+     * Encodes a REVEAL message. Only the binary protocols have one. Does not allocate.
+     *
+     * @param protocol Protocol version
+     * @param buf      Buffer with room for {@link #MAX_MESSAGE_LENGTH} bytes
+     * @param off      Where to start writing
+     * @param move     Move that was committed to
+     * @param nonce    Nonce it was committed with
+     * @return Number of bytes written
+     */
+    public static int encodeReveal(int protocol, byte[] buf, int off, int move, byte[] nonce) {
+        if (protocol == PROTOCOL_TEXT)
+            throw new IllegalArgumentException("The text protocol has no REVEAL");
+        buf[off] = (byte) REVEAL;
+        buf[off + 1] = (byte) move;
+        System.arraycopy(nonce, 0, buf, off + 2, Commitment.NONCE_LENGTH);
+        return 2 + Commitment.NONCE_LENGTH;
+    }
+
+    /**
+     * Encodes a KEY or MOD message. These are only sent during the handshake, so this one allocates.
+     *
+     * @param protocol Protocol version
+     * @param opcode   KEY or MOD
+     * @param value    Non-negative number
+     * @return The encoded message
+     */
+    public static byte[] encodeNumber(int protocol, int opcode, BigInteger value) {
+        if (opcode != KEY && opcode != MOD)
+            throw new IllegalArgumentException("Cannot encode opcode " + opcode + " with a number");
+        if (protocol == PROTOCOL_TEXT)
+            return (new String(TEXT[opcode], StandardCharsets.US_ASCII) + value).getBytes(StandardCharsets.US_ASCII);
+        byte[] magnitude = value.toByteArray();
+        byte[] data = new byte[1 + magnitude.length];
+        data[0] = (byte) opcode;
+        System.arraycopy(magnitude, 0, data, 1, magnitude.length);
+        return data;
+    }
+
+    /**
+     * Finds the length of the first message in a frame from its opcode. Does not allocate.
+     *
+     * @param protocol Protocol version
+     * @param buf      Buffer holding the frame
+     * @param off      Start of the message
+     * @param len      Bytes left in the frame, at least 1
+     * @return Length of the message, which may be more than {@code len} if the frame is truncated
+     */
+    public static int messageLength(int protocol, byte[] buf, int off, int len) {
+        if (protocol == PROTOCOL_TEXT)
+            return len;
+        switch (buf[off]) {
+            case MOVE:
+                return 2;
+            case KEY:
+            case MOD:
+                return len;
+            case COMMIT:
+                return 1 + Commitment.HASH_LENGTH;
+            case REVEAL:
+                return 2 + Commitment.NONCE_LENGTH;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Finds the opcode of an encoded message. Does not allocate.
+     *
+     * @return The opcode, or -1 if the message is not recognised
+     */
+    public static int decodeOpcode(int protocol, byte[] buf, int off, int len) {
+        if (len < 1)
+            return -1;
+        if (protocol != PROTOCOL_TEXT) {
+            int opcode = buf[off];
+            if (opcode < PROMPT_MOVE || opcode > REMATCH)
+                return -1;
+            if (opcode == MOVE && len != 2 || (opcode < KEY || opcode > REVEAL) && opcode != MOVE && len != 1
+                    || opcode == COMMIT && len != 1 + Commitment.HASH_LENGTH
+                    || opcode == REVEAL && len != 2 + Commitment.NONCE_LENGTH)
+                return -1;
+            return opcode;
+        }
+        for (int opcode = PROMPT_MOVE; opcode <= MOD; opcode++) {
+            byte[] text = TEXT[opcode];
+            boolean hasField = opcode == MOVE || opcode == KEY || opcode == MOD;
+            if ((hasField ? len > text.length : len == text.length) && startsWith(buf, off, len, text))
+                return opcode;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the move out of an encoded MOVE or REVEAL message. Does not allocate.
+     *
+     * @return The move, or -1 if the message is too short or, in the text protocol, the move is not a digit
+     */
+    public static int decodeMove(int protocol, byte[] buf, int off, int len) {
+        if (protocol != PROTOCOL_TEXT)
+            return len < 2 ? -1 : buf[off + 1];
+        if (len < 1)
+            return -1;
+        int digit = buf[off + len - 1] - '0';
+        return len == TEXT[MOVE].length + 1 && digit >= 0 && digit <= 9 ? digit : -1;
+    }
+
+    /**
+     * Reads the number out of an encoded KEY or MOD message.
+     *
+     * @throws IOException if the number is malformed
+     */
+    public static BigInteger decodeNumber(int protocol, byte[] buf, int off, int len) throws IOException {
+        if (protocol != PROTOCOL_TEXT)
+            return new BigInteger(1, buf, off + 1, len - 1);
+        int prefix = TEXT[KEY].length;
+        try {
+            return new BigInteger(new String(buf, off + prefix, len - prefix, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number", e);
+        }
+    }
+
+    private static boolean startsWith(byte[] buf, int off, int len, byte[] prefix) {
+        if (len < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (buf[off + i] != prefix[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
     public abstract BigInteger getModulus();
 
     public abstract BigInteger getPublicKey();
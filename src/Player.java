@@ -1,10 +1,54 @@
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Simple class that contains some logic for rock-paper-scissors.
+ * Simple class that contains some logic for rock-paper-scissors. Moves are parsed and rounds are resolved with lookup
+ * tables built once, so the static methods never allocate; the {@code Player} and {@code String} forms are thin
+ * wrappers around the primitive ones.
  * @author grrdozier
  */
 public class Player {
+    /**
+     * Outcome of a round in which neither side won.
+     */
+    public static final byte TIE = 0;
+    /**
+     * Outcome of a round won by the first side.
+     */
+    public static final byte FIRST = 1;
+    /**
+     * Outcome of a round won by the second side.
+     */
+    public static final byte SECOND = 2;
+
+    /**
+     * Outcome of every pair of moves, indexed by {@code first << 2 | second}. Only moves 1 to 3 are filled in; callers
+     * check their moves first, so no other index is read.
+     */
+    private static final byte[] OUTCOMES = new byte[16];
+    /**
+     * Move named by each lower-case ASCII initial, 0 for none.
+     */
+    private static final byte[] MOVES_BY_INITIAL = new byte[128];
+    /**
+     * Full name of each move, indexed by move.
+     */
+    private static final byte[][] NAMES = {null, ascii("rock"), ascii("paper"), ascii("scissors")};
+
+    static {
+        for (int a = 1; a <= 3; a++) {
+            for (int b = 1; b <= 3; b++) {
+                byte outcome;
+                if (a == b)
+                    outcome = TIE;
+                else // Each move beats the one before it, wrapping around: paper beats rock, rock beats scissors
+                    outcome = (a - b + 3) % 3 == 1 ? FIRST : SECOND;
+                OUTCOMES[a << 2 | b] = outcome;
+            }
+        }
+        for (int move = 1; move <= 3; move++)
+            MOVES_BY_INITIAL[NAMES[move][0]] = (byte) move;
+    }
+
     /**
      * 0: idle
      * 1: rock
@@ -37,28 +81,139 @@ public class Player {
      * @throws IllegalArgumentException if the input string is not valid
      */
     public static int getMoveFromString(String msg) throws IllegalArgumentException {
-        if (Pattern.compile("r(ock)?").matcher(msg.toLowerCase()).matches())
-            return 1;
-        else if (Pattern.compile("p(aper)?").matcher(msg.toLowerCase()).matches())
-            return 2;
-        else if (Pattern.compile("s(cissors)?").matcher(msg.toLowerCase()).matches())
-            return 3;
-        else throw new IllegalArgumentException();
+        int move = parseMove(msg);
+        if (move == 0)
+            throw new IllegalArgumentException("Invalid move: " + msg);
+        return move;
+    }
+
+    /**
+     * Parses "r", "p", "s", "rock", "paper" or "scissors", ignoring ASCII case.
+     *
+     * @param text Text to parse
+     * @return 1, 2, or 3, or 0 if the text is not a move
+     */
+    public static int parseMove(CharSequence text) {
+        int length = text.length();
+        if (length == 0)
+            return 0;
+        int move = moveByInitial(text.charAt(0));
+        if (move == 0 || length == 1)
+            return move;
+        byte[] name = NAMES[move];
+        if (length != name.length)
+            return 0;
+        for (int i = 1; i < length; i++)
+            if (toLowerCase(text.charAt(i)) != name[i])
+                return 0;
+        return move;
+    }
+
+    /**
+     * Same as {@link #parseMove(CharSequence)}, for ASCII bytes, e.g. straight out of a network buffer.
+     *
+     * @param buf    Buffer holding the text
+     * @param offset Start of the text
+     * @param length Length of the text
+     * @return 1, 2, or 3, or 0 if the text is not a move
+     */
+    public static int parseMove(byte[] buf, int offset, int length) {
+        if (length == 0)
+            return 0;
+        int move = moveByInitial((char) (buf[offset] & 0xFF));
+        if (move == 0 || length == 1)
+            return move;
+        byte[] name = NAMES[move];
+        if (length != name.length)
+            return 0;
+        for (int i = 1; i < length; i++)
+            if (toLowerCase((char) (buf[offset + i] & 0xFF)) != name[i])
+                return 0;
+        return move;
+    }
+
+    private static int moveByInitial(char c) {
+        c = toLowerCase(c);
+        return c < 128 ? MOVES_BY_INITIAL[c] : 0;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
     }
 
     /**
-     * Takes two {@code Player} instances and returns the winner. Assumes that both players' moves are 1, 2, or 3.
+     * Takes two {@code Player} instances and returns the winner.
      *
      * @param player1 First player
      * @param player2 Second player
-     * @return The player with the winning move
+     * @return The player with the winning move, or {@code null} for a tie
+     * @throws IllegalArgumentException if either move is not 1, 2, or 3
      */
     public static Player getWinner(Player player1, Player player2) {
-        if (player1.getMove() == player2.getMove())
-            return null;
-        else if (player1.getMove() - player2.getMove() == 1 || player1.getMove() - player2.getMove() == -2)
-            return player1;
-        else
-            return player2;
+        switch (getOutcome(player1.getMove(), player2.getMove())) {
+            case FIRST:
+                return player1;
+            case SECOND:
+                return player2;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Resolves one round.
+     *
+     * @param first  First side's move, 1 to 3
+     * @param second Second side's move, 1 to 3
+     * @return {@link #TIE}, {@link #FIRST} or {@link #SECOND}
+     * @throws IllegalArgumentException if either move is not 1, 2, or 3
+     */
+    public static int getOutcome(int first, int second) {
+        if (first < 1 || first > 3 || second < 1 || second > 3)
+            throw new IllegalArgumentException("Invalid moves: " + first + ", " + second);
+        return OUTCOMES[first << 2 | second];
+    }
+
+    /**
+     * Resolves one round from one side's point of view.
+     *
+     * @param own      This side's move, 1 to 3
+     * @param opponent The other side's move, 1 to 3
+     * @return {@code NetworkPlayer.WIN}, {@code LOSE} or {@code TIE}
+     * @throws IllegalArgumentException if either move is not 1, 2, or 3
+     */
+    public static int getResult(int own, int opponent) {
+        switch (getOutcome(own, opponent)) {
+            case FIRST:
+                return NetworkPlayer.WIN;
+            case SECOND:
+                return NetworkPlayer.LOSE;
+            default:
+                return NetworkPlayer.TIE;
+        }
+    }
+
+    /**
+     * Resolves a batch of rounds with a plain indexed loop over primitive arrays, which the JIT unrolls.
+     *
+     * @param first    First side's moves, each 1 to 3
+     * @param second   Second side's moves, each 1 to 3
+     * @param outcomes Receives {@link #TIE}, {@link #FIRST} or {@link #SECOND} for each round
+     * @param from     First index to resolve
+     * @param to       Index after the last one to resolve
+     * @throws IllegalArgumentException if a move is not 1, 2, or 3; the rounds before it are resolved
+     */
+    public static void getOutcomes(byte[] first, byte[] second, byte[] outcomes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int a = first[i];
+            int b = second[i];
+            if (a < 1 || a > 3 || b < 1 || b > 3)
+                throw new IllegalArgumentException("Invalid moves in round " + i + ": " + a + ", " + b);
+            outcomes[i] = OUTCOMES[a << 2 | b];
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
     }
 }
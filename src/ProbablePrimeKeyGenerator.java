@@ -0,0 +1,85 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Generates RSA keys from two random probable primes of a configurable bit length. The totient is computed as
+ * lcm(p-1, q-1) via gcd, the public exponent is the standard 65537, and the private exponent is its modular inverse.
+ */
+public class ProbablePrimeKeyGenerator implements KeyGenerator {
+    /**
+     * Key size used when none is given.
+     */
+    public static final int DEFAULT_BIT_LENGTH = 2048;
+    /**
+     * Smallest key size that can wrap a session key: the modulus needs room for {@link SessionCipher#KEY_LENGTH} bytes
+     * after {@link RSABlockCipher#OAEP_OVERHEAD} in one block, 649 bits for a 16-byte key.
+     */
+    public static final int MIN_BIT_LENGTH = 8 * (RSABlockCipher.OAEP_OVERHEAD + SessionCipher.KEY_LENGTH - 1) + 1;
+
+    private static final BigInteger PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+
+    private final int bitLength;
+    private final SecureRandom random;
+
+    public ProbablePrimeKeyGenerator() {
+        this(DEFAULT_BIT_LENGTH);
+    }
+
+    /**
+     * @param bitLength Bit length of the modulus, at least {@link #MIN_BIT_LENGTH}
+     */
+    public ProbablePrimeKeyGenerator(int bitLength) {
+        this(bitLength, new SecureRandom());
+    }
+
+    /**
+     * @param bitLength Bit length of the modulus, at least {@link #MIN_BIT_LENGTH}
+     * @param random    Source of randomness for the primes
+     * @throws IllegalArgumentException if the keys would be too small to wrap a session key
+     */
+    public ProbablePrimeKeyGenerator(int bitLength, SecureRandom random) {
+        if (bitLength < MIN_BIT_LENGTH)
+            throw new IllegalArgumentException("Key size too small: " + bitLength);
+        this.bitLength = bitLength;
+        this.random = random;
+    }
+
+    /**
+     * @return Bit length of the keys this generator produces
+     */
+    public int getBitLength() {
+        return bitLength;
+    }
+
+    /**
+     * Generates a key, recording how long it took in {@link Metrics#KEY_GENERATION}.
+     *
+     * @return The key
+     */
+    @Override
+    public RSAKey generateKey() {
+        long start = System.nanoTime();
+        int pBits = (bitLength + 1) / 2;
+        int qBits = bitLength - pBits;
+        while (true) {
+            BigInteger p = BigInteger.probablePrime(pBits, random);
+            BigInteger q = BigInteger.probablePrime(qBits, random);
+            if (p.equals(q))
+                continue;
+            BigInteger n = p.multiply(q);
+            if (n.bitLength() != bitLength)
+                continue;
+            // t = lcm(p-1, q-1) = (p-1)(q-1) / gcd(p-1, q-1)
+            BigInteger a = p.subtract(BigInteger.ONE);
+            BigInteger b = q.subtract(BigInteger.ONE);
+            BigInteger t = a.divide(a.gcd(b)).multiply(b);
+            // e must be coprime to t, otherwise pick new primes
+            if (!PUBLIC_EXPONENT.gcd(t).equals(BigInteger.ONE))
+                continue;
+            BigInteger d = PUBLIC_EXPONENT.modInverse(t);
+            RSAKey key = new RSAKey(p, q, PUBLIC_EXPONENT, d);
+            Metrics.KEY_GENERATION.recordSince(start);
+            return key;
+        }
+    }
+}
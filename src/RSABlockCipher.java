@@ -0,0 +1,369 @@
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts byte arrays with RSA by splitting them into blocks, each padded with OAEP (SHA-256 and MGF1 with SHA-256),
+ * so encrypting the same bytes twice gives different ciphertexts and a block cannot be altered undetected. Each block
+ * holds up to {@link #getPlainBlockSize()} plaintext bytes, which is the byte length of the modulus less
+ * {@link #OAEP_OVERHEAD}, e.g. 190 bytes for a 2048-bit key. Every ciphertext block is exactly as wide as the modulus,
+ * and the message starts with a 4-byte plaintext length so the final, partial block can be checked. A session key
+ * is instead wrapped with {@link #wrap(Key)} as a single block with no header.
+ * <p>
+ * Blocks are independent, so a message longer than the parallel threshold is decrypted with its blocks split across a
+ * {@code ForkJoinPool}. The JCE decrypts each block with the CRT either way, from an {@code RSAPrivateCrtKeySpec} built
+ * from the key's factors, and the output is byte-for-byte the same as decrypting sequentially. Like a {@code Cipher},
+ * an instance is not thread-safe.
+ * <p>
+ * The parallel path is for library callers with long RSA messages. The game itself never decrypts one: RSA only
+ * carries the session key, one block, and clients' frames are capped at
+ * {@link NetworkPlayer#MAX_CLIENT_FRAME_LENGTH}, well under {@link #DEFAULT_PARALLEL_THRESHOLD}.
+ * <p>
+ * Decryption writes into a caller-supplied buffer, and the sequential path reuses one {@code Cipher} and the
+ * one-block buffer it decrypts into, so this class allocates nothing per block; the parallel path makes a
+ * {@code Cipher} for each task of two or three blocks. The JCE still allocates: the {@code BigInteger}s of the CRT
+ * exponentiation, the padded block and the MGF1 mask come to about 150 times the block width per block, e.g. 40 KB
+ * for a 2048-bit key. The aim of near-zero allocation per decrypted byte was given up for OAEP.
+ */
+public class RSABlockCipher {
+    /**
+     * Encrypted messages longer than this many bytes are decrypted in parallel unless
+     * {@link #setParallelThreshold(int)} says otherwise. Below it, handing blocks to other threads costs more than it
+     * saves.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 8192;
+    /**
+     * Bytes of each block taken up by the OAEP padding: two SHA-256 hashes and two more bytes.
+     */
+    public static final int OAEP_OVERHEAD = 2 * 32 + 2;
+    /**
+     * Smallest number of blocks handed to one parallel task.
+     */
+    private static final int MIN_BLOCKS_PER_TASK = 2;
+
+    private static final String TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final OAEPParameterSpec OAEP = new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256,
+            PSource.PSpecified.DEFAULT);
+
+    private final PublicKey publicKey;
+    private final PrivateKey privateKey;
+    private final int blockWidth;
+    private final int plainBlockSize;
+    private Cipher encryptCipher;
+    /**
+     * Decrypting {@code Cipher} of the sequential path, made on first use.
+     */
+    private Cipher decryptCipher;
+    /**
+     * Block the sequential path decrypts into: the cipher insists on room for a whole block, which is more than the
+     * plaintext needs.
+     */
+    private byte[] decryptBlock;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Creates an encrypt-only cipher from a public key.
+     *
+     * @param publicKey Public exponent
+     * @param modulus   Modulus
+     * @throws IllegalArgumentException if the modulus is too small for one byte per OAEP block
+     */
+    public RSABlockCipher(BigInteger publicKey, BigInteger modulus) {
+        this(publicKey, modulus, null);
+    }
+
+    /**
+     * Creates a cipher that can both encrypt and decrypt.
+     *
+     * @param key RSA key pair
+     * @throws IllegalArgumentException if the modulus is too small for one byte per OAEP block
+     */
+    public RSABlockCipher(RSAKey key) {
+        this(key.getPublicKey(), key.getModulus(), key);
+    }
+
+    private RSABlockCipher(BigInteger publicKey, BigInteger modulus, RSAKey key) {
+        this.blockWidth = (modulus.bitLength() + 7) / 8;
+        this.plainBlockSize = blockWidth - OAEP_OVERHEAD;
+        if (plainBlockSize < 1)
+            throw new IllegalArgumentException("Modulus too small for OAEP: " + modulus.bitLength() + " bits");
+        try {
+            KeyFactory factory = KeyFactory.getInstance("RSA");
+            this.publicKey = factory.generatePublic(new RSAPublicKeySpec(modulus, publicKey));
+            this.privateKey = key == null ? null : factory.generatePrivate(new RSAPrivateCrtKeySpec(modulus,
+                    publicKey, key.getPrivateKey(), key.getP(), key.getQ(), key.getDp(), key.getDq(), key.getQInv()));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid RSA key", e);
+        }
+    }
+
+    /**
+     * @return Width in bytes of each ciphertext block
+     */
+    public int getBlockWidth() {
+        return blockWidth;
+    }
+
+    /**
+     * @return Number of plaintext bytes packed into each block
+     */
+    public int getPlainBlockSize() {
+        return plainBlockSize;
+    }
+
+    /**
+     * @return Length in bytes above which encrypted messages are decrypted in parallel
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @param parallelThreshold Length in bytes above which encrypted messages are decrypted in parallel, or
+     *                          {@code Integer.MAX_VALUE} to always decrypt on the calling thread
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * @param pool Pool to decrypt long messages on, instead of the common pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param plainLength Length of a plaintext message
+     * @return Length of the encrypted message
+     */
+    public int getEncryptedLength(int plainLength) {
+        return 4 + blockCount(plainLength) * blockWidth;
+    }
+
+    /**
+     * Encrypts a message with the public key.
+     *
+     * @param data Plaintext
+     * @return Length header followed by fixed-width ciphertext blocks
+     */
+    public byte[] encrypt(byte[] data) {
+        byte[] encrypted = new byte[getEncryptedLength(data.length)];
+        ByteBuffer.wrap(encrypted).putInt(data.length);
+        if (encryptCipher == null)
+            encryptCipher = newCipher(Cipher.ENCRYPT_MODE, publicKey);
+        int out = 4;
+        try {
+            for (int off = 0; off < data.length; off += plainBlockSize) {
+                int len = Math.min(plainBlockSize, data.length - off);
+                out += encryptCipher.doFinal(data, off, len, encrypted, out);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("RSA encryption failed", e);
+        }
+        return encrypted;
+    }
+
+    /**
+     * Wraps a secret key with the public key, as one OAEP block.
+     *
+     * @param key Key to wrap, whose encoding fits in one block
+     * @return The wrapped key, {@link #getBlockWidth()} bytes
+     */
+    public byte[] wrap(Key key) {
+        try {
+            Cipher cipher = newCipher(Cipher.WRAP_MODE, publicKey);
+            return cipher.wrap(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot wrap key", e);
+        }
+    }
+
+    /**
+     * Unwraps a secret key wrapped by {@link #wrap(Key)}.
+     *
+     * @param wrapped   Buffer holding the wrapped key
+     * @param offset    Start of the wrapped key
+     * @param length    Length of the wrapped key, which must be {@link #getBlockWidth()}
+     * @param algorithm Algorithm of the key, e.g. {@code AES}
+     * @return The key
+     * @throws IllegalArgumentException if the wrapped key is not one block or its padding is invalid
+     * @throws IllegalStateException    if this cipher has no private key
+     */
+    public Key unwrap(byte[] wrapped, int offset, int length, String algorithm) {
+        if (privateKey == null)
+            throw new IllegalStateException("No private key");
+        if (length != blockWidth)
+            throw new IllegalArgumentException("Wrapped key is " + length + " bytes, not one block");
+        Cipher cipher = newCipher(Cipher.UNWRAP_MODE, privateKey);
+        try {
+            return cipher.unwrap(Arrays.copyOfRange(wrapped, offset, offset + length), algorithm, Cipher.SECRET_KEY);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid wrapped key", e);
+        }
+    }
+
+    /**
+     * Decrypts a message produced by {@link #encrypt(byte[])}.
+     *
+     * @param encrypted Length header followed by fixed-width ciphertext blocks
+     * @return Plaintext
+     * @throws IllegalArgumentException if the message is malformed
+     * @throws IllegalStateException    if this cipher has no private key
+     */
+    public byte[] decrypt(byte[] encrypted) {
+        byte[] data = new byte[getDecryptedLength(encrypted, 0, encrypted.length)];
+        decrypt(encrypted, 0, encrypted.length, data, 0);
+        return data;
+    }
+
+    /**
+     * Reads the plaintext length from the header of an encrypted message and checks it against the message length.
+     *
+     * @param encrypted Buffer holding the encrypted message
+     * @param offset    Start of the message
+     * @param length    Length of the message
+     * @return Length of the plaintext
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public int getDecryptedLength(byte[] encrypted, int offset, int length) {
+        if (length < 4)
+            throw new IllegalArgumentException("Encrypted message too short");
+        int plainLength = ((encrypted[offset] & 0xFF) << 24) | ((encrypted[offset + 1] & 0xFF) << 16)
+                | ((encrypted[offset + 2] & 0xFF) << 8) | (encrypted[offset + 3] & 0xFF);
+        if (plainLength < 0 || (long) length != 4 + (long) blockCount(plainLength) * blockWidth)
+            throw new IllegalArgumentException("Encrypted message has invalid length");
+        return plainLength;
+    }
+
+    /**
+     * Decrypts a message in place in its buffer, reading each fixed-width block where it lies and writing the
+     * plaintext into a caller-supplied buffer.
+     *
+     * @param encrypted Buffer holding the length header followed by fixed-width ciphertext blocks
+     * @param offset    Start of the message
+     * @param length    Length of the message
+     * @param out       Buffer to write the plaintext to
+     * @param outOffset Where to start writing in {@code out}
+     * @return Length of the plaintext
+     * @throws IllegalArgumentException if the message is malformed or {@code out} is too small
+     * @throws IllegalStateException    if this cipher has no private key
+     */
+    public int decrypt(byte[] encrypted, int offset, int length, byte[] out, int outOffset) {
+        if (privateKey == null)
+            throw new IllegalStateException("No private key");
+        int plainLength = getDecryptedLength(encrypted, offset, length);
+        if (out.length - outOffset < plainLength)
+            throw new IllegalArgumentException("Output buffer too small for " + plainLength + " bytes");
+        int blocks = blockCount(plainLength);
+        if (length > parallelThreshold && blocks >= 2 * MIN_BLOCKS_PER_TASK && pool.getParallelism() > 1)
+            pool.invoke(new DecryptTask(encrypted, offset + 4, plainLength, out, outOffset, 0, blocks));
+        else {
+            if (decryptCipher == null) {
+                decryptCipher = newCipher(Cipher.DECRYPT_MODE, privateKey);
+                decryptBlock = new byte[blockWidth];
+            }
+            decryptBlocks(decryptCipher, decryptBlock, encrypted, offset + 4, plainLength, out, outOffset, 0, blocks);
+        }
+        return plainLength;
+    }
+
+    /**
+     * Decrypts blocks {@code from} to {@code to} of a message whose blocks start at {@code in}.
+     *
+     * @param cipher Decrypting cipher, used by no other thread meanwhile
+     * @param block  Buffer of {@link #getBlockWidth()} bytes to decrypt each block into
+     * @throws IllegalArgumentException if a block's padding is invalid or it does not hold as many bytes as its slot
+     */
+    private void decryptBlocks(Cipher cipher, byte[] block, byte[] encrypted, int in, int plainLength, byte[] out,
+                               int outOffset, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int off = i * plainBlockSize;
+            int len = Math.min(plainBlockSize, plainLength - off);
+            int decrypted;
+            try {
+                decrypted = cipher.doFinal(encrypted, in + i * blockWidth, blockWidth, block, 0);
+            } catch (BadPaddingException | IllegalBlockSizeException e) {
+                throw new IllegalArgumentException("Invalid block " + i, e);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+            if (decrypted != len)
+                throw new IllegalArgumentException("Decrypted block does not fit its slot");
+            System.arraycopy(block, 0, out, outOffset + off, len);
+        }
+    }
+
+    private Cipher newCipher(int mode, Key key) {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, key, OAEP);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("RSA with OAEP is not available", e);
+        }
+    }
+
+    /**
+     * Splits a range of blocks in half until each piece is small enough to decrypt on one thread. Every block is
+     * written to its own slot of the output, so the pieces never touch the same bytes, and each piece decrypts with
+     * a {@code Cipher} of its own, which it drops when done.
+     */
+    private class DecryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] encrypted;
+        private final int in;
+        private final int plainLength;
+        private final byte[] out;
+        private final int outOffset;
+        private final int from;
+        private final int to;
+
+        DecryptTask(byte[] encrypted, int in, int plainLength, byte[] out, int outOffset, int from, int to) {
+            this.encrypted = encrypted;
+            this.in = in;
+            this.plainLength = plainLength;
+            this.out = out;
+            this.outOffset = outOffset;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < 2 * MIN_BLOCKS_PER_TASK) {
+                decryptBlocks(newCipher(Cipher.DECRYPT_MODE, privateKey), new byte[blockWidth], encrypted, in,
+                        plainLength, out, outOffset, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DecryptTask(encrypted, in, plainLength, out, outOffset, from, middle),
+                    new DecryptTask(encrypted, in, plainLength, out, outOffset, middle, to));
+        }
+    }
+
+    private int blockCount(int plainLength) {
+        return (plainLength + plainBlockSize - 1) / plainBlockSize;
+    }
+}
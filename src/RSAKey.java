@@ -0,0 +1,67 @@
+import java.math.BigInteger;
+
+/**
+ * An RSA key pair, along with the Chinese Remainder Theorem parameters used to speed up decryption. The arithmetic
+ * itself is left to {@link RSABlockCipher}, which hands all of them to the JCE.
+ */
+public class RSAKey {
+    private final BigInteger p;
+    private final BigInteger q;
+    private final BigInteger modulus;
+    private final BigInteger publicKey;
+    private final BigInteger privateKey;
+    private final BigInteger dp;
+    private final BigInteger dq;
+    private final BigInteger qInv;
+
+    /**
+     * Creates a key from its two primes and exponents, and precomputes the CRT parameters.
+     *
+     * @param p          First prime
+     * @param q          Second prime
+     * @param publicKey  Public exponent
+     * @param privateKey Private exponent
+     */
+    public RSAKey(BigInteger p, BigInteger q, BigInteger publicKey, BigInteger privateKey) {
+        this.p = p;
+        this.q = q;
+        this.modulus = p.multiply(q);
+        this.publicKey = publicKey;
+        this.privateKey = privateKey;
+        this.dp = privateKey.mod(p.subtract(BigInteger.ONE));
+        this.dq = privateKey.mod(q.subtract(BigInteger.ONE));
+        this.qInv = q.modInverse(p);
+    }
+
+    public BigInteger getP() {
+        return p;
+    }
+
+    public BigInteger getQ() {
+        return q;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    public BigInteger getPublicKey() {
+        return publicKey;
+    }
+
+    public BigInteger getPrivateKey() {
+        return privateKey;
+    }
+
+    public BigInteger getDp() {
+        return dp;
+    }
+
+    public BigInteger getDq() {
+        return dq;
+    }
+
+    public BigInteger getQInv() {
+        return qInv;
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local file holding RSA keys between server restarts. The file is a list of entries, each an activation time and
+ * the key's primes and exponents; the CRT parameters are recomputed on load. It is read with a memory-mapped read and
+ * replaced atomically on every save, and it is only readable by its owner where the file system allows.
+ */
+public class RSAKeyStore {
+    private static final int MAGIC = 0x5250534B; // "RPSK"
+    private static final int VERSION = 1;
+
+    private final Path file;
+
+    /**
+     * A stored key and the time it became the server's current key, or 0 for a key that has not been used yet.
+     */
+    public static class Entry {
+        private final RSAKey key;
+        private final long activatedMillis;
+
+        public Entry(RSAKey key, long activatedMillis) {
+            this.key = key;
+            this.activatedMillis = activatedMillis;
+        }
+
+        public RSAKey getKey() {
+            return key;
+        }
+
+        public long getActivatedMillis() {
+            return activatedMillis;
+        }
+    }
+
+    /**
+     * @param file Path of the key store file
+     */
+    public RSAKeyStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return Path of the key store file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Reads every entry in the file.
+     *
+     * @return The entries in the order they were saved, or an empty list if the file does not exist
+     * @throws IOException if the file cannot be read or is not a key store
+     */
+    public List<Entry> load() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException(file + " is not a key store");
+            int count = buffer.getInt();
+            if (count < 0)
+                throw new IOException(file + " is corrupt: " + count + " entries");
+            for (int i = 0; i < count; i++) {
+                long activatedMillis = buffer.getLong();
+                BigInteger p = readNumber(buffer);
+                BigInteger q = readNumber(buffer);
+                BigInteger e = readNumber(buffer);
+                BigInteger d = readNumber(buffer);
+                entries.add(new Entry(new RSAKey(p, q, e, d), activatedMillis));
+            }
+        } catch (NoSuchFileException e) {
+            return entries;
+        } catch (BufferUnderflowException | IllegalArgumentException | ArithmeticException e) {
+            throw new IOException(file + " is corrupt", e);
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the contents of the file with the given entries.
+     *
+     * @param entries Entries to save
+     * @throws IOException
+     */
+    public void save(List<Entry> entries) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+                // Not a POSIX file system
+            }
+            try (OutputStream stream = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(stream)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    out.writeLong(entry.getActivatedMillis());
+                    writeNumber(out, entry.getKey().getP());
+                    writeNumber(out, entry.getKey().getQ());
+                    writeNumber(out, entry.getKey().getPublicKey());
+                    writeNumber(out, entry.getKey().getPrivateKey());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static BigInteger readNumber(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining())
+            throw new IOException("Invalid number length in key store: " + length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new BigInteger(1, bytes);
+    }
+
+    private static void writeNumber(DataOutputStream out, BigInteger value) throws IOException {
+        byte[] bytes = value.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Per-connection rate limit on the frames read from a peer, as two token buckets: one of frames and one of bytes. Each
+ * bucket holds up to one second's worth of tokens and refills continuously, so a peer can burst that much and then
+ * keeps to the rate. Not thread-safe: a connection only reads on one thread at a time.
+ */
+public class RateLimiter {
+    /**
+     * Frames a second a server accepts from each client unless told otherwise. Far more than a person or a bot playing
+     * at full speed sends, and little enough that one client cannot take a noticeable share of a reactor.
+     */
+    public static final int DEFAULT_FRAMES_PER_SECOND = 1000;
+    /**
+     * Bytes a second allowed per frame a second when only a frame rate is given.
+     */
+    public static final int BYTES_PER_FRAME = 64;
+    /**
+     * Highest frame rate whose {@link #bytesPerSecond(int)} still fits in an {@code int}.
+     */
+    public static final int MAX_FRAMES_PER_SECOND = Integer.MAX_VALUE / BYTES_PER_FRAME;
+
+    private final double framesPerNano;
+    private final double bytesPerNano;
+    private final double maxFrames;
+    private final double maxBytes;
+    private double frames;
+    private double bytes;
+    private long lastNanos = System.nanoTime();
+
+    /**
+     * Creates a new {@code RateLimiter} with full buckets.
+     *
+     * @param framesPerSecond Frames a second
+     * @param bytesPerSecond  Bytes a second, frame headers included
+     */
+    public RateLimiter(int framesPerSecond, int bytesPerSecond) {
+        if (framesPerSecond < 1 || bytesPerSecond < 1)
+            throw new IllegalArgumentException("Rate limits must be positive");
+        framesPerNano = framesPerSecond / 1e9;
+        bytesPerNano = bytesPerSecond / 1e9;
+        maxFrames = frames = framesPerSecond;
+        maxBytes = bytes = bytesPerSecond;
+    }
+
+    /**
+     * @param framesPerSecond Frames a second, at most {@link #MAX_FRAMES_PER_SECOND}
+     * @return Bytes a second to allow alongside that many frames a second
+     * @throws ArithmeticException if the byte rate does not fit in an {@code int}
+     */
+    public static int bytesPerSecond(int framesPerSecond) {
+        return Math.multiplyExact(framesPerSecond, BYTES_PER_FRAME);
+    }
+
+    /**
+     * Takes the tokens for one frame if both buckets have enough. A frame larger than the byte bucket only has to
+     * wait for it to fill.
+     *
+     * @param length Length of the frame, header included
+     * @param now    {@code System.nanoTime()}
+     * @return 0 if the frame was let through, otherwise how long to wait before trying again, in nanoseconds
+     */
+    public long acquire(int length, long now) {
+        frames = Math.min(maxFrames, frames + (now - lastNanos) * framesPerNano);
+        bytes = Math.min(maxBytes, bytes + (now - lastNanos) * bytesPerNano);
+        lastNanos = now;
+        double cost = Math.min(length, maxBytes);
+        if (frames >= 1 && bytes >= cost) {
+            frames -= 1;
+            bytes -= cost;
+            return 0;
+        }
+        double wait = Math.max((1 - frames) / framesPerNano, (cost - bytes) / bytesPerNano);
+        return Math.max(1, (long) Math.ceil(wait));
+    }
+}
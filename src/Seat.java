@@ -0,0 +1,37 @@
+import java.io.IOException;
+
+/**
+ * One side of a match, as seen by the referee. A seat is either a person at the local console or a remote client
+ * connected to a {@code Server}.
+ */
+public interface Seat {
+    /**
+     * Tells the player that a move is wanted. Must not block waiting for the move.
+     *
+     * @throws IOException
+     */
+    void promptMove() throws IOException;
+
+    /**
+     * Waits for the move asked for by {@link #promptMove()}.
+     *
+     * @return 1, 2, or 3
+     * @throws IOException
+     */
+    int readMove() throws IOException;
+
+    /**
+     * Tells the player how the round went.
+     *
+     * @param result {@code NetworkPlayer.WIN}, {@code NetworkPlayer.LOSE}, or {@code NetworkPlayer.TIE}
+     * @throws IOException
+     */
+    void sendResult(int result) throws IOException;
+
+    /**
+     * Tells the player that the match is over.
+     *
+     * @throws IOException
+     */
+    void end() throws IOException;
+}
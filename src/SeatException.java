@@ -0,0 +1,27 @@
+import java.io.IOException;
+
+/**
+ * Thrown by {@link Match#play(Seat, Seat, Match)} when one of the seats fails or sends an invalid move, saying which
+ * one, so the other can be given the match by forfeit.
+ */
+public class SeatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int side;
+
+    /**
+     * @param side  Side of the seat that failed
+     * @param cause What went wrong
+     */
+    public SeatException(int side, Throwable cause) {
+        super("Seat " + side + " failed: " + cause.getMessage(), cause);
+        this.side = side;
+    }
+
+    /**
+     * @return Side of the seat that failed, 0 or 1
+     */
+    public int getSide() {
+        return side;
+    }
+}
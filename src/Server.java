@@ -1,101 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Console;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.net.SocketTimeoutException;
+import java.net.URI;
 
 /**
  * This class is the server side of the game. It opens a socket connection which the client accepts, and runs the game,
- * as well as participating as a player.
+ * as well as participating as a player. It is also the {@code Seat} through which the referee talks to the client.
  *
  * @author grrdozier
  */
-public class Server extends NetworkPlayer {
-    private ServerSocket socket;
+public class Server extends NetworkPlayer implements Seat {
+    private Transport.Listener listener;
+    private Transport client;
     private DataOutputStream out_data;
     private DataInputStream in_data;
-    private BigInteger publicKey;
-    private BigInteger privateKey;
-    private BigInteger modulus;
+    private final KeyGenerator keyGenerator;
+    private RSAKey key;
+    private RSABlockCipher cipher;
+    private int bestOf = 1;
+    private int playerId;
 
     /**
      * Creates a new {@code Server} instance, opens up a socket connection over the given port number, waits for the
-     * client to connect, then sends the encryption key to the client.
+     * client to connect, sends the encryption key to the client, then receives the session key from the client.
      *
      * @param portNumber   Port number for socket connection
      * @throws IOException
      */
     public Server(int portNumber) throws IOException {
+        this(portNumber, new ProbablePrimeKeyGenerator());
+    }
+
+    /**
+     * Creates a new {@code Server} instance that uses the given {@code KeyGenerator} for its RSA key, then connects to
+     * the client as in {@link #Server(int)}.
+     *
+     * @param portNumber   Port number for socket connection
+     * @param keyGenerator Generator for the RSA key
+     * @throws IOException
+     */
+    public Server(int portNumber, KeyGenerator keyGenerator) throws IOException {
+        this(new TcpTransport.Listener(portNumber), keyGenerator);
+    }
+
+    /**
+     * Creates a new {@code Server} instance that listens at a URI, such as {@code tcp://0.0.0.0:port},
+     * {@code unix:/path/to/socket} or {@code mem://name}, then connects to the first client as in
+     * {@link #Server(int)}.
+     *
+     * @param address      Address to listen at, as described in {@link Transport}
+     * @param keyGenerator Generator for the RSA key
+     * @throws IOException
+     */
+    public Server(URI address, KeyGenerator keyGenerator) throws IOException {
+        this(Transport.listen(address), keyGenerator);
+    }
+
+    private Server(Transport.Listener listener, KeyGenerator keyGenerator) throws IOException {
+        this.keyGenerator = keyGenerator;
+        this.listener = listener;
         computeKey();
-        socket = new ServerSocket(portNumber);
-        Socket client = socket.accept();
+        MainServer.reportTimeToFirstAccept();
+        Transport client = listener.accept();
         System.out.println("Connected!");
-        client.setSoTimeout(20000);
-        in_data = new DataInputStream(client.getInputStream());
-        out_data = new DataOutputStream(client.getOutputStream());
-        write("KEY: " + getPublicKey());
-        write("MOD: " + getModulus());
+        connect(client, PROTOCOL_COMMIT_REVEAL);
         System.out.println("Key sent to client...");
+        System.out.println("Session key received...");
     }
 
     /**
-     * Computes RSA key from two hard-coded prime numbers.
+     * Creates a new {@code Server} instance for a client that has already been accepted, e.g. by
+     * {@code ThreadedMatchServer}, and runs the key exchange with it. The server only referees, so commit-reveal is
+     * not offered.
+     *
+     * @param client Accepted client socket
+     * @param key    RSA key to send to the client
+     * @throws IOException
      */
-    public void computeKey() {
-        System.out.print("Computing Encryption Key...");
-        // Two prime numbers.
-        final BigInteger p = BigInteger.valueOf(45481);
-        final BigInteger q = BigInteger.valueOf(45691);
-        // Will find this many possible exponents before settling on one (otherwise the exponents would always be 1)
-        final int securityPublic = 5;
-        final int securityPrivate = 1;
-        // Modulus
-        BigInteger n = p.multiply(q);
-        // Find totient t = lcm(p-1, q-1) = lcm(a, b)
-        BigInteger t = BigInteger.ZERO;
-        BigInteger k = BigInteger.ONE;
-        BigInteger l = BigInteger.ONE;
-        BigInteger a = p.subtract(BigInteger.ONE);
-        BigInteger b = q.subtract(BigInteger.ONE);
-        while (t.equals(BigInteger.ZERO)) {
-            if (a.multiply(k).equals(b.multiply(l)))
-                t = a.multiply(k);
-            else if (k.multiply(a).min(l.multiply(b)).equals(k.multiply(a)))
-                k = k.add(BigInteger.ONE);
-            else
-                l = l.add(BigInteger.ONE);
-        }
-        System.out.print(".");
-        // Find public exponent e coprime to t
-        BigInteger e = BigInteger.ZERO;
-        int securityCountPublic = 0;
-        while (e.equals(BigInteger.ZERO)) {
-            for (BigInteger i = BigInteger.ONE; i.compareTo(t) < 0; i = i.add(BigInteger.ONE)) {
-                e = i.gcd(t).equals(BigInteger.ONE) && ++securityCountPublic == securityPublic ? i : e;
-                if (!e.equals(BigInteger.ZERO))
-                    i = t;
-            }
-        }
-        System.out.print(".");
-        // Find private exponent d st de % t == 1
-        BigInteger d = BigInteger.ZERO;
-        int securityCountPrivate = 0;
-        boolean found = false;
-        while (!found) {
-            d = d.add(BigInteger.ONE);
-            found = d.multiply(e).mod(t).equals(BigInteger.ONE) && ++securityCountPrivate == securityPrivate;
-        }
-        System.out.print(".");
+    public Server(Socket client, RSAKey key) throws IOException {
+        this(new TcpTransport(client), key, PROTOCOL_BINARY);
+    }
+
+    /**
+     * Creates a new {@code Server} instance for a client that has already been accepted, and runs the key exchange
+     * with it.
+     *
+     * @param client             Accepted client socket
+     * @param key                RSA key to send to the client
+     * @param maxProtocolVersion Newest protocol version to agree to
+     * @throws IOException
+     */
+    public Server(Socket client, RSAKey key, int maxProtocolVersion) throws IOException {
+        this(new TcpTransport(client), key, maxProtocolVersion);
+    }
+
+    /**
+     * Creates a new {@code Server} instance for a client accepted over any transport, and runs the key exchange with
+     * it.
+     *
+     * @param client             Transport of the accepted client
+     * @param key                RSA key to send to the client
+     * @param maxProtocolVersion Newest protocol version to agree to
+     * @throws IOException
+     */
+    public Server(Transport client, RSAKey key, int maxProtocolVersion) throws IOException {
+        this.keyGenerator = () -> key;
+        this.key = key;
+        this.cipher = new RSABlockCipher(key);
+        connect(client, maxProtocolVersion);
+    }
 
-        modulus = n;
-        publicKey = e;
-        privateKey = d;
+    /**
+     * Agrees on a protocol version with the client, sends the encryption key to the client, then receives the
+     * session key from the client. A client sends its side of the handshake without waiting on anyone, so until the
+     * session key is in, each read waits for the frame timeout rather than the idle timeout: a connection that sends
+     * nothing only holds this thread briefly.
+     */
+    private void connect(Transport client, int maxProtocolVersion) throws IOException {
+        this.client = client;
+        long idleTimeout = getIdleTimeout();
+        setIdleTimeout(Math.max(8, Math.min(idleTimeout, getFrameTimeout())));
+        in_data = new DataInputStream(new BufferedInputStream(client.getInputStream(), STREAM_BUFFER_SIZE));
+        out_data = new DataOutputStream(new BufferedOutputStream(client.getOutputStream(), STREAM_BUFFER_SIZE));
+        // The client asks for the newest version it knows; answer with the newest version both sides know
+        int version = Math.min(readHello(), maxProtocolVersion);
+        if (!isSupportedProtocol(version))
+            throw new IOException("Client asked for unsupported protocol version " + version);
+        boolean keepAlive = (getHelloFlags() & FLAG_KEEP_ALIVE) != 0 && version != PROTOCOL_TEXT;
+        boolean batchFrames = (getHelloFlags() & FLAG_BATCH_FRAMES) != 0 && version != PROTOCOL_TEXT;
+        beginBatch();
+        writeHello(version, (keepAlive ? FLAG_KEEP_ALIVE : 0) | (batchFrames ? FLAG_BATCH_FRAMES : 0));
+        setProtocolVersion(version);
+        writeNumber(KEY, getPublicKey());
+        writeNumber(MOD, getModulus());
+        endBatch();
+        // The session key is wrapped as one block, so a longer frame is rejected before it is read
+        int length = readEncryptedFrame(cipher.getBlockWidth());
+        try {
+            long start = System.nanoTime();
+            byte[] sessionKey = cipher.unwrap(getFrameBuffer(), 0, length, "AES").getEncoded();
+            Metrics.RSA_DECRYPT.recordSince(start);
+            setSessionCipher(new SessionCipher(sessionKey, false));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid session key from client", e);
+        }
+        setIdleTimeout(idleTimeout);
+        setKeepAlive(keepAlive);
+        setBatchFrames(batchFrames);
+    }
 
+    /**
+     * Computes RSA key using this server's {@code KeyGenerator}.
+     */
+    public void computeKey() {
+        System.out.print("Computing Encryption Key...");
+        key = keyGenerator.generateKey();
+        cipher = new RSABlockCipher(key);
         System.out.print("Done." + System.lineSeparator());
     }
 
@@ -104,7 +171,7 @@ public class Server extends NetworkPlayer {
      */
     @Override
     public BigInteger getModulus() {
-        return modulus;
+        return key == null ? null : key.getModulus();
     }
 
     /**
@@ -112,14 +179,21 @@ public class Server extends NetworkPlayer {
      */
     @Override
     public BigInteger getPublicKey() {
-        return publicKey;
+        return key == null ? null : key.getPublicKey();
     }
 
     /**
      * @return RSA Private Exponent
      */
     public BigInteger getPrivateKey() {
-        return privateKey;
+        return key == null ? null : key.getPrivateKey();
+    }
+
+    /**
+     * @return RSA key, including the CRT parameters
+     */
+    public RSAKey getKey() {
+        return key;
     }
 
     /**
@@ -138,109 +212,275 @@ public class Server extends NetworkPlayer {
         return out_data;
     }
 
+    @Override
+    protected void setSocketTimeout(int millis) throws IOException {
+        client.setReadTimeout(millis);
+    }
+
+    @Override
+    protected void abortConnection() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Waits after END for the client to ask for a rematch over this connection.
+     *
+     * @return {@code true} if the client sent REMATCH, {@code false} if keep-alive is off or the client left
+     * @throws IOException if the client sends anything else or times out
+     */
+    public boolean awaitRematch() throws IOException {
+        if (!isKeepAlive())
+            return false;
+        int opcode;
+        try {
+            opcode = readMessage();
+        } catch (EOFException e) {
+            return false;
+        }
+        return isRematch(opcode);
+    }
+
+    /**
+     * Waits after END for the client to ask for a rematch, as {@link #awaitRematch()}, but for no longer than the
+     * given time however many heartbeats the client sends, so a client that keeps the connection alive without
+     * playing does not hold this thread for good.
+     *
+     * @param timeoutMillis Longest time to wait for REMATCH
+     * @return {@code true} if the client sent REMATCH in time, {@code false} if keep-alive is off, the client left or
+     * the time ran out
+     * @throws IOException if the client sends anything else
+     */
+    public boolean awaitRematch(long timeoutMillis) throws IOException {
+        if (!isKeepAlive())
+            return false;
+        int opcode;
+        try {
+            opcode = readMessage(System.nanoTime() + timeoutMillis * 1_000_000L);
+        } catch (EOFException | SocketTimeoutException e) {
+            return false;
+        }
+        return isRematch(opcode);
+    }
+
+    private boolean isRematch(int opcode) throws IOException {
+        if (opcode == REMATCH)
+            return true;
+        if (opcode == END)
+            return false;
+        throw new IOException("Unexpected message with opcode " + opcode);
+    }
+
     /**
-     * Closes the socket connection
+     * Closes the socket connection, and the listening socket if this server opened one
      *
      * @throws IOException
      */
     @Override
     public void close() throws IOException {
-        socket.close();
+        stopHeartbeats();
+        releaseFrame();
+        client.close();
+        if (listener != null)
+            listener.close();
     }
 
     /**
-     * If an RSA key exists, decrypts the incoming data and then passes the decrypted bytes to the super method.
-     * Otherwise, simply calls the super method
+     * If an RSA key exists but no session key has been negotiated yet, decrypts the incoming RSA blocks and returns
+     * the plaintext. Otherwise, simply calls the super method
      *
      * @return {@code byte} array of data from the {@code DataInputStream}
      * @throws IOException
      */
     @Override
     public byte[] readBytes() throws IOException {
-        if (getPublicKey() != null && getModulus() != null) {
-            int splitFactor = getDataInputStream().readInt();
-            byte[] encryptedBytes = super.readBytes();
-            BigInteger[] encryptedInts = new BigInteger[encryptedBytes.length / splitFactor];
-            // Merge bytes back into BigIntegers
-            for (int i = 0; i < encryptedBytes.length; i += splitFactor) {
-                byte[] bytes = Arrays.copyOfRange(encryptedBytes, i, i + splitFactor);
-                // Truncate empty bytes
-                int j = 0;
-                do
-                    j++;
-                while (j < bytes.length && bytes[j] != 0);
-                bytes = Arrays.copyOfRange(bytes, 0, j);
-                encryptedInts[i / splitFactor] = new BigInteger(bytes);
-            }
-            // Decrypt the BigIntegers
-            byte[] decryptedBytes = new byte[encryptedInts.length];
-            for (int i = 0; i < decryptedBytes.length; i++)
-                decryptedBytes[i] = encryptedInts[i].modPow(getPrivateKey(), getModulus()).byteValueExact();
-            return decryptedBytes;
-        }
+        if (getSessionCipher() == null && getKey() != null)
+            return readRSA(getMaxFrameLength());
         else return super.readBytes();
     }
 
     /**
-     * Starts a rock-paper-scissors game with the client, then closes the socket when the game is over.
+     * Reads and decrypts one RSA-encrypted message.
+     *
+     * @param maxLength Largest frame to accept
+     */
+    private byte[] readRSA(int maxLength) throws IOException {
+        int length = readEncryptedFrame(maxLength);
+        try {
+            long start = System.nanoTime();
+            byte[] data = new byte[cipher.getDecryptedLength(getFrameBuffer(), 0, length)];
+            cipher.decrypt(getFrameBuffer(), 0, length, data, 0);
+            Metrics.RSA_DECRYPT.recordSince(start);
+            return data;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed encrypted message", e);
+        }
+    }
+
+    /**
+     * Reads one RSA-encrypted message and decrypts it straight out of the frame buffer into the given buffer, so no
+     * intermediate arrays are allocated.
+     *
+     * @param out    Buffer for the plaintext, at least as large as the frame
+     * @param offset Where to start writing in {@code out}
+     * @return Length of the plaintext
+     * @throws IOException if the message is malformed or {@code out} is too small
+     */
+    public int readDecrypted(byte[] out, int offset) throws IOException {
+        int length = readEncryptedFrame(getMaxFrameLength());
+        try {
+            long start = System.nanoTime();
+            int decrypted = cipher.decrypt(getFrameBuffer(), 0, length, out, offset);
+            Metrics.RSA_DECRYPT.recordSince(start);
+            return decrypted;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed encrypted message", e);
+        }
+    }
+
+    /**
+     * Reads the block width and an RSA-encrypted frame into the frame buffer. The block width must be this key's,
+     * which is checked before the frame is read, and is read under the same frame timeout and rate limit as the rest
+     * of the frame.
+     *
+     * @param maxLength Largest frame to accept
+     * @return Length of the frame
+     */
+    private int readEncryptedFrame(int maxLength) throws IOException {
+        return readFrame(maxLength, cipher.getBlockWidth());
+    }
+
+    /**
+     * Sends PROMPT_MOVE to the client.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void promptMove() throws IOException {
+        writeMessage(PROMPT_MOVE);
+        flush();
+    }
+
+    /**
+     * @return The move from the client's next MOVE message
+     * @throws IOException if the client sends anything else
+     */
+    @Override
+    public int readMove() throws IOException {
+        int opcode = readMessage();
+        if (opcode == MOVE)
+            return getMessageMove();
+        else throw new IOException("Unexpected message with opcode " + opcode);
+    }
+
+    /**
+     * Queues the result of the round for the client. It leaves together with the next PROMPT_MOVE or END.
+     *
+     * @param result {@code WIN}, {@code LOSE}, or {@code TIE}
+     * @throws IOException
+     */
+    @Override
+    public void sendResult(int result) throws IOException {
+        writeMessage(result);
+    }
+
+    /**
+     * Sends END to the client.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void end() throws IOException {
+        writeMessage(END);
+        flush();
+    }
+
+    /**
+     * Sets how many rounds {@link #playGame()} plays.
+     *
+     * @param bestOf N for a best-of-N match, which must be odd
+     */
+    public void setBestOf(int bestOf) {
+        Match.checkBestOf(bestOf);
+        this.bestOf = bestOf;
+    }
+
+    /**
+     * @param playerId Number identifying the client, e.g. in a {@code MatchLog}
+     */
+    public void setPlayerId(int playerId) {
+        this.playerId = playerId;
+    }
+
+    /**
+     * @return Number identifying the client, 0 unless set
+     */
+    public int getPlayerId() {
+        return playerId;
+    }
+
+    /**
+     * Starts a rock-paper-scissors game between the user at the console and the client, plays rematches for as long
+     * as the client asks for them, then closes the socket.
      *
      * @throws IOException
      */
     @Override
     public void playGame() throws IOException {
-        boolean keepConnection = true;
-        Player server = new Player();
-        Player client = new Player();
-        while (keepConnection) {
+        ConsoleSeat local = new ConsoleSeat();
+        do {
+            playGame(local);
+            if (isKeepAlive())
+                System.out.println("Waiting to see if the client wants a rematch...");
+        } while (awaitRematch());
+        close();
+        Console c = System.console();
+        c.readLine("Press ENTER to end"); // Probably the laziest way I could've done this, I know
+    }
+
+    /**
+     * Plays a match between a local seat and the client. With the commit-reveal protocol the local move is committed
+     * before the client's move is read; otherwise the rounds are played with {@link Match#play(Seat, Seat, int)}.
+     *
+     * @param local The server's side of the match
+     * @throws IOException
+     */
+    public void playGame(Seat local) throws IOException {
+        if (getProtocolVersion() != PROTOCOL_COMMIT_REVEAL) {
+            Match.play(local, this, bestOf);
+            return;
+        }
+        Match match = new Match(bestOf);
+        Commitment commitment = new Commitment();
+        local.promptMove();
+        writeCommit(commitment.commit(local.readMove()));
+        while (true) {
+            int result;
             try {
-                // Prompt the client for their move
-                write("PROMPT_MOVE");
-                // Prompt the user for their move
-                Console c = System.console();
-                System.out.println();
-                boolean validMoveWasEntered = false;
-                while (!validMoveWasEntered) {
-                    try {
-                        String move = c.readLine("Enter your move: ");
-                        server.setMove(Player.getMoveFromString(move));
-                        validMoveWasEntered = true;
-                    } catch (IllegalArgumentException e) {
-                        // just try again
-                        System.out.println("Invalid input.");
-                    }
-                }
-
-                // Get move from client
-                System.out.println("Waiting for opponent...");
-                String response = read();
-                Matcher m = Pattern.compile("MOVE: (?<move>\\d)").matcher(response);
-                if (m.find())
-                    client.setMove(Integer.parseInt(m.group("move")));
-                else throw new IOException("Unrecognized response: " + response);
-                Player winner = Player.getWinner(server, client);
-                if (winner == server) {
-                    System.out.println();
-                    System.out.println("You win!");
-                    write("LOSE");
-                    keepConnection = false;
-                } else if (winner == client) {
-                    System.out.println();
-                    System.out.println("You lose!");
-                    write("WIN");
-                    keepConnection = false;
-                } else if (winner == null) {
-                    System.out.println();
-                    System.out.println("Tie. Try again");
-                    write("TIE");
-                }
+                match.submitMove(0, commitment.getMove());
+                result = match.submitMove(1, readMove());
             } catch (IllegalArgumentException e) {
-                System.out.println("Invalid input. Try again.");
-                e.printStackTrace();
+                throw new IOException(e.getMessage(), e);
+            }
+            local.sendResult(result == Match.TIE ? TIE : result == 0 ? WIN : LOSE);
+            // The local side picks its next move before the reveal goes out, so reveal, result and the next commitment
+            // share one flush
+            int next = 0;
+            if (!match.isOver()) {
+                local.promptMove();
+                next = local.readMove();
+            }
+            beginBatch();
+            writeReveal(commitment.getMove(), commitment.getNonce());
+            writeMessage(result == Match.TIE ? TIE : result == 1 ? WIN : LOSE);
+            if (match.isOver())
+                writeMessage(END);
+            else
+                writeCommit(commitment.commit(next));
+            endBatch();
+            if (match.isOver()) {
+                local.end();
+                return;
             }
         }
-        write("END");
-        close();
-        Console c = System.console();
-        c.readLine("Press ENTER to end"); // Probably the laziest way I could've done this, I know
     }
 }
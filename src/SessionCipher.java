@@ -0,0 +1,182 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * AES-GCM cipher for the symmetric session key that the client wraps with the server's RSA key. Each side keeps one
+ * {@code Cipher} per direction and derives the nonce from a direction tag and a message counter, so nonces are never
+ * reused and never need to be sent over the wire. The two directions share no state, so one thread can encrypt while
+ * another decrypts.
+ */
+public class SessionCipher {
+    /**
+     * Length of the session key in bytes.
+     */
+    public static final int KEY_LENGTH = 16;
+
+    /**
+     * Number of bytes encryption adds to each message.
+     */
+    public static final int OVERHEAD = 16;
+
+    private static final int TAG_BITS = 128;
+    private static final int IV_LENGTH = 12;
+    private static final int CLIENT_TO_SERVER = 0x43325320; // "C2S "
+    private static final int SERVER_TO_CLIENT = 0x53324320; // "S2C "
+
+    private final SecretKeySpec key;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final int sendDirection;
+    private final int receiveDirection;
+    private final byte[] sendIv = new byte[IV_LENGTH];
+    private final byte[] receiveIv = new byte[IV_LENGTH];
+    private long sendCounter;
+    private long receiveCounter;
+
+    /**
+     * @param keyBytes Raw AES key of {@link #KEY_LENGTH} bytes
+     * @param client   {@code true} on the client side, {@code false} on the server side
+     */
+    public SessionCipher(byte[] keyBytes, boolean client) {
+        if (keyBytes.length != KEY_LENGTH)
+            throw new IllegalArgumentException("Session key must be " + KEY_LENGTH + " bytes");
+        key = new SecretKeySpec(keyBytes, "AES");
+        sendDirection = client ? CLIENT_TO_SERVER : SERVER_TO_CLIENT;
+        receiveDirection = client ? SERVER_TO_CLIENT : CLIENT_TO_SERVER;
+        try {
+            encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    }
+
+    /**
+     * @return The session key, for wrapping with the server's RSA key
+     */
+    public SecretKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return A new random session key
+     */
+    public static byte[] generateKey() {
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(keyBytes);
+        return keyBytes;
+    }
+
+    /**
+     * Encrypts the next outgoing message.
+     *
+     * @param data Plaintext
+     * @return Ciphertext followed by the authentication tag
+     * @throws IOException if encryption fails
+     */
+    public byte[] encrypt(byte[] data) throws IOException {
+        try {
+            long start = System.nanoTime();
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key, nextSpec(sendIv, sendDirection, sendCounter++));
+            byte[] encrypted = encryptCipher.doFinal(data);
+            Metrics.SESSION_ENCRYPT.recordSince(start);
+            return encrypted;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt message", e);
+        }
+    }
+
+    /**
+     * Encrypts the next outgoing message into a caller-supplied buffer.
+     *
+     * @param data      Buffer holding the plaintext
+     * @param offset    Start of the plaintext
+     * @param length    Length of the plaintext
+     * @param out       Buffer to write the ciphertext to, with room for {@code length + OVERHEAD} bytes
+     * @param outOffset Where to start writing in {@code out}
+     * @return Number of bytes written
+     * @throws IOException if encryption fails
+     */
+    public int encrypt(byte[] data, int offset, int length, byte[] out, int outOffset) throws IOException {
+        try {
+            long start = System.nanoTime();
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key, nextSpec(sendIv, sendDirection, sendCounter++));
+            int encrypted = encryptCipher.doFinal(data, offset, length, out, outOffset);
+            Metrics.SESSION_ENCRYPT.recordSince(start);
+            return encrypted;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt message", e);
+        }
+    }
+
+    /**
+     * Decrypts and authenticates the next incoming message.
+     *
+     * @param data Ciphertext followed by the authentication tag
+     * @return Plaintext
+     * @throws IOException if the message fails authentication
+     */
+    public byte[] decrypt(byte[] data) throws IOException {
+        return decrypt(data, 0, data.length);
+    }
+
+    /**
+     * Decrypts and authenticates the next incoming message from part of a buffer.
+     *
+     * @param data   Buffer holding the ciphertext followed by the authentication tag
+     * @param offset Start of the message in the buffer
+     * @param length Length of the message
+     * @return Plaintext
+     * @throws IOException if the message fails authentication
+     */
+    public byte[] decrypt(byte[] data, int offset, int length) throws IOException {
+        try {
+            long start = System.nanoTime();
+            decryptCipher.init(Cipher.DECRYPT_MODE, key, nextSpec(receiveIv, receiveDirection, receiveCounter++));
+            byte[] decrypted = decryptCipher.doFinal(data, offset, length);
+            Metrics.SESSION_DECRYPT.recordSince(start);
+            return decrypted;
+        } catch (AEADBadTagException e) {
+            throw new IOException("Message failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt message", e);
+        }
+    }
+
+    /**
+     * Decrypts and authenticates the next incoming message into a caller-supplied buffer.
+     *
+     * @param data      Buffer holding the ciphertext followed by the authentication tag
+     * @param offset    Start of the message
+     * @param length    Length of the message
+     * @param out       Buffer to write the plaintext to, with room for {@code length - OVERHEAD} bytes
+     * @param outOffset Where to start writing in {@code out}
+     * @return Number of bytes written
+     * @throws IOException if the message fails authentication
+     */
+    public int decrypt(byte[] data, int offset, int length, byte[] out, int outOffset) throws IOException {
+        try {
+            long start = System.nanoTime();
+            decryptCipher.init(Cipher.DECRYPT_MODE, key, nextSpec(receiveIv, receiveDirection, receiveCounter++));
+            int decrypted = decryptCipher.doFinal(data, offset, length, out, outOffset);
+            Metrics.SESSION_DECRYPT.recordSince(start);
+            return decrypted;
+        } catch (AEADBadTagException e) {
+            throw new IOException("Message failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt message", e);
+        }
+    }
+
+    private static GCMParameterSpec nextSpec(byte[] iv, int direction, long counter) {
+        ByteBuffer.wrap(iv).putInt(direction).putLong(counter);
+        return new GCMParameterSpec(TAG_BITS, iv);
+    }
+}
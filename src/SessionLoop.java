@@ -0,0 +1,218 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One event-loop thread that drives any number of {@link GameSession}s, the client side of the protocol, over
+ * non-blocking sockets. It is the client's counterpart to {@code MatchServer}'s reactors: every session is an
+ * incremental state machine on one {@code Selector}, so thousands of games need one thread instead of one each.
+ * Everything that touches a session, including every call into its subscribers, runs on this thread. Each session is
+ * swept a few times per idle timeout, sending heartbeats if it has keep-alive and failing it if the server has gone
+ * quiet.
+ * <p>
+ * Sessions connect over TCP or Unix domain sockets; {@code mem:} transports are stream-only and cannot be selected on.
+ */
+public class SessionLoop extends Thread implements Closeable {
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile long idleTimeoutMillis = NetworkPlayer.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private volatile boolean running = true;
+    private long lastSweepNanos = System.nanoTime();
+
+    /**
+     * Creates a new {@code SessionLoop}. Call {@link #start()} to begin running sessions.
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public SessionLoop() throws IOException {
+        super("session-loop-" + nextId.getAndIncrement());
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /**
+     * Opens a session to a server. This returns as soon as the connection has been started; the connection and the
+     * handshake are completed on the loop thread, and events are published once the server starts a match.
+     *
+     * @param server          Address of the server, {@code tcp://host:port} or {@code unix:/path/to/socket}
+     * @param protocolVersion {@code PROTOCOL_COMMIT_REVEAL}, {@code PROTOCOL_BINARY}, or {@code PROTOCOL_TEXT}
+     * @param keepAlive       {@code true} to ask for keep-alive, so {@link GameSession#requestRematch()} can be used
+     * @return The session
+     * @throws IOException if the connection cannot be started
+     */
+    public GameSession connect(URI server, int protocolVersion, boolean keepAlive) throws IOException {
+        if (!NetworkPlayer.isSupportedProtocol(protocolVersion))
+            throw new IllegalArgumentException("Unsupported protocol version " + protocolVersion);
+        SocketChannel channel;
+        switch (String.valueOf(server.getScheme())) {
+            case "tcp":
+                if (server.getHost() == null || server.getPort() < 0)
+                    throw new IllegalArgumentException("Expected tcp://host:port, got " + server);
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(new InetSocketAddress(server.getHost(), server.getPort()));
+                break;
+            case "unix":
+                channel = SocketChannel.open(UnixDomainSocketAddress.of(UnixSocketTransport.path(server)));
+                channel.configureBlocking(false);
+                break;
+            default:
+                throw new IllegalArgumentException("A session loop cannot select on " + server);
+        }
+        GameSession session = new GameSession(this, channel, protocolVersion,
+                keepAlive && protocolVersion != NetworkPlayer.PROTOCOL_TEXT);
+        execute(session, () -> {
+            try {
+                session.open(selector);
+            } catch (IOException e) {
+                session.fail(e);
+            }
+        });
+        return session;
+    }
+
+    /**
+     * Runs a task on the loop thread: right away if called from it, otherwise as soon as the loop wakes up.
+     *
+     * @param task Task to run
+     */
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == this) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task for one session, as {@link #execute(Runnable)}. A {@code RuntimeException} from the task, such as
+     * one thrown by the session's subscriber, fails that session instead of reaching the loop.
+     *
+     * @param session Session the task belongs to
+     * @param task    Task to run
+     */
+    void execute(GameSession session, Runnable task) {
+        execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                session.fail(e);
+            }
+        });
+    }
+
+    /**
+     * @return Time without any frame from the server after which a session that is reading fails
+     */
+    public long getIdleTimeout() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Sets the idle timeout of every session. With keep-alive, a heartbeat is sent whenever nothing has been sent for
+     * a quarter of it.
+     *
+     * @param idleTimeoutMillis Time without any frame from the server after which a session that is reading fails
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 8 || idleTimeoutMillis > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Idle timeout out of range: " + idleTimeoutMillis);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return Number of sessions registered with the loop; only exact when called from the loop thread
+     */
+    public int getSessionCount() {
+        return selector.keys().size();
+    }
+
+    /**
+     * Stops the loop and closes every session, which signals {@code onError} to their subscribers.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long sweepInterval = idleTimeoutMillis / 8;
+                selector.select(sweepInterval);
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey selected = it.next();
+                    it.remove();
+                    if (!selected.isValid())
+                        continue;
+                    GameSession session = (GameSession) selected.attachment();
+                    try {
+                        session.handle(selected);
+                    } catch (IOException | RuntimeException e) {
+                        session.fail(e);
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - lastSweepNanos >= sweepInterval * 1_000_000L) {
+                    lastSweepNanos = now;
+                    sweep(now);
+                }
+            } catch (IOException e) {
+                if (running)
+                    e.printStackTrace();
+            }
+        }
+        runTasks();
+        for (SelectionKey registered : selector.keys())
+            ((GameSession) registered.attachment()).fail(new IOException("Session loop closed"));
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Runs the queued tasks. A task that throws is reported and skipped, so it cannot stop the loop and strand every
+     * other session on it.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void sweep(long now) {
+        long idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+        for (SelectionKey registered : selector.keys()) {
+            GameSession session = (GameSession) registered.attachment();
+            try {
+                session.checkIdle(now, idleTimeoutNanos);
+            } catch (IOException | RuntimeException e) {
+                session.fail(e);
+            }
+        }
+    }
+}
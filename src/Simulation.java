@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deterministic simulation for capacity planning. Scripted matches are played as fast as possible through the real
+ * {@code Server} and {@code Client} code, handshake and all, over in-memory, loopback TCP or Unix domain socket
+ * transports. The server's side of each match is a {@code Seat} and the client a {@code BotClient}, both reading their
+ * moves from a {@link Script}: either the rounds recorded in a {@link MatchLog}, or seeded random moves. Every move
+ * and outcome depends only on the script, the seed and the options, never on thread scheduling, so a run ends with
+ * the same totals and checksum every time; the RSA keys are generated from the seed too. Session keys and commitment
+ * nonces stay random, as they are in production.
+ * <p>
+ * The report gives throughput and the time spent in each stage, from what the process-wide {@link Metrics} timers
+ * recorded during the run: key generation, RSA and session encryption, framing and round resolution. Anything else
+ * running in the process at the same time is counted too.
+ * <p>
+ * Usage: {@code java Simulation [--log dir] [--seed n] [--matches n] [--best-of n] [--workers n]
+ * [--transport mem|tcp|unix] [--text|--commit-reveal] [--key-bits n] [--keys n]}. Without {@code --log} the moves are
+ * random from the seed, 1000 matches by default; with it every recorded match is replayed, up to {@code --matches}.
+ */
+public class Simulation {
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * The moves of every simulated match. Must be thread-safe and return the same move for the same arguments.
+     */
+    public interface Script {
+        /**
+         * @return Number of matches
+         */
+        int getMatchCount();
+
+        /**
+         * @param match Match, from 0
+         * @param side  0 for the server, 1 for the client
+         * @param round Rounds already played in the match, ties included
+         * @return 1, 2, or 3
+         */
+        int getMove(int match, int side, int round);
+    }
+
+    /**
+     * The time spent in each stage during a run, and the results.
+     */
+    public static class Report {
+        private final int matches;
+        private final long[] counts = new long[3];
+        private final long checksum;
+        private final int mismatches;
+        private final double seconds;
+        private final Map<String, Histogram> stages;
+
+        Report(int matches, long[] counts, long checksum, int mismatches, double seconds,
+               Map<String, Histogram> stages) {
+            this.matches = matches;
+            System.arraycopy(counts, 0, this.counts, 0, 3);
+            this.checksum = checksum;
+            this.mismatches = mismatches;
+            this.seconds = seconds;
+            this.stages = stages;
+        }
+
+        public int getMatches() {
+            return matches;
+        }
+
+        public long getRounds() {
+            return counts[0] + counts[1] + counts[2];
+        }
+
+        /**
+         * @param side 0 or 1
+         * @return Rounds won by the side
+         */
+        public long getWins(int side) {
+            return counts[side];
+        }
+
+        public long getTies() {
+            return counts[2];
+        }
+
+        /**
+         * @return Hash of every round's outcome in match order, equal between runs of the same script and options
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * @return Matches in which the client saw different results than the server sent
+         */
+        public int getMismatches() {
+            return mismatches;
+        }
+
+        public double getSeconds() {
+            return seconds;
+        }
+
+        /**
+         * @return Time spent in each stage during the run, in nanoseconds, by stage name
+         */
+        public Map<String, Histogram> getStages() {
+            return stages;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format(Locale.ROOT, "%d matches, %d rounds in %.2f s: %.1f matches/s, %.1f rounds/s%n",
+                    matches, getRounds(), seconds, matches / seconds, getRounds() / seconds));
+            out.append(String.format(Locale.ROOT, "Server won %d, client won %d, %d ties; checksum %016x, "
+                    + "%d mismatches%n", counts[0], counts[1], counts[2], checksum, mismatches));
+            out.append(String.format(Locale.ROOT, "%-18s %9s %11s %11s %11s%n", "Stage", "count", "total ms", "mean us",
+                    "p99 us"));
+            for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+                Histogram histogram = stage.getValue();
+                out.append(String.format(Locale.ROOT, "%-18s %9d %11.1f %11.1f %11.1f%n", stage.getKey(),
+                        histogram.getCount(), histogram.getSum() / 1e6, histogram.getMean() / 1e3,
+                        histogram.getValueAtPercentile(99) / 1e3));
+            }
+            return out.toString();
+        }
+    }
+
+    private final Script script;
+    private final KeyGenerator keyGenerator;
+    private int keyCount = 1;
+    private int bestOf = 1;
+    private int protocolVersion = NetworkPlayer.PROTOCOL_BINARY;
+    private String transport = "mem";
+    private int workers = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param script       Moves of every match
+     * @param keyGenerator Generates the server's RSA keys; seed it for repeatable keys
+     */
+    public Simulation(Script script, KeyGenerator keyGenerator) {
+        this.script = script;
+        this.keyGenerator = keyGenerator;
+    }
+
+    /**
+     * Runs a simulation and prints its report.
+     *
+     * @param args See the class comment
+     */
+    public static void main(String[] args) throws IOException, InterruptedException, NoSuchAlgorithmException {
+        String log = null;
+        long seed = 1;
+        int matches = -1;
+        int keyBits = ProbablePrimeKeyGenerator.DEFAULT_BIT_LENGTH;
+        int keyCount = 1;
+        int bestOf = 1;
+        int protocolVersion = NetworkPlayer.PROTOCOL_BINARY;
+        String transport = "mem";
+        int workers = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--log":
+                    log = args[++i];
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--matches":
+                    matches = Integer.parseInt(args[++i]);
+                    break;
+                case "--best-of":
+                    bestOf = Integer.parseInt(args[++i]);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--transport":
+                    transport = args[++i];
+                    break;
+                case "--text":
+                    protocolVersion = NetworkPlayer.PROTOCOL_TEXT;
+                    break;
+                case "--commit-reveal":
+                    protocolVersion = NetworkPlayer.PROTOCOL_COMMIT_REVEAL;
+                    break;
+                case "--key-bits":
+                    keyBits = Integer.parseInt(args[++i]);
+                    break;
+                case "--keys":
+                    keyCount = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        Script script = log != null ? recordedScript(Paths.get(log), matches)
+                : randomScript(seed, matches < 0 ? 1000 : matches);
+        // SHA1PRNG seeded before its first use is repeatable, unlike the default SecureRandom
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(seed);
+        Simulation simulation = new Simulation(script, new ProbablePrimeKeyGenerator(keyBits, random));
+        simulation.setKeyCount(keyCount);
+        simulation.setBestOf(bestOf);
+        simulation.setProtocolVersion(protocolVersion);
+        simulation.setTransport(transport);
+        simulation.setWorkers(workers);
+        System.out.println("Simulating " + script.getMatchCount() + " matches "
+                + (log != null ? "from " + log : "with seed " + seed) + " over " + transport + " with " + workers
+                + " workers");
+        System.out.print(simulation.run());
+    }
+
+    /**
+     * Returns a script of uniformly random moves that depend only on the seed, match, side and round, from
+     * {@link Tournament#randomStrategy(long)}.
+     *
+     * @param seed    Seed
+     * @param matches Number of matches
+     * @return The script
+     */
+    public static Script randomScript(long seed, int matches) {
+        if (matches < 0)
+            throw new IllegalArgumentException("Negative number of matches");
+        Tournament.Strategy strategy = Tournament.randomStrategy(seed);
+        return new Script() {
+            @Override
+            public int getMatchCount() {
+                return matches;
+            }
+
+            @Override
+            public int getMove(int match, int side, int round) {
+                return strategy.getMove(match, side, round);
+            }
+        };
+    }
+
+    /**
+     * Returns a script that replays the rounds recorded in a match log, one simulated match per recorded match in the
+     * order the matches started. A side that runs out of recorded moves, e.g. because the match is replayed over more
+     * rounds than it was played or was forfeited, starts again from its first move.
+     *
+     * @param dir     Directory of the match log
+     * @param matches Most matches to replay, or -1 for all of them
+     * @return The script
+     * @throws IOException if the log cannot be read
+     */
+    public static Script recordedScript(Path dir, int matches) throws IOException {
+        Map<Long, List<byte[]>> rounds = new LinkedHashMap<>();
+        new MatchLogReader(dir).forEachRound((timeMillis, matchId, firstPlayer, secondPlayer, firstMove, secondMove,
+                                              outcome, durationMicros) -> {
+            List<byte[]> match = rounds.get(matchId);
+            if (match == null) {
+                if (matches >= 0 && rounds.size() == matches)
+                    return;
+                match = new ArrayList<>();
+                rounds.put(matchId, match);
+            }
+            match.add(new byte[]{(byte) firstMove, (byte) secondMove});
+        });
+        byte[][][] moves = new byte[rounds.size()][2][];
+        int i = 0;
+        for (List<byte[]> match : rounds.values()) {
+            for (int side = 0; side < 2; side++) {
+                moves[i][side] = new byte[match.size()];
+                for (int round = 0; round < match.size(); round++)
+                    moves[i][side][round] = match.get(round)[side];
+            }
+            i++;
+        }
+        return new Script() {
+            @Override
+            public int getMatchCount() {
+                return moves.length;
+            }
+
+            @Override
+            public int getMove(int match, int side, int round) {
+                byte[] recorded = moves[match][side];
+                return recorded[round % recorded.length];
+            }
+        };
+    }
+
+    /**
+     * @param keyCount Number of RSA keys to generate; match i uses key i modulo this
+     */
+    public void setKeyCount(int keyCount) {
+        if (keyCount < 1)
+            throw new IllegalArgumentException("Need at least one key");
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * @param bestOf N for best-of-N matches, which must be odd
+     */
+    public void setBestOf(int bestOf) {
+        Match.checkBestOf(bestOf);
+        this.bestOf = bestOf;
+    }
+
+    /**
+     * @param protocolVersion Protocol the clients ask for and the server agrees to
+     */
+    public void setProtocolVersion(int protocolVersion) {
+        if (!NetworkPlayer.isSupportedProtocol(protocolVersion))
+            throw new IllegalArgumentException("Unsupported protocol version " + protocolVersion);
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * @param transport {@code mem}, {@code tcp} for loopback TCP, or {@code unix}
+     */
+    public void setTransport(String transport) {
+        if (!transport.equals("mem") && !transport.equals("tcp") && !transport.equals("unix"))
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        this.transport = transport;
+    }
+
+    /**
+     * @param workers Number of matches played at once, each on a server thread and a client thread
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("Need at least one worker");
+        this.workers = workers;
+    }
+
+    /**
+     * Generates the keys, then plays every match of the script. The stage times are the difference between snapshots
+     * of the {@link Metrics} timers taken before and after the run, so the timers keep counting for everyone else.
+     *
+     * @return The report
+     * @throws IOException if a match fails
+     * @throws InterruptedException
+     */
+    public Report run() throws IOException, InterruptedException {
+        Map<String, Metrics.Timer> timers = new LinkedHashMap<>();
+        timers.put("key generation", Metrics.KEY_GENERATION);
+        timers.put("RSA encrypt", Metrics.RSA_ENCRYPT);
+        timers.put("RSA decrypt", Metrics.RSA_DECRYPT);
+        timers.put("session encrypt", Metrics.SESSION_ENCRYPT);
+        timers.put("session decrypt", Metrics.SESSION_DECRYPT);
+        timers.put("framing", Metrics.FRAMING);
+        timers.put("round resolution", Metrics.ROUND_RESOLUTION);
+        Map<String, Histogram> snapshots = new LinkedHashMap<>();
+        for (Map.Entry<String, Metrics.Timer> timer : timers.entrySet()) {
+            Histogram snapshot = new Histogram();
+            snapshot.add(timer.getValue().getHistogram());
+            snapshots.put(timer.getKey(), snapshot);
+        }
+        long start = System.nanoTime();
+        RSAKey[] keys = new RSAKey[keyCount];
+        for (int i = 0; i < keyCount; i++)
+            keys[i] = keyGenerator.generateKey();
+        int matches = script.getMatchCount();
+        long[][] results = new long[matches][];
+        boolean[] mismatched = new boolean[matches];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService servers = Executors.newFixedThreadPool(workers);
+        ExecutorService clients = Executors.newFixedThreadPool(workers);
+        List<Future<?>> running = new ArrayList<>();
+        try {
+            for (int w = 0; w < workers; w++) {
+                running.add(servers.submit(() -> {
+                    try (Transport.Listener listener = listen()) {
+                        int match;
+                        while ((match = next.getAndIncrement()) < matches) {
+                            long[] result = playMatch(match, keys[match % keys.length], listener, clients);
+                            results[match] = result;
+                            mismatched[match] = result[4] != 0;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : running)
+                worker.get();
+        } catch (ExecutionException e) {
+            next.set(matches);
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Simulation failed", e.getCause());
+        } finally {
+            servers.shutdownNow();
+            clients.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long[] counts = new long[3];
+        long checksum = 1;
+        int mismatches = 0;
+        for (int i = 0; i < matches; i++) {
+            for (int j = 0; j < 3; j++)
+                counts[j] += results[i][j];
+            checksum = checksum * 0x9E3779B97F4A7C15L + results[i][3];
+            if (mismatched[i])
+                mismatches++;
+        }
+        Map<String, Histogram> stages = new LinkedHashMap<>();
+        for (Map.Entry<String, Metrics.Timer> timer : timers.entrySet())
+            stages.put(timer.getKey(), timer.getValue().getHistogram().since(snapshots.get(timer.getKey())));
+        return new Report(matches, counts, checksum, mismatches, seconds, stages);
+    }
+
+    private Transport.Listener listen() throws IOException {
+        switch (transport) {
+            case "tcp":
+                return new TcpTransport.Listener("127.0.0.1", 0);
+            case "unix":
+                Path dir = Files.createTempDirectory("simulation");
+                dir.toFile().deleteOnExit();
+                return new UnixSocketTransport.Listener(dir.resolve("rps.sock"));
+            default:
+                return MemoryTransport.listen("simulation-" + nextId.getAndIncrement());
+        }
+    }
+
+    /**
+     * Plays one match: the client runs on the client pool while the calling thread is the server.
+     *
+     * @return Rounds won by the server, won by the client and tied, a hash of the outcomes, and 1 if the client saw
+     * different results than the server sent, otherwise 0
+     */
+    private long[] playMatch(int match, RSAKey key, Transport.Listener listener, ExecutorService clients)
+            throws IOException, InterruptedException {
+        URI address = listener.getAddress();
+        Future<int[]> client = clients.submit(() -> {
+            int[] round = {0};
+            BotClient bot = new BotClient(address, protocolVersion, () -> script.getMove(match, 1, round[0]++),
+                    null, false);
+            try {
+                bot.playGame();
+                return new int[]{bot.getLosses(), bot.getWins(), bot.getTies()};
+            } finally {
+                bot.close();
+            }
+        });
+        long[] result = new long[5];
+        Server server = new Server(listener.accept(), key, protocolVersion);
+        try {
+            server.setBestOf(bestOf);
+            server.playGame(new Seat() {
+                private int round;
+
+                @Override
+                public void promptMove() {
+                }
+
+                @Override
+                public int readMove() {
+                    return script.getMove(match, 0, round++);
+                }
+
+                @Override
+                public void sendResult(int outcome) {
+                    result[outcome == NetworkPlayer.WIN ? 0 : outcome == NetworkPlayer.LOSE ? 1 : 2]++;
+                    result[3] = result[3] * 31 + outcome;
+                }
+
+                @Override
+                public void end() {
+                }
+            });
+        } finally {
+            server.close();
+        }
+        int[] seen;
+        try {
+            seen = client.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Client of match " + match + " failed", e.getCause());
+        }
+        for (int i = 0; i < 3; i++)
+            if (seen[i] != result[i])
+                result[4] = 1;
+        return result;
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * {@link Transport} over a TCP socket. Nagle's algorithm is turned off: {@code NetworkPlayer} flushes once per batch
+ * of messages, so holding a flush back to wait for more data would only add latency.
+ */
+public class TcpTransport implements Transport {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * Connects to a server.
+     *
+     * @param hostname   hostname of server
+     * @param portNumber port number server is listening on
+     * @throws IOException
+     */
+    public TcpTransport(String hostname, int portNumber) throws IOException {
+        this(new Socket(hostname, portNumber));
+    }
+
+    /**
+     * Wraps a connected socket.
+     *
+     * @param socket Connected socket
+     * @throws IOException
+     */
+    public TcpTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * @param hostname   hostname of server
+     * @param portNumber port number server is listening on
+     * @return {@code tcp://hostname:portNumber}
+     */
+    public static URI uri(String hostname, int portNumber) {
+        try {
+            return new URI("tcp", null, hostname, portNumber, null, null, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid hostname: " + hostname, e);
+        }
+    }
+
+    /**
+     * @return The underlying socket
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void setReadTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Accepts TCP clients.
+     */
+    public static class Listener implements Transport.Listener {
+        private final ServerSocket socket;
+
+        /**
+         * Listens on every interface.
+         *
+         * @param portNumber Port number to listen on, or 0 for any free port
+         * @throws IOException
+         */
+        public Listener(int portNumber) throws IOException {
+            socket = new ServerSocket(portNumber, 1024);
+        }
+
+        /**
+         * @param hostname   Address to listen on, e.g. {@code 0.0.0.0} for every interface
+         * @param portNumber Port number to listen on, or 0 for any free port
+         * @throws IOException
+         */
+        public Listener(String hostname, int portNumber) throws IOException {
+            InetAddress address = InetAddress.getByName(hostname);
+            // A null address is the wildcard of every address family, not just IPv4
+            socket = new ServerSocket(portNumber, 1024, address.isAnyLocalAddress() ? null : address);
+        }
+
+        @Override
+        public Transport accept() throws IOException {
+            return new TcpTransport(socket.accept());
+        }
+
+        @Override
+        public URI getAddress() {
+            InetAddress address = socket.getInetAddress();
+            return uri(address.isAnyLocalAddress() ? "localhost" : address.getHostAddress(), socket.getLocalPort());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
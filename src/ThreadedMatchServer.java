@@ -0,0 +1,375 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server that referees many matches at once using the ordinary blocking {@code Server} code. It loops over
+ * {@code accept()}, runs each connection's key exchange on its own thread, pairs the connections, and plays each match
+ * with {@link Match#play(Seat, Seat)}. Clients with keep-alive that ask for a rematch go back into the lobby without
+ * a new key exchange. On a JVM with virtual threads each connection gets a virtual thread, so idle matches only cost
+ * their heap and not a platform thread; older JVMs fall back to a fixed pool of {@link #MAX_PLATFORM_THREADS}
+ * platform threads. A client that fails mid-match loses it by forfeit, and the other is told it won.
+ * <p>
+ * The key exchange holds a thread, so a client gets only the frame timeout, not the idle timeout, to send each of its
+ * handshake frames; clients that connect and send nothing cannot tie up the platform pool for long. The wait for a
+ * rematch holds a thread too, so it lasts at most the rematch timeout, which heartbeats do not extend: keep-alive
+ * clients that sit idle after their match are dropped rather than keeping new clients from getting a thread.
+ * <p>
+ * Once its key exchange is done each connection only accepts frames of up to
+ * {@link NetworkPlayer#MAX_CLIENT_FRAME_LENGTH} bytes, at a limited rate; a client over the rate only slows down its
+ * own thread.
+ */
+public class ThreadedMatchServer implements Closeable {
+    /**
+     * Most platform threads used when virtual threads are not available. A connection only holds a thread during its
+     * key exchange, its match and its wait for a rematch, not while it waits in the lobby; beyond this many, new
+     * connections queue for a thread.
+     */
+    public static final int MAX_PLATFORM_THREADS = 256;
+    /**
+     * Time a client has after END to ask for a rematch unless {@link #setRematchTimeout(long)} says otherwise.
+     */
+    public static final long DEFAULT_REMATCH_TIMEOUT_MILLIS = 10000;
+
+    private final KeyGenerator keys;
+    private final Transport.Listener listener;
+    private final ExecutorService executor;
+    private volatile boolean closed;
+    private final boolean virtualThreads;
+    private final AtomicInteger activeMatches = new AtomicInteger();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger nextPlayerId = new AtomicInteger(1);
+    private final Lobby<Server> lobby = new Lobby<>(this::play);
+    private volatile int bestOf = 1;
+    private volatile MatchLog matchLog;
+    private volatile long idleTimeoutMillis = NetworkPlayer.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private volatile long rematchTimeoutMillis = DEFAULT_REMATCH_TIMEOUT_MILLIS;
+    private volatile int framesPerSecond = RateLimiter.DEFAULT_FRAMES_PER_SECOND;
+    private volatile int bytesPerSecond = RateLimiter.DEFAULT_FRAMES_PER_SECOND * RateLimiter.BYTES_PER_FRAME;
+
+    /**
+     * Creates a new {@code ThreadedMatchServer} listening on the given port. Call {@link #serve()} to begin serving.
+     *
+     * @param portNumber Port number to listen on, or 0 for any free port
+     * @param key        RSA key shared by all connections
+     * @throws IOException
+     */
+    public ThreadedMatchServer(int portNumber, RSAKey key) throws IOException {
+        this(portNumber, () -> key);
+    }
+
+    /**
+     * Creates a new {@code ThreadedMatchServer} that asks the given {@code KeyGenerator} for the RSA key of each new
+     * connection, so it should be a {@code KeyManager} or something else that returns a ready-made key.
+     *
+     * @param portNumber Port number to listen on, or 0 for any free port
+     * @param keys       Source of the RSA key for each connection
+     * @throws IOException
+     */
+    public ThreadedMatchServer(int portNumber, KeyGenerator keys) throws IOException {
+        this(new TcpTransport.Listener(portNumber), keys);
+    }
+
+    /**
+     * Creates a new {@code ThreadedMatchServer} listening at a URI, such as {@code tcp://0.0.0.0:port},
+     * {@code unix:/path/to/socket} or {@code mem://name}.
+     *
+     * @param address Address to listen at, as described in {@link Transport}
+     * @param keys    Source of the RSA key for each connection
+     * @throws IOException
+     */
+    public ThreadedMatchServer(URI address, KeyGenerator keys) throws IOException {
+        this(Transport.listen(address), keys);
+    }
+
+    /**
+     * Creates a new {@code ThreadedMatchServer} that uses a fixed pool of platform threads even where virtual threads
+     * are available, so tests can fill the pool.
+     *
+     * @param address         Address to listen at, as described in {@link Transport}
+     * @param keys            Source of the RSA key for each connection
+     * @param platformThreads Size of the pool
+     * @throws IOException
+     */
+    ThreadedMatchServer(URI address, KeyGenerator keys, int platformThreads) throws IOException {
+        this(Transport.listen(address), keys, null, platformThreads);
+    }
+
+    private ThreadedMatchServer(Transport.Listener listener, KeyGenerator keys) {
+        this(listener, keys, newVirtualThreadExecutor(), MAX_PLATFORM_THREADS);
+    }
+
+    private ThreadedMatchServer(Transport.Listener listener, KeyGenerator keys, ExecutorService virtual,
+                                int platformThreads) {
+        this.keys = keys;
+        this.listener = listener;
+        virtualThreads = virtual != null;
+        executor = virtualThreads ? virtual : Executors.newFixedThreadPool(platformThreads);
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()}, which only exists on Java 21 and later.
+     *
+     * @return The executor, or {@code null} if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Accepts clients until the server is closed.
+     *
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        try {
+            while (!closed) {
+                Transport client = listener.accept();
+                activeConnections.incrementAndGet();
+                Metrics.CONNECTIONS.increment();
+                executor.execute(() -> handle(client));
+            }
+        } catch (IOException e) {
+            if (!closed)
+                throw e;
+        }
+    }
+
+    /**
+     * Runs the key exchange with a client, then puts it in the lobby. If an opponent is already waiting, the match is
+     * played on this thread; otherwise this thread finishes and the opponent's thread will play it.
+     */
+    private void handle(Transport client) {
+        int id = nextPlayerId.getAndIncrement();
+        Server connection;
+        try {
+            connection = new Server(client, keys.generateKey(), NetworkPlayer.PROTOCOL_BINARY);
+            connection.setPlayerId(id);
+            connection.setIdleTimeout(idleTimeoutMillis);
+            connection.setMaxFrameLength(NetworkPlayer.MAX_CLIENT_FRAME_LENGTH);
+            if (framesPerSecond > 0)
+                connection.setRateLimiter(new RateLimiter(framesPerSecond, bytesPerSecond));
+        } catch (IOException e) {
+            closeQuietly(client);
+            activeConnections.decrementAndGet();
+            Metrics.CONNECTIONS.decrement();
+            return;
+        }
+        lobby.join(connection);
+    }
+
+    private void play(Server opponent, Server connection) {
+        activeMatches.incrementAndGet();
+        Match match = new Match(bestOf);
+        try {
+            MatchLog log = matchLog;
+            if (log != null)
+                match.setLog(log, opponent.getPlayerId(), connection.getPlayerId());
+            Match.play(opponent, connection, match);
+        } catch (SeatException e) {
+            // The client that misbehaved or disconnected is dropped, and the other wins by forfeit
+            Server survivor = e.getSide() == 0 ? connection : opponent;
+            closeQuietly(e.getSide() == 0 ? opponent : connection);
+            forfeit(match, survivor, e.getSide() == 0);
+            return;
+        } catch (IOException e) {
+            closeQuietly(opponent);
+            closeQuietly(connection);
+            return;
+        } finally {
+            activeMatches.decrementAndGet();
+        }
+        // Each waits on its own thread, so a long run of rematches does not nest calls on this one
+        executor.execute(() -> awaitRematch(opponent));
+        executor.execute(() -> awaitRematch(connection));
+    }
+
+    /**
+     * Gives the match to the one client left in it, as {@link MatchServer} does, then waits for its rematch.
+     *
+     * @param needsEnd Whether the survivor may not have been sent END yet even if the match was already over, which
+     *                 is the case when side 0 failed: side 1 is only sent END after side 0
+     */
+    private void forfeit(Match match, Server survivor, boolean needsEnd) {
+        boolean inProgress = match.forfeit();
+        try {
+            if (inProgress)
+                survivor.sendResult(NetworkPlayer.WIN);
+            if (inProgress || needsEnd)
+                survivor.end();
+        } catch (IOException e) {
+            closeQuietly(survivor);
+            return;
+        }
+        executor.execute(() -> awaitRematch(survivor));
+    }
+
+    /**
+     * Puts a connection back in the lobby if it asks for a rematch within the rematch timeout, and closes it
+     * otherwise.
+     */
+    private void awaitRematch(Server connection) {
+        try {
+            if (connection.awaitRematch(rematchTimeoutMillis)) {
+                lobby.join(connection);
+                return;
+            }
+        } catch (IOException ignored) {
+        }
+        closeQuietly(connection);
+    }
+
+    private void closeQuietly(Server connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+        activeConnections.decrementAndGet();
+        Metrics.CONNECTIONS.decrement();
+    }
+
+    private void closeQuietly(Transport client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return Port the server is listening on, or -1 if it is not listening on TCP
+     */
+    public int getLocalPort() {
+        return listener.getAddress().getPort();
+    }
+
+    /**
+     * @return URI clients can connect to
+     */
+    public URI getAddress() {
+        return listener.getAddress();
+    }
+
+    /**
+     * Sets how many rounds each new match is played over.
+     *
+     * @param bestOf N for best-of-N matches, which must be odd
+     */
+    public void setBestOf(int bestOf) {
+        Match.checkBestOf(bestOf);
+        this.bestOf = bestOf;
+    }
+
+    /**
+     * Sets the idle timeout of new connections once their key exchange is done.
+     *
+     * @param idleTimeoutMillis Time without any frame from a client after which it is dropped
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 8 || idleTimeoutMillis > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Idle timeout out of range: " + idleTimeoutMillis);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a client has after each match to ask for a rematch before it is dropped. Its heartbeats do not
+     * extend this, since the wait holds a thread.
+     *
+     * @param rematchTimeoutMillis Longest wait for a rematch
+     */
+    public void setRematchTimeout(long rematchTimeoutMillis) {
+        if (rematchTimeoutMillis < 1 || rematchTimeoutMillis > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Rematch timeout out of range: " + rematchTimeoutMillis);
+        this.rematchTimeoutMillis = rematchTimeoutMillis;
+    }
+
+    /**
+     * Sets the rate limit of new connections.
+     *
+     * @param framesPerSecond Frames a second each client may send, or 0 for no limit
+     * @param bytesPerSecond  Bytes a second each client may send
+     */
+    public void setRateLimit(int framesPerSecond, int bytesPerSecond) {
+        if (framesPerSecond < 0 || framesPerSecond > 0 && bytesPerSecond < 1)
+            throw new IllegalArgumentException("Rate limits out of range: " + framesPerSecond + ", " + bytesPerSecond);
+        this.framesPerSecond = framesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Records the rounds of every new match in a log. Players are identified by connection number, counted from 1 in
+     * the order connections are accepted.
+     *
+     * @param matchLog The log, or {@code null} to stop logging
+     */
+    public void setMatchLog(MatchLog matchLog) {
+        this.matchLog = matchLog;
+    }
+
+    /**
+     * @return Number of connections waiting in the lobby for an opponent
+     */
+    public int getWaitingCount() {
+        return lobby.getWaitingCount();
+    }
+
+    /**
+     * @return Time from a connection joining the lobby to it being paired, in nanoseconds
+     */
+    public Histogram getPairingLatency() {
+        return lobby.getPairingLatency();
+    }
+
+    /**
+     * @return {@code true} if connections run on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return Number of matches currently being played
+     */
+    public int getActiveMatches() {
+        return activeMatches.get();
+    }
+
+    /**
+     * @return Number of open client connections, including ones waiting for an opponent
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Estimates the heap used per match as the JVM's used heap divided by the number of matches that are being played
+     * or waited for. Only meaningful when the server is the main thing running in the JVM.
+     *
+     * @return Approximate bytes per match, or 0 if there are none
+     */
+    public long getMemoryPerMatch() {
+        int matches = (activeConnections.get() + 1) / 2;
+        if (matches == 0)
+            return 0;
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / matches;
+    }
+
+    /**
+     * Stops accepting clients. Matches in progress are played to the end.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listener.close();
+        executor.shutdown();
+    }
+}
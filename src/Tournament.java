@@ -0,0 +1,294 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Simulates tournaments of best-of-N matches between numbered players: single-elimination brackets and round-robins.
+ * Every match of a round is resolved in one batch, with moves held in primitive arrays and scored through
+ * {@link Player#getOutcomes(byte[], byte[], byte[], int, int)}, so no {@code Player} is created per move. Large rounds
+ * are split across a {@code ForkJoinPool}, and each round's results are passed to a {@link Listener} as soon as the
+ * round is complete.
+ */
+public class Tournament {
+    /**
+     * Outcome of a round in which neither side won.
+     */
+    public static final byte TIE = Player.TIE;
+    /**
+     * Outcome of a round won by the first side.
+     */
+    public static final byte FIRST = Player.FIRST;
+    /**
+     * Outcome of a round won by the second side.
+     */
+    public static final byte SECOND = Player.SECOND;
+
+    /**
+     * Matches are scored in batches of at most this many, which is also the smallest piece of a round that is handed
+     * to another thread.
+     */
+    public static final int BATCH_SIZE = 4096;
+
+    /**
+     * A match still tied after this many rounds per round of best-of-N, e.g. between two players who always play the
+     * same move, is decided on rounds won so far, and in favour of the first side if those are equal.
+     */
+    public static final int MAX_ROUNDS_FACTOR = 100;
+
+    /**
+     * Chooses players' moves.
+     */
+    public interface Strategy {
+        /**
+         * Called from several threads at once, so implementations must be thread-safe.
+         *
+         * @param player   Player to move
+         * @param opponent Player they are facing
+         * @param round    Number of rounds already played in this match
+         * @return 1, 2, or 3
+         */
+        int getMove(int player, int opponent, int round);
+    }
+
+    /**
+     * Receives results as each tournament round completes. The arrays are reused for the next round, so copy anything
+     * that needs to be kept.
+     */
+    public interface Listener {
+        /**
+         * @param round   Tournament round, starting at 0
+         * @param first   First player of each match
+         * @param second  Second player of each match
+         * @param winners Winner of each match
+         * @param matches Number of matches in the round
+         */
+        void roundComplete(int round, int[] first, int[] second, int[] winners, int matches);
+    }
+
+    private final int bestOf;
+    private final Strategy strategy;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a tournament that runs on the common {@code ForkJoinPool}.
+     *
+     * @param bestOf   N for best-of-N matches, which must be odd
+     * @param strategy How players choose their moves
+     */
+    public Tournament(int bestOf, Strategy strategy) {
+        this(bestOf, strategy, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a tournament.
+     *
+     * @param bestOf   N for best-of-N matches, which must be odd
+     * @param strategy How players choose their moves
+     * @param pool     Pool that large rounds are split across
+     */
+    public Tournament(int bestOf, Strategy strategy, ForkJoinPool pool) {
+        Match.checkBestOf(bestOf);
+        this.bestOf = bestOf;
+        this.strategy = strategy;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns a strategy that picks moves uniformly at random, but deterministically for a given seed, player,
+     * opponent and round, so simulations can be repeated.
+     *
+     * @param seed Seed
+     * @return The strategy
+     */
+    public static Strategy randomStrategy(long seed) {
+        return (player, opponent, round) -> {
+            long z = seed + 0x9E3779B97F4A7C15L * (((long) player << 32 | opponent & 0xFFFFFFFFL) + round + 1);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z ^= z >>> 31;
+            return 1 + (int) ((z >>> 1) % 3);
+        };
+    }
+
+    /**
+     * Scores a batch of rounds.
+     *
+     * @param first    First side's moves, each 1 to 3
+     * @param second   Second side's moves, each 1 to 3
+     * @param outcomes Receives {@link #TIE}, {@link #FIRST} or {@link #SECOND} for each round
+     * @param from     First index to score
+     * @param to       Index after the last one to score
+     * @throws IllegalArgumentException if a move is not 1, 2, or 3
+     */
+    public static void score(byte[] first, byte[] second, byte[] outcomes, int from, int to) {
+        Player.getOutcomes(first, second, outcomes, from, to);
+    }
+
+    /**
+     * Plays one match between each pair of players.
+     *
+     * @param first   First player of each match
+     * @param second  Second player of each match
+     * @param winners Receives the winner of each match
+     * @param matches Number of matches
+     */
+    public void playMatches(int[] first, int[] second, int[] winners, int matches) {
+        if (matches <= BATCH_SIZE)
+            playBatch(first, second, winners, 0, matches);
+        else
+            pool.invoke(new MatchesTask(first, second, winners, 0, matches));
+    }
+
+    /**
+     * Runs a single-elimination bracket. Players are paired in order each round, and with an odd number left the last
+     * one gets a bye.
+     *
+     * @param players  Number of players, numbered from 0
+     * @param listener Receives each round's results, or {@code null}
+     * @return The champion
+     */
+    public int knockout(int players, Listener listener) {
+        if (players < 1)
+            throw new IllegalArgumentException("Need at least one player");
+        int[] remaining = new int[players];
+        for (int i = 0; i < players; i++)
+            remaining[i] = i;
+        int[] first = new int[players / 2];
+        int[] second = new int[players / 2];
+        int[] winners = new int[players / 2];
+        for (int round = 0; players > 1; round++) {
+            int matches = players / 2;
+            for (int i = 0; i < matches; i++) {
+                first[i] = remaining[2 * i];
+                second[i] = remaining[2 * i + 1];
+            }
+            playMatches(first, second, winners, matches);
+            if (listener != null)
+                listener.roundComplete(round, first, second, winners, matches);
+            int bye = players % 2 == 1 ? remaining[players - 1] : -1;
+            System.arraycopy(winners, 0, remaining, 0, matches);
+            players = matches;
+            if (bye >= 0)
+                remaining[players++] = bye;
+        }
+        return remaining[0];
+    }
+
+    /**
+     * Runs a round-robin with the circle method: in each tournament round every player plays one match, and after
+     * {@code players - 1} rounds (or {@code players} if odd) everyone has played everyone once. A full round-robin is
+     * quadratic in the number of players, so large fields can stop after fewer rounds.
+     *
+     * @param players  Number of players, numbered from 0
+     * @param rounds   Number of tournament rounds to play, at most a full round-robin
+     * @param listener Receives each round's results, or {@code null}
+     * @return Number of matches each player won
+     */
+    public int[] roundRobin(int players, int rounds, Listener listener) {
+        if (players < 2)
+            throw new IllegalArgumentException("Need at least two players");
+        int size = players + players % 2; // Odd fields get a dummy player, and facing it is a bye
+        rounds = Math.min(rounds, size - 1);
+        int[] wins = new int[players];
+        int[] first = new int[size / 2];
+        int[] second = new int[size / 2];
+        int[] winners = new int[size / 2];
+        for (int round = 0; round < rounds; round++) {
+            int matches = 0;
+            for (int i = 0; i < size / 2; i++) {
+                int a = circlePosition(i, round, size);
+                int b = circlePosition(size - 1 - i, round, size);
+                if (a >= players || b >= players)
+                    continue;
+                first[matches] = a;
+                second[matches++] = b;
+            }
+            playMatches(first, second, winners, matches);
+            for (int i = 0; i < matches; i++)
+                wins[winners[i]]++;
+            if (listener != null)
+                listener.roundComplete(round, first, second, winners, matches);
+        }
+        return wins;
+    }
+
+    /**
+     * @return The player at a position of the circle in a round; position 0 stays put and the rest rotate
+     */
+    private static int circlePosition(int position, int round, int size) {
+        return position == 0 ? 0 : 1 + (position - 1 + round) % (size - 1);
+    }
+
+    /**
+     * Plays matches {@code from} to {@code to} round by round, scoring every match that is still undecided in one
+     * batch per round.
+     */
+    private void playBatch(int[] first, int[] second, int[] winners, int from, int to) {
+        int count = to - from;
+        int winsNeeded = bestOf / 2 + 1;
+        int maxRounds = bestOf * MAX_ROUNDS_FACTOR;
+        int[] undecided = new int[count];
+        byte[] firstMoves = new byte[count];
+        byte[] secondMoves = new byte[count];
+        byte[] outcomes = new byte[count];
+        int[] firstWins = new int[count];
+        int[] secondWins = new int[count];
+        for (int i = 0; i < count; i++)
+            undecided[i] = i;
+        for (int round = 0; count > 0; round++) {
+            for (int j = 0; j < count; j++) {
+                int match = from + undecided[j];
+                firstMoves[j] = (byte) strategy.getMove(first[match], second[match], round);
+                secondMoves[j] = (byte) strategy.getMove(second[match], first[match], round);
+            }
+            score(firstMoves, secondMoves, outcomes, 0, count);
+            boolean last = round == maxRounds - 1;
+            int stillUndecided = 0;
+            for (int j = 0; j < count; j++) {
+                int i = undecided[j];
+                if (outcomes[j] == FIRST)
+                    firstWins[i]++;
+                else if (outcomes[j] == SECOND)
+                    secondWins[i]++;
+                if (firstWins[i] == winsNeeded || last && firstWins[i] >= secondWins[i])
+                    winners[from + i] = first[from + i];
+                else if (secondWins[i] == winsNeeded || last)
+                    winners[from + i] = second[from + i];
+                else
+                    undecided[stillUndecided++] = i;
+            }
+            count = stillUndecided;
+        }
+    }
+
+    /**
+     * Splits a round's matches in half until each piece fits in one batch.
+     */
+    private class MatchesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] first;
+        private final int[] second;
+        private final int[] winners;
+        private final int from;
+        private final int to;
+
+        MatchesTask(int[] first, int[] second, int[] winners, int from, int to) {
+            this.first = first;
+            this.second = second;
+            this.winners = winners;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SIZE) {
+                playBatch(first, second, winners, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new MatchesTask(first, second, winners, from, middle),
+                    new MatchesTask(first, second, winners, middle, to));
+        }
+    }
+}
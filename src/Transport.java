@@ -0,0 +1,107 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * A two-way byte stream between a {@code Client} and a {@code Server}. The game protocol only needs ordered, reliable
+ * bytes, so it can run over a TCP socket, a Unix domain socket, or an in-process ring buffer alike. Which one is used
+ * is chosen by the scheme of a URI:
+ * <ul>
+ *     <li>{@code tcp://host:port} - {@link TcpTransport}</li>
+ *     <li>{@code unix:/path/to/socket} - {@link UnixSocketTransport}</li>
+ *     <li>{@code mem://name} - {@link MemoryTransport}, between threads of the same JVM</li>
+ * </ul>
+ */
+public interface Transport extends Closeable {
+    /**
+     * @return Stream of bytes from the other side; a read at the end of the stream means the other side closed it
+     */
+    InputStream getInputStream();
+
+    /**
+     * @return Stream of bytes to the other side
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * Limits how long a read waits for data, like {@code Socket.setSoTimeout}.
+     *
+     * @param millis Timeout, or 0 to wait forever
+     * @throws IOException
+     */
+    void setReadTimeout(int millis) throws IOException;
+
+    /**
+     * Accepts transports from clients, like a {@code ServerSocket}.
+     */
+    interface Listener extends Closeable {
+        /**
+         * Waits for a client to connect.
+         *
+         * @return The new transport
+         * @throws IOException if the listener is closed
+         */
+        Transport accept() throws IOException;
+
+        /**
+         * @return URI a client can connect to, e.g. with the port picked for port 0
+         */
+        URI getAddress();
+    }
+
+    /**
+     * Connects to a listener.
+     *
+     * @param uri Address as described in the class comment
+     * @return The transport
+     * @throws IOException if the connection cannot be made
+     * @throws IllegalArgumentException if the scheme is unknown
+     */
+    static Transport connect(URI uri) throws IOException {
+        switch (scheme(uri)) {
+            case "tcp":
+                return new TcpTransport(uri.getHost(), uri.getPort());
+            case "unix":
+                return new UnixSocketTransport(UnixSocketTransport.path(uri));
+            default:
+                return MemoryTransport.connect(MemoryTransport.name(uri));
+        }
+    }
+
+    /**
+     * Starts listening for clients.
+     *
+     * @param uri Address as described in the class comment. A TCP listener binds to the given host, or to every
+     *            interface for {@code 0.0.0.0}, and to any free port for port 0.
+     * @return The listener
+     * @throws IOException if the address is in use
+     * @throws IllegalArgumentException if the scheme is unknown
+     */
+    static Listener listen(URI uri) throws IOException {
+        switch (scheme(uri)) {
+            case "tcp":
+                return new TcpTransport.Listener(uri.getHost(), uri.getPort());
+            case "unix":
+                return new UnixSocketTransport.Listener(UnixSocketTransport.path(uri));
+            default:
+                return MemoryTransport.listen(MemoryTransport.name(uri));
+        }
+    }
+
+    private static String scheme(URI uri) {
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme();
+        switch (scheme) {
+            case "tcp":
+                if (uri.getHost() == null || uri.getPort() < 0)
+                    throw new IllegalArgumentException("Expected tcp://host:port, got " + uri);
+                return scheme;
+            case "unix":
+            case "mem":
+                return scheme;
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + uri);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * {@link Transport} over a Unix domain socket, for a client and server on the same machine. It skips the TCP/IP stack
+ * entirely. Needs Java 16 or later.
+ * <p>
+ * The channel is non-blocking, and each direction waits on its own {@code Selector}. A blocking channel's streams
+ * would make a heartbeat write wait behind a blocked read, and would not support read timeouts.
+ */
+public class UnixSocketTransport implements Transport {
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final InputStream in = new In();
+    private final OutputStream out = new Out();
+    private volatile int readTimeoutMillis;
+
+    /**
+     * Connects to a server.
+     *
+     * @param path Path of the server's socket file
+     * @throws IOException
+     */
+    public UnixSocketTransport(Path path) throws IOException {
+        this(SocketChannel.open(UnixDomainSocketAddress.of(path)));
+    }
+
+    private UnixSocketTransport(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        try {
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The socket path of a {@code unix:} URI, which may be relative, e.g. {@code unix:rps.sock}
+     */
+    static Path path(URI uri) {
+        String path = uri.getPath() != null ? uri.getPath() : uri.getSchemeSpecificPart();
+        if (path == null || path.isEmpty())
+            throw new IllegalArgumentException("Expected unix:/path/to/socket, got " + uri);
+        return Paths.get(path);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void setReadTimeout(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Negative timeout: " + millis);
+        readTimeoutMillis = millis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            // Wakes up any thread waiting to read or write, which then finds the channel closed
+            readSelector.close();
+            writeSelector.close();
+        }
+    }
+
+    private class In extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            long timeout = readTimeoutMillis;
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                int read = channel.read(buffer);
+                if (read != 0)
+                    return read;
+                long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                if (timeout != 0 && remaining <= 0)
+                    throw new SocketTimeoutException("Read timed out");
+                select(readSelector, remaining);
+            }
+        }
+    }
+
+    private class Out extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0)
+                    select(writeSelector, 0);
+            }
+        }
+    }
+
+    private void select(Selector selector, long timeoutMillis) throws IOException {
+        try {
+            selector.select(timeoutMillis);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new SocketException("Socket closed");
+        }
+    }
+
+    /**
+     * Accepts clients on a socket file, which is deleted again when the listener is closed.
+     */
+    public static class Listener implements Transport.Listener {
+        private final ServerSocketChannel channel;
+        private final Path path;
+
+        /**
+         * @param path Path of the socket file, which must not exist yet
+         * @throws IOException
+         */
+        public Listener(Path path) throws IOException {
+            this.path = path;
+            if (Files.exists(path))
+                throw new BindException("Address already in use: " + path);
+            channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.bind(UnixDomainSocketAddress.of(path), 1024);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public Transport accept() throws IOException {
+            return new UnixSocketTransport(channel.accept());
+        }
+
+        @Override
+        public URI getAddress() {
+            return URI.create("unix:" + path.toAbsolutePath().toUri().getRawPath());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
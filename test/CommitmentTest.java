@@ -0,0 +1,252 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link Commitment}, and for the checks {@link Client} and {@link GameSession} make with it against a
+ * server that commits to scissors and then reveals and reports whatever it likes. Both clients play rock.
+ */
+public class CommitmentTest {
+    private static final RSAKey key = new ProbablePrimeKeyGenerator(1024).generateKey();
+    private static final int ROCK = 1;
+    private static final int PAPER = 2;
+    private static final int SCISSORS = 3;
+
+    @Test
+    public void revealOfTheCommittedMoveVerifies() {
+        Commitment commitment = new Commitment();
+        byte[] hash = commitment.commit(PAPER).clone();
+        assertEquals(PAPER, commitment.getMove());
+        byte[] nonce = commitment.getNonce();
+        assertTrue(new Commitment().verify(hash, PAPER, nonce, 0));
+
+        // The nonce may sit anywhere in a frame
+        byte[] frame = new byte[2 + Commitment.NONCE_LENGTH];
+        System.arraycopy(nonce, 0, frame, 2, Commitment.NONCE_LENGTH);
+        assertTrue(new Commitment().verify(hash, PAPER, frame, 2));
+    }
+
+    @Test
+    public void revealOfAnotherMoveOrNonceDoesNotVerify() {
+        Commitment commitment = new Commitment();
+        byte[] hash = commitment.commit(PAPER).clone();
+        byte[] nonce = commitment.getNonce().clone();
+        assertFalse(commitment.verify(hash, ROCK, nonce, 0));
+        assertFalse(commitment.verify(hash, SCISSORS, nonce, 0));
+        nonce[Commitment.NONCE_LENGTH - 1] ^= 1;
+        assertFalse(commitment.verify(hash, PAPER, nonce, 0));
+    }
+
+    @Test
+    public void commitmentsToTheSameMoveDiffer() {
+        Commitment commitment = new Commitment();
+        byte[] first = commitment.commit(ROCK).clone();
+        byte[] firstNonce = commitment.getNonce().clone();
+        byte[] second = commitment.commit(ROCK).clone();
+        assertFalse(Arrays.equals(first, second));
+        assertFalse(commitment.verify(second, ROCK, firstNonce, 0));
+        assertTrue(commitment.verify(first, ROCK, firstNonce, 0));
+    }
+
+    @Test
+    public void clientAcceptsAnHonestRound() throws Exception {
+        assertNull(playClientRound(SCISSORS, true, false, NetworkPlayer.WIN));
+    }
+
+    @Test
+    public void clientRejectsARevealWithAnotherNonce() throws Exception {
+        assertEquals("Server revealed a move it did not commit to",
+                playClientRound(SCISSORS, false, false, NetworkPlayer.WIN));
+    }
+
+    @Test
+    public void clientRejectsARevealOfAnotherMove() throws Exception {
+        assertEquals("Server revealed a move it did not commit to",
+                playClientRound(PAPER, true, false, NetworkPlayer.LOSE));
+    }
+
+    @Test
+    public void clientRejectsAResultWithoutAReveal() throws Exception {
+        assertEquals("Server sent a result without revealing its move",
+                playClientRound(SCISSORS, true, true, NetworkPlayer.WIN));
+    }
+
+    @Test
+    public void clientRejectsAResultTheMovesDoNotGive() throws Exception {
+        for (int result : new int[] {NetworkPlayer.LOSE, NetworkPlayer.TIE}) {
+            assertEquals("Server reported a result the moves do not give",
+                    playClientRound(SCISSORS, true, false, result));
+        }
+    }
+
+    @Test
+    public void sessionAcceptsAnHonestRound() throws Exception {
+        assertNull(playSessionRound(SCISSORS, true, false, NetworkPlayer.WIN));
+    }
+
+    @Test
+    public void sessionRejectsARevealWithAnotherNonce() throws Exception {
+        assertEquals("Server revealed a move it did not commit to",
+                playSessionRound(SCISSORS, false, false, NetworkPlayer.WIN));
+    }
+
+    @Test
+    public void sessionRejectsARevealOfAnotherMove() throws Exception {
+        assertEquals("Server revealed a move it did not commit to",
+                playSessionRound(PAPER, true, false, NetworkPlayer.LOSE));
+    }
+
+    @Test
+    public void sessionRejectsAResultWithoutAReveal() throws Exception {
+        assertEquals("Server sent a result without revealing its move",
+                playSessionRound(SCISSORS, true, true, NetworkPlayer.WIN));
+    }
+
+    @Test
+    public void sessionRejectsAResultTheMovesDoNotGive() throws Exception {
+        for (int result : new int[] {NetworkPlayer.LOSE, NetworkPlayer.TIE}) {
+            assertEquals("Server reported a result the moves do not give",
+                    playSessionRound(SCISSORS, true, false, result));
+        }
+    }
+
+    /**
+     * Accepts one client on a new thread and plays one round with it: commits to scissors, waits for the client's
+     * move, then reveals, reports a result and ends the match as told.
+     *
+     * @param revealedMove Move to reveal
+     * @param sameNonce    {@code false} to reveal with a nonce other than the committed one
+     * @param skipReveal   {@code true} to send the result without a REVEAL
+     * @param result       Result to report
+     * @return Completes once the server is done with the client
+     */
+    private static CompletableFuture<Void> serveRound(Transport.Listener listener, int revealedMove,
+                                                      boolean sameNonce, boolean skipReveal, int result) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                Server server = new Server(listener.accept(), key, NetworkPlayer.PROTOCOL_COMMIT_REVEAL);
+                try {
+                    Commitment commitment = new Commitment();
+                    server.writeCommit(commitment.commit(SCISSORS));
+                    assertEquals(NetworkPlayer.MOVE, server.readMessage());
+                    assertEquals(ROCK, server.getMessageMove());
+                    byte[] nonce = commitment.getNonce().clone();
+                    if (!sameNonce)
+                        nonce[0] ^= 1;
+                    if (!skipReveal)
+                        server.writeReveal(revealedMove, nonce);
+                    server.writeMessage(result);
+                    server.writeMessage(NetworkPlayer.END);
+                    server.flush();
+                    // Wait for the client to hang up
+                    server.readMessage();
+                } finally {
+                    server.close();
+                }
+            } catch (IOException ignored) {
+                // The client hung up
+            }
+        });
+    }
+
+    /**
+     * Plays a round from a blocking {@link Client}, the way its console loop does.
+     *
+     * @return Message of the exception the client raised, or {@code null} if it accepted the round
+     */
+    private static String playClientRound(int revealedMove, boolean sameNonce, boolean skipReveal, int result)
+            throws Exception {
+        try (Transport.Listener listener = Transport.listen(URI.create("tcp://localhost:0"))) {
+            CompletableFuture<Void> served = serveRound(listener, revealedMove, sameNonce, skipReveal, result);
+            Client client = new Client(Transport.connect(listener.getAddress()), NetworkPlayer.PROTOCOL_COMMIT_REVEAL,
+                    true, false);
+            try {
+                while (true) {
+                    int opcode = client.readMessage();
+                    if (opcode == NetworkPlayer.COMMIT) {
+                        client.acceptCommitment();
+                        client.writeMove(ROCK);
+                    } else if (opcode == NetworkPlayer.REVEAL) {
+                        assertEquals(revealedMove, client.checkReveal());
+                    } else if (opcode == NetworkPlayer.END) {
+                        return null;
+                    } else {
+                        assertEquals(SCISSORS, client.checkResult(opcode));
+                    }
+                }
+            } catch (IOException e) {
+                return e.getMessage();
+            } finally {
+                client.close();
+                served.get(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Plays a round from a {@link GameSession}.
+     *
+     * @return Message of the exception the session failed with, or {@code null} if it reached the end of the match
+     */
+    private static String playSessionRound(int revealedMove, boolean sameNonce, boolean skipReveal, int result)
+            throws Exception {
+        try (Transport.Listener listener = Transport.listen(URI.create("tcp://localhost:0"));
+             SessionLoop loop = new SessionLoop()) {
+            loop.start();
+            CompletableFuture<Void> served = serveRound(listener, revealedMove, sameNonce, skipReveal, result);
+            GameSession session = loop.connect(listener.getAddress(), NetworkPlayer.PROTOCOL_COMMIT_REVEAL, false);
+            session.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    session.onNext(ROCK);
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            CompletableFuture<String> outcome = new CompletableFuture<>();
+            session.subscribe(new Flow.Subscriber<GameSession.Event>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(GameSession.Event event) {
+                    if (event.getOpcode() == NetworkPlayer.REVEAL)
+                        assertEquals(revealedMove, event.getMove());
+                    else if (event.getOpcode() == NetworkPlayer.END)
+                        outcome.complete(null);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    outcome.complete(throwable.getMessage());
+                }
+
+                @Override
+                public void onComplete() {
+                    outcome.complete(null);
+                }
+            });
+            try {
+                return outcome.get(10, TimeUnit.SECONDS);
+            } finally {
+                session.close();
+                served.get(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
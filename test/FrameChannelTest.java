@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link FrameChannel}.
+ */
+public class FrameChannelTest {
+    @Test
+    public void largeFrameStaysReservedUntilItsBufferIsDropped() throws Exception {
+        int length = 4 * FrameChannel.BUFFER_SIZE;
+        try (ServerSocketChannel server = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+             SocketChannel receiver = server.accept()) {
+            ByteBuffer frame = ByteBuffer.allocate(4 + length + 4 + 1);
+            frame.putInt(length).position(4 + length);
+            frame.putInt(1).put((byte) 7).flip();
+            while (frame.hasRemaining())
+                sender.write(frame);
+
+            long before = MemoryBudget.FRAMES.getReserved();
+            FrameChannel frames = new FrameChannel(receiver);
+            awaitFrame(frames, length);
+            frames.consumeFrame();
+            // The payload is handled in place, so the grown buffer and its reservation are still needed
+            assertEquals(length, frames.getFrameLength());
+            assertEquals(before + 4 + length, MemoryBudget.FRAMES.getReserved());
+
+            frames.endParse();
+            assertEquals(before, MemoryBudget.FRAMES.getReserved());
+
+            // The grown buffer only had room for the large frame, so the next one comes with the next read
+            awaitFrame(frames, length);
+            frames.consumeFrame();
+            assertEquals(7, frames.getBuffer()[frames.getFrameOffset()]);
+            assertFalse(frames.endParse());
+        }
+    }
+
+    /**
+     * Reads until a whole frame is in, leaving it ready to consume.
+     */
+    private static void awaitFrame(FrameChannel frames, int maxLength) throws Exception {
+        while (true) {
+            assertTrue(frames.read() >= 0);
+            frames.beginParse();
+            if (frames.hasFrame(0, maxLength))
+                return;
+            frames.endParse();
+        }
+    }
+}
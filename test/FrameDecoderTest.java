@@ -0,0 +1,138 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link FrameDecoder}.
+ */
+public class FrameDecoderTest {
+    private static final int[] BINARY_PROTOCOLS = {NetworkPlayer.PROTOCOL_BINARY, NetworkPlayer.PROTOCOL_COMMIT_REVEAL};
+
+    /**
+     * Encodes the messages of one game step back to back, as a batched frame holds them, starting at offset 5.
+     *
+     * @return Offset just past the last message
+     */
+    private static int encodeBatch(int protocol, byte[] frame) {
+        int position = 5;
+        position += NetworkPlayer.encodeMessage(protocol, frame, position, NetworkPlayer.TIE, 0);
+        position += NetworkPlayer.encodeMessage(protocol, frame, position, NetworkPlayer.HEARTBEAT, 0);
+        position += NetworkPlayer.encodeCommit(protocol, frame, position, new byte[Commitment.HASH_LENGTH]);
+        position += NetworkPlayer.encodeReveal(protocol, frame, position, 3, new byte[Commitment.NONCE_LENGTH]);
+        position += NetworkPlayer.encodeMessage(protocol, frame, position, NetworkPlayer.MOVE, 2);
+        position += NetworkPlayer.encodeMessage(protocol, frame, position, NetworkPlayer.PROMPT_MOVE, 0);
+        return position;
+    }
+
+    @Test
+    public void batchedFrameYieldsEveryMessageInOrder() throws IOException {
+        for (int protocol : BINARY_PROTOCOLS) {
+            byte[] frame = new byte[256];
+            int end = encodeBatch(protocol, frame);
+            FrameDecoder decoder = new FrameDecoder();
+            decoder.reset(protocol, frame, 5, end - 5);
+
+            int[] opcodes = {
+                    NetworkPlayer.TIE, NetworkPlayer.HEARTBEAT, NetworkPlayer.COMMIT, NetworkPlayer.REVEAL,
+                    NetworkPlayer.MOVE, NetworkPlayer.PROMPT_MOVE
+            };
+            int[] lengths = {1, 1, 1 + Commitment.HASH_LENGTH, 2 + Commitment.NONCE_LENGTH, 2, 1};
+            int offset = 5;
+            for (int i = 0; i < opcodes.length; i++) {
+                assertTrue(decoder.hasNext());
+                assertEquals(opcodes[i], decoder.next());
+                assertSame(frame, decoder.getBuffer());
+                assertEquals(offset, decoder.getOffset());
+                assertEquals(lengths[i], decoder.getLength());
+                if (opcodes[i] == NetworkPlayer.MOVE || opcodes[i] == NetworkPlayer.REVEAL) {
+                    int move = NetworkPlayer.decodeMove(protocol, frame, decoder.getOffset(), decoder.getLength());
+                    assertEquals(opcodes[i] == NetworkPlayer.MOVE ? 2 : 3, move);
+                }
+                offset += lengths[i];
+            }
+            assertFalse(decoder.hasNext());
+        }
+    }
+
+    @Test
+    public void numberTakesTheRestOfTheFrame() throws IOException {
+        int protocol = NetworkPlayer.PROTOCOL_BINARY;
+        byte[] key = NetworkPlayer.encodeNumber(protocol, NetworkPlayer.KEY, BigInteger.valueOf(65537));
+        byte[] frame = Arrays.copyOf(new byte[] {NetworkPlayer.WIN}, 1 + key.length);
+        System.arraycopy(key, 0, frame, 1, key.length);
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.reset(protocol, frame, 0, frame.length);
+        assertEquals(NetworkPlayer.WIN, decoder.next());
+        assertEquals(NetworkPlayer.KEY, decoder.next());
+        assertEquals(key.length, decoder.getLength());
+        assertEquals(BigInteger.valueOf(65537),
+                NetworkPlayer.decodeNumber(protocol, frame, decoder.getOffset(), decoder.getLength()));
+        assertFalse(decoder.hasNext());
+    }
+
+    @Test
+    public void textFrameIsOneMessage() throws IOException {
+        byte[] frame = "MOVE: 2".getBytes(StandardCharsets.US_ASCII);
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.reset(NetworkPlayer.PROTOCOL_TEXT, frame, 0, frame.length);
+        assertEquals(NetworkPlayer.MOVE, decoder.next());
+        assertEquals(frame.length, decoder.getLength());
+        assertFalse(decoder.hasNext());
+
+        // Two text messages in one frame are not a batch but one unrecognised message
+        frame = "TIEPROMPT_MOVE".getBytes(StandardCharsets.US_ASCII);
+        decoder.reset(NetworkPlayer.PROTOCOL_TEXT, frame, 0, frame.length);
+        assertThrows(IOException.class, decoder::next);
+    }
+
+    @Test
+    public void batchCutShortRaisesFrameException() throws IOException {
+        for (int protocol : BINARY_PROTOCOLS) {
+            byte[] frame = new byte[256];
+            int end = encodeBatch(protocol, frame);
+            // Cut into the trailing MOVE, then into the REVEAL before it
+            for (int cut : new int[] {2, 1 + 2 + Commitment.NONCE_LENGTH - 1}) {
+                FrameDecoder decoder = new FrameDecoder();
+                decoder.reset(protocol, frame, 5, end - 5 - cut);
+                FrameException e = assertThrows(FrameException.class, () -> {
+                    while (decoder.hasNext())
+                        decoder.next();
+                });
+                assertTrue(e.getMessage().contains("middle"), e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void unknownOpcodeInABatchIsRejected() throws IOException {
+        int protocol = NetworkPlayer.PROTOCOL_BINARY;
+        byte[] frame = {NetworkPlayer.TIE, (byte) (NetworkPlayer.REMATCH + 1), NetworkPlayer.PROMPT_MOVE};
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.reset(protocol, frame, 0, frame.length);
+        assertEquals(NetworkPlayer.TIE, decoder.next());
+        IOException e = assertThrows(IOException.class, decoder::next);
+        assertFalse(e instanceof FrameException);
+    }
+
+    @Test
+    public void resetStartsOverOnANewFrame() throws IOException {
+        byte[] frame = {NetworkPlayer.WIN, NetworkPlayer.END};
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.reset(NetworkPlayer.PROTOCOL_BINARY, frame, 0, 2);
+        assertEquals(NetworkPlayer.WIN, decoder.next());
+        decoder.reset(NetworkPlayer.PROTOCOL_BINARY, frame, 1, 1);
+        assertEquals(NetworkPlayer.END, decoder.next());
+        assertFalse(decoder.hasNext());
+        decoder.reset(NetworkPlayer.PROTOCOL_BINARY, frame, 0, 0);
+        assertFalse(decoder.hasNext());
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link Histogram}.
+ */
+public class HistogramTest {
+    @Test
+    public void everyValueFallsInTheBucketBoundedByIt() {
+        Random random = new Random(1);
+        List<Long> values = new ArrayList<>(List.of(0L, 1L, 31L, 32L, 33L, 1023L, 1024L, Long.MAX_VALUE));
+        for (int i = 0; i < 10_000; i++)
+            values.add(random.nextLong() >>> 1 + random.nextInt(63));
+        for (long value : values) {
+            int index = Histogram.indexOf(value);
+            assertTrue(value <= Histogram.upperBoundOf(index), "value " + value);
+            if (index > 0)
+                assertTrue(value > Histogram.upperBoundOf(index - 1), "value " + value);
+            // Buckets are at most a sixteenth of their lower bound wide
+            assertTrue(Histogram.upperBoundOf(index) - value <= value / 16, "value " + value);
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBoundOf(Histogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 20; value++)
+            histogram.record(value);
+        histogram.record(-5);
+        assertEquals(21, histogram.getCount());
+        assertEquals(210, histogram.getSum());
+        assertEquals(20, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(10, histogram.getValueAtPercentile(50));
+        assertEquals(20, histogram.getValueAtPercentile(100));
+        assertEquals(10, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketError() {
+        Random random = new Random(2);
+        long[] values = new long[100_000];
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < values.length; i++) {
+            // Roughly log-normal, like latencies in nanoseconds
+            values[i] = (long) Math.exp(12 + 2 * random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[] {1, 10, 50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = histogram.getValueAtPercentile(percentile);
+            assertTrue(reported >= exact && reported <= exact + exact / 16,
+                    "p" + percentile + " exact " + exact + " reported " + reported);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void addMergesAndResetForgets() {
+        Histogram first = new Histogram();
+        Histogram second = new Histogram();
+        for (int value = 0; value < 100; value++) {
+            first.record(value);
+            second.record(value * 1000);
+        }
+        first.add(second);
+        assertEquals(200, first.getCount());
+        assertEquals(4950 + 4950 * 1000, first.getSum());
+        assertEquals(99_000, first.getMax());
+        assertEquals(99, first.getValueAtPercentile(50));
+        assertEquals(100, second.getCount());
+
+        first.reset();
+        assertEquals(0, first.getCount());
+        assertEquals(0, first.getSum());
+        assertEquals(0, first.getMax());
+        first.record(7);
+        assertEquals(7, first.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void sinceCountsOnlyValuesAfterTheSnapshot() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 100; value++)
+            histogram.record(value * 1000);
+        Histogram snapshot = new Histogram();
+        snapshot.add(histogram);
+        histogram.record(5);
+        histogram.record(7);
+        Histogram difference = histogram.since(snapshot);
+        assertEquals(2, difference.getCount());
+        assertEquals(12, difference.getSum());
+        assertEquals(7, difference.getMax());
+        assertEquals(5, difference.getValueAtPercentile(50));
+        assertEquals(0, histogram.since(histogram).getCount());
+    }
+
+    @Test
+    public void concurrentRecordingOfOneValueLosesNothing() throws Exception {
+        int threads = 8;
+        int perThread = 100_000;
+        Histogram histogram = new Histogram();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                done.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++)
+                        histogram.record(1000);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : done)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals((long) threads * perThread, histogram.getCount());
+        assertEquals(1000L * threads * perThread, histogram.getSum());
+        assertEquals(1000, histogram.getValueAtPercentile(50));
+
+        Histogram copy = new Histogram();
+        copy.add(histogram);
+        assertEquals(histogram.getCount(), copy.getCount());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+}
@@ -0,0 +1,270 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for keep-alive: rematches over one connection with {@link Server#awaitRematch()},
+ * {@link Client#requestRematch()} and {@link GameSession#requestRematch()}, and the heartbeats that keep an idle
+ * connection from timing out.
+ */
+public class KeepAliveTest {
+    private static final RSAKey key = new ProbablePrimeKeyGenerator(1024).generateKey();
+    private static final int ROCK = 1;
+    private static final int PAPER = 2;
+    /**
+     * Idle timeout short enough for a test, and a silence three times as long.
+     */
+    private static final long IDLE_TIMEOUT = 200;
+    private static final long SILENCE = 3 * IDLE_TIMEOUT;
+
+    /**
+     * Plays rock against one client for as long as it asks for rematches.
+     *
+     * @return Number of matches played
+     */
+    private static CompletableFuture<Integer> serveMatches(Transport.Listener listener) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Server server = new Server(listener.accept(), key, NetworkPlayer.PROTOCOL_BINARY);
+                int matches = 0;
+                do {
+                    server.playGame(new FixedSeat());
+                    matches++;
+                } while (server.awaitRematch());
+                server.close();
+                return matches;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Completes the handshake with one client, says nothing for {@link #SILENCE} apart from heartbeats if the client
+     * asked for keep-alive, then prompts for a move and waits to be told to hang up.
+     */
+    private static CompletableFuture<Void> serveSilence(Transport.Listener listener, CountDownLatch hangUp) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                Server server = new Server(listener.accept(), key, NetworkPlayer.PROTOCOL_BINARY);
+                server.setIdleTimeout(IDLE_TIMEOUT);
+                Thread.sleep(SILENCE);
+                try {
+                    server.promptMove();
+                } catch (IOException ignored) {
+                    // A client without keep-alive has already given up
+                }
+                hangUp.await();
+                server.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static long rsaDecryptions() {
+        return Metrics.RSA_DECRYPT.getHistogram().getCount();
+    }
+
+    @Test
+    public void botRematchesWithoutANewKeyExchange() throws Exception {
+        URI address = URI.create("mem://keep-alive-" + System.nanoTime());
+        try (Transport.Listener listener = Transport.listen(address)) {
+            CompletableFuture<Integer> matches = serveMatches(listener);
+            long decryptions = rsaDecryptions();
+            BotClient bot = new BotClient(address, NetworkPlayer.PROTOCOL_BINARY, BotClient.fixedStrategy(PAPER), null,
+                    true);
+            assertTrue(bot.isKeepAlive());
+            bot.playGame();
+            bot.requestRematch();
+            bot.playGame();
+            bot.close();
+            assertEquals(2, matches.get(10, TimeUnit.SECONDS));
+            assertEquals(2, bot.getWins());
+            assertEquals(1, rsaDecryptions() - decryptions);
+        }
+    }
+
+    @Test
+    public void sessionRematchesWithoutANewKeyExchange() throws Exception {
+        try (Transport.Listener listener = Transport.listen(URI.create("tcp://localhost:0"));
+             SessionLoop loop = new SessionLoop()) {
+            loop.start();
+            CompletableFuture<Integer> matches = serveMatches(listener);
+            long decryptions = rsaDecryptions();
+            GameSession session = loop.connect(listener.getAddress(), NetworkPlayer.PROTOCOL_BINARY, true);
+            Events events = new Events(session, PAPER);
+            for (int match = 0; match < 2; match++) {
+                if (match > 0)
+                    session.requestRematch();
+                assertSame(GameSession.Event.PROMPT_MOVE, events.next());
+                assertSame(GameSession.Event.WIN, events.next());
+                assertSame(GameSession.Event.END, events.next());
+                assertTrue(session.isKeepAlive());
+            }
+            session.close();
+            assertEquals(Events.COMPLETE, events.next());
+            assertEquals(2, matches.get(10, TimeUnit.SECONDS));
+            assertEquals(1, rsaDecryptions() - decryptions);
+        }
+    }
+
+    @Test
+    public void clientTimesOutWithoutHeartbeats() throws Exception {
+        CountDownLatch hangUp = new CountDownLatch(1);
+        try (Transport.Listener listener = Transport.listen(URI.create("tcp://localhost:0"))) {
+            CompletableFuture<Void> served = serveSilence(listener, hangUp);
+            Client client = new Client(Transport.connect(listener.getAddress()), NetworkPlayer.PROTOCOL_BINARY, true,
+                    false);
+            client.setIdleTimeout(IDLE_TIMEOUT);
+            assertThrows(SocketTimeoutException.class, client::readMessage);
+            client.close();
+            hangUp.countDown();
+            served.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void heartbeatsKeepAnIdleClientConnected() throws Exception {
+        CountDownLatch hangUp = new CountDownLatch(1);
+        try (Transport.Listener listener = Transport.listen(URI.create("tcp://localhost:0"))) {
+            CompletableFuture<Void> served = serveSilence(listener, hangUp);
+            Client client = new Client(Transport.connect(listener.getAddress()), NetworkPlayer.PROTOCOL_BINARY, true,
+                    true);
+            client.setIdleTimeout(IDLE_TIMEOUT);
+            long start = System.nanoTime();
+            assertEquals(NetworkPlayer.PROMPT_MOVE, client.readMessage());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(SILENCE / 2));
+            client.close();
+            hangUp.countDown();
+            served.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void sessionTimesOutWithoutHeartbeats() throws Exception {
+        CountDownLatch hangUp = new CountDownLatch(1);
+        try (Transport.Listener listener = Transport.listen(URI.create("tcp://localhost:0"));
+             SessionLoop loop = new SessionLoop()) {
+            loop.setIdleTimeout(IDLE_TIMEOUT);
+            loop.start();
+            CompletableFuture<Void> served = serveSilence(listener, hangUp);
+            GameSession session = loop.connect(listener.getAddress(), NetworkPlayer.PROTOCOL_BINARY, false);
+            Events events = new Events(session, PAPER);
+            assertInstanceOf(SocketTimeoutException.class, events.next());
+            hangUp.countDown();
+            served.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void heartbeatsKeepAnIdleSessionConnected() throws Exception {
+        CountDownLatch hangUp = new CountDownLatch(1);
+        try (Transport.Listener listener = Transport.listen(URI.create("tcp://localhost:0"));
+             SessionLoop loop = new SessionLoop()) {
+            loop.setIdleTimeout(IDLE_TIMEOUT);
+            loop.start();
+            CompletableFuture<Void> served = serveSilence(listener, hangUp);
+            GameSession session = loop.connect(listener.getAddress(), NetworkPlayer.PROTOCOL_BINARY, true);
+            Events events = new Events(session, PAPER);
+            assertSame(GameSession.Event.PROMPT_MOVE, events.next());
+            session.close();
+            assertEquals(Events.COMPLETE, events.next());
+            hangUp.countDown();
+            served.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Plays a fixed move whenever a session asks for one, and queues what the session publishes: its events, then
+     * {@link #COMPLETE} or the error it failed with.
+     */
+    private static class Events implements Flow.Subscriber<GameSession.Event> {
+        static final Object COMPLETE = "complete";
+
+        private final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+
+        Events(GameSession session, int move) {
+            session.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    session.onNext(move);
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            session.subscribe(this);
+        }
+
+        /**
+         * @return The next event, {@link #COMPLETE} or error, waiting up to ten seconds for it
+         */
+        Object next() throws InterruptedException {
+            Object next = received.poll(10, TimeUnit.SECONDS);
+            if (next == null)
+                throw new AssertionError("Nothing published");
+            return next;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(GameSession.Event item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            received.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            received.add(COMPLETE);
+        }
+    }
+
+    /**
+     * A host that always plays rock.
+     */
+    private static class FixedSeat implements Seat {
+        @Override
+        public void promptMove() {
+        }
+
+        @Override
+        public int readMove() {
+            return ROCK;
+        }
+
+        @Override
+        public void sendResult(int result) {
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+}
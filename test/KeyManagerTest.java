@@ -0,0 +1,135 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link KeyManager}.
+ */
+public class KeyManagerTest {
+    private static final RSAKey first = new ProbablePrimeKeyGenerator(1024).generateKey();
+    private static final RSAKey second = new ProbablePrimeKeyGenerator(1024).generateKey();
+    private static final RSAKey third = new ProbablePrimeKeyGenerator(1024).generateKey();
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Generator that counts its calls and blocks until closing the manager interrupts it. The key it then returns,
+     * {@link #third}, must not be saved: the temporary directory could not be deleted under a late save.
+     */
+    private static class BlockingGenerator implements KeyGenerator {
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public RSAKey generateKey() {
+            calls.incrementAndGet();
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return third;
+        }
+    }
+
+    private static RSAKeyStore.Entry entry(RSAKey key, long activatedMillis) {
+        return new RSAKeyStore.Entry(key, activatedMillis);
+    }
+
+    @Test
+    public void storedKeyIsReused() throws IOException {
+        RSAKeyStore store = new RSAKeyStore(dir.resolve("keys"));
+        store.save(List.of(entry(first, System.currentTimeMillis())));
+        BlockingGenerator generator = new BlockingGenerator();
+        try (KeyManager manager = new KeyManager(generator, store, 0, 0, 1)) {
+            assertTrue(manager.isLoadedFromStore());
+            assertEquals(first.getModulus(), manager.generateKey().getModulus());
+            assertEquals(0, generator.calls.get());
+        }
+    }
+
+    @Test
+    public void emptyStoreGetsAGeneratedKey() throws IOException {
+        RSAKeyStore store = new RSAKeyStore(dir.resolve("keys"));
+        KeyManager manager = new KeyManager(() -> first, store, 0, 0, 1);
+        try (manager) {
+            assertFalse(manager.isLoadedFromStore());
+            assertSame(first, manager.generateKey());
+        }
+        List<RSAKeyStore.Entry> saved = store.load();
+        assertEquals(1, saved.size());
+        assertEquals(first.getModulus(), saved.get(0).getKey().getModulus());
+        assertTrue(saved.get(0).getActivatedMillis() > 0);
+    }
+
+    @Test
+    public void rotatesToASpareAfterTheRotationInterval() throws Exception {
+        RSAKeyStore store = new RSAKeyStore(dir.resolve("keys"));
+        // Activated 0: the clock starts when the manager loads it
+        store.save(List.of(entry(first, 0), entry(second, 0)));
+        BlockingGenerator generator = new BlockingGenerator();
+        try (KeyManager manager = new KeyManager(generator, store, 200, 1, 1)) {
+            assertEquals(first.getModulus(), manager.generateKey().getModulus());
+            assertEquals(1, manager.getSpareCount());
+            Thread.sleep(300);
+            assertEquals(second.getModulus(), manager.generateKey().getModulus());
+            assertEquals(0, manager.getSpareCount());
+            assertEquals(second.getModulus(), store.load().get(0).getKey().getModulus());
+        }
+    }
+
+    @Test
+    public void expiredKeyStaysCurrentUntilASpareIsReady() throws Exception {
+        RSAKeyStore store = new RSAKeyStore(dir.resolve("keys"));
+        store.save(List.of(entry(first, 1)));
+        BlockingGenerator generator = new BlockingGenerator();
+        try (KeyManager manager = new KeyManager(generator, store, 60_000, 1, 1)) {
+            for (int i = 0; i < 3; i++)
+                assertEquals(first.getModulus(), manager.generateKey().getModulus());
+            while (generator.calls.get() == 0)
+                Thread.sleep(10);
+            Thread.sleep(100);
+            assertEquals(1, generator.calls.get(), "refill should not queue a second generation");
+        }
+    }
+
+    @Test
+    public void concurrentCallersRotateOnlyOnce() throws Exception {
+        RSAKeyStore store = new RSAKeyStore(dir.resolve("keys"));
+        // Expired long ago, with two spares: a second rotation would move on to the third key
+        store.save(List.of(entry(first, 1), entry(second, 0), entry(third, 0)));
+        BlockingGenerator generator = new BlockingGenerator();
+        int threads = 8;
+        try (KeyManager manager = new KeyManager(generator, store, 60_000, 2, 1)) {
+            CyclicBarrier start = new CyclicBarrier(threads);
+            List<CompletableFuture<RSAKey>> keys = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                keys.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return manager.generateKey();
+                }, runnable -> new Thread(runnable).start()));
+            }
+            for (CompletableFuture<RSAKey> key : keys)
+                assertEquals(second.getModulus(), key.get().getModulus());
+            assertEquals(1, manager.getSpareCount());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link Lobby}, including many threads joining and leaving at once.
+ */
+public class LobbyTest {
+    private static final int THREADS = 8;
+
+    @Test
+    public void pairsTheWaitingPlayerWithTheNextToJoin() {
+        List<String> pairs = new ArrayList<>();
+        Lobby<String> lobby = new Lobby<>((first, second) -> pairs.add(first + "-" + second));
+        lobby.join("a");
+        assertEquals(1, lobby.getWaitingCount());
+        lobby.join("b");
+        assertEquals(List.of("a-b"), pairs);
+        assertEquals(0, lobby.getWaitingCount());
+    }
+
+    @Test
+    public void onlyPairsPlayersWithinTheRatingGap() {
+        List<String> pairs = new ArrayList<>();
+        Lobby<String> lobby = new Lobby<>((first, second) -> pairs.add(first + "-" + second), 100, 100);
+        lobby.join("low", 0);
+        lobby.join("high", 1000);
+        assertTrue(pairs.isEmpty());
+        lobby.join("middle", 1050);
+        assertEquals(List.of("high-middle"), pairs);
+        assertEquals(1, lobby.getWaitingCount());
+    }
+
+    @Test
+    public void pairsWithTheNearestBucketTakingTheLowerOnATie() {
+        List<String> pairs = new ArrayList<>();
+        Lobby<String> lobby = new Lobby<>((first, second) -> pairs.add(first + "-" + second), 1, 300);
+        lobby.join("far", -900);
+        lobby.join("low", 0);
+        lobby.join("high", 500);
+        lobby.join("nearer high", 260);
+        assertEquals(List.of("high-nearer high"), pairs);
+        lobby.join("between", 250);
+        assertEquals(List.of("high-nearer high", "low-between"), pairs);
+        lobby.join("upper", -300);
+        lobby.join("tie", -600);
+        assertEquals(List.of("high-nearer high", "low-between", "far-tie"), pairs);
+        assertEquals(1, lobby.getWaitingCount());
+    }
+
+    @Test
+    public void widestGapOnlyVisitsOccupiedBuckets() {
+        List<String> pairs = new ArrayList<>();
+        Lobby<String> lobby = new Lobby<>((first, second) -> pairs.add(first + "-" + second), 1, Integer.MAX_VALUE);
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            lobby.join("alone", 0);
+            // One more than the gap away
+            lobby.join("bottom", Integer.MIN_VALUE);
+            lobby.join("top", Integer.MAX_VALUE);
+        });
+        assertEquals(List.of("alone-top"), pairs);
+        assertEquals(1, lobby.getWaitingCount());
+    }
+
+    @Test
+    public void emptyBucketsAreDroppedWhenSearched() {
+        Lobby<String> lobby = new Lobby<>((first, second) -> {
+        }, 1, 1000);
+        for (int rating = 0; rating <= 4000; rating += 2000)
+            lobby.join("left " + rating, rating);
+        for (int rating = 0; rating <= 4000; rating += 2000)
+            assertTrue(lobby.leave("left " + rating));
+        assertEquals(3, lobby.getBucketCount());
+        // Searches buckets 0 and 2000, but 4000 is too far
+        lobby.join("a", 1000);
+        assertEquals(2, lobby.getBucketCount());
+        lobby.join("b", 3000);
+        assertEquals(2, lobby.getBucketCount());
+        assertEquals(2, lobby.getWaitingCount());
+    }
+
+    @Test
+    public void leavingPlayerIsNotPaired() {
+        List<String> pairs = new ArrayList<>();
+        Lobby<String> lobby = new Lobby<>((first, second) -> pairs.add(first + "-" + second));
+        lobby.join("a");
+        assertTrue(lobby.leave("a"));
+        assertFalse(lobby.leave("a"));
+        lobby.join("b");
+        assertTrue(pairs.isEmpty());
+        lobby.join("c");
+        assertEquals(List.of("b-c"), pairs);
+        assertFalse(lobby.leave("b"));
+    }
+
+    @Test
+    public void playerCannotJoinTwice() {
+        Lobby<String> lobby = new Lobby<>((first, second) -> {
+        });
+        lobby.join("a");
+        assertThrows(IllegalStateException.class, () -> lobby.join("a"));
+    }
+
+    @Test
+    public void concurrentJoinsPairEveryoneExactlyOnce() throws Exception {
+        int players = 20000;
+        AtomicIntegerArray timesPaired = new AtomicIntegerArray(players);
+        AtomicInteger pairs = new AtomicInteger();
+        Lobby<Integer> lobby = new Lobby<>((first, second) -> {
+            assertFalse(first.equals(second));
+            timesPaired.incrementAndGet(first);
+            timesPaired.incrementAndGet(second);
+            pairs.incrementAndGet();
+        });
+        runConcurrently(players, lobby::join);
+        assertEquals(players / 2, pairs.get());
+        assertEquals(0, lobby.getWaitingCount());
+        for (int i = 0; i < players; i++)
+            assertEquals(1, timesPaired.get(i), "player " + i);
+    }
+
+    @Test
+    public void concurrentJoinsAndLeavesNeverPairSomeoneWhoLeft() throws Exception {
+        int players = 20000;
+        AtomicIntegerArray timesPaired = new AtomicIntegerArray(players);
+        Lobby<Integer> lobby = new Lobby<>((first, second) -> {
+            timesPaired.incrementAndGet(first);
+            timesPaired.incrementAndGet(second);
+        }, 10, 20);
+        ConcurrentHashMap<Integer, Boolean> left = new ConcurrentHashMap<>();
+        runConcurrently(players, player -> {
+            lobby.join(player, player % 100);
+            // Every third player tries to leave straight away, racing whoever may be pairing them
+            if (player % 3 == 0 && lobby.leave(player))
+                left.put(player, true);
+        });
+        int waiting = 0;
+        for (int i = 0; i < players; i++) {
+            int paired = timesPaired.get(i);
+            assertTrue(paired <= 1, "player " + i + " paired " + paired + " times");
+            if (left.containsKey(i))
+                assertEquals(0, paired, "player " + i + " left but was paired");
+            else if (paired == 0)
+                waiting++;
+        }
+        assertEquals(waiting, lobby.getWaitingCount());
+    }
+
+    @Test
+    public void leavesFromOtherThreadsNeverPairSomeoneWhoLeft() throws Exception {
+        int players = 20000;
+        AtomicIntegerArray timesPaired = new AtomicIntegerArray(players);
+        Lobby<Integer> lobby = new Lobby<>((first, second) -> {
+            timesPaired.incrementAndGet(first);
+            timesPaired.incrementAndGet(second);
+        }, 10, 20);
+        ConcurrentHashMap<Integer, Boolean> left = new ConcurrentHashMap<>();
+        // Even players join and odd players leave the player before them, usually on another thread
+        runConcurrently(players, player -> {
+            if (player % 2 == 0)
+                lobby.join(player, player % 100);
+            else if (lobby.leave(player - 1))
+                left.put(player - 1, true);
+        });
+        int waiting = 0;
+        for (int i = 0; i < players; i += 2) {
+            int paired = timesPaired.get(i);
+            assertTrue(paired <= 1, "player " + i + " paired " + paired + " times");
+            if (left.containsKey(i))
+                assertEquals(0, paired, "player " + i + " left but was paired");
+            else if (paired == 0)
+                waiting++;
+        }
+        assertEquals(waiting, lobby.getWaitingCount());
+    }
+
+    private interface PlayerAction {
+        void run(int player);
+    }
+
+    /**
+     * Runs an action for every player, spread over {@link #THREADS} threads that all start at once.
+     */
+    private static void runConcurrently(int players, PlayerAction action) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int first = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int player = first; player < players; player += THREADS)
+                        action.run(player);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link MatchLog} and {@link MatchLogReader}.
+ */
+public class MatchLogTest {
+    /**
+     * Long enough that only {@link MatchLog#flush()} and sealing commit anything.
+     */
+    private static final long NO_GROUP_COMMIT = 3_600_000;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Appends round {@code n} of a made-up match between players 1 and 2: player 1 plays rock, player 2 cycles
+     * through the moves, so it ties, wins and loses in turn.
+     */
+    private static void appendRound(MatchLog log, int n) throws IOException {
+        int second = 1 + n % 3;
+        int outcome = Player.getOutcome(1, second);
+        log.append(1000L + n, n / 3, 1, 2, 1, second, outcome, 10 + n);
+    }
+
+    @Test
+    public void roundsRoundTripThroughTheReader() throws IOException {
+        try (MatchLog log = new MatchLog(dir, 100, NO_GROUP_COMMIT)) {
+            for (int n = 0; n < 6; n++)
+                appendRound(log, n);
+            log.flush();
+            MatchLogReader reader = new MatchLogReader(dir);
+            assertEquals(6, reader.getRoundCount());
+            List<String> rounds = new ArrayList<>();
+            reader.forEachRound((time, match, first, second, firstMove, secondMove, outcome, micros) ->
+                    rounds.add(time + " " + match + " " + first + " " + second + " " + firstMove + " " + secondMove
+                            + " " + outcome + " " + micros));
+            assertEquals("1000 0 1 2 1 1 " + Player.TIE + " 10", rounds.get(0));
+            assertEquals("1004 1 1 2 1 2 " + Player.SECOND + " 14", rounds.get(4));
+            MatchLogReader.PlayerStats first = reader.getStats(1);
+            assertEquals(6, first.getRounds());
+            assertEquals(2, first.getWins());
+            assertEquals(2, first.getLosses());
+            assertEquals(2, first.getTies());
+            assertEquals(6, first.getMoveCount(1));
+            MatchLogReader.PlayerStats second = reader.getStats(2);
+            assertEquals(2, second.getWins());
+            assertEquals(2, second.getMoveCount(3));
+            assertEquals(0, reader.getStats(3).getRounds());
+        }
+    }
+
+    @Test
+    public void fullSegmentsRollOverAndAreIndexed() throws IOException {
+        try (MatchLog log = new MatchLog(dir, 4, NO_GROUP_COMMIT)) {
+            for (int n = 0; n < 10; n++)
+                appendRound(log, n);
+        }
+        for (long sequence = 0; sequence < 3; sequence++) {
+            assertTrue(Files.exists(MatchLog.segmentFile(dir, sequence, MatchLog.SEGMENT_SUFFIX)));
+            assertTrue(Files.exists(MatchLog.segmentFile(dir, sequence, MatchLog.INDEX_SUFFIX)));
+        }
+        MatchLogReader reader = new MatchLogReader(dir);
+        assertEquals(10, reader.getRoundCount());
+        assertEquals(10, reader.getStats(1).getRounds());
+        assertEquals(4, reader.getStats(1).getTies());
+    }
+
+    @Test
+    public void sealedSegmentsAreAnsweredFromTheirIndex() throws IOException {
+        try (MatchLog log = new MatchLog(dir, 4, NO_GROUP_COMMIT)) {
+            for (int n = 0; n < 8; n++)
+                appendRound(log, n);
+        }
+        // Wipe the records of the first segment; only its index can still give the right totals
+        try (FileChannel channel = FileChannel.open(MatchLog.segmentFile(dir, 0, MatchLog.SEGMENT_SUFFIX),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4 * MatchLog.RECORD_SIZE), MatchLog.HEADER_SIZE);
+        }
+        MatchLogReader.PlayerStats stats = new MatchLogReader(dir).getStats(2);
+        assertEquals(8, stats.getRounds());
+        assertEquals(3, stats.getMoveCount(1));
+    }
+
+    @Test
+    public void reopeningStartsANewSegmentAfterTheOldOnes() throws IOException {
+        try (MatchLog log = new MatchLog(dir, 4, NO_GROUP_COMMIT)) {
+            for (int n = 0; n < 5; n++)
+                appendRound(log, n);
+        }
+        try (MatchLog log = new MatchLog(dir, 4, NO_GROUP_COMMIT)) {
+            for (int n = 5; n < 7; n++)
+                appendRound(log, n);
+        }
+        assertTrue(Files.exists(MatchLog.segmentFile(dir, 2, MatchLog.INDEX_SUFFIX)));
+        assertFalse(Files.exists(MatchLog.segmentFile(dir, 3, MatchLog.SEGMENT_SUFFIX)));
+        MatchLogReader reader = new MatchLogReader(dir);
+        assertEquals(7, reader.getRoundCount());
+        assertEquals(7, reader.getStats(1).getRounds());
+    }
+
+    @Test
+    public void unsealedSegmentIsScannedUpToItsLastCommit() throws IOException {
+        // A log that is never closed, as after a crash: only what was committed counts
+        MatchLog crashed = new MatchLog(dir, 100, NO_GROUP_COMMIT);
+        try {
+            for (int n = 0; n < 3; n++)
+                appendRound(crashed, n);
+            crashed.flush();
+            for (int n = 3; n < 5; n++)
+                appendRound(crashed, n);
+            assertFalse(Files.exists(MatchLog.segmentFile(dir, 0, MatchLog.INDEX_SUFFIX)));
+            MatchLogReader reader = new MatchLogReader(dir);
+            assertEquals(3, reader.getRoundCount());
+            assertEquals(3, reader.getStats(1).getRounds());
+
+            // Restarting leaves the unsealed segment as it is and carries on in a new one
+            try (MatchLog restarted = new MatchLog(dir, 100, NO_GROUP_COMMIT)) {
+                appendRound(restarted, 5);
+            }
+            assertEquals(4, reader.getRoundCount());
+            assertEquals(4, reader.getStats(2).getRounds());
+        } finally {
+            crashed.close();
+        }
+    }
+}
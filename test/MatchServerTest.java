@@ -0,0 +1,121 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link MatchServer}, with clients connected over loopback TCP.
+ */
+public class MatchServerTest {
+    private static final RSAKey key = new ProbablePrimeKeyGenerator(1024).generateKey();
+
+    private static URI address(MatchServer server) {
+        return URI.create("tcp://localhost:" + server.getLocalPort());
+    }
+
+    private static Client connect(MatchServer server) throws IOException {
+        return new Client(Transport.connect(address(server)), NetworkPlayer.PROTOCOL_BINARY, true, false);
+    }
+
+    private static CompletableFuture<BotClient> play(MatchServer server, int move) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                BotClient bot = new BotClient(address(server), NetworkPlayer.PROTOCOL_BINARY,
+                        BotClient.fixedStrategy(move), null, false);
+                bot.playGame();
+                bot.close();
+                return bot;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Waits up to ten seconds for a count to reach a value.
+     */
+    private static void awaitCount(int expected, IntSupplier count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (count.getAsInt() != expected && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(expected, count.getAsInt());
+    }
+
+    @Test
+    public void pairedBotsPlayAFullMatch() throws Exception {
+        try (MatchServer server = new MatchServer(0, 2, key)) {
+            server.setBestOf(3);
+            server.start();
+            CompletableFuture<BotClient> rock = play(server, 1);
+            CompletableFuture<BotClient> paper = play(server, 2);
+            BotClient loser = rock.get(10, TimeUnit.SECONDS);
+            BotClient winner = paper.get(10, TimeUnit.SECONDS);
+            assertEquals(2, loser.getLosses());
+            assertEquals(0, loser.getWins() + loser.getTies());
+            assertEquals(2, winner.getWins());
+            assertEquals(0, winner.getLosses() + winner.getTies());
+            // Without keep-alive the server hangs up after END
+            awaitCount(0, server::getActiveConnections);
+        }
+    }
+
+    @Test
+    public void disconnectingMidMatchForfeits() throws Exception {
+        try (MatchServer server = new MatchServer(0, 1, key)) {
+            server.setBestOf(3);
+            server.start();
+            Client stays = connect(server);
+            Client leaves = connect(server);
+            assertEquals(NetworkPlayer.PROMPT_MOVE, stays.readMessage());
+            assertEquals(NetworkPlayer.PROMPT_MOVE, leaves.readMessage());
+            leaves.close();
+            assertEquals(NetworkPlayer.WIN, stays.readMessage());
+            assertEquals(NetworkPlayer.END, stays.readMessage());
+            stays.close();
+            awaitCount(0, server::getActiveConnections);
+        }
+    }
+
+    @Test
+    public void idleClientIsDropped() throws Exception {
+        try (MatchServer server = new MatchServer(0, 1, key)) {
+            server.setIdleTimeout(200);
+            server.start();
+            long start = System.nanoTime();
+            // Alone in the lobby, and without keep-alive the server sends it nothing
+            Client alone = connect(server);
+            awaitCount(1, server::getWaitingCount);
+            assertThrows(IOException.class, alone::readMessage);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            awaitCount(0, server::getWaitingCount);
+            awaitCount(0, server::getActiveConnections);
+            alone.close();
+        }
+    }
+
+    @Test
+    public void clientsOverTheRateLimitAreHeldBack() throws Exception {
+        try (MatchServer server = new MatchServer(0, 2, key)) {
+            // Two frames a second: HELLO and the session key use up the bucket, then each move waits half a second
+            server.setRateLimit(2, 1 << 20);
+            server.setBestOf(5);
+            server.start();
+            long limited = Metrics.RATE_LIMITED.get();
+            long start = System.nanoTime();
+            CompletableFuture<BotClient> rock = play(server, 1);
+            CompletableFuture<BotClient> paper = play(server, 2);
+            assertEquals(3, rock.get(20, TimeUnit.SECONDS).getLosses());
+            assertEquals(3, paper.get(20, TimeUnit.SECONDS).getWins());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1200));
+            assertTrue(Metrics.RATE_LIMITED.get() > limited);
+        }
+    }
+}
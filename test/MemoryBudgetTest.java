@@ -0,0 +1,80 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link MemoryBudget}.
+ */
+public class MemoryBudgetTest {
+    @Test
+    public void reservesUpToTheLimit() {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(60));
+        assertTrue(budget.tryReserve(40));
+        assertFalse(budget.tryReserve(1));
+        assertEquals(100, budget.getReserved());
+        budget.release(40);
+        assertTrue(budget.tryReserve(30));
+        assertEquals(90, budget.getReserved());
+    }
+
+    @Test
+    public void refusedReservationTakesNothing() {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(50));
+        assertFalse(budget.tryReserve(51));
+        assertEquals(50, budget.getReserved());
+    }
+
+    @Test
+    public void loweringTheLimitKeepsWhatIsReserved() {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(80));
+        budget.setLimit(50);
+        assertEquals(80, budget.getReserved());
+        assertFalse(budget.tryReserve(1));
+        budget.release(80);
+        assertTrue(budget.tryReserve(50));
+    }
+
+    @Test
+    public void negativeLimitIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new MemoryBudget(-1));
+    }
+
+    @Test
+    public void concurrentReservationsNeverExceedTheLimit() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+        AtomicLong peak = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 100_000; i++) {
+                        if (budget.tryReserve(7)) {
+                            peak.accumulateAndGet(budget.getReserved(), Math::max);
+                            budget.release(7);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(peak.get() <= 1000, "peak " + peak.get());
+        assertEquals(0, budget.getReserved());
+    }
+}
@@ -0,0 +1,163 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link MemoryTransport}, including whole games played over it.
+ */
+public class MemoryTransportTest {
+    private static final RSAKey key = new ProbablePrimeKeyGenerator(1024).generateKey();
+
+    private static String uniqueName() {
+        return "test-" + System.nanoTime();
+    }
+
+    @Test
+    public void carriesMoreThanARingInBothDirections() throws Exception {
+        String name = uniqueName();
+        byte[] data = new byte[5 * MemoryTransport.RING_SIZE + 123];
+        new Random(4).nextBytes(data);
+        try (MemoryTransport.Listener listener = MemoryTransport.listen(name)) {
+            MemoryTransport client = MemoryTransport.connect(name);
+            Transport server = listener.accept();
+            // Echo everything back, so both rings fill up and have to wait for the other side
+            CompletableFuture<Void> echo = CompletableFuture.runAsync(() -> {
+                try (InputStream in = server.getInputStream(); OutputStream out = server.getOutputStream()) {
+                    byte[] buffer = new byte[1000];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0)
+                        out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                try {
+                    client.getOutputStream().write(data);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            byte[] received = new byte[data.length];
+            new DataInputStream(client.getInputStream()).readFully(received);
+            writer.get(10, TimeUnit.SECONDS);
+            assertArrayEquals(data, received);
+            client.close();
+            echo.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void closeIsSeenAsEndOfStream() throws Exception {
+        String name = uniqueName();
+        try (MemoryTransport.Listener listener = MemoryTransport.listen(name)) {
+            MemoryTransport client = MemoryTransport.connect(name);
+            Transport server = listener.accept();
+            client.getOutputStream().write(7);
+            client.close();
+            assertEquals(7, server.getInputStream().read());
+            assertEquals(-1, server.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void readTimesOut() throws Exception {
+        String name = uniqueName();
+        try (MemoryTransport.Listener listener = MemoryTransport.listen(name)) {
+            MemoryTransport client = MemoryTransport.connect(name);
+            listener.accept();
+            client.setReadTimeout(20);
+            assertThrows(SocketTimeoutException.class, () -> client.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void namesAreRegisteredOnce() throws Exception {
+        String name = uniqueName();
+        assertThrows(ConnectException.class, () -> MemoryTransport.connect(name));
+        try (MemoryTransport.Listener listener = MemoryTransport.listen(name)) {
+            assertEquals(URI.create("mem://" + name), listener.getAddress());
+            assertThrows(BindException.class, () -> MemoryTransport.listen(name));
+        }
+        assertThrows(ConnectException.class, () -> MemoryTransport.connect(name));
+    }
+
+    @Test
+    public void commitRevealGameOverLoopback() throws Exception {
+        playLoopbackGame(NetworkPlayer.PROTOCOL_COMMIT_REVEAL);
+    }
+
+    @Test
+    public void binaryGameOverLoopback() throws Exception {
+        playLoopbackGame(NetworkPlayer.PROTOCOL_BINARY);
+    }
+
+    @Test
+    public void textGameOverLoopback() throws Exception {
+        playLoopbackGame(NetworkPlayer.PROTOCOL_TEXT);
+    }
+
+    /**
+     * Plays a best-of-5 between a server that always plays rock and a bot that always plays paper.
+     */
+    private static void playLoopbackGame(int protocolVersion) throws Exception {
+        URI address = URI.create("mem://" + uniqueName());
+        List<Integer> serverResults = Collections.synchronizedList(new ArrayList<>());
+        try (Transport.Listener listener = Transport.listen(address)) {
+            CompletableFuture<Integer> server = CompletableFuture.supplyAsync(() -> {
+                try {
+                    Server referee = new Server(listener.accept(), key, NetworkPlayer.PROTOCOL_COMMIT_REVEAL);
+                    referee.setBestOf(5);
+                    referee.playGame(new Seat() {
+                        @Override
+                        public void promptMove() {
+                        }
+
+                        @Override
+                        public int readMove() {
+                            return 1;
+                        }
+
+                        @Override
+                        public void sendResult(int result) {
+                            serverResults.add(result);
+                        }
+
+                        @Override
+                        public void end() {
+                        }
+                    });
+                    referee.close();
+                    return referee.getProtocolVersion();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            BotClient bot = new BotClient(address, protocolVersion, BotClient.fixedStrategy(2), null, false);
+            bot.playGame();
+            bot.close();
+            assertEquals(3, bot.getWins());
+            assertEquals(0, bot.getLosses());
+            assertEquals(0, bot.getTies());
+            assertEquals(protocolVersion, server.get(10, TimeUnit.SECONDS));
+            assertEquals(List.of(NetworkPlayer.LOSE, NetworkPlayer.LOSE, NetworkPlayer.LOSE), serverResults);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link Metrics}. The registry is process-wide, so each test registers metrics under its own names.
+ */
+public class MetricsTest {
+    @Test
+    public void countersAndGaugesAddUp() {
+        Metrics.Counter counter = Metrics.counter("test_counted_total", "Counted by the test");
+        counter.increment();
+        counter.add(41);
+        assertEquals(42, counter.get());
+
+        Metrics.Gauge gauge = Metrics.gauge("test_level", "Set by the test");
+        gauge.add(10);
+        gauge.decrement();
+        assertEquals(9, gauge.get());
+        gauge.set(1234);
+        assertEquals(1234, gauge.get());
+        gauge.set(-1);
+        assertEquals(-1, gauge.get());
+    }
+
+    @Test
+    public void namesCannotBeRegisteredTwice() {
+        Metrics.counter("test_once_total", "Registered once");
+        assertThrows(IllegalArgumentException.class, () -> Metrics.gauge("test_once_total", "Registered twice"));
+    }
+
+    @Test
+    public void prometheusTextHasEveryMetric() {
+        Metrics.counter("test_exported_total", "Exported counter").add(3);
+        Metrics.Timer timer = Metrics.timer("test_exported_seconds", "Exported timer");
+        timer.record(2_000_000);
+        timer.record(4_000_000);
+
+        String text = Metrics.toPrometheus();
+        assertTrue(text.contains("# HELP rps_test_exported_total Exported counter\n"
+                + "# TYPE rps_test_exported_total counter\n"
+                + "rps_test_exported_total 3\n"), text);
+        assertTrue(text.contains("# TYPE rps_test_exported_seconds summary\n"), text);
+        assertTrue(text.contains("rps_test_exported_seconds{quantile=\"0.5\"} 0.002"), text);
+        assertTrue(text.contains("rps_test_exported_seconds_sum 0.006000000\n"), text);
+        assertTrue(text.contains("rps_test_exported_seconds_count 2\n"), text);
+        assertTrue(text.contains("# TYPE " + Metrics.PREFIX + "time_to_first_accept_milliseconds gauge\n"), text);
+    }
+
+    @Test
+    public void httpServerServesThePrometheusText() throws IOException {
+        Metrics.counter("test_served_total", "Served over HTTP").increment();
+        HttpServer server = Metrics.startHttpServer(0);
+        try {
+            URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/metrics");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain"));
+            String body;
+            try (InputStream in = connection.getInputStream()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(body.contains("rps_test_served_total 1\n"), body);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
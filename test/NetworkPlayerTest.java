@@ -0,0 +1,300 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link NetworkPlayer}.
+ */
+public class NetworkPlayerTest {
+    private static final int[] PROTOCOLS = {
+            NetworkPlayer.PROTOCOL_TEXT, NetworkPlayer.PROTOCOL_BINARY, NetworkPlayer.PROTOCOL_COMMIT_REVEAL
+    };
+    private static final int[] BINARY_PROTOCOLS = {NetworkPlayer.PROTOCOL_BINARY, NetworkPlayer.PROTOCOL_COMMIT_REVEAL};
+
+    /**
+     * Checks that a lone message decodes to the given opcode and fills the whole frame.
+     */
+    private static void assertDecodes(int protocol, int opcode, byte[] buf, int off, int len) {
+        assertEquals(len, NetworkPlayer.messageLength(protocol, buf, off, len), "length of opcode " + opcode);
+        assertEquals(opcode, NetworkPlayer.decodeOpcode(protocol, buf, off, len), "protocol " + protocol);
+    }
+
+    @Test
+    public void messagesWithoutFieldsRoundTrip() {
+        byte[] buf = new byte[3 + NetworkPlayer.MAX_MESSAGE_LENGTH];
+        for (int protocol : PROTOCOLS) {
+            for (int opcode = NetworkPlayer.PROMPT_MOVE; opcode <= NetworkPlayer.END; opcode++) {
+                if (opcode == NetworkPlayer.MOVE)
+                    continue;
+                int length = NetworkPlayer.encodeMessage(protocol, buf, 3, opcode, 0);
+                assertDecodes(protocol, opcode, buf, 3, length);
+            }
+        }
+        for (int protocol : BINARY_PROTOCOLS) {
+            for (int opcode : new int[] {NetworkPlayer.HEARTBEAT, NetworkPlayer.REMATCH}) {
+                assertEquals(1, NetworkPlayer.encodeMessage(protocol, buf, 0, opcode, 0));
+                assertDecodes(protocol, opcode, buf, 0, 1);
+            }
+        }
+    }
+
+    @Test
+    public void textMessagesKeepTheirLegacySpelling() {
+        byte[] buf = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+        int length = NetworkPlayer.encodeMessage(NetworkPlayer.PROTOCOL_TEXT, buf, 0, NetworkPlayer.PROMPT_MOVE, 0);
+        assertEquals("PROMPT_MOVE", new String(buf, 0, length, StandardCharsets.US_ASCII));
+        length = NetworkPlayer.encodeMessage(NetworkPlayer.PROTOCOL_TEXT, buf, 0, NetworkPlayer.MOVE, 3);
+        assertEquals("MOVE: 3", new String(buf, 0, length, StandardCharsets.US_ASCII));
+        byte[] key = NetworkPlayer.encodeNumber(NetworkPlayer.PROTOCOL_TEXT, NetworkPlayer.KEY,
+                BigInteger.valueOf(65537));
+        assertEquals("KEY: 65537", new String(key, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void movesRoundTrip() {
+        byte[] buf = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+        for (int protocol : PROTOCOLS) {
+            for (int move = 0; move <= 3; move++) {
+                int length = NetworkPlayer.encodeMessage(protocol, buf, 0, NetworkPlayer.MOVE, move);
+                assertDecodes(protocol, NetworkPlayer.MOVE, buf, 0, length);
+                assertEquals(move, NetworkPlayer.decodeMove(protocol, buf, 0, length));
+            }
+        }
+    }
+
+    @Test
+    public void commitsAndRevealsRoundTrip() {
+        byte[] buf = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+        byte[] nonce = new byte[Commitment.NONCE_LENGTH];
+        Arrays.fill(nonce, (byte) 0xA5);
+        byte[] commitment = new byte[Commitment.HASH_LENGTH];
+        Arrays.fill(commitment, (byte) 0x5A);
+        for (int protocol : BINARY_PROTOCOLS) {
+            int length = NetworkPlayer.encodeCommit(protocol, buf, 0, commitment);
+            assertDecodes(protocol, NetworkPlayer.COMMIT, buf, 0, length);
+            assertArrayEquals(commitment, Arrays.copyOfRange(buf, 1, length));
+
+            length = NetworkPlayer.encodeReveal(protocol, buf, 0, 2, nonce);
+            assertDecodes(protocol, NetworkPlayer.REVEAL, buf, 0, length);
+            assertEquals(2, NetworkPlayer.decodeMove(protocol, buf, 0, length));
+            assertArrayEquals(nonce, Arrays.copyOfRange(buf, 2, length));
+        }
+    }
+
+    @Test
+    public void numbersRoundTrip() throws IOException {
+        BigInteger[] values = {
+                BigInteger.ZERO, BigInteger.valueOf(65537), BigInteger.ONE.shiftLeft(2047).add(BigInteger.TEN)
+        };
+        for (int protocol : PROTOCOLS) {
+            for (int opcode : new int[] {NetworkPlayer.KEY, NetworkPlayer.MOD}) {
+                for (BigInteger value : values) {
+                    byte[] data = NetworkPlayer.encodeNumber(protocol, opcode, value);
+                    assertDecodes(protocol, opcode, data, 0, data.length);
+                    assertEquals(value, NetworkPlayer.decodeNumber(protocol, data, 0, data.length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void textProtocolCannotEncodeSessionOrCommitRevealMessages() {
+        byte[] buf = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+        int text = NetworkPlayer.PROTOCOL_TEXT;
+        assertThrows(IllegalArgumentException.class,
+                () -> NetworkPlayer.encodeMessage(text, buf, 0, NetworkPlayer.HEARTBEAT, 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> NetworkPlayer.encodeMessage(text, buf, 0, NetworkPlayer.REMATCH, 0));
+        assertThrows(IllegalArgumentException.class, () -> NetworkPlayer.encodeCommit(text, buf, 0, buf));
+        assertThrows(IllegalArgumentException.class, () -> NetworkPlayer.encodeReveal(text, buf, 0, 1, buf));
+        for (int protocol : PROTOCOLS) {
+            for (int opcode : new int[] {0, NetworkPlayer.KEY, NetworkPlayer.COMMIT, NetworkPlayer.REMATCH + 1}) {
+                if (opcode == NetworkPlayer.COMMIT && protocol == text)
+                    continue;
+                assertThrows(IllegalArgumentException.class,
+                        () -> NetworkPlayer.encodeMessage(protocol, buf, 0, opcode, 0), "opcode " + opcode);
+            }
+        }
+    }
+
+    @Test
+    public void unknownOpcodesAreNotRecognized() {
+        for (int protocol : BINARY_PROTOCOLS) {
+            for (int opcode : new int[] {0, NetworkPlayer.REMATCH + 1, 0x7F, -1})
+                assertEquals(-1, NetworkPlayer.decodeOpcode(protocol, new byte[] {(byte) opcode}, 0, 1));
+            assertEquals(-1, NetworkPlayer.decodeOpcode(protocol, new byte[0], 0, 0));
+        }
+        for (String text : new String[] {"", "HELLO", "TIES", "PROMPT_MOV", "win", "MOVE:3"}) {
+            byte[] data = text.getBytes(StandardCharsets.US_ASCII);
+            assertEquals(-1, NetworkPlayer.decodeOpcode(NetworkPlayer.PROTOCOL_TEXT, data, 0, data.length), text);
+        }
+    }
+
+    @Test
+    public void truncatedMessagesAreNotRecognized() {
+        byte[] buf = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+        for (int protocol : BINARY_PROTOCOLS) {
+            int[] lengths = {
+                    NetworkPlayer.encodeMessage(protocol, buf, 0, NetworkPlayer.MOVE, 1),
+                    NetworkPlayer.encodeCommit(protocol, buf, 0, new byte[Commitment.HASH_LENGTH]),
+                    NetworkPlayer.encodeReveal(protocol, buf, 0, 1, new byte[Commitment.NONCE_LENGTH])
+            };
+            int[] opcodes = {NetworkPlayer.MOVE, NetworkPlayer.COMMIT, NetworkPlayer.REVEAL};
+            for (int i = 0; i < opcodes.length; i++) {
+                buf[0] = (byte) opcodes[i];
+                // The opcode still gives the full length, so a frame decoder sees the message is cut short
+                assertEquals(lengths[i], NetworkPlayer.messageLength(protocol, buf, 0, lengths[i] - 1));
+                assertEquals(-1, NetworkPlayer.decodeOpcode(protocol, buf, 0, lengths[i] - 1));
+            }
+            buf[0] = NetworkPlayer.MOVE;
+            assertEquals(-1, NetworkPlayer.decodeMove(protocol, buf, 0, 1));
+        }
+        byte[] move = "MOVE: ".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(-1, NetworkPlayer.decodeOpcode(NetworkPlayer.PROTOCOL_TEXT, move, 0, move.length));
+        assertEquals(-1, NetworkPlayer.decodeMove(NetworkPlayer.PROTOCOL_TEXT, move, 0, move.length));
+    }
+
+    @Test
+    public void truncatedFrameRaisesFrameException() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(2);
+        out.write(NetworkPlayer.MOVE);
+        StreamPlayer player = new StreamPlayer(bytes.toByteArray());
+        assertThrows(FrameException.class, player::readMessage);
+    }
+
+    @Test
+    public void truncatedMessageInAFrameRaisesFrameException() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1 + Commitment.HASH_LENGTH - 1);
+        out.write(NetworkPlayer.COMMIT);
+        out.write(new byte[Commitment.HASH_LENGTH - 1]);
+        StreamPlayer player = new StreamPlayer(bytes.toByteArray());
+        player.setProtocolVersion(NetworkPlayer.PROTOCOL_COMMIT_REVEAL);
+        assertThrows(FrameException.class, player::readMessage);
+    }
+
+    @Test
+    public void readMessageDecodesEveryField() throws IOException {
+        byte[] nonce = new byte[Commitment.NONCE_LENGTH];
+        Arrays.fill(nonce, (byte) 7);
+        byte[] commitment = new byte[Commitment.HASH_LENGTH];
+        Arrays.fill(commitment, (byte) 9);
+        for (int protocol : PROTOCOLS) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            byte[] buf = new byte[NetworkPlayer.MAX_MESSAGE_LENGTH];
+            writeFrame(out, NetworkPlayer.encodeNumber(protocol, NetworkPlayer.KEY, BigInteger.valueOf(3)));
+            writeFrame(out, buf, NetworkPlayer.encodeMessage(protocol, buf, 0, NetworkPlayer.MOVE, 2));
+            writeFrame(out, buf, NetworkPlayer.encodeMessage(protocol, buf, 0, NetworkPlayer.WIN, 0));
+            if (protocol != NetworkPlayer.PROTOCOL_TEXT) {
+                writeFrame(out, buf, NetworkPlayer.encodeMessage(protocol, buf, 0, NetworkPlayer.HEARTBEAT, 0));
+                writeFrame(out, buf, NetworkPlayer.encodeCommit(protocol, buf, 0, commitment));
+                writeFrame(out, buf, NetworkPlayer.encodeReveal(protocol, buf, 0, 3, nonce));
+            }
+            StreamPlayer player = new StreamPlayer(bytes.toByteArray());
+            player.setProtocolVersion(protocol);
+            assertEquals(NetworkPlayer.KEY, player.readMessage());
+            assertEquals(BigInteger.valueOf(3), player.getMessageNumber());
+            assertEquals(NetworkPlayer.MOVE, player.readMessage());
+            assertEquals(2, player.getMessageMove());
+            assertEquals(NetworkPlayer.WIN, player.readMessage());
+            if (protocol != NetworkPlayer.PROTOCOL_TEXT) {
+                // Heartbeats are skipped
+                assertEquals(NetworkPlayer.COMMIT, player.readMessage());
+                assertArrayEquals(commitment, player.getMessageCommitment());
+                assertEquals(NetworkPlayer.REVEAL, player.readMessage());
+                assertEquals(3, player.getMessageMove());
+                assertArrayEquals(nonce, player.getMessageNonce());
+            }
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+        writeFrame(out, data, data.length);
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] data, int length) throws IOException {
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    @Test
+    public void largeFrameStaysReservedUntilTheNextFrameIsRead() throws IOException {
+        int length = 4096;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(length);
+        out.write(new byte[length]);
+        out.writeInt(1);
+        out.write(7);
+        StreamPlayer player = new StreamPlayer(bytes.toByteArray());
+
+        long before = MemoryBudget.FRAMES.getReserved();
+        assertEquals(length, player.readFrame());
+        // The caller still handles the frame in the frame buffer
+        assertEquals(length, player.getFrameBuffer().length);
+        assertEquals(before + length, MemoryBudget.FRAMES.getReserved());
+        assertEquals(1, player.readFrame());
+        assertEquals(before, MemoryBudget.FRAMES.getReserved());
+
+        player = new StreamPlayer(bytes.toByteArray());
+        player.readFrame();
+        player.close();
+        assertEquals(before, MemoryBudget.FRAMES.getReserved());
+    }
+
+    /**
+     * A {@code NetworkPlayer} that reads the given bytes and discards what it writes.
+     */
+    private static class StreamPlayer extends NetworkPlayer {
+        private final DataInputStream in;
+        private final DataOutputStream out = new DataOutputStream(new ByteArrayOutputStream());
+
+        StreamPlayer(byte[] input) {
+            in = new DataInputStream(new ByteArrayInputStream(input));
+        }
+
+        @Override
+        public BigInteger getModulus() {
+            return null;
+        }
+
+        @Override
+        public BigInteger getPublicKey() {
+            return null;
+        }
+
+        @Override
+        public DataInputStream getDataInputStream() {
+            return in;
+        }
+
+        @Override
+        public DataOutputStream getDataOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void close() {
+            releaseFrame();
+        }
+
+        @Override
+        public void playGame() {
+        }
+    }
+}
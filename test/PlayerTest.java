@@ -0,0 +1,86 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link Player}.
+ */
+public class PlayerTest {
+    private static final int[] INVALID_MOVES = {0, 4, 5, 7, -1, 255, Integer.MIN_VALUE};
+
+    /**
+     * {@code getWinner} as it was before the lookup tables, for moves 1 to 3.
+     */
+    private static Player originalGetWinner(Player player1, Player player2) {
+        if (player1.getMove() == player2.getMove())
+            return null;
+        else if (player1.getMove() - player2.getMove() == 1 || player1.getMove() - player2.getMove() == -2)
+            return player1;
+        else
+            return player2;
+    }
+
+    private static Player playing(int move) {
+        Player player = new Player();
+        player.setMove(move);
+        return player;
+    }
+
+    @Test
+    public void outcomesMatchTheOriginalGetWinner() {
+        for (int first = 1; first <= 3; first++) {
+            for (int second = 1; second <= 3; second++) {
+                Player a = playing(first);
+                Player b = playing(second);
+                Player winner = originalGetWinner(a, b);
+                int outcome = winner == null ? Player.TIE : winner == a ? Player.FIRST : Player.SECOND;
+                String round = first + " vs " + second;
+                assertEquals(outcome, Player.getOutcome(first, second), round);
+                assertSame(winner, Player.getWinner(a, b), round);
+                int result = winner == null ? NetworkPlayer.TIE : winner == a ? NetworkPlayer.WIN : NetworkPlayer.LOSE;
+                assertEquals(result, Player.getResult(first, second), round);
+            }
+        }
+    }
+
+    @Test
+    public void paperBeatsRockBeatsScissorsBeatsPaper() {
+        assertEquals(Player.FIRST, Player.getOutcome(2, 1));
+        assertEquals(Player.FIRST, Player.getOutcome(1, 3));
+        assertEquals(Player.FIRST, Player.getOutcome(3, 2));
+        assertEquals(Player.SECOND, Player.getOutcome(1, 2));
+        assertEquals(Player.TIE, Player.getOutcome(3, 3));
+    }
+
+    @Test
+    public void batchMatchesSingleRounds() {
+        byte[] first = new byte[9];
+        byte[] second = new byte[9];
+        byte[] outcomes = new byte[9];
+        for (int i = 0; i < 9; i++) {
+            first[i] = (byte) (1 + i % 3);
+            second[i] = (byte) (1 + i / 3);
+        }
+        Player.getOutcomes(first, second, outcomes, 0, 9);
+        for (int i = 0; i < 9; i++)
+            assertEquals(Player.getOutcome(first[i], second[i]), outcomes[i], "round " + i);
+    }
+
+    @Test
+    public void invalidMovesAreRejected() {
+        for (int invalid : INVALID_MOVES) {
+            assertThrows(IllegalArgumentException.class, () -> Player.getOutcome(invalid, 1), "move " + invalid);
+            assertThrows(IllegalArgumentException.class, () -> Player.getOutcome(3, invalid), "move " + invalid);
+            assertThrows(IllegalArgumentException.class, () -> Player.getResult(invalid, invalid), "move " + invalid);
+            assertThrows(IllegalArgumentException.class, () -> Player.getWinner(playing(invalid), playing(2)),
+                    "move " + invalid);
+            byte[] moves = {1, 2, (byte) invalid};
+            byte[] outcomes = new byte[3];
+            assertThrows(IllegalArgumentException.class,
+                    () -> Player.getOutcomes(new byte[] {1, 2, 3}, moves, outcomes, 0, 3), "move " + invalid);
+            assertEquals(Player.TIE, outcomes[0]);
+        }
+    }
+}
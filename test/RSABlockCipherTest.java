@@ -0,0 +1,186 @@
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for {@link RSABlockCipher}.
+ */
+public class RSABlockCipherTest {
+    private static final RSAKey key = new ProbablePrimeKeyGenerator(1024).generateKey();
+    private static final Random random = new Random(2);
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void blockSizeLeavesRoomForOaep() {
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        assertEquals(128, cipher.getBlockWidth());
+        assertEquals(128 - RSABlockCipher.OAEP_OVERHEAD, cipher.getPlainBlockSize());
+    }
+
+    @Test
+    public void roundTripsAcrossBlockBoundaries() {
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        RSABlockCipher publicOnly = new RSABlockCipher(key.getPublicKey(), key.getModulus());
+        int block = cipher.getPlainBlockSize();
+        for (int length : new int[]{0, 1, block - 1, block, block + 1, 5 * block + 3}) {
+            byte[] data = randomBytes(length);
+            byte[] encrypted = publicOnly.encrypt(data);
+            assertEquals(cipher.getEncryptedLength(length), encrypted.length);
+            assertArrayEquals(data, cipher.decrypt(encrypted));
+        }
+    }
+
+    @Test
+    public void encryptionIsRandomized() {
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        byte[] data = randomBytes(20);
+        assertFalse(Arrays.equals(cipher.encrypt(data), cipher.encrypt(data)));
+    }
+
+    @Test
+    public void decryptsInPlaceIntoAnOffset() {
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        byte[] data = randomBytes(300);
+        byte[] encrypted = cipher.encrypt(data);
+        byte[] frame = new byte[encrypted.length + 7];
+        System.arraycopy(encrypted, 0, frame, 7, encrypted.length);
+        byte[] out = new byte[data.length + 5];
+        assertEquals(data.length, cipher.decrypt(frame, 7, encrypted.length, out, 5));
+        assertArrayEquals(data, Arrays.copyOfRange(out, 5, out.length));
+    }
+
+    @Test
+    public void parallelDecryptionMatchesSequential() {
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        cipher.setParallelThreshold(0);
+        cipher.setPool(pool);
+        try {
+            byte[] data = randomBytes(40 * cipher.getPlainBlockSize() + 11);
+            assertArrayEquals(data, cipher.decrypt(cipher.encrypt(data)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void decryptionAllocatesNoMoreThanTheJce() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        cipher.setParallelThreshold(Integer.MAX_VALUE);
+        int blocks = 8;
+        byte[] encrypted = cipher.encrypt(randomBytes(blocks * cipher.getPlainBlockSize()));
+        byte[] out = new byte[blocks * cipher.getPlainBlockSize()];
+
+        // Baseline: the same blocks through one bare Cipher into one buffer
+        PrivateKey privateKey = KeyFactory.getInstance("RSA").generatePrivate(new RSAPrivateCrtKeySpec(
+                key.getModulus(), key.getPublicKey(), key.getPrivateKey(), key.getP(), key.getQ(), key.getDp(),
+                key.getDq(), key.getQInv()));
+        Cipher jce = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        jce.init(Cipher.DECRYPT_MODE, privateKey, new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256,
+                PSource.PSpecified.DEFAULT));
+        byte[] block = new byte[cipher.getBlockWidth()];
+        int rounds = 200;
+        long jceBytes = 0;
+        long cipherBytes = 0;
+        for (int pass = 0; pass < 2; pass++) { // The first pass warms up
+            long start = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < rounds; i++)
+                for (int b = 0; b < blocks; b++)
+                    jce.doFinal(encrypted, 4 + b * cipher.getBlockWidth(), cipher.getBlockWidth(), block, 0);
+            jceBytes = threads.getThreadAllocatedBytes(thread) - start;
+            start = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < rounds; i++)
+                cipher.decrypt(encrypted, 0, encrypted.length, out, 0);
+            cipherBytes = threads.getThreadAllocatedBytes(thread) - start;
+        }
+        // Allow 64 bytes per message for noise; even one block buffer per message goes over
+        assertTrue(cipherBytes <= jceBytes + 64L * rounds,
+                "Allocated " + cipherBytes / (rounds * blocks) + " bytes per block, the JCE alone "
+                        + jceBytes / (rounds * blocks));
+    }
+
+    @Test
+    public void parallelOutputIsByteIdenticalAboveTheDefaultThreshold() {
+        RSABlockCipher parallel = new RSABlockCipher(key);
+        RSABlockCipher sequential = new RSABlockCipher(key);
+        sequential.setParallelThreshold(Integer.MAX_VALUE);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        parallel.setPool(pool);
+        try {
+            byte[] data = randomBytes(RSABlockCipher.DEFAULT_PARALLEL_THRESHOLD + 3 * parallel.getPlainBlockSize() + 5);
+            byte[] encrypted = parallel.encrypt(data);
+            assertTrue(encrypted.length > parallel.getParallelThreshold());
+            // Both write into buffers with stale contents, so a slot either one skipped would show
+            byte[] parallelOut = randomBytes(data.length + 8);
+            byte[] sequentialOut = parallelOut.clone();
+            assertEquals(data.length, parallel.decrypt(encrypted, 0, encrypted.length, parallelOut, 4));
+            assertEquals(data.length, sequential.decrypt(encrypted, 0, encrypted.length, sequentialOut, 4));
+            assertArrayEquals(sequentialOut, parallelOut);
+            assertArrayEquals(data, Arrays.copyOfRange(parallelOut, 4, 4 + data.length));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void tamperedBlockIsRejected() {
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        byte[] encrypted = cipher.encrypt(randomBytes(10));
+        encrypted[40] ^= 1;
+        assertThrows(IllegalArgumentException.class, () -> cipher.decrypt(encrypted));
+    }
+
+    @Test
+    public void wrongLengthHeaderIsRejected() {
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        byte[] encrypted = cipher.encrypt(randomBytes(10));
+        encrypted[3] = (byte) (cipher.getPlainBlockSize() + 1);
+        assertThrows(IllegalArgumentException.class, () -> cipher.decrypt(encrypted));
+    }
+
+    @Test
+    public void publicOnlyCipherCannotDecrypt() {
+        RSABlockCipher publicOnly = new RSABlockCipher(key.getPublicKey(), key.getModulus());
+        byte[] encrypted = publicOnly.encrypt(randomBytes(10));
+        assertThrows(IllegalStateException.class, () -> publicOnly.decrypt(encrypted));
+    }
+
+    @Test
+    public void modulusTooSmallForOaepIsRejected() {
+        // Below what ProbablePrimeKeyGenerator makes, so built by hand
+        BigInteger p = BigInteger.probablePrime(256, random);
+        BigInteger q = BigInteger.probablePrime(256, random);
+        BigInteger e = BigInteger.valueOf(65537);
+        BigInteger d = e.modInverse(p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE)));
+        RSAKey small = new RSAKey(p, q, e, d);
+        assertThrows(IllegalArgumentException.class, () -> new RSABlockCipher(small));
+    }
+}
@@ -0,0 +1,149 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for {@link RSAKeyStore}.
+ */
+public class RSAKeyStoreTest {
+    private static final RSAKey first = new ProbablePrimeKeyGenerator(1024).generateKey();
+    private static final RSAKey second = new ProbablePrimeKeyGenerator(1024).generateKey();
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Writes a key store holding one entry made of the given numbers, in the order the store saves them.
+     */
+    private static void writeEntry(Path file, int count, BigInteger... numbers) throws IOException {
+        try (OutputStream stream = Files.newOutputStream(file);
+             DataOutputStream out = new DataOutputStream(stream)) {
+            out.writeInt(0x5250534B);
+            out.writeInt(1);
+            out.writeInt(count);
+            out.writeLong(0);
+            for (BigInteger number : numbers) {
+                byte[] bytes = number.toByteArray();
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static void assertSameKey(RSAKey expected, RSAKey actual) {
+        assertEquals(expected.getP(), actual.getP());
+        assertEquals(expected.getQ(), actual.getQ());
+        assertEquals(expected.getModulus(), actual.getModulus());
+        assertEquals(expected.getPublicKey(), actual.getPublicKey());
+        assertEquals(expected.getPrivateKey(), actual.getPrivateKey());
+    }
+
+    @Test
+    public void entriesRoundTripInOrder() throws IOException {
+        RSAKeyStore store = new RSAKeyStore(dir.resolve("keys"));
+        store.save(List.of(new RSAKeyStore.Entry(first, 1234), new RSAKeyStore.Entry(second, 0)));
+        List<RSAKeyStore.Entry> entries = store.load();
+        assertEquals(2, entries.size());
+        assertSameKey(first, entries.get(0).getKey());
+        assertEquals(1234, entries.get(0).getActivatedMillis());
+        assertSameKey(second, entries.get(1).getKey());
+        assertEquals(0, entries.get(1).getActivatedMillis());
+    }
+
+    @Test
+    public void crtParametersAreRecomputedOnLoad() throws IOException {
+        RSAKeyStore store = new RSAKeyStore(dir.resolve("keys"));
+        store.save(List.of(new RSAKeyStore.Entry(first, 1)));
+        RSAKey loaded = store.load().get(0).getKey();
+        assertEquals(first.getDp(), loaded.getDp());
+        assertEquals(first.getDq(), loaded.getDq());
+        assertEquals(first.getQInv(), loaded.getQInv());
+        byte[] encrypted = new RSABlockCipher(first).encrypt("rock".getBytes());
+        assertEquals("rock", new String(new RSABlockCipher(loaded).decrypt(encrypted)));
+    }
+
+    @Test
+    public void missingFileLoadsAsEmpty() throws IOException {
+        assertTrue(new RSAKeyStore(dir.resolve("missing")).load().isEmpty());
+    }
+
+    @Test
+    public void saveReplacesAFileThatWasLoaded() throws IOException {
+        RSAKeyStore store = new RSAKeyStore(dir.resolve("keys"));
+        store.save(List.of(new RSAKeyStore.Entry(first, 1)));
+        assertSameKey(first, store.load().get(0).getKey());
+        store.save(List.of(new RSAKeyStore.Entry(second, 2)));
+        List<RSAKeyStore.Entry> entries = store.load();
+        assertEquals(1, entries.size());
+        assertSameKey(second, entries.get(0).getKey());
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.count(), "temporary file left behind");
+        }
+    }
+
+    @Test
+    public void fileIsOnlyReadableByItsOwner() throws IOException {
+        assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path file = dir.resolve("keys");
+        new RSAKeyStore(file).save(List.of(new RSAKeyStore.Entry(first, 1)));
+        PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+        assertEquals(PosixFilePermissions.fromString("rw-------"), view.readAttributes().permissions());
+    }
+
+    @Test
+    public void fileOfAnotherFormatIsRejected() throws IOException {
+        Path file = dir.resolve("keys");
+        Files.write(file, "not a key store at all".getBytes());
+        assertThrows(IOException.class, () -> new RSAKeyStore(file).load());
+    }
+
+    @Test
+    public void emptyFileIsRejected() throws IOException {
+        Path file = dir.resolve("keys");
+        Files.createFile(file);
+        assertThrows(IOException.class, () -> new RSAKeyStore(file).load());
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        Path file = dir.resolve("keys");
+        RSAKeyStore store = new RSAKeyStore(file);
+        store.save(List.of(new RSAKeyStore.Entry(first, 1)));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+        assertThrows(IOException.class, store::load);
+    }
+
+    @Test
+    public void negativeEntryCountIsRejected() throws IOException {
+        Path file = dir.resolve("keys");
+        writeEntry(file, -1, first.getP(), first.getQ(), first.getPublicKey(), first.getPrivateKey());
+        assertThrows(IOException.class, () -> new RSAKeyStore(file).load());
+    }
+
+    @Test
+    public void keyWhoseCrtParametersCannotBeComputedIsRejected() throws IOException {
+        Path file = dir.resolve("keys");
+        // p == q has no inverse of q mod p
+        writeEntry(file, 1, first.getP(), first.getP(), first.getPublicKey(), first.getPrivateKey());
+        assertThrows(IOException.class, () -> new RSAKeyStore(file).load());
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link ProbablePrimeKeyGenerator} and the CRT parameters of {@link RSAKey}.
+ */
+public class RSAKeyTest {
+    private static final Random random = new Random(1);
+
+    @Test
+    public void generatedKeyHasRequestedSizeAndConsistentExponents() {
+        RSAKey key = new ProbablePrimeKeyGenerator(1024, new SecureRandom()).generateKey();
+        assertEquals(1024, key.getModulus().bitLength());
+        assertEquals(key.getP().multiply(key.getQ()), key.getModulus());
+        assertNotEquals(key.getP(), key.getQ());
+        BigInteger a = key.getP().subtract(BigInteger.ONE);
+        BigInteger b = key.getQ().subtract(BigInteger.ONE);
+        BigInteger lcm = a.divide(a.gcd(b)).multiply(b);
+        assertEquals(BigInteger.ONE, key.getPublicKey().multiply(key.getPrivateKey()).mod(lcm));
+    }
+
+    @Test
+    public void crtParametersMatchTheKey() {
+        RSAKey key = new ProbablePrimeKeyGenerator(1024).generateKey();
+        BigInteger one = BigInteger.ONE;
+        assertEquals(key.getPrivateKey().mod(key.getP().subtract(one)), key.getDp());
+        assertEquals(key.getPrivateKey().mod(key.getQ().subtract(one)), key.getDq());
+        assertEquals(one, key.getQ().multiply(key.getQInv()).mod(key.getP()));
+    }
+
+    @Test
+    public void generatedKeysRoundTripThroughTheBlockCipher() {
+        for (int i = 0; i < 5; i++) {
+            // The JCE decrypts with the CRT parameters, so a wrong one shows up as a failed decryption
+            RSABlockCipher cipher = new RSABlockCipher(new ProbablePrimeKeyGenerator(1024).generateKey());
+            byte[] data = new byte[3 * cipher.getPlainBlockSize() + 1];
+            random.nextBytes(data);
+            assertArrayEquals(data, cipher.decrypt(cipher.encrypt(data)));
+        }
+    }
+
+    @Test
+    public void keysTooSmallToWrapASessionKeyAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new ProbablePrimeKeyGenerator(16));
+        assertThrows(IllegalArgumentException.class,
+                () -> new ProbablePrimeKeyGenerator(ProbablePrimeKeyGenerator.MIN_BIT_LENGTH - 1));
+    }
+
+    @Test
+    public void smallestKeysWrapASessionKey() {
+        RSAKey key = new ProbablePrimeKeyGenerator(ProbablePrimeKeyGenerator.MIN_BIT_LENGTH).generateKey();
+        assertEquals(ProbablePrimeKeyGenerator.MIN_BIT_LENGTH, key.getModulus().bitLength());
+        RSABlockCipher cipher = new RSABlockCipher(key);
+        SessionCipher session = new SessionCipher(SessionCipher.generateKey(), true);
+        byte[] wrapped = cipher.wrap(session.getKey());
+        assertArrayEquals(session.getKey().getEncoded(), cipher.unwrap(wrapped, 0, wrapped.length, "AES").getEncoded());
+    }
+}
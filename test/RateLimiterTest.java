@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link RateLimiter}, driven with made-up clock readings. Each starts its clock after creating the limiter,
+ * whose buckets start full at the real time.
+ */
+public class RateLimiterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void allowsOneSecondsBurstThenWaits() {
+        RateLimiter limiter = new RateLimiter(10, 1000);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10; i++)
+            assertEquals(0, limiter.acquire(20, now));
+        long wait = limiter.acquire(20, now);
+        // One frame token comes back every tenth of a second
+        assertTrue(wait > 0 && wait <= SECOND / 10, "wait " + wait);
+        assertEquals(0, limiter.acquire(20, now + wait));
+    }
+
+    @Test
+    public void byteBucketLimitsLargeFrames() {
+        RateLimiter limiter = new RateLimiter(1000, 1000);
+        long now = System.nanoTime();
+        assertEquals(0, limiter.acquire(600, now));
+        long wait = limiter.acquire(600, now);
+        // 200 more bytes are needed at 1000 bytes a second
+        assertTrue(wait > SECOND / 5 - 1000 && wait <= SECOND / 5 + 1000, "wait " + wait);
+        assertEquals(0, limiter.acquire(600, now + wait));
+    }
+
+    @Test
+    public void frameLargerThanTheBucketOnlyWaitsForItToFill() {
+        RateLimiter limiter = new RateLimiter(100, 100);
+        long now = System.nanoTime();
+        assertEquals(0, limiter.acquire(1000, now));
+        long wait = limiter.acquire(1000, now);
+        assertTrue(wait > 0 && wait <= SECOND + 1000, "wait " + wait);
+        assertEquals(0, limiter.acquire(1000, now + wait));
+    }
+
+    @Test
+    public void bucketsRefillOnlyUpToOneSecondsWorth() {
+        RateLimiter limiter = new RateLimiter(5, 1000);
+        long now = System.nanoTime();
+        long later = now + 60 * SECOND;
+        for (int i = 0; i < 5; i++)
+            assertEquals(0, limiter.acquire(1, later));
+        assertTrue(limiter.acquire(1, later) > 0);
+    }
+
+    @Test
+    public void sustainedRateIsKept() {
+        RateLimiter limiter = new RateLimiter(100, 100_000);
+        long now = System.nanoTime();
+        int let = 0;
+        for (long t = now; t < now + 10 * SECOND; t += SECOND / 1000)
+            if (limiter.acquire(10, t) == 0)
+                let++;
+        // A second's burst, then 100 a second
+        assertTrue(let >= 1090 && let <= 1110, "let through " + let);
+    }
+
+    @Test
+    public void byteRateFromFrameRateIsCheckedForOverflow() {
+        assertEquals(RateLimiter.MAX_FRAMES_PER_SECOND * RateLimiter.BYTES_PER_FRAME,
+                RateLimiter.bytesPerSecond(RateLimiter.MAX_FRAMES_PER_SECOND));
+        assertThrows(ArithmeticException.class,
+                () -> RateLimiter.bytesPerSecond(RateLimiter.MAX_FRAMES_PER_SECOND + 1));
+    }
+
+    @Test
+    public void nonPositiveRatesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0, 100));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(100, 0));
+    }
+}
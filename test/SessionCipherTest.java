@@ -0,0 +1,102 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link SessionCipher}, whose nonces come from a direction tag and a message counter, and for wrapping its
+ * key with {@link RSABlockCipher}.
+ */
+public class SessionCipherTest {
+    private final byte[] key = SessionCipher.generateKey();
+    private final SessionCipher client = new SessionCipher(key, true);
+    private final SessionCipher server = new SessionCipher(key, false);
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void roundTripsInBothDirections() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            byte[] message = bytes("message " + i);
+            assertArrayEquals(message, server.decrypt(client.encrypt(message)));
+            assertArrayEquals(message, client.decrypt(server.encrypt(message)));
+        }
+    }
+
+    @Test
+    public void counterGivesEachMessageItsOwnNonce() throws IOException {
+        byte[] message = bytes("MOVE");
+        byte[] first = client.encrypt(message);
+        byte[] second = client.encrypt(message);
+        assertEquals(message.length + SessionCipher.OVERHEAD, first.length);
+        assertFalse(Arrays.equals(first, second));
+        assertArrayEquals(message, server.decrypt(first));
+        assertArrayEquals(message, server.decrypt(second));
+    }
+
+    @Test
+    public void replayedMessageFails() throws IOException {
+        byte[] first = client.encrypt(bytes("MOVE"));
+        server.decrypt(first);
+        assertThrows(IOException.class, () -> server.decrypt(first));
+    }
+
+    @Test
+    public void reorderedMessagesFail() throws IOException {
+        client.encrypt(bytes("first"));
+        byte[] second = client.encrypt(bytes("second"));
+        assertThrows(IOException.class, () -> server.decrypt(second));
+    }
+
+    @Test
+    public void reflectedMessageFails() throws IOException {
+        // A client's own message sent back to it was encrypted for the other direction
+        byte[] own = client.encrypt(bytes("MOVE"));
+        assertThrows(IOException.class, () -> client.decrypt(own));
+    }
+
+    @Test
+    public void tamperedMessageFails() throws IOException {
+        byte[] encrypted = client.encrypt(bytes("MOVE"));
+        encrypted[0] ^= 1;
+        assertThrows(IOException.class, () -> server.decrypt(encrypted));
+    }
+
+    @Test
+    public void encryptsIntoCallerBuffers() throws IOException {
+        byte[] message = bytes("xxMOVEyy");
+        byte[] encrypted = new byte[3 + 4 + SessionCipher.OVERHEAD];
+        int length = client.encrypt(message, 2, 4, encrypted, 3);
+        byte[] decrypted = new byte[5];
+        assertEquals(4, server.decrypt(encrypted, 3, length, decrypted, 1));
+        assertArrayEquals(bytes("MOVE"), Arrays.copyOfRange(decrypted, 1, 5));
+    }
+
+    @Test
+    public void keyMustHaveTheRightLength() {
+        assertThrows(IllegalArgumentException.class, () -> new SessionCipher(new byte[8], true));
+    }
+
+    @Test
+    public void keySurvivesRsaWrapping() throws IOException {
+        RSAKey rsa = new ProbablePrimeKeyGenerator(1024).generateKey();
+        RSABlockCipher publicOnly = new RSABlockCipher(rsa.getPublicKey(), rsa.getModulus());
+        byte[] wrapped = publicOnly.wrap(client.getKey());
+        assertEquals(publicOnly.getBlockWidth(), wrapped.length);
+        byte[] unwrapped = new RSABlockCipher(rsa).unwrap(wrapped, 0, wrapped.length, "AES").getEncoded();
+        assertArrayEquals(key, unwrapped);
+        byte[] message = bytes("MOVE");
+        assertArrayEquals(message, new SessionCipher(unwrapped, false).decrypt(client.encrypt(message)));
+        wrapped[10] ^= 1;
+        assertThrows(IllegalArgumentException.class,
+                () -> new RSABlockCipher(rsa).unwrap(wrapped, 0, wrapped.length, "AES"));
+    }
+}
@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link SessionLoop}.
+ */
+public class SessionLoopTest {
+    private static final RSAKey key = new ProbablePrimeKeyGenerator(1024).generateKey();
+
+    @Test
+    public void throwingSubscriberFailsOnlyItsSession() throws Exception {
+        try (Transport.Listener listener = Transport.listen(URI.create("tcp://localhost:0"));
+             SessionLoop loop = new SessionLoop()) {
+            loop.start();
+            CompletableFuture.runAsync(() -> {
+                try {
+                    Server referee = new Server(listener.accept(), key, NetworkPlayer.PROTOCOL_COMMIT_REVEAL);
+                    referee.playGame(new FixedSeat());
+                    referee.close();
+                } catch (IOException ignored) {
+                    // The session is failed on purpose
+                }
+            });
+            GameSession session = loop.connect(listener.getAddress(), NetworkPlayer.PROTOCOL_COMMIT_REVEAL, false);
+
+            // The session asks for a move once PROMPT_MOVE has been queued for the event subscriber
+            CountDownLatch prompted = new CountDownLatch(1);
+            session.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    prompted.countDown();
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+
+            RuntimeException thrown = new IllegalStateException("Subscriber bug");
+            AtomicReference<Flow.Subscription> events = new AtomicReference<>();
+            CompletableFuture<Throwable> error = new CompletableFuture<>();
+            session.subscribe(new Flow.Subscriber<GameSession.Event>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    events.set(subscription);
+                }
+
+                @Override
+                public void onNext(GameSession.Event item) {
+                    throw thrown;
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    error.complete(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    error.complete(null);
+                }
+            });
+            assertTrue(prompted.await(10, TimeUnit.SECONDS));
+
+            // Requested from this thread, so onNext runs in a task queued on the loop
+            events.get().request(1);
+            assertSame(thrown, error.get(10, TimeUnit.SECONDS));
+
+            CountDownLatch ran = new CountDownLatch(1);
+            loop.execute(ran::countDown);
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+            assertTrue(loop.isAlive());
+        }
+    }
+
+    /**
+     * A host that always plays rock.
+     */
+    private static class FixedSeat implements Seat {
+        @Override
+        public void promptMove() {
+        }
+
+        @Override
+        public int readMove() {
+            return 1;
+        }
+
+        @Override
+        public void sendResult(int result) {
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Test;
+
+import java.security.SecureRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link Simulation}.
+ */
+public class SimulationTest {
+    private static final long SEED = 7;
+    private static final int MATCHES = 12;
+
+    private static Simulation.Report run(String transport, int workers) throws Exception {
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(SEED);
+        Simulation simulation = new Simulation(Simulation.randomScript(SEED, MATCHES),
+                new ProbablePrimeKeyGenerator(1024, random));
+        simulation.setBestOf(3);
+        simulation.setTransport(transport);
+        simulation.setWorkers(workers);
+        return simulation.run();
+    }
+
+    @Test
+    public void sameSeedGivesTheSameResultsOverAnyTransportAndWorkers() throws Exception {
+        Simulation.Report expected = run("mem", 1);
+        assertEquals(MATCHES, expected.getMatches());
+        assertEquals(0, expected.getMismatches());
+        // Best of 3: every match has two or three decided rounds
+        long decided = expected.getWins(0) + expected.getWins(1);
+        assertTrue(decided >= 2 * MATCHES && decided <= 3 * MATCHES, "decided rounds " + decided);
+        for (String transport : new String[] {"mem", "tcp"}) {
+            for (int workers = 1; workers <= 2; workers++) {
+                for (int repeat = 0; repeat < 2; repeat++) {
+                    Simulation.Report report = run(transport, workers);
+                    String run = transport + " with " + workers + " workers";
+                    assertEquals(expected.getChecksum(), report.getChecksum(), run);
+                    assertEquals(expected.getRounds(), report.getRounds(), run);
+                    assertEquals(expected.getWins(0), report.getWins(0), run);
+                    assertEquals(expected.getTies(), report.getTies(), run);
+                    assertEquals(0, report.getMismatches(), run);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reportCoversOnlyItsRunAndLeavesTheTimersAlone() throws Exception {
+        Metrics.FRAMING.record(1000);
+        long before = Metrics.FRAMING.getHistogram().getCount();
+        Simulation.Report report = run("mem", 2);
+        long after = Metrics.FRAMING.getHistogram().getCount();
+        Histogram framing = report.getStages().get("framing");
+        assertTrue(framing.getCount() > 0);
+        assertTrue(after >= before + framing.getCount(), "before " + before + ", after " + after);
+        assertEquals(1, report.getStages().get("key generation").getCount());
+        assertTrue(framing.getMax() <= Metrics.FRAMING.getHistogram().getMax());
+    }
+}
@@ -0,0 +1,72 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link ThreadedMatchServer}.
+ */
+public class ThreadedMatchServerTest {
+    private static final RSAKey key = new ProbablePrimeKeyGenerator(1024).generateKey();
+    private static final int THREADS = 4;
+
+    /**
+     * Connects a bot to the server and plays one match with it on a thread of its own, leaving it connected.
+     */
+    private static CompletableFuture<BotClient> play(ThreadedMatchServer server, int move, boolean keepAlive) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                BotClient bot = new BotClient(server.getAddress(), NetworkPlayer.PROTOCOL_BINARY,
+                        BotClient.fixedStrategy(move), null, keepAlive);
+                bot.playGame();
+                return bot;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, runnable -> new Thread(runnable).start());
+    }
+
+    @Test
+    public void idleKeepAliveClientsDoNotStarveNewOnes() throws Exception {
+        try (ThreadedMatchServer server = new ThreadedMatchServer(URI.create("tcp://localhost:0"), () -> key,
+                THREADS)) {
+            server.setRematchTimeout(300);
+            new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).start();
+
+            // After their matches these hold every thread of the pool, waiting for rematches they never ask for, and
+            // their heartbeats keep the connections from going idle
+            List<CompletableFuture<BotClient>> idle = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++)
+                idle.add(play(server, 1 + i % 2, true));
+            for (CompletableFuture<BotClient> bot : idle)
+                bot.get(10, TimeUnit.SECONDS).setIdleTimeout(100);
+
+            CompletableFuture<BotClient> rock = play(server, 1, false);
+            CompletableFuture<BotClient> paper = play(server, 2, false);
+            assertEquals(1, rock.get(10, TimeUnit.SECONDS).getLosses());
+            assertEquals(1, paper.get(10, TimeUnit.SECONDS).getWins());
+            rock.get().close();
+            paper.get().close();
+
+            for (CompletableFuture<BotClient> future : idle) {
+                BotClient bot = future.get();
+                assertThrows(IOException.class, bot::readMessage);
+                bot.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link Tournament}.
+ */
+public class TournamentTest {
+    @Test
+    public void evenRoundRobinPlaysEveryPairOnce() {
+        checkRoundRobin(8);
+    }
+
+    @Test
+    public void oddRoundRobinGivesEachPlayerOneBye() {
+        checkRoundRobin(7);
+    }
+
+    private static void checkRoundRobin(int players) {
+        Tournament tournament = new Tournament(3, Tournament.randomStrategy(42));
+        Set<Long> pairs = new HashSet<>();
+        int[] matchesPlayed = new int[players];
+        int[] rounds = {0};
+        int[] wins = tournament.roundRobin(players, Integer.MAX_VALUE, (round, first, second, winners, matches) -> {
+            assertEquals(rounds[0]++, round);
+            boolean[] busy = new boolean[players];
+            for (int i = 0; i < matches; i++) {
+                int a = first[i];
+                int b = second[i];
+                assertTrue(a != b);
+                assertTrue(!busy[a] && !busy[b], "a player has two matches in round " + round);
+                busy[a] = busy[b] = true;
+                assertTrue(pairs.add((long) Math.min(a, b) << 32 | Math.max(a, b)), a + " and " + b + " met twice");
+                assertTrue(winners[i] == a || winners[i] == b);
+                matchesPlayed[a]++;
+                matchesPlayed[b]++;
+            }
+        });
+        assertEquals(players % 2 == 0 ? players - 1 : players, rounds[0]);
+        assertEquals(players * (players - 1) / 2, pairs.size());
+        for (int played : matchesPlayed)
+            assertEquals(players - 1, played);
+        assertEquals(players * (players - 1) / 2, Arrays.stream(wins).sum());
+    }
+
+    @Test
+    public void roundRobinCanStopEarly() {
+        Tournament tournament = new Tournament(1, Tournament.randomStrategy(1));
+        int[] rounds = {0};
+        int[] wins = tournament.roundRobin(10, 3, (round, first, second, winners, matches) -> rounds[0]++);
+        assertEquals(3, rounds[0]);
+        assertEquals(3 * 5, Arrays.stream(wins).sum());
+    }
+
+    @Test
+    public void roundRobinIsRepeatableForASeed() {
+        int[] once = new Tournament(5, Tournament.randomStrategy(7)).roundRobin(20, Integer.MAX_VALUE, null);
+        int[] again = new Tournament(5, Tournament.randomStrategy(7)).roundRobin(20, Integer.MAX_VALUE, null);
+        assertArrayEquals(once, again);
+    }
+
+    @Test
+    public void strongestPlayerWinsEverything() {
+        // Player 3 always plays paper and everyone else rock, so player 3 wins every match and the rest always tie
+        Tournament.Strategy strategy = (player, opponent, round) -> player == 3 ? 2 : 1;
+        Tournament tournament = new Tournament(3, strategy);
+        int[] wins = tournament.roundRobin(9, Integer.MAX_VALUE, null);
+        assertEquals(8, wins[3]);
+        assertEquals(3, tournament.knockout(9, null));
+    }
+
+    @Test
+    public void endlessTiesGoToTheFirstSide() {
+        Tournament tournament = new Tournament(1, (player, opponent, round) -> 1);
+        int[] winners = new int[1];
+        tournament.playMatches(new int[]{4}, new int[]{5}, winners, 1);
+        assertEquals(4, winners[0]);
+    }
+
+    @Test
+    public void largeRoundsSplitAcrossThePoolGiveTheSameResults() {
+        int matches = 3 * Tournament.BATCH_SIZE + 17;
+        int[] first = new int[matches];
+        int[] second = new int[matches];
+        for (int i = 0; i < matches; i++) {
+            first[i] = 2 * i;
+            second[i] = 2 * i + 1;
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Tournament tournament = new Tournament(5, Tournament.randomStrategy(3), pool);
+            int[] parallel = new int[matches];
+            tournament.playMatches(first, second, parallel, matches);
+            // One match at a time never leaves the calling thread
+            int[] sequential = new int[matches];
+            int[] winner = new int[1];
+            for (int i = 0; i < matches; i++) {
+                tournament.playMatches(new int[]{first[i]}, new int[]{second[i]}, winner, 1);
+                sequential[i] = winner[0];
+            }
+            assertArrayEquals(sequential, parallel);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void evenBestOfIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new Tournament(2, Tournament.randomStrategy(0)));
+    }
+}